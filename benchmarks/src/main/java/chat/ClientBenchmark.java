@@ -0,0 +1,98 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Benchmarks of the headless client's handling of frames from the server
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+    // Attributes used for the client under test
+    private ClientGroup group;
+    private ChatClient client;
+    private Blackhole blackhole;
+
+    // Attributes used for the frames it receives
+    private ByteBuffer[] messages;
+    private ByteBuffer messageRequest;
+    private ByteBuffer ackSent;
+    private ByteBuffer peerName;
+    private int next;
+
+    /**
+    * Opens a client whose listener only consumes what it is handed, and the frames it receives
+    */
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        group = new ClientGroup(new InetSocketAddress(InetAddress.getLoopbackAddress(), 7070));
+        client = group.open(new ChatClient.Listener(){
+            public void on_message_request(ChatClient client, boolean exit){
+                blackhole.consume(exit);
+            }
+
+            public void on_message(ChatClient client, int seq, String text){
+                blackhole.consume(text);
+            }
+        });
+
+        // Alternates two sequence numbers so that no message is dropped as a repeat
+        messages = new ByteBuffer[]{
+            LoopbackEventLoop.frame(Frame.MESSAGE, 1, 7, "Hello there, how are you doing today?"),
+            LoopbackEventLoop.frame(Frame.MESSAGE, 1, 8, "Hello there, how are you doing today?")
+        };
+        messageRequest = LoopbackEventLoop.frame(Frame.MESSAGE_REQUEST, 1, 0, null);
+        ackSent = LoopbackEventLoop.frame(Frame.ACK_SENT, 1, 7, null);
+        peerName = LoopbackEventLoop.frame(Frame.PEER_NAME, 1, 0, "Joshua");
+    }
+
+    /**
+    * Closes the client's socket
+    */
+    @TearDown
+    public void teardown(){
+        group.close();
+    }
+
+    /**
+    * Receives a chat message, which decodes its text
+    */
+    @Benchmark
+    public void receive_message(){
+        next ^= 1;
+        client.receive(messages[next].rewind());
+    }
+
+    /**
+    * Receives the notice that a message is waiting to be accepted
+    */
+    @Benchmark
+    public void receive_message_request(){
+        client.receive(messageRequest.rewind());
+    }
+
+    /**
+    * Receives a frame that only carries its opcode
+    */
+    @Benchmark
+    public void receive_control(){
+        client.receive(ackSent.rewind());
+    }
+
+    /**
+    * Receives the nickname of a new chat partner
+    */
+    @Benchmark
+    public String receive_peer_name(){
+        client.receive(peerName.rewind());
+        return client.peer_name();
+    }
+}
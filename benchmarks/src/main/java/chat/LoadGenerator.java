@@ -0,0 +1,336 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator that runs simulated clients in pairs against a server. Each
+// pair connects, sets nicknames and opens a chat, then its first client keeps
+// one operation in flight at a time, picked from the scenario mix
+//
+// Configured through system properties:
+//   chat.load.host        server host, defaults to localhost
+//   chat.load.port        server port, defaults to 7070
+//   chat.load.clients     number of clients, rounded down to pairs, defaults to 100
+//   chat.load.ramp        milliseconds over which the pairs are started, defaults to 1000
+//   chat.load.duration    seconds the load runs once ramped up, defaults to 10
+//   chat.load.groups      number of selector threads the clients share
+//   chat.load.inflight    messages sent at once by a message operation, defaults to 16
+//   chat.load.mix         weights of the operations, defaults to message=90,online=9,reject=1
+//                           message  a burst of windowed messages
+//                           online   a fetch of the online list
+//                           reject   an offered message the partner rejects
+//   chat.client.loss      percent of the clients' datagrams dropped on purpose, defaults to 0
+//   chat.client.direct    whether the pairs send straight to each other, defaults to true
+public class LoadGenerator {
+    // Operations of the scenario mix
+    private static final int MESSAGE = 0;
+    private static final int ONLINE = 1;
+    private static final int REJECT = 2;
+    private static final String[] OPERATIONS = {"message", "online", "reject"};
+
+    // Attributes used for the configuration
+    private InetSocketAddress server;
+    private int pairs;
+    private long rampNanos;
+    private long durationNanos;
+    private int[] weights = {90, 9, 1};
+    private int inflight;
+    private ClientGroup[] groups;
+    private Pair[] started;
+
+    // Attributes used for the results, updated from every selector thread
+    private volatile boolean running = true;
+    private LatencyHistogram handshakes = new LatencyHistogram();
+    private LatencyHistogram deliveries = new LatencyHistogram();
+    private AtomicLong delivered = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private AtomicLong listed = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+    private AtomicLong ready = new AtomicLong();
+
+    /**
+    * Two simulated clients in a chat, where the first one drives the load
+    */
+    private class Pair implements ChatClient.Listener {
+        ChatClient sender;
+        ChatClient receiver;
+        long started;
+
+        // The handshake from connecting to the opened chat, failed if it is still pending when the run ends
+        CompletableFuture<String> handshake;
+
+        // Whether the receiver rejects the message in flight, set for the offer
+        // of a reject operation and cleared once it completes
+        volatile boolean reject;
+
+        /**
+        * Accepts the chat request from the sender
+        */
+        public void on_request(ChatClient client, int requester, String name){
+            client.respond(true);
+        }
+
+        /**
+        * Accepts or rejects the message in flight as the sender picked
+        */
+        public void on_message_request(ChatClient client, boolean exit){
+            client.answer(!reject);
+        }
+
+        /**
+        * Records how long the message took from being sent to being delivered
+        */
+        public void on_message(ChatClient client, int seq, String text){
+            try {
+                deliveries.record(System.nanoTime() - Long.parseLong(text));
+            } catch (NumberFormatException e) {}
+        }
+    }
+
+    /**
+    * Reads the configuration from system properties
+    */
+    LoadGenerator() throws IOException {
+        server = new InetSocketAddress(System.getProperty("chat.load.host", "localhost"),
+            Integer.getInteger("chat.load.port", 7070));
+        pairs = Integer.getInteger("chat.load.clients", 100) / 2;
+        rampNanos = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.load.ramp", 1000));
+        durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("chat.load.duration", 10));
+        inflight = Math.max(1, Integer.getInteger("chat.load.inflight", 16));
+
+        // Reads the weights, leaving out operations that are not named
+        String mix = System.getProperty("chat.load.mix");
+        if (mix != null){
+            weights = new int[OPERATIONS.length];
+            for (String entry : mix.split(",")){
+                String[] parts = entry.trim().split("=");
+                for (int i = 0; i < OPERATIONS.length; i++){
+                    if (OPERATIONS[i].equals(parts[0]))
+                        weights[i] = Integer.parseInt(parts[1]);
+                }
+            }
+        }
+
+        groups = new ClientGroup[Integer.getInteger("chat.load.groups",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2))];
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = new ClientGroup(server);
+    }
+
+    /**
+    * Picks the next operation from the scenario mix
+    *
+    * @return MESSAGE, ONLINE or REJECT
+    */
+    private int pick(){
+        int total = 0;
+        for (int weight : weights)
+            total += weight;
+
+        int roll = ThreadLocalRandom.current().nextInt(Math.max(total, 1));
+        for (int i = 0; i < weights.length; i++){
+            roll -= weights[i];
+            if (roll < 0)
+                return i;
+        }
+
+        return MESSAGE;
+    }
+
+    /**
+    * Connects a client, trying again a few times since a burst of connection
+    * requests can overflow the server's socket buffer
+    *
+    * @param  client    the client
+    * @param  attempts  how many more times to try
+    * @return the client number
+    */
+    private CompletableFuture<Integer> connect(ChatClient client, int attempts){
+        return client.connect().handle((id, error) -> {
+            if (error == null)
+                return CompletableFuture.completedFuture(id);
+            if (attempts <= 1)
+                return CompletableFuture.<Integer>failedFuture(error);
+
+            return CompletableFuture.supplyAsync(() -> 0,
+                CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS))
+                .thenCompose(ignored -> connect(client, attempts - 1));
+        }).thenCompose(future -> future);
+    }
+
+    /**
+    * Connects a pair, opens their chat and starts its load
+    *
+    * @param  index     the number of the pair
+    */
+    private void start(int index) throws IOException {
+        Pair pair = new Pair();
+        started[index] = pair;
+        ClientGroup group = groups[index % groups.length];
+        pair.sender = group.open(pair);
+        pair.receiver = group.open(pair);
+        pair.started = System.nanoTime();
+
+        // Runs the handshake from connection_request to the opened chat
+        pair.handshake = CompletableFuture.allOf(connect(pair.sender, 5), connect(pair.receiver, 5))
+            .thenCompose(ignored -> CompletableFuture.allOf(
+                pair.sender.nickname("load_" + index + "a"), pair.receiver.nickname("load_" + index + "b")))
+            .thenCompose(ignored -> pair.sender.request(pair.receiver.session()));
+        pair.handshake.whenComplete((peer, error) -> {
+            if (error != null || peer == null){
+                failures.incrementAndGet();
+                return;
+            }
+
+            handshakes.record(System.nanoTime() - pair.started);
+            ready.incrementAndGet();
+            next(pair);
+        });
+    }
+
+    /**
+    * Runs the pair's next operation, then the one after it once it completes
+    *
+    * @param  pair      the pair
+    */
+    private void next(Pair pair){
+        if (!running)
+            return;
+
+        CompletableFuture<?> operation;
+        switch (pick()){
+            case ONLINE:
+                operation = pair.sender.online().thenRun(() -> listed.incrementAndGet());
+                break;
+
+            // The payload carries the send time, read back by the receiver
+            case REJECT:
+                pair.reject = true;
+                operation = pair.sender.offer(Long.toString(System.nanoTime())).thenAccept(accepted -> {
+                    if (!accepted)
+                        rejected.incrementAndGet();
+                });
+                break;
+
+            // Sends a burst through the window, which keeps it all in flight at once
+            default:
+                CompletableFuture<?>[] burst = new CompletableFuture<?>[inflight];
+                for (int i = 0; i < inflight; i++)
+                    burst[i] = pair.sender.send(Long.toString(System.nanoTime())).thenRun(() -> delivered.incrementAndGet());
+                operation = CompletableFuture.allOf(burst);
+        }
+
+        // Lost datagrams only fail the operation, the pair carries on with the next one
+        operation.whenComplete((ignored, error) -> {
+            if (error != null)
+                failures.incrementAndGet();
+            pair.reject = false;
+            next(pair);
+        });
+    }
+
+    /**
+    * Ramps up the pairs, runs the load for the configured time and prints the results
+    */
+    public void run() throws IOException {
+        System.out.printf("Load> %d clients in %d pairs against %s on %d selector threads%n",
+            pairs * 2, pairs, server, groups.length);
+
+        // Spreads the pairs evenly over the ramp
+        started = new Pair[pairs];
+        long begin = System.nanoTime();
+        for (int i = 0; i < pairs; i++){
+            long due = begin + rampNanos * i / Math.max(pairs, 1);
+            while (System.nanoTime() < due)
+                LockSupport.parkNanos(due - System.nanoTime());
+            start(i);
+        }
+
+        // Reports the rate every second while the load runs
+        long measured = System.nanoTime();
+        long startCount = delivered.get();
+        long last = startCount;
+        while (System.nanoTime() - measured < durationNanos){
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            long count = delivered.get();
+            System.out.printf("Load> %d pairs chatting, %d handshaking, %d messages/sec, %d failures%n",
+                ready.get(), handshaking(), count - last, failures.get());
+            last = count;
+        }
+
+        running = false;
+        double seconds = (System.nanoTime() - measured) / 1e9;
+        long messages = delivered.get() - startCount;
+
+        // Gives up on the handshakes still pending, which count as failures
+        long pending = 0;
+        for (Pair pair : started){
+            if (pair.handshake.completeExceptionally(new TimeoutException("the run ended during the handshake")))
+                pending++;
+        }
+
+        System.out.println();
+        System.out.printf("Messages delivered   %d (%.0f messages/sec)%n", messages, messages / seconds);
+        System.out.printf("Messages rejected    %d%n", rejected.get());
+        System.out.printf("Online list fetches  %d%n", listed.get());
+        System.out.printf("Failures             %d%n", failures.get());
+        System.out.printf("Handshakes           %d ready, %d still pending at the end%n", ready.get(), pending);
+        System.out.printf("Direct paths         %d of %d pairs%n", direct(), ready.get());
+        System.out.printf("Handshake latency    %s%n", handshakes.summary());
+        System.out.printf("Delivery latency     %s%n", deliveries.summary());
+
+        // Gives the operations in flight a moment to finish before leaving the server
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+        for (Pair pair : started){
+            pair.sender.exit();
+            pair.receiver.exit();
+        }
+
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+        for (ClientGroup group : groups)
+            group.close();
+    }
+
+    /**
+    * Counts the pairs whose handshake has not completed yet
+    *
+    * @return the number of pairs still opening their chat
+    */
+    private int handshaking(){
+        int count = 0;
+        for (Pair pair : started){
+            if (!pair.handshake.isDone())
+                count++;
+        }
+
+        return count;
+    }
+
+    /**
+    * Counts the pairs whose messages go straight between the clients
+    *
+    * @return the number of pairs off the server's relay
+    */
+    private int direct(){
+        int count = 0;
+        for (Pair pair : started){
+            if (pair.sender.direct())
+                count++;
+        }
+
+        return count;
+    }
+
+    /**
+    * Load generator main function
+    */
+    public static void main(String[] args) throws IOException {
+        new LoadGenerator().run();
+    }
+}
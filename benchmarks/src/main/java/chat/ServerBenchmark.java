@@ -0,0 +1,182 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Benchmarks of the server's packet handlers with a given number of clients
+// connected, where clients 1 and 2 are in a chat with each other and every
+// client is in one room
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+    @Param({"16", "1024", "16384"})
+    public int clients;
+
+    // Attributes used for the server under test
+    private Server server;
+    private InetSocketAddress[] addresses;
+    private int next;
+
+    // Attributes used for the chat between clients 1 and 2
+    private ByteBuffer messageAck;
+    private ByteBuffer messageResponse;
+    private Frame ackFrame;
+    private Frame responseFrame;
+
+    // Datagram of windowed messages coalesced by client 1
+    private ByteBuffer dataBatch;
+
+    // Attributes used for the room every client is in, posted to by client 1
+    private ByteBuffer roomPost;
+    private Frame roomAck;
+    private int posts;
+
+    /**
+    * Connects the clients and opens a chat between the first two
+    */
+    @Setup
+    public void setup() throws IOException {
+        // Only errors are recorded, so the logger stays off the measured path, the
+        // clients are never dropped for going quiet since they send no heartbeats,
+        // and no mail log, history or snapshot is written to the working directory
+        Log log = new Log(Log.ERROR, 1024, null, 0, 0);
+        System.setProperty("chat.session.timeout", "0");
+        System.setProperty("chat.mail.dir", "");
+        System.setProperty("chat.history.dir", "");
+        System.setProperty("chat.snapshot.file", "");
+        server = new Server(new LoopbackEventLoop(log), log);
+
+        // Connects every client from its own loopback port
+        ByteBuffer connect = LoopbackEventLoop.frame(Frame.CONNECTION_REQUEST, 0, 0, null);
+        addresses = new InetSocketAddress[clients];
+        for (int i = 0; i < clients; i++){
+            addresses[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1024 + i);
+            server.process_input(connect.rewind(), addresses[i]);
+        }
+
+        // Client 1 asks client 2 to chat and client 2 accepts
+        server.process_input(LoopbackEventLoop.frame(Frame.CLIENT_REQUEST, 1, 2, null), addresses[0]);
+        server.process_input(LoopbackEventLoop.frame(Frame.CLIENT_ACK_RESPONSE, 2, 1, null), addresses[1]);
+
+        // Client 1 sends a message and client 2 accepts it
+        messageAck = LoopbackEventLoop.frame(Frame.MESSAGE_ACK, 1, 1, "Hello there, how are you doing today?");
+        messageResponse = LoopbackEventLoop.frame(Frame.MESSAGE_RESPONSE, 2, 1, null);
+
+        // Decodes the same frames once for the benchmarks that skip the codec
+        ackFrame = new Frame();
+        Codec.decode(LoopbackEventLoop.frame(Frame.MESSAGE_ACK, 1, 1, "Hello there, how are you doing today?"), ackFrame);
+        responseFrame = new Frame();
+        Codec.decode(LoopbackEventLoop.frame(Frame.MESSAGE_RESPONSE, 2, 1, null), responseFrame);
+
+        // Coalesces sixteen windowed messages into one datagram
+        dataBatch = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+        for (int seq = 0; seq < 16; seq++)
+            Codec.encode(dataBatch, Frame.DATA, 1, seq, "Hello there, how are you doing today?");
+        dataBatch.flip();
+
+        // Puts every client in the same room, which is room 1
+        ByteBuffer join = LoopbackEventLoop.frame(Frame.ROOM_JOIN, 0, 0, "team");
+        for (int i = 0; i < clients; i++)
+            server.process_input(join.rewind(), addresses[i]);
+
+        roomPost = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        ByteBuffer ack = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        int gap = Codec.begin(ack, Frame.ROOM_ACK, 0);
+        Codec.put_varint(ack, 1);
+        Codec.finish(ack, gap, 0);
+        ack.flip();
+        roomAck = new Frame();
+        Codec.decode(ack, roomAck);
+    }
+
+    /**
+    * One relayed message from the datagrams, decoding included
+    */
+    @Benchmark
+    public void process_input(){
+        server.process_input(messageAck.rewind(), addresses[0]);
+        server.process_input(messageResponse.rewind(), addresses[1]);
+    }
+
+    /**
+    * Sixteen windowed messages relayed from one coalesced datagram
+    */
+    @Benchmark
+    public void relay_batch(){
+        server.process_input(dataBatch.rewind(), addresses[0]);
+    }
+
+    /**
+    * One room message fanned out to every client and acked by each of them
+    */
+    @Benchmark
+    public void room_fanout(){
+        // Client 1 posts the message expected next
+        roomPost.clear();
+        int gap = Codec.begin(roomPost, Frame.ROOM_SEND, 1);
+        Codec.put_varint(roomPost, 1);
+        BufferPool.put_string("Hello there, how are you doing today?", roomPost);
+        Codec.finish(roomPost, gap, posts++);
+        roomPost.flip();
+        server.process_input(roomPost, addresses[0]);
+
+        // Pumps until every member was sent the message, then acks it for each
+        long now = System.nanoTime();
+        while (server.run_pass(now) == 0);
+
+        roomAck.seq = posts;
+        for (int i = 1; i <= clients; i++)
+            server.ack_room(roomAck, i);
+    }
+
+    /**
+    * One relayed message from frames that are already decoded
+    */
+    @Benchmark
+    public void route_message(){
+        server.route_message(ackFrame, 1);
+        server.route_message(responseFrame, 2);
+    }
+
+    /**
+    * Looks up the client number of a source address, cycling through every client
+    */
+    @Benchmark
+    public int get_ID(){
+        if (++next == clients)
+            next = 0;
+
+        return server.get_ID(addresses[next]);
+    }
+
+    /**
+    * Sends the first page of the online list
+    */
+    @Benchmark
+    public int online_page(){
+        return server.send_online_page(0, 1);
+    }
+
+    /**
+    * Sends every page of the online list
+    */
+    @Benchmark
+    public int online_list(){
+        int pages = 0;
+        int cursor = 0;
+
+        do {
+            cursor = server.send_online_page(cursor, 1);
+            pages++;
+        } while (cursor != 0);
+
+        return pages;
+    }
+}
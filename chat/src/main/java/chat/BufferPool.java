@@ -0,0 +1,126 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+// Pool of reusable packet buffers shared by the server and the client
+public class BufferPool {
+    // Attributes used for the pool
+    public static final int BUFFER_SIZE = 256;
+
+    // Largest datagram frames are coalesced into, kept under the path MTU so
+    // that nothing is fragmented on the way
+    public static final int DATAGRAM_SIZE = Math.max(Integer.getInteger("chat.mtu", 1400), BUFFER_SIZE);
+
+    // Largest datagram that can be received, whatever size the sender coalesces to
+    public static final int RECEIVE_SIZE = 65507;
+
+    // Largest frame, header included, sent as fragments when it does not fit a datagram
+    public static final int FRAME_SIZE = 64 * 1024;
+    private ByteBuffer[] free;
+    private int count;
+    private int size;
+    private boolean direct;
+
+    /**
+    * Creates a pool that is filled up front with reusable buffers. The pool
+    * is not thread safe, every thread that sends or receives owns its own pool
+    *
+    * @param  capacity  the number of buffers kept by the pool
+    * @param  size      the size of every buffer in bytes
+    * @param  direct    whether the buffers are allocated outside of the heap
+    */
+    BufferPool(int capacity, int size, boolean direct){
+        this.size = size;
+        this.direct = direct;
+
+        // Allocates every buffer now so the steady state never has to
+        free = new ByteBuffer[capacity];
+        for (count = 0; count < capacity; count++)
+            free[count] = allocate();
+    }
+
+    /**
+    * Allocates a new buffer of the pool's size and kind
+    *
+    * @return the new buffer
+    */
+    private ByteBuffer allocate(){
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+    * Takes a cleared buffer out of the pool
+    *
+    * @return a buffer ready to be written to
+    */
+    public ByteBuffer acquire(){
+        // Only allocates if more buffers are in flight than the pool holds
+        if (count == 0)
+            return allocate();
+
+        ByteBuffer buffer = free[--count];
+        free[count] = null;
+        return buffer;
+    }
+
+    /**
+    * Returns a buffer to the pool so it can be reused
+    *
+    * @param  buffer    the buffer that is no longer in use
+    */
+    public void release(ByteBuffer buffer){
+        // Drops the buffer if the pool is already full
+        if (count == free.length || buffer.capacity() != size)
+            return;
+
+        buffer.clear();
+        free[count++] = buffer;
+    }
+
+    /**
+    * Writes a string into a buffer as UTF-8 without allocating a byte array,
+    * anything that does not fit is truncated like an oversized datagram
+    *
+    * @param  data      the string being written
+    * @param  buffer    the buffer the string is written to
+    */
+    public static void put_string(String data, ByteBuffer buffer){
+        for (int i = 0; i < data.length(); i++){
+            int c = data.charAt(i);
+            int bytes = c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+
+            // Surrogate pairs are combined into a single code point, lone halves are replaced
+            if (Character.isSurrogate((char) c)){
+                if (Character.isHighSurrogate((char) c) && i + 1 < data.length()
+                    && Character.isLowSurrogate(data.charAt(i + 1))){
+                    c = Character.toCodePoint((char) c, data.charAt(i + 1));
+                    bytes = 4;
+                } else {
+                    c = '?';
+                    bytes = 1;
+                }
+            }
+
+            // Stops at the last character that fits completely
+            if (buffer.remaining() < bytes)
+                return;
+
+            if (bytes == 1){
+                buffer.put((byte) c);
+            } else if (bytes == 2){
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (bytes == 3){
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xF0 | (c >> 18)));
+                buffer.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+                i++;
+            }
+        }
+    }
+}
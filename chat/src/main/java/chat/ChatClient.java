@@ -0,0 +1,1729 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Headless client of the chat protocol. Every call returns a future that the
+// server's reply completes, and what the server pushes unasked, such as chat
+// and message requests, is handed to a listener. The state is only touched on
+// the group's thread, so the futures and callbacks complete there. Requests
+// the server can safely see twice are sent again when their answer is lost,
+// after a timeout measured from the round trips to the server. Once a chat is
+// open the messages go straight to the partner if probes show that the direct
+// path works, and through the server's relay otherwise
+public class ChatClient {
+    /**
+    * Callbacks for what the server pushes to the client, called on the group's thread
+    */
+    public interface Listener {
+        /**
+        * Another client asks to chat, answered with respond
+        *
+        * @param  client    the client being asked
+        * @param  requester the requesting client's number
+        * @param  name      the requesting client's nickname
+        */
+        default void on_request(ChatClient client, int requester, String name){
+            client.respond(false);
+        }
+
+        /**
+        * The chat partner wants to send a message, answered with answer
+        *
+        * @param  client    the client receiving the message
+        * @param  exit      whether the message asks to end the chat
+        */
+        default void on_message_request(ChatClient client, boolean exit){
+            client.answer(true);
+        }
+
+        /**
+        * A message was delivered, in the order it was sent
+        *
+        * @param  client    the client receiving the message
+        * @param  seq       the sequence number of the message
+        * @param  text      the message
+        */
+        default void on_message(ChatClient client, int seq, String text){}
+
+        /**
+        * The chat ended after an exit message was accepted
+        *
+        * @param  client    the client whose chat ended
+        */
+        default void on_chat_closed(ChatClient client){}
+
+        /**
+        * A message was posted to a room the client is in, in the order of the room
+        *
+        * @param  client    the member receiving the message
+        * @param  room      the room's number
+        * @param  sender    the posting member's client number
+        * @param  text      the message
+        */
+        default void on_room_message(ChatClient client, int room, int sender, String text){}
+
+        /**
+        * Mail left for the client's nickname arrived, in the order it was left
+        *
+        * @param  client    the client receiving the mail
+        * @param  sender    the nickname of the client that left it
+        * @param  text      the message
+        */
+        default void on_mail(ChatClient client, String sender, String text){}
+    }
+
+    // Attributes used for the socket
+    private ClientGroup group;
+    private DatagramChannel channel;
+    private Listener listener;
+    private Frame frame = new Frame();
+    private int session;
+
+    // Attributes used for the copy of the online list, kept in step with the server
+    private TreeMap<Integer, String> roster = new TreeMap<>();
+    private int rosterVersion = -1;
+    private int cursor;
+
+    // Attributes used for the windowed messages of the chat. The window is
+    // at most 64, the numbers a server keeps track of to record each message once
+    private int window = Math.min(Integer.getInteger("chat.client.window", 64), Session.RECORDED);
+    private SendWindow sendWindow;
+    private ReceiveWindow<String> receiveWindow;
+    private boolean timerArmed;
+    private boolean ackPending;
+    private boolean deferred;
+
+    // Attributes used for the rooms the client is in, by room number
+    private static final int DUPLICATE_ACKS = 3;
+    private HashMap<Integer, Membership> rooms = new HashMap<Integer, Membership>();
+    private ArrayList<Membership> roomAcks = new ArrayList<Membership>();
+
+    // Attributes used for the direct path to the chat partner
+    private static final int PROBES = 6;
+    private boolean directEnabled = Boolean.parseBoolean(System.getProperty("chat.client.direct", "true"));
+    private InetSocketAddress peerEndpoint;
+    private boolean direct;
+    private int probes;
+    private long probeSentAt;
+    private int chats;
+
+    // Attributes used for compressed frames: whether the client asks for
+    // them, and whether the server and the chat partner agreed to them
+    private boolean compress = Boolean.parseBoolean(System.getProperty("chat.client.compress", "true"));
+    private boolean compressing;
+    private boolean peerCompressing;
+
+    // Attributes used for the retransmission timeouts, one per path
+    private RttEstimator serverRtt = new RttEstimator();
+    private RttEstimator peerRtt = new RttEstimator();
+
+    // How often the client tells the server it is still there, well within
+    // the server's session timeout, or 0 for never
+    private long heartbeat = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.client.heartbeat", 10000));
+
+    // Attributes used for the chat. A request from another client is passed
+    // to the listener once, the server asking again while it is repeated
+    private int pendingPeer;
+    private String pendingName;
+    private boolean asked;
+    private int peer;
+    private String peerName;
+    private boolean chatting;
+    private int prevSeq = -1;
+
+    // Attributes used for the offered messages, sent while the server's queue
+    // for the client has room and held back on the client after that
+    private ArrayDeque<Offer> offers = new ArrayDeque<Offer>();
+    private ArrayDeque<Offer> held = new ArrayDeque<Offer>();
+    private int offerDepth = 1;
+    private int offerNumber;
+    private int turnedAway;
+
+    // Attributes used for the mail left for other nicknames, sent one at a
+    // time, and the number of the last mail received for this one
+    private ArrayDeque<Mail> mails = new ArrayDeque<Mail>();
+    private Mail mailing;
+    private int mailNumber;
+    private int mailSeen = -1;
+
+    // Attributes used for the history query in flight, asked for one page at
+    // a time, with the number of the query the next page answers and the
+    // messages of the pages that arrived so far
+    private String historyPartner;
+    private int historyNumber;
+    private ArrayList<HistoryEntry> fetched;
+
+    // Calls waiting on the server, at most one of each kind at a time
+    private CompletableFuture<Integer> connecting;
+    private CompletableFuture<Void> naming;
+    private CompletableFuture<Map<Integer, String>> listing;
+    private CompletableFuture<String> requesting;
+    private CompletableFuture<Boolean> responding;
+    private CompletableFuture<String> answering;
+    private CompletableFuture<Integer> joining;
+    private CompletableFuture<Void> leaving;
+    private CompletableFuture<List<HistoryEntry>> fetching;
+
+    // Requests that are sent again until answered, for the calls that allow it
+    private Retry connectRetry;
+    private Retry nameRetry;
+    private Retry listRetry;
+    private Retry requestRetry;
+    private Retry respondRetry;
+    private Retry joinRetry;
+    private Retry leaveRetry;
+    private Retry historyRetry;
+
+    /**
+    * The client's side of a room it is in, with its own windows for the
+    * messages it posts and the messages of the room
+    */
+    private class Membership {
+        int id;
+        String name;
+        SendWindow posts;
+        ReceiveWindow<RoomMessage> messages;
+        boolean timerArmed;
+        boolean ackPending;
+        int lastAck;
+        int duplicates;
+        boolean stalled;
+
+        Membership(int id, String name, int first){
+            this.id = id;
+            this.name = name;
+            posts = new SendWindow(window);
+            messages = new ReceiveWindow<RoomMessage>(window);
+            messages.clear(first);
+        }
+    }
+
+    /**
+    * A message offered to the chat partner, waiting for its answer
+    */
+    private static class Offer {
+        int number;
+        String text;
+        CompletableFuture<Boolean> future;
+
+        Offer(int number, String text, CompletableFuture<Boolean> future){
+            this.number = number;
+            this.text = text;
+            this.future = future;
+        }
+    }
+
+    /**
+    * A mail left for a nickname, waiting for the server to store it
+    */
+    private static class Mail {
+        int number;
+        String recipient;
+        String text;
+        CompletableFuture<Boolean> future;
+        Retry retry;
+
+        Mail(int number, String recipient, String text, CompletableFuture<Boolean> future){
+            this.number = number;
+            this.recipient = recipient;
+            this.text = text;
+            this.future = future;
+        }
+    }
+
+    /**
+    * A message from the history of a conversation with another nickname
+    */
+    public static class HistoryEntry {
+        public final int seq;
+        public final long time;
+        public final String sender;
+        public final String text;
+
+        HistoryEntry(int seq, long time, String sender, String text){
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    /**
+    * A room message held until the ones before it have arrived
+    */
+    private static class RoomMessage {
+        int sender;
+        String text;
+
+        RoomMessage(int sender, String text){
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    /**
+    * A request to the server that is sent again, with backoff, until its
+    * answer arrives or the call it belongs to ends
+    */
+    private class Retry {
+        int opcode;
+        int seq;
+        String payload;
+        Consumer<ByteBuffer> body;
+        CompletableFuture<?> call;
+        long sentAt;
+        int attempts;
+        boolean answered;
+        boolean measured;
+
+        Retry(int opcode, int seq, String payload, CompletableFuture<?> call){
+            this.opcode = opcode;
+            this.seq = seq;
+            this.payload = payload;
+            this.call = call;
+        }
+
+        /**
+        * Sends the request and schedules the next attempt
+        */
+        void send(){
+            sentAt = System.nanoTime();
+            if (body == null){
+                group.send(ChatClient.this, opcode, seq, payload);
+            } else {
+                // A payload of more than a string is written in place
+                ByteBuffer out = group.begin(ChatClient.this, opcode);
+                body.accept(out);
+                group.finish(ChatClient.this, seq);
+            }
+            group.schedule(sentAt + serverRtt.backoff(attempts), this::expire);
+        }
+
+        /**
+        * Sends the request again if it is still waiting when its timer runs out
+        */
+        void expire(){
+            if (answered || call.isDone())
+                return;
+
+            attempts++;
+            send();
+        }
+
+        /**
+        * Stops the retries once the answer arrived, measuring the round trip
+        * only if the request was sent once
+        */
+        void answer(){
+            if (answered)
+                return;
+
+            answered = true;
+            held();
+        }
+
+        /**
+        * Measures the round trip once the server holds a request whose answer
+        * comes later, the request being sent again until the answer arrives
+        */
+        void held(){
+            if (attempts == 0 && !measured)
+                serverRtt.sample(System.nanoTime() - sentAt);
+            measured = true;
+        }
+    }
+
+    /**
+    * Creates a client on a socket opened by the group
+    *
+    * @param  group     the group whose thread runs the client
+    * @param  channel   the socket connected to the server
+    * @param  listener  the callbacks for events the server pushes
+    */
+    ChatClient(ClientGroup group, DatagramChannel channel, Listener listener){
+        this.group = group;
+        this.channel = channel;
+        this.listener = listener;
+
+        sendWindow = new SendWindow(window);
+        receiveWindow = new ReceiveWindow<String>(window);
+    }
+
+    /**
+    * Returns the socket of the client
+    *
+    * @return the socket connected to the server
+    */
+    DatagramChannel channel(){
+        return channel;
+    }
+
+    /**
+    * Returns the number the server handed the client
+    *
+    * @return the client number, or 0 before connecting
+    */
+    public int session(){
+        return session;
+    }
+
+    /**
+    * Returns whether the frames to the server are compressed
+    *
+    * @return whether the server agreed to compressed frames
+    */
+    boolean compressing(){
+        return compressing;
+    }
+
+    /**
+    * Returns whether the frames sent straight to the chat partner are compressed
+    *
+    * @return whether both the client and its partner agreed to compressed frames
+    */
+    boolean peer_compressing(){
+        return compressing && peerCompressing;
+    }
+
+    /**
+    * Returns the nickname of the chat partner
+    *
+    * @return the partner's nickname, or null outside a chat
+    */
+    public String peer_name(){
+        return peerName;
+    }
+
+    /**
+    * Returns the number of the chat partner
+    *
+    * @return the partner's number, or 0 outside a chat
+    */
+    public int peer(){
+        return peer;
+    }
+
+    /**
+    * Returns whether the chat's messages go straight to the partner
+    *
+    * @return whether the direct path is up, false outside a chat
+    */
+    public boolean direct(){
+        return direct;
+    }
+
+    /**
+    * Returns the address and port of the chat partner, only known once the
+    * server has handed it over
+    *
+    * @return the partner's address, or null if it is not known
+    */
+    InetSocketAddress peer_endpoint(){
+        return peerEndpoint;
+    }
+
+    /**
+    * Returns whether the client is in a chat
+    *
+    * @return whether a chat is open
+    */
+    public boolean in_chat(){
+        return chatting;
+    }
+
+    /**
+    * Asks the server for a client number
+    *
+    * @return the client number, failing if the server is full or does not answer
+    */
+    public CompletableFuture<Integer> connect(){
+        CompletableFuture<Integer> future = expect(new CompletableFuture<Integer>());
+        group.execute(() -> {
+            connecting = future;
+            connectRetry = retry(Frame.CONNECTION_REQUEST, compress ? 1 : 0, null, future);
+        });
+        return future;
+    }
+
+    /**
+    * Sets the nickname the other clients see
+    *
+    * @param  name      the nickname, or an empty string for the default
+    * @return completes once the server has saved it, failing if the name is
+    *         longer than 64 characters or another online client holds it
+    */
+    public CompletableFuture<Void> nickname(String name){
+        CompletableFuture<Void> future = expect(new CompletableFuture<Void>());
+        group.execute(() -> {
+            naming = future;
+            nameRetry = retry(Frame.NICKNAME, 0, name, future);
+        });
+        return future;
+    }
+
+    /**
+    * Fetches the list of online clients, only asking for the changes since the
+    * last call once the whole list has been fetched
+    *
+    * @return the nickname of every online client by client number, including this one
+    */
+    public CompletableFuture<Map<Integer, String>> online(){
+        CompletableFuture<Map<Integer, String>> future = expect(new CompletableFuture<Map<Integer, String>>());
+        group.execute(() -> {
+            listing = future;
+            if (rosterVersion < 0)
+                request_page(0);
+            else
+                listRetry = retry(Frame.ONLINE_CHANGES, rosterVersion, null, future);
+        });
+        return future;
+    }
+
+    /**
+    * Asks another client to chat
+    *
+    * @param  target    the requested client's number
+    * @return the partner's nickname if they accept, or null if the request fails
+    */
+    public CompletableFuture<String> request(int target){
+        CompletableFuture<String> future = expect(new CompletableFuture<String>());
+        group.execute(() -> {
+            requesting = future;
+            pendingPeer = target;
+            requestRetry = retry(Frame.CLIENT_REQUEST, target, null, future);
+        });
+        return future;
+    }
+
+    /**
+    * Answers the last chat request passed to the listener
+    *
+    * @param  accept    whether to accept the chat
+    * @return whether the chat was opened
+    */
+    public CompletableFuture<Boolean> respond(boolean accept){
+        CompletableFuture<Boolean> future = expect(new CompletableFuture<Boolean>());
+        group.execute(() -> {
+            responding = future;
+            respondRetry = retry(Frame.CLIENT_ACK_RESPONSE, accept ? 1 : 0, null, future);
+        });
+        return future;
+    }
+
+    /**
+    * Sends a message to the chat partner through the sliding window, where
+    * many messages can be in flight and each lost one is sent again on its
+    * own. Sending "_exit" ends the chat once it is acked
+    *
+    * @param  text      the message
+    * @return completes once the partner has received the message
+    */
+    public CompletableFuture<Void> send(String text){
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        group.execute(() -> {
+            if (!chatting){
+                future.completeExceptionally(new IOException("not in a chat"));
+                return;
+            }
+
+            // Sends the message now if the window has room, otherwise it waits for acks
+            int seq = sendWindow.add(text, future);
+            if (seq != -1){
+                transmit(seq, System.nanoTime());
+                arm_timer();
+            }
+        });
+
+        // Leaves the chat on the server once the partner has the exit message,
+        // after the ack that completed it has been fully applied
+        if (text.equals("_exit"))
+            future.thenRun(() -> group.execute(() -> group.schedule(System.nanoTime(), this::leave_chat)));
+
+        return future;
+    }
+
+    /**
+    * Offers a message to the chat partner, who has to accept it before it is
+    * delivered. The partner answers the messages in the order they were
+    * offered, and once the server queues as many as it takes from the client
+    * the rest wait on the client until answers make room. Offering "_exit"
+    * ends the chat once it is accepted
+    *
+    * @param  text      the message
+    * @return whether the partner accepted the message
+    */
+    public CompletableFuture<Boolean> offer(String text){
+        CompletableFuture<Boolean> future = expect(new CompletableFuture<Boolean>());
+        group.execute(() -> {
+            held.add(new Offer(offerNumber++, text, future));
+            send_offers();
+        });
+        return future;
+    }
+
+    /**
+    * Leaves a message for a nickname, which the server keeps until a client
+    * with that nickname is online to take it, even across restarts
+    *
+    * @param  recipient the nickname the message is for
+    * @param  text      the message
+    * @return whether the server stored the message, false if the recipient's mailbox is full
+    */
+    public CompletableFuture<Boolean> mail(String recipient, String text){
+        CompletableFuture<Boolean> future = expect(new CompletableFuture<Boolean>());
+
+        // Moves on to the next mail however this one ends, timing out included
+        future.whenComplete((stored, cause) -> group.execute(this::send_mail));
+        group.execute(() -> {
+            mails.add(new Mail(mailNumber++, recipient, text, future));
+            send_mail();
+        });
+        return future;
+    }
+
+    /**
+    * Fetches the last messages exchanged with a nickname, through the server
+    *
+    * @param  partner   the other nickname of the conversation
+    * @param  count     the most messages fetched
+    * @return the messages, oldest first, empty if there is no history
+    */
+    public CompletableFuture<List<HistoryEntry>> history_last(String partner, int count){
+        return history(partner, out -> {
+            Codec.put_varint(out, HistoryLog.LAST);
+            Codec.put_varint(out, count);
+        });
+    }
+
+    /**
+    * Fetches the messages exchanged with a nickname since a time, through the server
+    *
+    * @param  partner   the other nickname of the conversation
+    * @param  time      the time in milliseconds since the epoch
+    * @return the messages, oldest first, empty if there is no history
+    */
+    public CompletableFuture<List<HistoryEntry>> history_since(String partner, long time){
+        return history(partner, out -> {
+            Codec.put_varint(out, HistoryLog.SINCE);
+            out.putLong(time);
+        });
+    }
+
+    /**
+    * Starts a history query, its pages arriving one at a time
+    *
+    * @param  partner   the other nickname of the conversation
+    * @param  query     writes the kind of the query and its bounds
+    * @return the messages, oldest first
+    */
+    private CompletableFuture<List<HistoryEntry>> history(String partner, Consumer<ByteBuffer> query){
+        CompletableFuture<List<HistoryEntry>> future = expect(new CompletableFuture<List<HistoryEntry>>());
+        group.execute(() -> {
+            fetching = future;
+            historyPartner = partner;
+            fetched = new ArrayList<HistoryEntry>();
+            request_history(query);
+        });
+        return future;
+    }
+
+    /**
+    * Answers the last message request passed to the listener
+    *
+    * @param  accept    whether to accept the message
+    * @return the message if it was accepted, otherwise null
+    */
+    public CompletableFuture<String> answer(boolean accept){
+        CompletableFuture<String> future = expect(new CompletableFuture<String>());
+        group.execute(() -> {
+            answering = future;
+            group.send(this, Frame.MESSAGE_RESPONSE, accept ? 1 : 0, null);
+        });
+        return future;
+    }
+
+    /**
+    * Joins a room, creating it if nobody is in it yet. The room's messages
+    * from now on are handed to the listener
+    *
+    * @param  name      the room's name, up to 64 characters
+    * @return the room's number, failing if the server has no room left
+    */
+    public CompletableFuture<Integer> join(String name){
+        CompletableFuture<Integer> future = expect(new CompletableFuture<Integer>());
+        group.execute(() -> {
+            joining = future;
+            joinRetry = retry(Frame.ROOM_JOIN, 0, name, future);
+        });
+        return future;
+    }
+
+    /**
+    * Leaves a room, failing the posts to it that were not acked
+    *
+    * @param  room      the room's number
+    * @return completes once the server has removed the client
+    */
+    public CompletableFuture<Void> leave(int room){
+        CompletableFuture<Void> future = expect(new CompletableFuture<Void>());
+        group.execute(() -> {
+            leaving = future;
+            leaveRetry = retry(Frame.ROOM_LEAVE, room, null, future);
+        });
+        return future;
+    }
+
+    /**
+    * Posts a message to every member of a room, this client included. Posts
+    * go through a window like chat messages, so many can be in flight
+    *
+    * @param  room      the room's number
+    * @param  text      the message
+    * @return completes once the server has taken the message
+    */
+    public CompletableFuture<Void> post(int room, String text){
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        group.execute(() -> {
+            Membership membership = rooms.get(room);
+            if (membership == null){
+                future.completeExceptionally(new IOException("not in room " + room));
+                return;
+            }
+
+            // Sends the post now if the window has room, otherwise it waits for acks
+            int seq = membership.posts.add(text, future);
+            if (seq != -1){
+                transmit_post(membership, seq, System.nanoTime());
+                arm_post_timer(membership);
+            }
+        });
+        return future;
+    }
+
+    /**
+    * Leaves the server and closes the socket
+    */
+    public void exit(){
+        group.execute(() -> {
+            group.send(this, Frame.EXIT, 0, null);
+            group.flush(this);
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        });
+    }
+
+    /**
+    * Fails every call still waiting on the server
+    *
+    * @param  cause     the error from the socket
+    */
+    void fail(Throwable cause){
+        CompletableFuture<?>[] pending = {connecting, naming, listing, requesting, responding, answering, joining, leaving, fetching};
+        connecting = null;
+        naming = null;
+        listing = null;
+        requesting = null;
+        responding = null;
+        answering = null;
+        joining = null;
+        leaving = null;
+        fetching = null;
+
+        for (CompletableFuture<?> future : pending){
+            if (future != null)
+                future.completeExceptionally(cause);
+        }
+
+        clear_offers(cause);
+        clear_mail(cause);
+    }
+
+    /**
+    * Processes a datagram from the server, only called on the group's thread
+    *
+    * @param  in        the flipped buffer holding the datagram
+    */
+    void receive(ByteBuffer in){
+        read_frames(in, false);
+    }
+
+    /**
+    * Processes a datagram that did not come from the server, only taken from
+    * the chat partner's address, only called on the group's thread
+    *
+    * @param  in        the flipped buffer holding the datagram
+    * @param  source    the address the datagram came from
+    */
+    void receive_direct(ByteBuffer in, SocketAddress source){
+        if (peerEndpoint != null && peerEndpoint.equals(source))
+            read_frames(in, true);
+    }
+
+    /**
+    * Handles every frame a datagram carries, stopping at anything that is not a frame
+    *
+    * @param  in        the flipped buffer holding the datagram
+    * @param  fromPeer  whether the datagram came straight from the chat partner
+    */
+    private void read_frames(ByteBuffer in, boolean fromPeer){
+        int end = in.limit();
+
+        while (in.hasRemaining() && Codec.decode(in, frame)){
+            int next = in.position();
+
+            // The partner can only send the frames partners exchange, under its
+            // own number, and frames whose text does not inflate are dropped
+            if ((!fromPeer || (frame.session == peer && peer_opcode(frame.opcode))) && Compression.expand(frame)){
+                if (frame.opcode == Frame.FRAGMENT)
+                    reassemble(fromPeer);
+                else
+                    handle();
+            }
+
+            // Puts the buffer back behind the frame, reading the payload moves it
+            in.limit(end);
+            in.position(next);
+        }
+    }
+
+    /**
+    * Adds the fragment just decoded, handling every frame in the frame it
+    * belongs to once the last of them arrives
+    *
+    * @param  fromPeer  whether the fragment came straight from the chat partner
+    */
+    private void reassemble(boolean fromPeer){
+        ByteBuffer whole = group.reassemble(this, fromPeer, frame);
+        if (whole == null)
+            return;
+
+        read_frames(whole, fromPeer);
+        group.reassembled(whole);
+    }
+
+    /**
+    * Processes the frame just decoded
+    */
+    private void handle(){
+        switch (frame.opcode){
+            case Frame.CONNECTION_GRANTED:
+                answered(connectRetry);
+                if (session == 0 && heartbeat > 0)
+                    group.schedule(System.nanoTime() + heartbeat, this::beat);
+                session = frame.session;
+                compressing = frame.seq == 1;
+                complete(take_connecting(), session);
+                break;
+
+            case Frame.CONNECTION_DENIED:
+                answered(connectRetry);
+                CompletableFuture<Integer> denied = take_connecting();
+                if (denied != null)
+                    denied.completeExceptionally(new IOException("connection denied, the server is full"));
+                break;
+
+            case Frame.SUCCESS:
+                answered(nameRetry);
+                mailSeen = -1;
+                CompletableFuture<Void> named = naming;
+                naming = null;
+                complete(named, null);
+                break;
+
+            // The server turned the nickname away and kept the one before it
+            case Frame.FAILURE:
+                if (!answered(nameRetry))
+                    break;
+                CompletableFuture<Void> refused = naming;
+                naming = null;
+                if (refused != null)
+                    refused.completeExceptionally(new IOException("nickname denied"));
+                break;
+
+            case Frame.ONLINE_LIST:
+                if (!answered(listRetry))
+                    break;
+                read_page();
+                break;
+
+            case Frame.ONLINE_DELTA:
+                if (!answered(listRetry))
+                    break;
+                read_changes();
+                break;
+
+            // Starts over if the server no longer remembers the version of the list
+            case Frame.ONLINE_RESYNC:
+                if (!answered(listRetry))
+                    break;
+                request_page(0);
+                break;
+
+            // The chat request was passed on, the answer comes later
+            case Frame.WAITING:
+                if (requestRetry != null)
+                    requestRetry.held();
+                break;
+
+            // Tells the listener about a request once, however often the server asks
+            case Frame.CLIENT_ACK:
+                if (asked && frame.seq == pendingPeer)
+                    break;
+                asked = true;
+                pendingPeer = frame.seq;
+                pendingName = frame.payload_string();
+                listener.on_request(this, pendingPeer, pendingName);
+                break;
+
+            // The requested client accepted, and their nickname is sent
+            case Frame.PEER_NAME:
+                if (!answered(requestRetry))
+                    break;
+                open_chat(pendingPeer, frame.payload_string());
+                CompletableFuture<String> accepted = requesting;
+                requesting = null;
+                complete(accepted, peerName);
+                break;
+
+            case Frame.CONNECTION_SUCCESS:
+                if (!answered(respondRetry))
+                    break;
+                asked = false;
+                open_chat(pendingPeer, pendingName);
+                CompletableFuture<Boolean> opened = responding;
+                responding = null;
+                complete(opened, true);
+                break;
+
+            // Either the request this client made or the one it answered failed
+            case Frame.CONNECTION_FAILURE:
+                if (requesting != null){
+                    if (!answered(requestRetry))
+                        break;
+                    CompletableFuture<String> failed = requesting;
+                    requesting = null;
+                    failed.complete(null);
+                } else {
+                    if (!answered(respondRetry))
+                        break;
+                    asked = false;
+                    CompletableFuture<Boolean> failed = responding;
+                    responding = null;
+                    complete(failed, false);
+                }
+                break;
+
+            // The message reached the server, which says how many it queues for
+            // the client, the partner's answer comes later
+            case Frame.ACK_SENT:
+                offerDepth = Math.max(frame.seq, 1);
+                turnedAway = 0;
+                send_offers();
+                break;
+
+            // The server's queue was full, so the message waits for an answer to make room
+            case Frame.QUEUE_FULL:
+                hold_offer(frame.seq);
+                break;
+
+            case Frame.ACK_RECEIVED:
+                Offer delivered = answered(frame.seq);
+                if (delivered == null)
+                    break;
+
+                // Ends the chat on the server once the partner accepts the exit message
+                if ("_exit".equals(delivered.text)){
+                    group.send(this, Frame.EXIT, 0, null);
+                    close_chat();
+                }
+                complete(delivered.future, true);
+                send_offers();
+                break;
+
+            case Frame.ACK_DENIED:
+                Offer rejected = answered(frame.seq);
+                if (rejected != null)
+                    complete(rejected.future, false);
+                send_offers();
+                break;
+
+            // The server stored the mail in flight or turned it away, the next one goes once the call ends
+            case Frame.MAIL_SENT:
+                Mail sent = mailing;
+                if (sent == null || frame.seq != sent.number)
+                    break;
+
+                mailing = null;
+                answered(sent.retry);
+                complete(sent.future, Codec.read_varint(frame.payload()) == 1);
+                break;
+
+            // A page of the history query in flight, pages of earlier queries are ignored
+            case Frame.HISTORY_PAGE:
+                if (fetching == null || frame.seq != historyNumber || !answered(historyRetry))
+                    break;
+                read_history();
+                break;
+
+            // Mail left for the client's nickname, acked every time and handed over once
+            case Frame.MAIL_MESSAGE:
+                group.send(this, Frame.MAIL_ACK, frame.seq, null);
+                if (frame.seq == mailSeen)
+                    break;
+
+                mailSeen = frame.seq;
+                ByteBuffer mail = frame.payload();
+                String sender = Codec.get_text(mail);
+                byte[] message = new byte[mail.remaining()];
+                mail.get(message);
+                listener.on_mail(this, sender, new String(message, StandardCharsets.UTF_8));
+                break;
+
+            case Frame.MESSAGE_REQUEST:
+                listener.on_message_request(this, frame.seq == 1);
+                break;
+
+            case Frame.MESSAGE:
+                // Discards messages that repeat the last one
+                if (frame.seq == prevSeq)
+                    break;
+
+                prevSeq = frame.seq;
+                String text = frame.payload_string();
+
+                CompletableFuture<String> answered = answering;
+                answering = null;
+                listener.on_message(this, frame.seq, text);
+
+                if (text.equals("_exit"))
+                    close_chat();
+                complete(answered, text);
+                break;
+
+            case Frame.PEER_DATA:
+                receive_data();
+                break;
+
+            case Frame.PEER_ACK:
+                long now = System.nanoTime();
+                sendWindow.ack(frame.seq, frame.payload(), now, peerRtt);
+
+                // Fills the room the ack made with messages from the backlog
+                for (int seq = sendWindow.admit(); seq != -1; seq = sendWindow.admit())
+                    transmit(seq, now);
+                arm_timer();
+                break;
+
+            // The server handed over the partner's address, which is probed before use
+            case Frame.PEER_ENDPOINT:
+                ByteBuffer in = frame.payload();
+                InetSocketAddress endpoint = Codec.get_endpoint(in);
+                if (!directEnabled || !chatting || frame.seq != peer || endpoint == null || endpoint.equals(peerEndpoint))
+                    break;
+
+                // The partner is sent compressed frames only if the server says it takes them
+                peerCompressing = in.hasRemaining() && Codec.read_varint(in) == 1;
+                peerEndpoint = endpoint;
+                probes = 0;
+                probe(chats);
+                break;
+
+            case Frame.PEER_PROBE:
+                group.send_direct(this, Frame.PEER_PROBE_ACK, frame.seq, null);
+                break;
+
+            // The partner answered a probe, so datagrams get through both ways
+            case Frame.PEER_PROBE_ACK:
+                if (direct || !chatting)
+                    break;
+
+                // Measures the direct path afresh if the answer is to the latest probe
+                direct = true;
+                if (frame.seq == probes - 1){
+                    peerRtt.reset();
+                    peerRtt.sample(System.nanoTime() - probeSentAt);
+                }
+                break;
+
+            case Frame.ROOM_JOINED:
+                if (!answered(joinRetry))
+                    break;
+
+                CompletableFuture<Integer> joined = joining;
+                joining = null;
+                if (frame.seq == 0){
+                    if (joined != null)
+                        joined.completeExceptionally(new IOException("room denied"));
+                    break;
+                }
+
+                // Starts the room's window at the first message the server sends
+                ByteBuffer details = frame.payload();
+                int first = Codec.read_varint(details);
+                if (!rooms.containsKey(frame.seq))
+                    rooms.put(frame.seq, new Membership(frame.seq, Codec.get_text(details), first));
+                complete(joined, frame.seq);
+                break;
+
+            case Frame.ROOM_LEFT:
+                answered(leaveRetry);
+                Membership left = rooms.remove(frame.seq);
+                if (left != null)
+                    left.posts.clear(new IOException("left the room"));
+
+                CompletableFuture<Void> gone = leaving;
+                leaving = null;
+                complete(gone, null);
+                break;
+
+            case Frame.ROOM_MESSAGE:
+                receive_room_message();
+                break;
+
+            // The server took every post before the one it expects next
+            case Frame.ROOM_SENT:
+                ByteBuffer ack = frame.payload();
+                Membership posted = rooms.get(Codec.read_varint(ack));
+                if (posted == null)
+                    break;
+
+                boolean full = Codec.read_varint(ack) != 0;
+                long ackedAt = System.nanoTime();
+                posted.posts.ack(frame.seq, ack, ackedAt, serverRtt);
+
+                // The server only takes posts in order, so acks that repeat mean
+                // a post was lost and the ones after it were dropped, and the
+                // go-ahead after a full history means they were all turned away.
+                // Either way they are sent again at once rather than each on its own timer
+                boolean resend = false;
+                if (full){
+                    posted.stalled = true;
+                } else if (posted.stalled){
+                    posted.stalled = false;
+                    resend = true;
+                } else if (frame.seq != posted.lastAck){
+                    posted.duplicates = 0;
+                } else {
+                    resend = ++posted.duplicates == DUPLICATE_ACKS;
+                }
+
+                posted.lastAck = frame.seq;
+                if (resend){
+                    for (int seq = frame.seq; posted.posts.outstanding(seq); seq++)
+                        transmit_post(posted, seq, ackedAt);
+                }
+
+                for (int seq = posted.posts.admit(); seq != -1; seq = posted.posts.admit())
+                    transmit_post(posted, seq, ackedAt);
+                arm_post_timer(posted);
+                break;
+
+            // The server dropped the partner for going quiet
+            case Frame.PEER_LEFT:
+                if (chatting && frame.seq == peer)
+                    close_chat();
+                break;
+
+            case Frame.RESET:
+                CompletableFuture<String> reset = answering;
+                answering = null;
+                complete(reset, null);
+                break;
+        }
+    }
+
+    /**
+    * Holds a windowed message, hands every message that is now in order to
+    * the listener and acks what has arrived
+    */
+    private void receive_data(){
+        if (!chatting)
+            return;
+
+        // Repeats and messages beyond the window are only acked again
+        receiveWindow.receive(frame.seq, frame.payload_string());
+
+        boolean exit = false;
+        for (String text = receiveWindow.poll(); text != null; text = receiveWindow.poll()){
+            listener.on_message(this, receiveWindow.expected() - 1, text);
+            exit |= text.equals("_exit");
+        }
+
+        // The exit message is acked before the chat is closed, everything else
+        // once at the end of the pass, so that a datagram of messages gets one ack
+        if (exit){
+            write_ack();
+            close_chat();
+        } else if (!ackPending){
+            ackPending = true;
+            defer();
+        }
+    }
+
+    /**
+    * Holds a room message, hands every message of the room that is now in
+    * order to the listener and acks them at the end of the pass
+    */
+    private void receive_room_message(){
+        Membership membership = rooms.get(frame.session);
+        if (membership == null)
+            return;
+
+        // Reads the sender, the rest of the payload is the message
+        ByteBuffer in = frame.payload();
+        int sender = Codec.read_varint(in);
+        byte[] bytes = new byte[in.remaining()];
+        in.get(bytes);
+
+        membership.messages.receive(frame.seq, new RoomMessage(sender, new String(bytes, StandardCharsets.UTF_8)));
+        for (RoomMessage message = membership.messages.poll(); message != null; message = membership.messages.poll())
+            listener.on_room_message(this, membership.id, message.sender, message.text);
+
+        if (!membership.ackPending){
+            membership.ackPending = true;
+            roomAcks.add(membership);
+            defer();
+        }
+    }
+
+    /**
+    * Asks the group to call flush_acks at the end of the pass, once per pass
+    */
+    private void defer(){
+        if (deferred)
+            return;
+
+        deferred = true;
+        group.defer(this);
+    }
+
+    /**
+    * Writes the ack held back during the pass, called by the group before the
+    * client's datagram goes out so that it shares it with the outgoing messages
+    */
+    void flush_acks(){
+        deferred = false;
+        if (ackPending && chatting)
+            write_ack();
+        ackPending = false;
+
+        // Acks every room that had messages this pass, cumulatively
+        for (Membership membership : roomAcks){
+            membership.ackPending = false;
+            if (rooms.get(membership.id) != membership)
+                continue;
+
+            ByteBuffer out = group.begin(this, Frame.ROOM_ACK);
+            Codec.put_varint(out, membership.id);
+            group.finish(this, membership.messages.expected());
+        }
+        roomAcks.clear();
+    }
+
+    /**
+    * Sends a post to a room and starts its timer
+    *
+    * @param  membership    the room
+    * @param  seq           the post number
+    * @param  now           the time in nanoseconds
+    */
+    private void transmit_post(Membership membership, int seq, long now){
+        ByteBuffer out = group.begin(this, Frame.ROOM_SEND);
+        Codec.put_varint(out, membership.id);
+        BufferPool.put_string(membership.posts.text(seq), out);
+        group.finish(this, seq);
+        membership.posts.sent(seq, now, serverRtt);
+    }
+
+    /**
+    * Schedules the retransmission check for the earliest post in a room's window
+    *
+    * @param  membership    the room
+    */
+    private void arm_post_timer(Membership membership){
+        if (membership.timerArmed || !membership.posts.busy())
+            return;
+
+        long due = membership.posts.next_due();
+        if (due == Long.MAX_VALUE)
+            return;
+
+        membership.timerArmed = true;
+        group.schedule(due, () -> retransmit_posts(membership));
+    }
+
+    /**
+    * Sends again every post to a room whose timer ran out
+    *
+    * @param  membership    the room
+    */
+    private void retransmit_posts(Membership membership){
+        membership.timerArmed = false;
+        if (rooms.get(membership.id) != membership)
+            return;
+
+        long now = System.nanoTime();
+        for (int seq = membership.posts.due(0, now); seq != -1; seq = membership.posts.due(seq + 1, now))
+            transmit_post(membership, seq, now);
+
+        arm_post_timer(membership);
+    }
+
+    /**
+    * Acks cumulatively up to the gap, and selectively past it
+    */
+    private void write_ack(){
+        ackPending = false;
+        ByteBuffer out = group.begin(this, direct ? Frame.PEER_ACK : Frame.DATA_ACK);
+        receiveWindow.write_sack(out);
+
+        if (direct)
+            group.finish_direct(this, receiveWindow.expected());
+        else
+            group.finish(this, receiveWindow.expected());
+    }
+
+    /**
+    * Sends the next probe of the direct path to the partner, until one is
+    * answered or the probes run out and the chat stays on the relay
+    *
+    * @param  chat      the chat the probes belong to, they stop once it ends
+    */
+    private void probe(int chat){
+        if (chat != chats || !chatting || direct || probes >= PROBES)
+            return;
+
+        probeSentAt = System.nanoTime();
+        group.send_direct(this, Frame.PEER_PROBE, probes, null);
+        group.schedule(probeSentAt + peerRtt.backoff(probes++), () -> probe(chat));
+    }
+
+    /**
+    * Returns whether an opcode is one the chat partners exchange directly
+    *
+    * @param  opcode    the opcode of the frame
+    * @return whether the partner may send it
+    */
+    private static boolean peer_opcode(int opcode){
+        return opcode == Frame.PEER_DATA || opcode == Frame.PEER_ACK
+            || opcode == Frame.PEER_PROBE || opcode == Frame.PEER_PROBE_ACK || opcode == Frame.FRAGMENT;
+    }
+
+    /**
+    * Sends a windowed message and starts its timer
+    *
+    * @param  seq       the sequence number of the message
+    * @param  now       the time in nanoseconds
+    */
+    private void transmit(int seq, long now){
+        if (direct)
+            group.send_direct(this, Frame.PEER_DATA, seq, sendWindow.text(seq));
+        else
+            group.send(this, Frame.DATA, seq, sendWindow.text(seq));
+        sendWindow.sent(seq, now, peerRtt);
+    }
+
+    /**
+    * Schedules the retransmission check for the earliest timer in the window
+    */
+    private void arm_timer(){
+        if (timerArmed || !sendWindow.busy())
+            return;
+
+        long due = sendWindow.next_due();
+        if (due == Long.MAX_VALUE)
+            return;
+
+        timerArmed = true;
+        group.schedule(due, this::retransmit);
+    }
+
+    /**
+    * Sends again every message whose timer ran out, selective repeat only
+    * resending the ones that were not acked, each with its own backoff
+    */
+    private void retransmit(){
+        timerArmed = false;
+        if (!chatting)
+            return;
+
+        long now = System.nanoTime();
+        for (int seq = sendWindow.due(0, now); seq != -1; seq = sendWindow.due(seq + 1, now))
+            transmit(seq, now);
+
+        arm_timer();
+    }
+
+    /**
+    * Tells the server the client is still there, until the socket is closed
+    */
+    private void beat(){
+        if (!channel.isOpen())
+            return;
+
+        group.send(this, Frame.HEARTBEAT, 0, null);
+        group.schedule(System.nanoTime() + heartbeat, this::beat);
+    }
+
+    /**
+    * Leaves the chat on the server after the exit message was delivered
+    */
+    private void leave_chat(){
+        if (!chatting)
+            return;
+
+        group.send(this, Frame.EXIT, 0, null);
+        close_chat();
+    }
+
+    /**
+    * Asks the server for a page of the online list
+    *
+    * @param  from      the cursor of the page, 0 for the first
+    */
+    private void request_page(int from){
+        if (from == 0)
+            roster.clear();
+
+        cursor = from;
+        listRetry = retry(Frame.ONLINE_REQUEST, from, null, listing);
+    }
+
+    /**
+    * Adds a page of the online list to the roster, asking for the next one
+    * until the list is complete
+    */
+    private void read_page(){
+        ByteBuffer payload = frame.payload();
+
+        // Takes the version from the first page, the changes since then are fetched next time
+        int version = Codec.read_varint(payload);
+        if (cursor == 0)
+            rosterVersion = version;
+
+        while (payload.hasRemaining()){
+            int id = Codec.read_varint(payload);
+            String name = Codec.get_text(payload);
+            if (id < 0 || name == null)
+                break;
+            roster.put(id, name);
+        }
+
+        if (frame.seq != 0)
+            request_page(frame.seq);
+        else
+            finish_listing();
+    }
+
+    /**
+    * Applies changes to the online list to the roster, asking for more until
+    * the latest version is reached
+    */
+    private void read_changes(){
+        ByteBuffer payload = frame.payload();
+        int latest = Codec.read_varint(payload);
+
+        while (payload.hasRemaining()){
+            int id = Codec.read_varint(payload);
+            int kind = payload.hasRemaining() ? payload.get() : -1;
+
+            if (kind == PresenceIndex.LEAVE){
+                roster.remove(id);
+            } else {
+                String name = Codec.get_text(payload);
+                if (id < 0 || name == null)
+                    break;
+                roster.put(id, name);
+            }
+        }
+
+        rosterVersion = frame.seq;
+        if (rosterVersion < latest)
+            listRetry = retry(Frame.ONLINE_CHANGES, rosterVersion, null, listing);
+        else
+            finish_listing();
+    }
+
+    /**
+    * Hands a copy of the roster to the call waiting on it
+    */
+    private void finish_listing(){
+        CompletableFuture<Map<Integer, String>> listed = listing;
+        listing = null;
+        complete(listed, new TreeMap<Integer, String>(roster));
+    }
+
+    /**
+    * Asks the server for a page of the history query in flight, under a new
+    * query number so that a late page of the one before is told apart
+    *
+    * @param  query     writes the kind of the query and its bounds
+    */
+    private void request_history(Consumer<ByteBuffer> query){
+        String partner = historyPartner;
+        historyRetry = new Retry(Frame.HISTORY_REQUEST, ++historyNumber, null, fetching);
+        historyRetry.body = out -> {
+            Codec.put_text(out, partner);
+            query.accept(out);
+        };
+        historyRetry.send();
+    }
+
+    /**
+    * Adds a page of history to the messages fetched, asking for the rest of
+    * the query as a range until the server says it is done
+    */
+    private void read_history(){
+        ByteBuffer payload = frame.payload();
+        int next = Codec.read_varint(payload);
+        int end = Codec.read_varint(payload);
+
+        while (payload.hasRemaining()){
+            int seq = Codec.read_varint(payload);
+            if (seq < 0 || payload.remaining() < 8)
+                break;
+
+            long time = payload.getLong();
+            String sender = Codec.get_text(payload);
+            String text = Codec.get_text(payload);
+            if (sender == null || text == null)
+                break;
+            fetched.add(new HistoryEntry(seq, time, sender, text));
+        }
+
+        if (next > 0){
+            request_history(out -> {
+                Codec.put_varint(out, HistoryLog.RANGE);
+                Codec.put_varint(out, next);
+                Codec.put_varint(out, end);
+            });
+            return;
+        }
+
+        CompletableFuture<List<HistoryEntry>> done = fetching;
+        fetching = null;
+        historyRetry = null;
+        complete(done, fetched);
+    }
+
+    /**
+    * Starts a chat with a partner
+    *
+    * @param  number    the partner's client number
+    * @param  name      the partner's nickname
+    */
+    private void open_chat(int number, String name){
+        peer = number;
+        peerName = name;
+        chatting = true;
+        prevSeq = -1;
+        chats++;
+        direct = false;
+        peerEndpoint = null;
+        peerRtt.reset();
+        sendWindow.clear(new IOException("chat ended"));
+        receiveWindow.clear();
+    }
+
+    /**
+    * Ends the chat and tells the listener
+    */
+    private void close_chat(){
+        // Sends what is still meant for the partner, such as the ack of the exit message
+        group.flush(this);
+        direct = false;
+        peerEndpoint = null;
+
+        chatting = false;
+        peer = 0;
+        peerName = null;
+        sendWindow.clear(new IOException("chat ended"));
+        receiveWindow.clear();
+        ackPending = false;
+        clear_offers(new IOException("chat ended"));
+        listener.on_chat_closed(this);
+    }
+
+    /**
+    * Sends the held back offers while the server's queue for the client has room
+    */
+    private void send_offers(){
+        while (!held.isEmpty() && offers.size() < offerDepth){
+            Offer offer = held.poll();
+            offers.add(offer);
+            group.send(this, Frame.MESSAGE_ACK, offer.number, offer.text);
+        }
+    }
+
+    /**
+    * Moves an offer the server turned away back to the held offers, along
+    * with every offer after it since the server turns those away as well.
+    * They are sent again once an answer makes room, or after a backoff if
+    * nothing else is in flight since the server's memory was what ran out
+    *
+    * @param  number    the number of the offer
+    */
+    private void hold_offer(int number){
+        // Ignores the offers that were already moved back
+        if (offers.isEmpty() || number - offers.peekFirst().number < 0 || number - offers.peekLast().number > 0)
+            return;
+
+        while (!offers.isEmpty() && offers.peekLast().number - number >= 0)
+            held.addFirst(offers.pollLast());
+        offerDepth = Math.max(offers.size(), 1);
+
+        if (offers.isEmpty())
+            group.schedule(System.nanoTime() + serverRtt.backoff(turnedAway++), this::send_offers);
+    }
+
+    /**
+    * Takes the offer an answer belongs to off the front of the offers in
+    * flight, failing the ones before it, which never reached the server
+    *
+    * @param  number    the number of the answered offer
+    * @return the offer, or null if the answer repeats one already taken
+    */
+    private Offer answered(int number){
+        if (offers.isEmpty() || number - offers.peekFirst().number < 0 || number - offers.peekLast().number > 0)
+            return null;
+
+        while (true){
+            Offer offer = offers.poll();
+            if (offer.number == number)
+                return offer;
+            offer.future.completeExceptionally(new IOException("offer lost"));
+        }
+    }
+
+    /**
+    * Fails every offer that was not answered
+    *
+    * @param  cause     the reason the offers were not delivered
+    */
+    private void clear_offers(Throwable cause){
+        for (Offer offer : offers)
+            offer.future.completeExceptionally(cause);
+        for (Offer offer : held)
+            offer.future.completeExceptionally(cause);
+
+        offers.clear();
+        held.clear();
+    }
+
+    /**
+    * Sends the oldest mail once the one before it has ended, skipping the
+    * mail whose call already ended while it waited
+    */
+    private void send_mail(){
+        if (mailing != null && !mailing.future.isDone())
+            return;
+
+        mailing = null;
+        while (!mails.isEmpty()){
+            Mail next = mails.poll();
+            if (next.future.isDone())
+                continue;
+
+            mailing = next;
+            // A mail carries its recipient's nickname ahead of the message
+            next.retry = new Retry(Frame.MAIL, next.number, null, next.future);
+            next.retry.body = out -> {
+                Codec.put_text(out, next.recipient);
+                BufferPool.put_string(next.text, out);
+            };
+            next.retry.send();
+            return;
+        }
+    }
+
+    /**
+    * Fails the mail still waiting to be stored, such as once the socket fails
+    *
+    * @param  cause     the reason given to the calls
+    */
+    private void clear_mail(Throwable cause){
+        ArrayList<Mail> pending = new ArrayList<Mail>(mails);
+        if (mailing != null)
+            pending.add(mailing);
+
+        mails.clear();
+        mailing = null;
+        for (Mail mail : pending)
+            mail.future.completeExceptionally(cause);
+    }
+
+    /**
+    * Sends a request that is sent again until it is answered
+    *
+    * @param  opcode    the opcode of the request
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the request, or null for none
+    * @param  call      the call the request belongs to, the retries stop once it ends
+    * @return the request, handed to answered once its answer arrives
+    */
+    private Retry retry(int opcode, int seq, String payload, CompletableFuture<?> call){
+        Retry retry = new Retry(opcode, seq, payload, call);
+        retry.send();
+        return retry;
+    }
+
+    /**
+    * Stops the retries of the request an answer belongs to
+    *
+    * @param  retry     the request, ignored if null
+    * @return whether the answer is the first one, repeats of it being ignored
+    */
+    private boolean answered(Retry retry){
+        if (retry == null || retry.answered)
+            return false;
+
+        retry.answer();
+        return true;
+    }
+
+    /**
+    * Takes the pending connect call
+    *
+    * @return the call, or null if there is none
+    */
+    private CompletableFuture<Integer> take_connecting(){
+        CompletableFuture<Integer> future = connecting;
+        connecting = null;
+        return future;
+    }
+
+    /**
+    * Fails a call if the server does not answer in time
+    *
+    * @param  future    the call
+    * @return the same call
+    */
+    private <T> CompletableFuture<T> expect(CompletableFuture<T> future){
+        return future.orTimeout(group.timeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+    * Completes a call that was taken from its field
+    *
+    * @param  future    the call, ignored if null
+    * @param  value     the result of the call
+    */
+    private static <T> void complete(CompletableFuture<T> future, T value){
+        if (future != null)
+            future.complete(value);
+    }
+}
@@ -1,64 +1,92 @@
+package chat;
+
 import java.io.*;
 import java.net.*;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
-// UDP Client process that interacts with the server and other clients
-public class Client {
+// Console front end of the chat client, driving a ChatClient from the terminal
+public class Client implements ChatClient.Listener {
     // Attributes used for socket connection
-    private DatagramSocket socket;
-    private DatagramPacket packet;
-    private int serverPort = 7070;
-    private String serverName = "localhost";
+    private int serverPort = Integer.getInteger("chat.server.port", 7070);
+    private String serverName = System.getProperty("chat.server.host", "localhost");
     private boolean active;
-    private byte[] buf = new byte[256];
-    private InetAddress address;
-    private String receivedData;
+    private ClientGroup group;
+    private ChatClient chat;
     private Scanner dataInput;
     private int TIMER = 10*1000;
 
+    // Requests pushed by the server, waiting for the console to answer them
+    private LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
     // Attributes used for client information
     String[] options;
     String name = "You";
     String friend;
-    String server_response = "";
-    String prev_message_in = "";
     String message_in = "";
     String message_out = "";
-    int seq;
-    Boolean send_error = false;
-    Boolean initiator = false;
-    Boolean activeConnection;
+    volatile boolean activeConnection;
+
+    /**
+    * A chat request pushed by the server
+    */
+    static class Request {
+        int number;
+        String name;
+
+        Request(int number, String name){
+            this.number = number;
+            this.name = name;
+        }
+    }
 
     /**
     * Handles all client side communication with the server and other clients
-    */ 
+    */
     Client(){
         // Starts the socket connection
         try {
-            socket = new DatagramSocket();
-            address = InetAddress.getByName(serverName);
-            socket.setSoTimeout(TIMER);
-        } catch (Exception e) {
-            //TODO: handle exception
+            group = new ClientGroup(new InetSocketAddress(serverName, serverPort));
+            chat = group.open(this);
+        } catch (IOException e) {
+            System.out.println("Error starting the client");
+            System.exit(1);
         }
 
-        // Sets the flag that connection 
+        // Sets the flag that connection
         active = true;
 
         // Starts the scanner
         dataInput = new Scanner(System.in);
-        
+
         // Runs the client instance
         run();
     }
 
 
+    /**
+    * Queues a chat request for the console
+    *
+    * @param  client    the client being asked
+    * @param  requester the requesting client's number
+    * @param  name      the requesting client's nickname
+    */
+    public void on_request(ChatClient client, int requester, String name){
+        requests.add(new Request(requester, name));
+    }
+
+
     /**
     * Stalls the instance for the user
     *
     * @param  wait   how long the program will stall for
-    */ 
+    */
     public void stall(int wait){
         try {
             TimeUnit.SECONDS.sleep(wait);
@@ -67,49 +95,17 @@ public class Client {
 
 
     /**
-    * Receives datagram packets from a client and returns it
+    * Waits for the result of a call to the server
     *
-    * @return  DatagramPacket   the datagram packet received from a client
-    */ 
-    public String receivePacket(){
-        // Creates a buffer to take in data
-        buf = new byte[256];
-        packet = new DatagramPacket(buf, buf.length);
-
-        // Attempts to receive a packet
+    * @param  future    the pending call
+    * @return the result, or null if the call failed or timed out
+    */
+    private static <T> T await(CompletableFuture<T> future){
         try {
-            socket.receive(packet);
-        } catch (IOException e) {
-            send_error = true;
-            return "connection_failure";
+            return future.join();
+        } catch (Exception e) {
+            return null;
         }
-
-        // Processes the packet as string
-        receivedData = new String(packet.getData(), 0, packet.getLength());
-
-        // Processes the received data and returns it
-        return request_check(receivedData);
-    }
-
-
-
-    /**
-    * Sends datagram packets from to a client
-    *
-    * @param  data      the data to be sent to a client
-    */ 
-    public void sendPacket(String data){
-        // Creates a buffer to write out to the client
-        buf = new byte[256];
-        buf = data.getBytes();
-        packet = new DatagramPacket(buf, buf.length, address, serverPort);
-
-        // Attempts to send the packet to the destination client
-        try {
-            socket.send(packet);
-        } catch (IOException e) {
-            System.out.println("Server> ERROR sending packet");
-        }    
     }
 
 
@@ -117,7 +113,7 @@ public class Client {
     * Gets input from the user
     *
     * @return  the user input
-    */ 
+    */
     public String get_input(){
         System.out.print("\n" + name + "> ");
         return dataInput.nextLine();
@@ -125,41 +121,39 @@ public class Client {
 
     /**
     * Clears the terminal screen
-    */ 
-    public static void clear_screen() {  
+    */
+    public static void clear_screen() {
         try {
             final String os = System.getProperty("os.name");
             if (os.contains("Windows")) {
-                new ProcessBuilder("cmd", "/c", "cls").inheritIO().start().waitFor();  
+                new ProcessBuilder("cmd", "/c", "cls").inheritIO().start().waitFor();
             } else {
-                new ProcessBuilder("/bin/bash", "-c", "clear").inheritIO().start().waitFor();  
+                new ProcessBuilder("/bin/bash", "-c", "clear").inheritIO().start().waitFor();
             }
         } catch (final Exception e) {
             System.out.printf("\n\n\n\n");
-        } 
-    } 
+        }
+    }
 
 
     /**
     * Setup for the user to connect to the server
-    */ 
+    */
     public void setup(){
-        String response;
-        Boolean notConnected = true;
-
         // Attempts to connect to the server
         System.out.println("Connecting to the server...");
-        while (notConnected){
-            sendPacket("connection_request");
-            response = receivePacket();
 
-            // If connections is not made, attempts another connection in 10 seconds
-            if (response.equals("connection_granted")){
-                notConnected = false;
-            } else {
-                System.out.println("\nServer is busy, attempting to reconnect in 10 seconds...");
-                stall(10);
-            }            
+        // The connection request itself is sent again while the server does not
+        // answer, so a failure means the server is full or down. Waits longer
+        // after every failure, with jitter so that clients do not retry together
+        long backoff = 1000;
+        while (await(chat.connect()) == null){
+            long wait = backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+            System.out.printf("\nServer is busy, attempting to reconnect in %.1f seconds...\n", wait / 1000.0);
+            try {
+                TimeUnit.MILLISECONDS.sleep(wait);
+            } catch (Exception e) {}
+            backoff = Math.min(backoff * 2, 30*1000);
         }
 
         System.out.println("\nConnection successful!");
@@ -173,15 +167,17 @@ public class Client {
         System.out.println("Welcome to UPD Server");
         System.out.println("What display name do you want?");
         name = get_input().split("\\s+") [0];
+
+        // Asks again while the server turns the name away
+        while (!name.equals("") && !chat.nickname(name).handle((done, e) -> e == null).join()){
+            System.out.println("That name cannot be used, pick another one");
+            name = get_input().split("\\s+") [0];
+        }
+
         if (name.equals("")){
             name = "You";
-            sendPacket("nickname _null");
-        } else {
-            sendPacket("nickname " + name);
+            await(chat.nickname(""));
         }
-            
-        
-        receivePacket();
     }
 
 
@@ -189,28 +185,49 @@ public class Client {
     * Request list of active clients from the server
     *
     * @return the list of online clients
-    */ 
+    */
     public String fetch_online_list(){
+        // Ensures nobody is attempting to connect with client
+        if (check_requests().equals("_chat"))
+            return "_chat";
+
         System.out.println("Clients Online:");
-        sendPacket("online_request");
-        String response = receivePacket();
+        Map<Integer, String> roster = await(chat.online());
+
+        // Lists every other online client
+        StringBuilder list = new StringBuilder();
+        int count = 0;
+        if (roster != null){
+            for (Map.Entry<Integer, String> entry : roster.entrySet()){
+                if (entry.getKey() == chat.session())
+                    continue;
+
+                count++;
+                list.append("[").append(count).append("] Client_").append(entry.getKey())
+                    .append(" ==> ").append(entry.getValue()).append("\n");
+            }
+        }
 
-        // Ensures nobody is attempting to connect with client
-        if (!response.equals("_chat")){
+        String response;
+        if (count == 0){
+            options = new String[0];
+            response = "Nobody Is Online";
+        } else {
             // Saves all of online clients into a list
+            response = list.toString().trim();
             options = response.split("\\r?\\n");
-            System.out.println(response);
         }
-        
+
+        System.out.println(response);
         return response;
     };
-    
+
 
     /**
     * Allows the user to connect with online clients in the server
     *
     * @return the user's decision within the connection room
-    */ 
+    */
     public String connect_room(){
         String input;
         int index;
@@ -227,18 +244,14 @@ public class Client {
 
             // Iterates until either a client is online or the user goes back to the menu
             while (response.equals("Nobody Is Online")){
-                // Checks to see if a connection request to the client has been made
-                if (response.equals("_chat"))
-                    return response;
-
                 System.out.println("\nPress enter to refresh the list");
                 input = get_input();
-                
+
                 // Allows the user to return to the menu
                 if (input.equals("_back")){
                     return input;
                 }
-                
+
                 clear_screen();
                 System.out.println("Welcome to the Connect Room!");
                 System.out.println("Enter '_back' to exit to the menu");
@@ -246,21 +259,18 @@ public class Client {
             }
 
             // Checks to see if a connection request to the client has been made
-            if (response.equals("_chat")){
-                receivePacket();
+            if (response.equals("_chat"))
                 return response;
-            }
-                
 
             response = "connection_failure";
-        
+
             System.out.println("\nWho would you like to connect to?");
             input = get_input();
 
             // Allows the user to return to the menu
             if (input.equals("_back"))
                 return input;
-            
+
             // Error check to see if the user entered an integer
             try {
                 index = Integer.parseInt(input) - 1;
@@ -284,7 +294,7 @@ public class Client {
             if (response.equals("_chat"))
                 return response;
             else if (response.equals("connection_failure")){
-                // Notifies the user the connection failed 
+                // Notifies the user the connection failed
                 System.out.println("\nRequest Denied");
                 stall(3);
             }
@@ -293,9 +303,6 @@ public class Client {
         // Sets the friend attribute
         friend = response;
 
-        // Allows the client to know they initiated the connection
-        initiator = true;
-
         System.out.println("\nConnection successful!");
         stall(2);
 
@@ -307,11 +314,11 @@ public class Client {
     * Allows the user to wait to be connected to
     *
     * @return the user's decision within the connection room
-    */ 
+    */
     public String waiting_room(){
         String input;
         String response;
-       
+
         clear_screen();
         System.out.println("Welcome to the Waiting Room!");
         System.out.println("Enter '_back' to exit to the menu");
@@ -319,7 +326,7 @@ public class Client {
         // Iterates until the user chooses to leave by going back or accepting a connection
         while (true){
             System.out.println("\nWaiting to be connected with...");
-            response = receivePacket();
+            response = await_request(TIMER);
 
             // Checks to see if a connection request to the client has been made
             if (response.equals("_chat")){
@@ -328,12 +335,12 @@ public class Client {
                 // Allows the user to see that they denied a connection
                 System.out.println("\nConnection Denied");
                 System.out.println("Waiting to be connected with...");
-            }
 
-            // Checks to see if a connection request to the client has been made
-            response = receivePacket();
-            if (response.equals("_chat"))
-                return response;
+                // Checks to see if a connection request to the client has been made
+                response = await_request(TIMER);
+                if (response.equals("_chat"))
+                    return response;
+            }
 
             // The user is given an option to return the menu if they input '_back'
             System.out.println("\nType '_back' to return to menu or press enter to continue waiting");
@@ -346,29 +353,43 @@ public class Client {
 
     /**
     * Menu that allows the user to connect interact with the software
-    */ 
+    */
     public void menu(){
         String input = "";
         String route;
         Boolean validInput = false;
-        
+
         // Iterates until the user has made a decision
         while (true){
             System.out.println("Type '_exit' to exit the program");
+            System.out.println("Type '_mail <name> <message>' to leave a message for someone who is away");
+            System.out.println("Type '_history <name> [count]' to see your last messages with someone");
             System.out.println("\nDo you want to be placed in a waiting room or connect room?");
             System.out.printf("Enter 1 for 'connect room', 0 for 'wait room'\n");
-            
+
             // Error checks user input
             while (!validInput){
                 input = get_input();
 
                 // Checks to see if the user wants to exit the program
                 if (input.equals("_exit")){
-                    sendPacket(input);
+                    chat.exit();
                     active = false;
                     return;
                 }
 
+                // Leaves a message for a nickname without leaving the menu
+                if (input.startsWith("_mail ")){
+                    leave_mail(input);
+                    continue;
+                }
+
+                // Shows the history with a nickname without leaving the menu
+                if (input.startsWith("_history ")){
+                    show_history(input);
+                    continue;
+                }
+
                 // Restricts the inputs to be either '0' or '1'
                 if (input.equals("0") || input.equals("1")){
                     validInput = true;
@@ -379,7 +400,7 @@ public class Client {
 
             // Routes the connection depending on the user input
             route = input.equals("1") ? connect_room() : waiting_room();
-            
+
             // Returns to the chat if the user has initiated a chat
             if (route.equals("_chat"))
                 return;
@@ -392,52 +413,128 @@ public class Client {
     }
 
 
+    /**
+    * Leaves a message for a nickname, which the server delivers once someone
+    * with that nickname is online
+    *
+    * @param  input     the command, the nickname and the message
+    */
+    public void leave_mail(String input){
+        String[] parts = input.split("\\s+", 3);
+        if (parts.length < 3){
+            System.out.println("Invalid Input: type '_mail <name> <message>'");
+            return;
+        }
+
+        Boolean stored = await(chat.mail(parts[1], parts[2]));
+        if (stored == null)
+            System.out.println("Server> Mail could not be sent");
+        else if (stored)
+            System.out.println("Server> Mail left for " + parts[1]);
+        else
+            System.out.println("Server> The mailbox of " + parts[1] + " is full");
+    }
+
+
+    /**
+    * Shows the last messages exchanged with a nickname, oldest first
+    *
+    * @param  input     the command, the nickname and optionally how many messages
+    */
+    public void show_history(String input){
+        String[] parts = input.split("\\s+");
+        int count = 20;
+        try {
+            if (parts.length > 2)
+                count = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            parts = new String[0];
+        }
+
+        if (parts.length < 2 || parts.length > 3){
+            System.out.println("Invalid Input: type '_history <name> [count]'");
+            return;
+        }
+
+        List<ChatClient.HistoryEntry> entries = await(chat.history_last(parts[1], count));
+        if (entries == null){
+            System.out.println("Server> History could not be fetched");
+            return;
+        }
+
+        if (entries.isEmpty())
+            System.out.println("Server> No messages with " + parts[1]);
+        for (ChatClient.HistoryEntry entry : entries)
+            System.out.printf("[%tT] %s> %s\n", new Date(entry.time), entry.sender, entry.text);
+    }
+
+
     /**
     * Attempts a connection with desired client
     *
     * @param  desiredID   the desired clientID
-    * @return the server response to the connection
-    */ 
+    * @return the nickname of the connected client, or "connection_failure"
+    */
     public String connect_request(String desiredID){
-        String response;
-
-        // Sends the connection request of the user to the server
-        sendPacket("client_request " + desiredID);
+        // Sends the connection request of the user to the server by client number
+        CompletableFuture<String> request =
+            chat.request(Integer.parseInt(desiredID.substring(desiredID.indexOf('_') + 1)));
         System.out.println("\nWaiting for their response...");
 
-        // Server waits for the response, the connection is terminated if the
-        // user doesn't respond in 10 seconds
-        response = receivePacket();
-        if (response.equals("connection_failure")){
-            return response;
+        // The connection is terminated if the user doesn't respond in 10 seconds
+        String peer = await(request);
+        return peer == null ? "connection_failure" : peer;
+    }
+
+
+    /**
+    * Waits for a chat request pushed by the server and answers it
+    *
+    * @param  wait      how long to wait in milliseconds
+    * @return "_chat" if a chat was opened, "_denied" if a request was
+    *         denied, otherwise "waiting..."
+    */
+    public String await_request(long wait){
+        Request request;
+
+        try {
+            request = requests.poll(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return "waiting...";
         }
-        
-        return receivePacket();
+
+        return request == null ? "waiting..." : request_check(request);
     }
 
-    
+
+    /**
+    * Answers a chat request if one is waiting
+    *
+    * @return "_chat" if a chat was opened, "_denied" if a request was
+    *         denied, otherwise "waiting..."
+    */
+    public String check_requests(){
+        return await_request(0);
+    }
+
+
     /**
     * Handles request attempts made to the client
     *
     * @param  request   the incoming client request
-    * @return the server response to the connection
-    */ 
-    public String request_check(String request){
+    * @return "_chat" if the chat was opened, otherwise "_denied"
+    */
+    public String request_check(Request request){
         String input = "0";
         Boolean validInput = false;
-        String[] response = request.split("\\s+");
         long stop;
 
-        // If the incoming server data isn't a client request, it is returned
-        if (!(response [0]).equals("client_ack"))
-            return request;
-
         // Sets a timer for user response
         stop = System.currentTimeMillis() + TIMER;
 
-        System.out.printf("\n\n%s (%s) is requesting to connect with you\n", response [1], response [2]);
+        System.out.printf("\n\n%s (Client_%d) is requesting to connect with you\n", request.name, request.number);
         System.out.printf("Do you accept the request? \n1 for 'accept', 0 for 'reject'\n");
-        
+
         // Validates user input to be one of the menu choices
         while (!validInput){
             input = get_input();
@@ -450,23 +547,20 @@ public class Client {
                     return "_denied";
                 }
 
-                // Sends a message to the server of user's response
-                sendPacket("client_ack_response " + input);
                 validInput = true;
             } else {
                 System.out.println("Invalid Input: please 1 for accept, or 0 for reject");
             }
         }
-        
-        // Returns a denied flag if the user denies the connection
-        if (input.equals("0")){
-            receivePacket();
+
+        // Sends a message to the server of user's response, returning a denied
+        // flag if the user denies the connection
+        Boolean opened = await(chat.respond(input.equals("1")));
+        if (input.equals("0") || opened == null || !opened)
             return "_denied";
-        }
 
         // Saves the connected client's information if they are connected
-        friend = response [1];
-        receivePacket();
+        friend = request.name;
         System.out.println("\nConnection successful!");
         stall(2);
         return "_chat";
@@ -474,123 +568,71 @@ public class Client {
 
 
     /**
-    * Handles all messages sent to the server during chat communications
-    */ 
+    * Handles all messages sent to the server during chat communications,
+    * without waiting for earlier messages to be acknowledged
+    */
     public void sendChat(){
-        String response;
-
         // Gets user input
         message_out = get_input();
+        if (!activeConnection)
+            return;
 
-        // Iterates until the sent message is acknowledged
-        while (true){
-            // Sends message to the server
-            sendPacket("message_ack " + String.valueOf(seq) + " " + message_out);
-            
-            // Receives acknowledgement from the serer
-            response = receivePacket();
-
-            // Receives client response to message request from the server
-            response = receivePacket();
-            
-            // Exits loop and displays client's response if the message is
-            // acknowledged within 10 seconds
-            if (!response.equals("connection_failure")){
-                // Allows the user to know whether their message was accepted
-                if (response.equals("ack_received")){
-                    System.out.println("Server> Message Received");
-
-                    // If the messaged was accepted, checks to see if the user requested to exit
-                    if (message_out.equals("_exit")){
-                        sendPacket("_exit");
-                        activeConnection = false;
-                    }
-                }
-                    
-                else
-                    System.out.println("Server> Message Denied");
+        // Lets the user know once their message arrived
+        CompletableFuture<Void> sent = chat.send(message_out);
+        sent.thenRun(() -> System.out.println("Server> Message Received"));
 
-                break;
-            }        
+        // Waits for the exit message to arrive before leaving the chat
+        if (message_out.equals("_exit")){
+            await(sent);
+            activeConnection = false;
         }
     }
 
 
     /**
-    * Handles all messages received from the server during chat communications
-    */ 
-    public void receiveChat(){
-        String input;
-        message_in = receivePacket();
-
-        // Iterates until a proper message is received from the server
-        while(message_in.equals("connection_failure"))
-            message_in = receivePacket();
-        
-        // Discards message if it is a duplicate
-        if (!message_in.equals(prev_message_in)){
-            
-            // Checks to see if the message incoming is a message request
-            if (message_in.split("\\s+") [0].equals("message_request")){
-                prev_message_in = message_in;
-                
-                System.out.println("\nYou have just received a message request!");
-
-                // If exit message is received, notice is sent to the user
-                if (message_in.split("\\s+") [1].equals("_exit"))
-                    System.out.println("NOTE: Client is requesting connection termination");
-
-                // Iterates until the user inputs a valid response
-                while (true){
-                    System.out.println("\nEnter 1 to 'accept', 0 for 'reject'");
-                    System.out.print("Response> ");
-                    input = dataInput.nextLine();
-
-                    if (input.equals("0") || input.equals("1")){
-                        break;
-                    } else {
-                        System.out.println("Invalid Input: Enter 1 to 'accept', 0 for 'reject'");
-                    }
-                }
-
-                // Sends user response ot the server
-                sendPacket(input);
-                message_in = receivePacket();
-
-                // Iterates until all duplicate messages are discarded
-                while(message_in.equals(prev_message_in))
-                    message_in = receivePacket();
-
-                // Displays the message if the user accepts the message
-                if (input.equals("1")){
-                    // Terminates chat if the user accepts exit message
-                    if (message_in.split(" ", 2) [1].equals("_exit")){
-                        System.out.println("Server> Connection termination");
-                        activeConnection = false;
-                        stall(3);
-                    }
+    * Displays a message from the chat partner as soon as it is delivered
+    *
+    * @param  client    the client receiving the message
+    * @param  seq       the sequence number of the message
+    * @param  text      the message
+    */
+    public void on_message(ChatClient client, int seq, String text){
+        message_in = text;
+
+        // Terminates chat once the partner's exit message arrives
+        if (text.equals("_exit")){
+            System.out.println("\nServer> Connection termination");
+            System.out.println("Press enter to return to the menu");
+            activeConnection = false;
+            return;
+        }
 
-                    // Displays the message to the user
-                    System.out.printf("\n%s> %s\n", friend, message_in.split(" ", 2) [1]);
+        // Displays the message to the user
+        System.out.printf("\n%s> %s\n", friend, text);
+        System.out.print("\n" + name + "> ");
+    }
 
-                    // Increments the sequence number based on the message
-                    seq = Integer.parseInt(message_in.split("\\s+") [0]) + 1;
-                }
 
-                // Resets the previous message
-                prev_message_in = message_in;
-            }
-        }
+    /**
+    * Displays mail left for the user while they were away
+    *
+    * @param  client    the client receiving the mail
+    * @param  sender    the nickname of the client that left it
+    * @param  text      the message
+    */
+    public void on_mail(ChatClient client, String sender, String text){
+        System.out.printf("\nMail from %s> %s\n", sender, text);
+        System.out.print("\n" + name + "> ");
     }
-    
+
 
     /**
     * Runs the client instance
-    */ 
+    */
     public void run(){
         // Sets up the connection with server
         setup();
-        
+
         // Iterates until the user exits the program through the menu
         while (active){
             // Goes to the menu for the user
@@ -607,32 +649,21 @@ public class Client {
             System.out.printf("___Chatroom with %s___\n", friend);
             System.out.println("Type '_exit' to terminate connection");
 
-            seq = 0;
-            prev_message_in = "";
-
+            // Iterates until either user's exit message is delivered
             activeConnection = true;
-            // Starts the client that initiated the connection as the first sender
-            if (initiator)
+            while(activeConnection)
                 sendChat();
-
-            // Iterates until a exit request is acknowledged and accepted by both users
-            while(activeConnection){
-                receiveChat();
-
-                if (!activeConnection)
-                    break;
-
-                sendChat();
-            }
-
-            initiator = false;
         }
+
+        // Gives the exit message a moment to leave before the socket thread stops
+        stall(1);
+        group.close();
     }
-    
+
 
     /**
     * Client main function
-    */ 
+    */
     public static void main(String[] args) {
         new Client();
     }
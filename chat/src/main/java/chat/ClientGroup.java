@@ -0,0 +1,461 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Selector thread shared by many headless clients, so that thousands of
+// clients can run in one JVM without a thread each. Every client's state is
+// only touched on this thread, calls from other threads are queued onto it.
+// The frames a client sends during one pass of the loop are coalesced into
+// one datagram per destination, the server or the chat partner, written out
+// at the end of the pass. The text of a frame is compressed first if its
+// destination agreed to it, frames still too large for a datagram are sent
+// as fragments, and the fragments the clients receive are put back together here
+public class ClientGroup extends Thread {
+    // Attributes used for the channels
+    private Selector selector;
+    private InetSocketAddress server;
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    private PriorityQueue<Timer> timers;
+    private volatile boolean running;
+
+    // Attributes used for the reusable buffers, only touched on this thread
+    private BufferPool datagrams;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private int writeGap;
+
+    // Attributes used for the frames too large for a datagram
+    private ByteBuffer fragment;
+    private Fragments fragments;
+
+    // Attributes used for the datagrams being filled during this pass, to the
+    // server and straight to the chat partner
+    private LinkedHashMap<ChatClient, ByteBuffer> batches;
+    private LinkedHashMap<ChatClient, ByteBuffer> directBatches;
+    private ArrayList<ChatClient> deferred;
+
+    // How long a client waits for the server before a call fails, in milliseconds
+    private int timeout = Integer.getInteger("chat.client.timeout", 10*1000);
+
+    // Percent of outgoing datagrams dropped on purpose, for testing delivery under loss
+    private int loss = Integer.getInteger("chat.client.loss", 0);
+
+    /**
+    * A task that runs on the group's thread once its time comes
+    */
+    private static class Timer implements Comparable<Timer> {
+        long due;
+        Runnable task;
+
+        Timer(long due, Runnable task){
+            this.due = due;
+            this.task = task;
+        }
+
+        public int compareTo(Timer other){
+            return Long.compare(due, other.due);
+        }
+    }
+
+    /**
+    * Opens the selector and starts the thread
+    *
+    * @param  server    the address of the chat server
+    */
+    public ClientGroup(InetSocketAddress server) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        timers = new PriorityQueue<Timer>();
+
+        datagrams = new BufferPool(256, BufferPool.DATAGRAM_SIZE, true);
+        readBuffer = ByteBuffer.allocateDirect(BufferPool.RECEIVE_SIZE);
+        writeBuffer = ByteBuffer.allocateDirect(BufferPool.FRAME_SIZE);
+        fragment = ByteBuffer.allocateDirect(BufferPool.DATAGRAM_SIZE);
+        fragments = new Fragments(Long.getLong("chat.fragment.memory", 8L << 20),
+            TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.fragment.timeout", 5000)));
+        batches = new LinkedHashMap<ChatClient, ByteBuffer>();
+        directBatches = new LinkedHashMap<ChatClient, ByteBuffer>();
+        deferred = new ArrayList<ChatClient>();
+
+        // Starts the thread, which never keeps the program alive on its own
+        running = true;
+        setName("client-group");
+        setDaemon(true);
+        start();
+    }
+
+    /**
+    * Opens a new client on its own socket, the client still has to connect
+    *
+    * @param  listener  the callbacks for events the server pushes to the client
+    * @return the client
+    */
+    public ChatClient open(ChatClient.Listener listener) throws IOException {
+        // Leaves the channel unconnected, since the chat partner sends to the
+        // same port the server sees once the direct path is up
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+
+        ChatClient client = new ChatClient(this, channel, listener);
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, client);
+            } catch (IOException e) {
+                client.fail(e);
+            }
+        });
+
+        return client;
+    }
+
+    /**
+    * Returns how long a client waits for the server
+    *
+    * @return the timeout in milliseconds
+    */
+    public int timeout(){
+        return timeout;
+    }
+
+    /**
+    * Runs a task on the group's thread, straight away if already on it
+    *
+    * @param  task      the task touching a client's state
+    */
+    public void execute(Runnable task){
+        if (Thread.currentThread() == this){
+            task.run();
+            return;
+        }
+
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+    * Runs a task once a time has come, only called on the group's thread
+    *
+    * @param  due       the time in nanoseconds
+    * @param  task      the task
+    */
+    void schedule(long due, Runnable task){
+        timers.add(new Timer(due, task));
+    }
+
+    /**
+    * Sends a frame from a client, only called on the group's thread
+    *
+    * @param  client    the client sending the frame
+    * @param  opcode    the opcode of the frame
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the frame, or null for none
+    */
+    void send(ChatClient client, int opcode, int seq, String payload){
+        writeBuffer.clear();
+        Codec.encode(writeBuffer, opcode, client.session(), seq, payload);
+        write(client, batches);
+    }
+
+    /**
+    * Sends a frame from a client straight to its chat partner, only called on
+    * the group's thread
+    *
+    * @param  client    the client sending the frame
+    * @param  opcode    the opcode of the frame
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the frame, or null for none
+    */
+    void send_direct(ChatClient client, int opcode, int seq, String payload){
+        writeBuffer.clear();
+        Codec.encode(writeBuffer, opcode, client.session(), seq, payload);
+        write(client, directBatches);
+    }
+
+    /**
+    * Starts a frame from a client whose payload is written into the returned
+    * buffer, only called on the group's thread
+    *
+    * @param  client    the client sending the frame
+    * @param  opcode    the opcode of the frame
+    * @return the buffer the payload is written to
+    */
+    ByteBuffer begin(ChatClient client, int opcode){
+        writeBuffer.clear();
+        writeGap = Codec.begin(writeBuffer, opcode, client.session());
+        return writeBuffer;
+    }
+
+    /**
+    * Sends a frame started with begin once its payload is written
+    *
+    * @param  client    the client sending the frame
+    * @param  seq       the sequence number or argument of the opcode
+    */
+    void finish(ChatClient client, int seq){
+        Codec.finish(writeBuffer, writeGap, seq);
+        write(client, batches);
+    }
+
+    /**
+    * Sends a frame started with begin straight to the client's chat partner
+    *
+    * @param  client    the client sending the frame
+    * @param  seq       the sequence number or argument of the opcode
+    */
+    void finish_direct(ChatClient client, int seq){
+        Codec.finish(writeBuffer, writeGap, seq);
+        write(client, directBatches);
+    }
+
+    /**
+    * Asks for a client's held back frames, such as acks, to be written at the
+    * end of this pass, only called on the group's thread
+    *
+    * @param  client    the client, whose flush_acks is called once per request
+    */
+    void defer(ChatClient client){
+        deferred.add(client);
+    }
+
+    /**
+    * Adds the encoded frame in the write buffer to the datagram the client is
+    * filling during this pass, compressed if its destination agreed to it and
+    * as fragments if it is too large for a datagram
+    *
+    * @param  client    the client sending the frame
+    * @param  lane      the datagrams being filled for the frame's destination
+    */
+    private void write(ChatClient client, Map<ChatClient, ByteBuffer> lane){
+        writeBuffer.flip();
+        if (lane == batches ? client.compressing() : client.peer_compressing())
+            Compression.compress(writeBuffer);
+
+        if (writeBuffer.remaining() <= BufferPool.DATAGRAM_SIZE){
+            append(client, lane, writeBuffer);
+            return;
+        }
+
+        int id = Fragments.id(writeBuffer);
+        int count = Fragments.count(writeBuffer.remaining());
+        for (int i = 0; i < count; i++){
+            fragment.clear();
+            Fragments.encode(fragment, writeBuffer, client.session(), id, i, count);
+            fragment.flip();
+            append(client, lane, fragment);
+        }
+    }
+
+    /**
+    * Adds an encoded frame to the datagram the client is filling during this pass
+    *
+    * @param  client    the client sending the frame
+    * @param  lane      the datagrams being filled for the frame's destination
+    * @param  frame     the flipped buffer holding the frame, at most a datagram long
+    */
+    private void append(ChatClient client, Map<ChatClient, ByteBuffer> lane, ByteBuffer frame){
+        // Writes the datagram out early if the frame no longer fits in it
+        ByteBuffer batch = lane.get(client);
+        if (batch != null && batch.remaining() < frame.remaining()){
+            transmit(client, lane.remove(client), lane == batches);
+            batch = null;
+        }
+
+        if (batch == null){
+            batch = datagrams.acquire();
+            lane.put(client, batch);
+        }
+
+        batch.put(frame);
+    }
+
+    /**
+    * Adds a fragment a client received, handing back the frame it belongs to
+    * once the last of them arrives, only called on the group's thread
+    *
+    * @param  client    the client receiving the fragment
+    * @param  fromPeer  whether the fragment came straight from the chat partner
+    * @param  frame     the decoded fragment
+    * @return the flipped buffer holding the frame, handed back through reassembled, or null while fragments are missing
+    */
+    ByteBuffer reassemble(ChatClient client, boolean fromPeer, Frame frame){
+        // The client's number tells the clients of the group apart, and the
+        // partner's fragments are kept apart from the server's
+        int sender = client.session() << 1 | (fromPeer ? 1 : 0);
+        return fragments.add(sender, frame.seq, frame.payload(), System.nanoTime());
+    }
+
+    /**
+    * Hands a frame returned by reassemble back once it was handled
+    *
+    * @param  whole     the buffer holding the frame
+    */
+    void reassembled(ByteBuffer whole){
+        fragments.release(whole);
+    }
+
+    /**
+    * Writes out the datagrams a client filled during this pass, only called
+    * on the group's thread, such as before the client's socket is closed or
+    * its chat partner changes
+    *
+    * @param  client    the client
+    */
+    void flush(ChatClient client){
+        ByteBuffer batch = batches.remove(client);
+        if (batch != null)
+            transmit(client, batch, true);
+
+        batch = directBatches.remove(client);
+        if (batch != null)
+            transmit(client, batch, false);
+    }
+
+    /**
+    * Writes out every datagram filled during this pass, after the frames that
+    * were held back until the end of it
+    */
+    private void flush(){
+        for (int i = 0; i < deferred.size(); i++)
+            deferred.get(i).flush_acks();
+        deferred.clear();
+
+        for (Map.Entry<ChatClient, ByteBuffer> entry : batches.entrySet())
+            transmit(entry.getKey(), entry.getValue(), true);
+        batches.clear();
+
+        for (Map.Entry<ChatClient, ByteBuffer> entry : directBatches.entrySet())
+            transmit(entry.getKey(), entry.getValue(), false);
+        directBatches.clear();
+    }
+
+    /**
+    * Writes a coalesced datagram to the server or to a client's chat partner
+    *
+    * @param  client    the client sending the datagram
+    * @param  batch     the datagram, handed back to the pool
+    * @param  toServer  whether the datagram goes to the server rather than the partner
+    */
+    private void transmit(ChatClient client, ByteBuffer batch, boolean toServer){
+        batch.flip();
+        InetSocketAddress target = toServer ? server : client.peer_endpoint();
+
+        // A full socket buffer drops the datagram, which the client's timeouts cover
+        if (target != null && (loss == 0 || ThreadLocalRandom.current().nextInt(100) >= loss)){
+            try {
+                client.channel().send(batch, target);
+            } catch (IOException e) {
+                // Only the server being unreachable fails the calls, the partner is retried
+                if (toServer)
+                    client.fail(e);
+            }
+        }
+
+        datagrams.release(batch);
+    }
+
+    /**
+    * Receives every datagram that is waiting for a client
+    *
+    * @param  client    the client whose channel is readable
+    */
+    private void drain(ChatClient client){
+        while (true){
+            readBuffer.clear();
+            SocketAddress source;
+
+            try {
+                source = client.channel().receive(readBuffer);
+                if (source == null)
+                    return;
+            } catch (IOException e) {
+                return;
+            }
+
+            // Anything not from the server is checked against the chat partner's address
+            readBuffer.flip();
+            if (server.equals(source))
+                client.receive(readBuffer);
+            else
+                client.receive_direct(readBuffer, source);
+        }
+    }
+
+    /**
+    * Stops the thread and closes every client's socket
+    */
+    public void close(){
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+    * The main of the thread
+    */
+    public void run(){
+        while (running){
+            // Sleeps until the next timer at the latest
+            try {
+                Timer first = timers.peek();
+                if (first == null){
+                    selector.select();
+                } else {
+                    long wait = first.due - System.nanoTime();
+                    if (wait > 0)
+                        selector.select(Math.max(1, wait / 1000000));
+                    else
+                        selector.selectNow();
+                }
+            } catch (IOException e) {
+                break;
+            }
+
+            // Runs the calls queued from other threads
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid() && key.isReadable())
+                    drain((ChatClient) key.attachment());
+            }
+
+            // Runs the timers that are due
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().due - now <= 0)
+                timers.poll().task.run();
+
+            // Writes out what the clients sent during the pass
+            flush();
+        }
+
+        // Closes the sockets of every client still open
+        for (SelectionKey key : selector.keys()){
+            try {
+                key.channel().close();
+            } catch (IOException e) {}
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,242 @@
+package chat;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+// Membership of a cluster of servers that share the client numbers between
+// them. Every node lists the same nodes in the same order, and node i hands
+// out the numbers i * span + 1 to (i + 1) * span, so that any node works out
+// which node a client belongs to from its number alone. The nodes ping each
+// other over the socket their clients use, with the nodes they see as up,
+// and a node not heard from for the timeout is taken to be down until it is
+// heard from again
+public class Cluster {
+    // Most nodes in a cluster, so that a view fits in the seq of a ping
+    public static final int MAX_NODES = 31;
+
+    // Attributes used for the nodes and the numbers each of them owns
+    private InetSocketAddress[] nodes;
+    private int self;
+    private int span;
+
+    // Attributes used for the membership view: when every node was last heard
+    // from, the view every node last reported, and the nodes seen as up
+    private long[] heard;
+    private int[] views;
+    private int up;
+    private long timeout;
+
+    /**
+    * Creates the membership of a cluster, with every other node down until it is heard from
+    *
+    * @param  nodes     the address and port of every node, in the same order on every node
+    * @param  self      the index of this node
+    * @param  span      the number of client numbers every node owns
+    * @param  timeout   how long a node can go unheard before it is down, in nanoseconds
+    */
+    Cluster(InetSocketAddress[] nodes, int self, int span, long timeout){
+        if (nodes.length > MAX_NODES || self < 0 || self >= nodes.length || (long) span * nodes.length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("node " + self + " of " + nodes.length + " nodes");
+
+        this.nodes = nodes;
+        this.self = self;
+        this.span = span;
+        this.timeout = timeout;
+        heard = new long[nodes.length];
+        views = new int[nodes.length];
+        up = 1 << self;
+    }
+
+    /**
+    * Creates the membership from the system properties, see the list below
+    *
+    *   chat.cluster.nodes    host:port of every node, separated by commas
+    *   chat.cluster.node     the index of this node in the list, defaults to 0
+    *   chat.cluster.timeout  milliseconds a node can go unheard, defaults to 3000
+    *
+    * @param  span      the number of client numbers every node owns
+    * @return the membership, or null if no nodes are listed
+    */
+    public static Cluster from_properties(int span){
+        String list = System.getProperty("chat.cluster.nodes", "").trim();
+        if (list.isEmpty())
+            return null;
+
+        String[] entries = list.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++){
+            String entry = entries[i].trim();
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0)
+                throw new IllegalArgumentException("node " + entry + " needs a host and a port");
+
+            nodes[i] = new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)));
+            if (nodes[i].isUnresolved())
+                throw new IllegalArgumentException("node " + entry + " cannot be resolved");
+        }
+
+        return new Cluster(nodes, Integer.getInteger("chat.cluster.node", 0), span,
+            TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.cluster.timeout", 3000)));
+    }
+
+    /**
+    * Returns the index of this node
+    *
+    * @return the index in the list of nodes
+    */
+    public int self(){
+        return self;
+    }
+
+    /**
+    * Returns the number of nodes
+    *
+    * @return the number of nodes listed, up or down
+    */
+    public int size(){
+        return nodes.length;
+    }
+
+    /**
+    * Returns the lowest client number a node owns, less one
+    *
+    * @param  node      the index of the node
+    * @return the number its first client number follows
+    */
+    public int base(int node){
+        return node * span;
+    }
+
+    /**
+    * Returns the number of client numbers every node owns
+    *
+    * @return the span of a node
+    */
+    public int span(){
+        return span;
+    }
+
+    /**
+    * Works out which node a client belongs to
+    *
+    * @param  id        the client number
+    * @return the index of the node, or -1 if no node owns the number
+    */
+    public int owner(int id){
+        if (id <= 0 || id > span * nodes.length)
+            return -1;
+
+        return (id - 1) / span;
+    }
+
+    /**
+    * Checks whether a client belongs to this node
+    *
+    * @param  id        the client number
+    * @return whether this node hands out the number
+    */
+    public boolean owns(int id){
+        return id > self * span && id <= (self + 1) * span;
+    }
+
+    /**
+    * Returns the address frames are sent to a node on
+    *
+    * @param  node      the index of the node
+    * @return the address and port of the node
+    */
+    public InetSocketAddress address(int node){
+        return nodes[node];
+    }
+
+    /**
+    * Finds the node a datagram came from
+    *
+    * @param  source    the address and port the datagram came from
+    * @return the index of the node, or -1 if it came from a client
+    */
+    public int node(InetSocketAddress source){
+        for (int i = 0; i < nodes.length; i++){
+            if (i != self && nodes[i].getPort() == source.getPort() && nodes[i].equals(source))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+    * Notes that a node was heard from
+    *
+    * @param  node      the index of the node
+    * @param  now       the time in nanoseconds
+    * @return whether the node was down until now
+    */
+    public boolean heard(int node, long now){
+        heard[node] = now;
+        if ((up & 1 << node) != 0)
+            return false;
+
+        up |= 1 << node;
+        return true;
+    }
+
+    /**
+    * Notes the view a node sent with its ping
+    *
+    * @param  node      the index of the node
+    * @param  view      the nodes it sees as up, one bit per node
+    */
+    public void reported(int node, int view){
+        views[node] = view;
+    }
+
+    /**
+    * Takes the nodes not heard from for the timeout down
+    *
+    * @param  now       the time in nanoseconds
+    * @return the nodes that just went down, one bit per node
+    */
+    public int expire(long now){
+        int down = 0;
+        for (int i = 0; i < nodes.length; i++){
+            if (i != self && (up & 1 << i) != 0 && now - heard[i] >= timeout)
+                down |= 1 << i;
+        }
+
+        up &= ~down;
+        return down;
+    }
+
+    /**
+    * Checks whether a node is up
+    *
+    * @param  node      the index of the node
+    * @return whether the node was heard from within the timeout
+    */
+    public boolean up(int node){
+        return (up & 1 << node) != 0;
+    }
+
+    /**
+    * Returns the nodes this node sees as up, itself included
+    *
+    * @return the view, one bit per node
+    */
+    public int view(){
+        return up;
+    }
+
+    /**
+    * Checks whether every node that is up sees the same nodes as up as this one
+    *
+    * @return whether the view is agreed on
+    */
+    public boolean agreed(){
+        for (int i = 0; i < nodes.length; i++){
+            if (i != self && (up & 1 << i) != 0 && views[i] != up)
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,353 @@
+package chat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Encodes and decodes the binary frames sent between the clients and the server
+//
+// Frame layout:
+//   version   1 byte
+//   opcode    1 byte, with Frame.COMPRESSED set if the text is compressed
+//   session   varint, the client number the frame belongs to
+//   seq       varint, the sequence number or argument of the opcode
+//   length    varint, followed by that many payload bytes
+//
+// A datagram carries one or more frames back to back, so that frames for the
+// same destination can share a datagram up to BufferPool.DATAGRAM_SIZE. A
+// frame larger than that is split into fragments, see Fragments
+public class Codec {
+    public static final int VERSION = 1;
+
+    // Most bytes a frame's header takes, added to the payload to size a buffer
+    public static final int HEADER_SIZE = 15;
+
+    // Widths of the gaps reserved by begin for fields that are only known at the end
+    private static final int SEQ_WIDTH = 5;
+    private static final int LENGTH_WIDTH = 3;
+
+    /**
+    * Decodes a frame directly from the receive buffer without copying the payload
+    *
+    * @param  in        the flipped receive buffer
+    * @param  frame     the reusable frame that is filled in
+    * @return whether the buffer held a well formed frame
+    */
+    public static boolean decode(ByteBuffer in, Frame frame){
+        // Rejects anything that is not a frame of this version
+        if (in.remaining() < 2 || in.get() != VERSION)
+            return false;
+
+        int opcode = in.get() & 0xFF;
+        frame.opcode = opcode & ~Frame.COMPRESSED;
+        frame.compressed = (opcode & Frame.COMPRESSED) != 0;
+        frame.session = read_varint(in);
+        frame.seq = read_varint(in);
+        int length = read_varint(in);
+
+        // Rejects frames with broken varints or a payload longer than the datagram
+        if (frame.session < 0 || frame.seq < 0 || length < 0 || length > in.remaining())
+            return false;
+
+        // Points the frame at the payload inside the buffer
+        frame.buffer = in;
+        frame.payloadOffset = in.position();
+        frame.payloadLength = length;
+        in.position(in.position() + length);
+
+        return true;
+    }
+
+    /**
+    * Encodes a frame with a string payload, truncating the payload if it does not fit
+    *
+    * @param  out       the buffer the frame is written to
+    * @param  opcode    the opcode of the frame
+    * @param  session   the client number the frame belongs to
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the frame, or null for none
+    */
+    public static void encode(ByteBuffer out, int opcode, int session, int seq, String payload){
+        put_header(out, opcode, session, seq);
+
+        if (payload == null){
+            out.put((byte) 0);
+            return;
+        }
+
+        // Reserves enough room for the length before knowing how much of the payload fits
+        int length = utf8_length(payload);
+        int width = varint_size(Math.min(length, out.remaining()));
+        int start = out.position() + width;
+
+        // Writes the payload behind the reserved length, stopping at the end of the buffer
+        int limit = out.limit();
+        out.position(start);
+        out.limit(Math.min(limit, start + length));
+        BufferPool.put_string(payload, out);
+        out.limit(limit);
+
+        put_varint_padded(out, start - width, out.position() - start, width);
+    }
+
+    /**
+    * Encodes a frame that carries the payload of another decoded frame,
+    * compressed if the other frame's is
+    *
+    * @param  out       the buffer the frame is written to
+    * @param  opcode    the opcode of the frame
+    * @param  session   the client number the frame belongs to
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  source    the decoded frame whose payload is copied
+    */
+    public static void encode(ByteBuffer out, int opcode, int session, int seq, Frame source){
+        put_header(out, source.compressed ? opcode | Frame.COMPRESSED : opcode, session, seq);
+
+        // Copies as much of the payload as fits in the buffer
+        int length = Math.min(source.payloadLength, out.remaining() - varint_size(source.payloadLength));
+        put_varint(out, length);
+
+        for (int i = 0; i < length; i++)
+            out.put(source.buffer.get(source.payloadOffset + i));
+    }
+
+    /**
+    * Starts a frame whose payload is written straight into the buffer by the
+    * caller, leaving gaps for the sequence number and length
+    *
+    * @param  out       the buffer the frame is written to
+    * @param  opcode    the opcode of the frame
+    * @param  session   the client number the frame belongs to
+    * @return the position of the gaps, handed back to finish
+    */
+    public static int begin(ByteBuffer out, int opcode, int session){
+        out.put((byte) VERSION);
+        out.put((byte) opcode);
+        put_varint(out, session);
+
+        int gap = out.position();
+        out.position(gap + SEQ_WIDTH + LENGTH_WIDTH);
+        return gap;
+    }
+
+    /**
+    * Fills in the gaps of a frame started with begin once its payload is written
+    *
+    * @param  out       the buffer the frame is written to
+    * @param  gap       the position returned by begin
+    * @param  seq       the sequence number or argument of the opcode
+    */
+    public static void finish(ByteBuffer out, int gap, int seq){
+        put_varint_padded(out, gap, seq, SEQ_WIDTH);
+        put_varint_padded(out, gap + SEQ_WIDTH, out.position() - gap - SEQ_WIDTH - LENGTH_WIDTH, LENGTH_WIDTH);
+    }
+
+    /**
+    * Writes a string inside a payload as its UTF-8 length followed by its
+    * bytes. Unlike a frame's payload the string is never cut short, as the
+    * length in front would no longer match, so a string that does not fit
+    * throws BufferOverflowException and callers measure it with text_size
+    *
+    * @param  out       the buffer being written
+    * @param  text      the string being written
+    */
+    public static void put_text(ByteBuffer out, String text){
+        if (text_size(text) > out.remaining())
+            throw new BufferOverflowException();
+
+        put_varint(out, utf8_length(text));
+        BufferPool.put_string(text, out);
+    }
+
+    /**
+    * Returns the number of bytes put_text takes for a string
+    *
+    * @param  text      the string being measured
+    * @return the encoded size in bytes
+    */
+    public static int text_size(String text){
+        int length = utf8_length(text);
+        return varint_size(length) + length;
+    }
+
+    /**
+    * Reads a string written by put_text
+    *
+    * @param  in        the buffer being read
+    * @return the string, or null if it is truncated
+    */
+    public static String get_text(ByteBuffer in){
+        int length = read_varint(in);
+        if (length < 0 || length > in.remaining())
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+    * Writes an address and port inside a payload as the length of the
+    * address, its bytes and then the port in two bytes
+    *
+    * @param  out       the buffer being written
+    * @param  endpoint  the resolved address and port
+    */
+    public static void put_endpoint(ByteBuffer out, InetSocketAddress endpoint){
+        byte[] address = endpoint.getAddress().getAddress();
+        out.put((byte) address.length);
+        out.put(address);
+        out.putShort((short) endpoint.getPort());
+    }
+
+    /**
+    * Reads an address and port written by put_endpoint
+    *
+    * @param  in        the buffer being read
+    * @return the address and port, or null if it is truncated or malformed
+    */
+    public static InetSocketAddress get_endpoint(ByteBuffer in){
+        if (!in.hasRemaining())
+            return null;
+
+        // Only IPv4 and IPv6 addresses are accepted
+        int length = in.get();
+        if ((length != 4 && length != 16) || in.remaining() < length + 2)
+            return null;
+
+        byte[] address = new byte[length];
+        in.get(address);
+        int port = in.getShort() & 0xFFFF;
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+    * Writes the fixed part of a frame
+    *
+    * @param  out       the buffer the frame is written to
+    * @param  opcode    the opcode of the frame
+    * @param  session   the client number the frame belongs to
+    * @param  seq       the sequence number or argument of the opcode
+    */
+    private static void put_header(ByteBuffer out, int opcode, int session, int seq){
+        out.put((byte) VERSION);
+        out.put((byte) opcode);
+        put_varint(out, session);
+        put_varint(out, seq);
+    }
+
+    /**
+    * Reads an unsigned variable length integer
+    *
+    * @param  in        the buffer being read
+    * @return the integer, or -1 if it is truncated or too large
+    */
+    public static int read_varint(ByteBuffer in){
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7){
+            if (!in.hasRemaining())
+                return -1;
+
+            int b = in.get();
+
+            // Rejects a last byte with bits that do not fit in the integer
+            if (shift == 28 && (b & 0x70) != 0)
+                return -1;
+
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value < 0 ? -1 : value;
+        }
+
+        return -1;
+    }
+
+    /**
+    * Writes an unsigned variable length integer, seven bits per byte
+    *
+    * @param  out       the buffer being written
+    * @param  value     the non-negative integer
+    */
+    public static void put_varint(ByteBuffer out, int value){
+        while ((value & ~0x7F) != 0){
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.put((byte) value);
+    }
+
+    /**
+    * Writes a variable length integer at a fixed width, so that it can fill a
+    * reserved gap. Readers decode the padding bytes as leading zeros
+    *
+    * @param  out       the buffer being written
+    * @param  index     the absolute index of the gap
+    * @param  value     the non-negative integer
+    * @param  width     the number of bytes to write
+    */
+    static void put_varint_padded(ByteBuffer out, int index, int value, int width){
+        for (int i = 0; i < width - 1; i++){
+            out.put(index + i, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.put(index + width - 1, (byte) value);
+    }
+
+    /**
+    * Returns the number of bytes a variable length integer takes
+    *
+    * @param  value     the non-negative integer
+    * @return the encoded size in bytes
+    */
+    public static int varint_size(int value){
+        int size = 1;
+        while ((value & ~0x7F) != 0){
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+    * Returns the number of bytes a string takes when written by BufferPool.put_string
+    *
+    * @param  data      the string being measured
+    * @return the UTF-8 size in bytes
+    */
+    public static int utf8_length(String data){
+        int length = 0;
+
+        for (int i = 0; i < data.length(); i++){
+            char c = data.charAt(i);
+
+            if (c < 0x80){
+                length += 1;
+            } else if (c < 0x800){
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < data.length()
+                && Character.isLowSurrogate(data.charAt(i + 1))){
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)){
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+}
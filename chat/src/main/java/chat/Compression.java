@@ -0,0 +1,193 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compresses the text of chat frames for the clients that agreed to it when
+// connecting. Only the text at the end of a frame's payload is compressed,
+// as raw deflate primed with a dictionary of common chat words so that short
+// messages shrink too, and the frame is marked with Frame.COMPRESSED in its
+// opcode. The numbers in front of the text stay as they are, so that the
+// server can route a compressed frame without touching its text:
+//   DATA, PEER_DATA, MESSAGE_ACK, MESSAGE   text
+//   ROOM_SEND, ROOM_MESSAGE                 varint, text
+//
+// A frame whose text is too short or does not shrink is sent as it is. The
+// deflater, the inflater and their buffers are kept per thread and reused
+// for every frame, so that compressing never allocates
+public class Compression {
+    // Shortest text compressed, never low enough for an exit message to be
+    // compressed, so that it can still be spotted without inflating it
+    private static final int MIN_LENGTH = Math.max(Integer.getInteger("chat.compress.min", 16), 8);
+
+    // Deflate level, from 1 for the fastest to 9 for the smallest
+    private static final int LEVEL = Integer.getInteger("chat.compress.level", 6);
+
+    // Text both sides prime deflate with, the most common words last since
+    // nearer matches take fewer bits
+    private static final byte[] DICTIONARY = (
+        "thanks thank you please sorry okay sure maybe tomorrow tonight today morning "
+        + "afternoon evening weekend meeting later soon again never always something "
+        + "anything everything nothing someone anyone everyone because about after before "
+        + "could would should really think know want need going have just like what when "
+        + "where which there their they them this that with from your yours will been "
+        + "were here time good great nice cool awesome love lol haha yeah yes no not "
+        + "don't can't won't didn't it's i'm you're that's what's let's how are you doing "
+        + "see you later talk to you soon let me know "
+        + "is it in on at to of and the a i you ").getBytes(StandardCharsets.UTF_8);
+
+    /**
+    * The deflater, inflater and buffers of one thread
+    */
+    private static class State {
+        Deflater deflater = new Deflater(LEVEL, true);
+        Inflater inflater = new Inflater(true);
+        ByteBuffer packed = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        ByteBuffer plain = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+    }
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+    /**
+    * Returns how many varints come in front of the text of an opcode's payload
+    *
+    * @param  opcode    the opcode of a frame, without Frame.COMPRESSED
+    * @return the number of varints, or -1 if frames with the opcode are never compressed
+    */
+    public static int prefix(int opcode){
+        switch (opcode){
+            case Frame.DATA:
+            case Frame.PEER_DATA:
+            case Frame.MESSAGE_ACK:
+            case Frame.MESSAGE:
+                return 0;
+
+            case Frame.ROOM_SEND:
+            case Frame.ROOM_MESSAGE:
+                return 1;
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+    * Compresses the text of an encoded frame in place, leaving the frame as
+    * it is if its opcode carries no text or the text does not shrink
+    *
+    * @param  frame     the flipped buffer holding exactly one frame, its limit moved to the new end
+    * @return whether the frame was compressed
+    */
+    public static boolean compress(ByteBuffer frame){
+        int start = frame.position();
+        int opcode = frame.get(start + 1) & 0xFF;
+        int prefix = prefix(opcode);
+        if (prefix < 0)
+            return false;
+
+        // Finds the length and the start of the text behind the header and the prefix
+        ByteBuffer in = frame.duplicate();
+        in.position(start + 2);
+        Codec.read_varint(in);
+        Codec.read_varint(in);
+        int lengthAt = in.position();
+        if (Codec.read_varint(in) < 0)
+            return false;
+
+        int width = in.position() - lengthAt;
+        int payload = in.position();
+        for (int i = 0; i < prefix; i++){
+            if (Codec.read_varint(in) < 0)
+                return false;
+        }
+
+        int text = in.position();
+        int length = frame.limit() - text;
+        if (length < MIN_LENGTH)
+            return false;
+
+        // Deflates the text into at most one byte less than it takes, giving up if it does not fit
+        State state = STATE.get();
+        Deflater deflater = state.deflater;
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(in);
+        deflater.finish();
+
+        ByteBuffer packed = state.packed;
+        packed.clear();
+        packed.limit(length - 1);
+        while (!deflater.finished() && packed.hasRemaining()){
+            if (deflater.deflate(packed) == 0)
+                break;
+        }
+
+        if (!deflater.finished())
+            return false;
+
+        // Writes the compressed text over the plain one and the new length over the old, at the same width
+        packed.flip();
+        frame.position(text);
+        frame.put(packed);
+        frame.limit(frame.position());
+        frame.position(start);
+
+        Codec.put_varint_padded(frame, lengthAt, frame.limit() - payload, width);
+        frame.put(start + 1, (byte) (opcode | Frame.COMPRESSED));
+        return true;
+    }
+
+    /**
+    * Inflates the text of a decoded compressed frame, pointing the frame at
+    * its plain payload in a buffer of the thread that stays valid until the
+    * thread expands the next frame
+    *
+    * @param  frame     the decoded frame, left as it is if it is not compressed
+    * @return whether the frame now holds its plain payload, false if its text is broken
+    */
+    public static boolean expand(Frame frame){
+        if (!frame.compressed)
+            return true;
+
+        int prefix = prefix(frame.opcode);
+        if (prefix < 0)
+            return false;
+
+        State state = STATE.get();
+        ByteBuffer plain = state.plain;
+        plain.clear();
+        plain.limit(BufferPool.FRAME_SIZE - Codec.HEADER_SIZE);
+
+        // Copies the numbers in front of the text as they are
+        ByteBuffer in = frame.payload();
+        for (int i = 0; i < prefix; i++){
+            int value = Codec.read_varint(in);
+            if (value < 0)
+                return false;
+            Codec.put_varint(plain, value);
+        }
+
+        // Inflates the text, failing on broken input or text larger than a frame
+        Inflater inflater = state.inflater;
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(in);
+        try {
+            while (!inflater.finished()){
+                if (inflater.inflate(plain) == 0 && (inflater.needsInput() || !plain.hasRemaining()))
+                    return false;
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+
+        frame.buffer = plain;
+        frame.payloadOffset = 0;
+        frame.payloadLength = plain.position();
+        frame.compressed = false;
+        return true;
+    }
+}
@@ -0,0 +1,355 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+// Non-blocking UDP event loop that drives the server socket. Frames sent to
+// the same destination during one pass of the loop are coalesced into one
+// datagram, which is written out once the readable datagrams were handled,
+// up to a budget per wakeup
+public class EventLoop {
+    // Attributes used for the channel
+    private DatagramChannel channel;
+    private Selector selector;
+    private SelectionKey channelKey;
+    private BufferPool pool;
+    private BufferPool datagrams;
+    private BufferPool frames;
+    private ByteBuffer readBuffer;
+    private Log log;
+
+    // Attributes used for queued writes
+    private ArrayDeque<ByteBuffer> writeQueue;
+    private ArrayDeque<SocketAddress> targetQueue;
+
+    // Datagrams still being filled during this pass, by destination
+    private HashMap<SocketAddress, ByteBuffer> batches;
+
+    // Buffer frames too large for a datagram are split into
+    private ByteBuffer fragment;
+
+    // Work run after every pass of the loop, such as pumping room messages
+    private Pass pass;
+
+    // Counters of the datagrams through the channel, shared with the server
+    private Metrics metrics = new Metrics();
+
+    // Time the datagram being handled was read off the channel
+    private long received;
+
+    // Most datagrams read per wakeup before the queued writes are flushed,
+    // so that a steady stream of input never starves the writes. The rest
+    // stay readable and are picked up straight after the flush
+    private int readBudget = Integer.getInteger("chat.loop.reads", 256);
+
+    /**
+    * Handles every datagram drained from the channel
+    */
+    public interface Handler {
+        void handle(ByteBuffer input, SocketAddress source);
+    }
+
+    /**
+    * Runs after every pass of the loop, before the queued datagrams are written
+    */
+    public interface Pass {
+        /**
+        * @param  now       the time in nanoseconds
+        * @return how long until the work has to run again without any datagram arriving, in nanoseconds, or Long.MAX_VALUE if only a datagram can bring new work
+        */
+        long run(long now);
+    }
+
+    /**
+    * Opens a non-blocking datagram channel bound to the given port
+    *
+    * @param  port      the port the channel listens on
+    * @param  log       the logger errors are reported to
+    */
+    EventLoop(int port, Log log) throws IOException {
+        this.log = log;
+
+        // Opens the channel in non-blocking mode and registers it for reads
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(port));
+
+        selector = Selector.open();
+        channelKey = channel.register(selector, SelectionKey.OP_READ);
+
+        // Instantiating the buffer pools the frames and the coalesced datagrams are taken from
+        pool = new BufferPool(64, BufferPool.BUFFER_SIZE, true);
+        datagrams = new BufferPool(64, BufferPool.DATAGRAM_SIZE, true);
+        frames = new BufferPool(4, BufferPool.FRAME_SIZE, false);
+        readBuffer = ByteBuffer.allocateDirect(BufferPool.RECEIVE_SIZE);
+        fragment = ByteBuffer.allocateDirect(BufferPool.DATAGRAM_SIZE);
+
+        // Instantiating the write queues
+        writeQueue = new ArrayDeque<ByteBuffer>();
+        targetQueue = new ArrayDeque<SocketAddress>();
+        batches = new HashMap<SocketAddress, ByteBuffer>();
+    }
+
+    /**
+    * Takes a buffer from the loop's pool for an outgoing datagram
+    *
+    * @return a cleared buffer that is handed back through send
+    */
+    public ByteBuffer acquire(){
+        return pool.acquire();
+    }
+
+    /**
+    * Takes a buffer from the smallest of the loop's pools that holds a frame
+    * of the given size, for frames whose payload can be longer than usual
+    *
+    * @param  size      the most bytes the frame takes, at most BufferPool.FRAME_SIZE
+    * @return a cleared buffer that is handed back through send
+    */
+    public ByteBuffer acquire(int size){
+        if (size <= BufferPool.BUFFER_SIZE)
+            return pool.acquire();
+
+        return size <= BufferPool.DATAGRAM_SIZE ? datagrams.acquire() : frames.acquire();
+    }
+
+    /**
+    * Hands a buffer that was never sent back to the pool it came from
+    *
+    * @param  buffer    the buffer, ignored if null
+    */
+    public void release(ByteBuffer buffer){
+        if (buffer == null)
+            return;
+
+        if (buffer.capacity() == BufferPool.BUFFER_SIZE)
+            pool.release(buffer);
+        else if (buffer.capacity() == BufferPool.DATAGRAM_SIZE)
+            datagrams.release(buffer);
+        else
+            frames.release(buffer);
+    }
+
+    /**
+    * Queues a frame to be written out on the next flush, coalesced with the
+    * other frames for the same destination. The buffer is returned to the
+    * pool straight away
+    *
+    * @param  data      the flipped buffer holding the frame
+    * @param  target    the address of the destination client
+    */
+    public void send(ByteBuffer data, SocketAddress target){
+        append(data, target);
+        release(data);
+    }
+
+    /**
+    * Queues a copy of a frame to be written out on the next flush, so that a
+    * frame encoded once can be sent to many destinations
+    *
+    * @param  data      the flipped buffer holding the frame, left as it is
+    * @param  target    the address of the destination client
+    */
+    public void send_copy(ByteBuffer data, SocketAddress target){
+        int position = data.position();
+        append(data, target);
+        data.position(position);
+    }
+
+    /**
+    * Copies a frame into the datagram being filled for its destination
+    *
+    * @param  data      the flipped buffer holding the frame
+    * @param  target    the address of the destination client
+    */
+    private void append(ByteBuffer data, SocketAddress target){
+        // Splits a frame too large for a datagram into fragments, each appended
+        // like a frame and carrying the frame's client number, so that a node
+        // of a cluster can pass them on to the client without putting them together
+        if (data.remaining() > BufferPool.DATAGRAM_SIZE){
+            int id = Fragments.id(data);
+            int count = Fragments.count(data.remaining());
+            int session = Fragments.session(data);
+            for (int i = 0; i < count; i++){
+                fragment.clear();
+                Fragments.encode(fragment, data, session, id, i, count);
+                fragment.flip();
+                append(fragment, target);
+            }
+
+            data.position(data.limit());
+            return;
+        }
+
+        // Starts a new datagram for the destination if there is none yet or it is full
+        ByteBuffer batch = batches.get(target);
+        if (batch == null || batch.remaining() < data.remaining()){
+            if (batch != null)
+                batch.flip();
+
+            batch = datagrams.acquire();
+            batches.put(target, batch);
+            writeQueue.add(batch);
+            targetQueue.add(target);
+        }
+
+        batch.put(data);
+    }
+
+    /**
+    * Returns how many datagrams are waiting to be written, so that work that
+    * can wait holds back while the socket is behind
+    *
+    * @return the number of queued datagrams
+    */
+    public int queued(){
+        return writeQueue.size();
+    }
+
+    /**
+    * Returns the metrics the loop records the datagrams to, which the server
+    * records its own events to as well
+    *
+    * @return the metrics
+    */
+    public Metrics metrics(){
+        return metrics;
+    }
+
+    /**
+    * Returns when the datagram being handled was read off the channel, so
+    * that the handler can stamp what it receives without reading the clock
+    *
+    * @return the time in nanoseconds
+    */
+    public long received(){
+        return received;
+    }
+
+    /**
+    * Sets the work run after every pass of the loop
+    *
+    * @param  pass      the work, or null for none
+    */
+    public void on_pass(Pass pass){
+        this.pass = pass;
+    }
+
+    /**
+    * Writes out as many queued datagrams as the socket will take
+    *
+    * @return whether the write queue was fully flushed
+    */
+    public boolean flush(){
+        // Closes the datagrams filled during this pass, later frames start new ones
+        for (ByteBuffer batch : batches.values())
+            batch.flip();
+        batches.clear();
+
+        // Sends the queued datagrams in order until the socket buffer fills up
+        while (!writeQueue.isEmpty()){
+            try {
+                int sent = channel.send(writeQueue.peek(), targetQueue.peek());
+                if (sent == 0)
+                    return false;
+
+                metrics.add(Metrics.PACKETS_OUT, 1);
+                metrics.add(Metrics.BYTES_OUT, sent);
+            } catch (IOException e) {
+                metrics.add(Metrics.DROPPED, 1);
+                log.message(Log.ERROR, Log.SERVER, "sending packet");
+            }
+
+            datagrams.release(writeQueue.poll());
+            targetQueue.poll();
+        }
+
+        return true;
+    }
+
+    /**
+    * Receives the datagrams that are currently readable, up to the read budget
+    *
+    * @param  handler   the protocol logic that processes each datagram
+    */
+    private void drain(Handler handler){
+        SocketAddress source;
+
+        // Iterates until the channel has no more datagrams waiting or the budget runs out
+        for (int read = 0; read < readBudget; read++){
+            readBuffer.clear();
+
+            try {
+                source = channel.receive(readBuffer);
+            } catch (IOException e) {
+                log.message(Log.ERROR, Log.SERVER, "receiving packet");
+                return;
+            }
+
+            if (source == null)
+                return;
+
+            // Hands the datagram to the protocol logic straight from the receive
+            // buffer, timing how long routing every frame in it takes
+            readBuffer.flip();
+            metrics.add(Metrics.PACKETS_IN, 1);
+            metrics.add(Metrics.BYTES_IN, readBuffer.remaining());
+
+            long start = System.nanoTime();
+            received = start;
+            handler.handle(readBuffer, source);
+            metrics.routed(System.nanoTime() - start);
+        }
+    }
+
+    /**
+    * Runs the event loop until the thread is interrupted
+    *
+    * @param  handler   the protocol logic that processes each datagram
+    */
+    public void run(Handler handler){
+        // Runs the pass work straight away, so that timers set up before the
+        // loop started come due without waiting for a datagram first
+        long wait = 0;
+
+        while (!Thread.currentThread().isInterrupted()){
+            // Waits until the channel is readable or writable, or the pass work is due
+            try {
+                if (wait == Long.MAX_VALUE)
+                    selector.select();
+                else if (wait >= 1000000)
+                    selector.select(wait / 1000000);
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                log.message(Log.ERROR, Log.SERVER, "waiting on the channel");
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid() && key.isReadable())
+                    drain(handler);
+            }
+
+            if (pass != null)
+                wait = pass.run(System.nanoTime());
+
+            // Only asks to be woken up for writes while datagrams are still queued
+            if (flush())
+                channelKey.interestOps(SelectionKey.OP_READ);
+            else
+                channelKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32C;
+
+// Splits frames too large for one datagram into fragments and puts them back
+// together on the receiving side. Every fragment is a FRAGMENT frame of its
+// own, sized to fill a datagram, whose seq holds the id of the frame it is
+// part of and whose payload holds its index, the number of fragments and its
+// offset in the frame, followed by its bytes:
+//   index     varint
+//   count     varint
+//   offset    varint
+//   bytes     the rest of the payload
+//
+// The id is a checksum of the frame's bytes, checked once the frame is whole,
+// so that a frame sent again after a loss fills in the fragments missing from
+// the first time instead of having to arrive whole in one go. Incomplete
+// frames are held in pooled buffers up to a memory limit, and dropped once
+// they wait longer than the timeout, so that lost fragments never hold memory
+// for good, the protocol above sends the frame again if it has to
+public class Fragments {
+    // Most bytes a fragment carries, so that the whole FRAGMENT frame fits a datagram
+    public static final int PIECE_SIZE = BufferPool.DATAGRAM_SIZE - Codec.HEADER_SIZE - 9;
+
+    // Most fragments a frame is split into
+    private static final int MAX_COUNT = (BufferPool.FRAME_SIZE + PIECE_SIZE - 1) / PIECE_SIZE;
+
+    /**
+    * A frame whose fragments are arriving
+    */
+    private static class Assembly {
+        ByteBuffer buffer;
+        long[] received;
+        int count;
+        int arrived;
+        int length;
+        long started;
+    }
+
+    // Attributes used for the frames being put back together, oldest first
+    private LinkedHashMap<Long, Assembly> assemblies;
+    private BufferPool pool;
+
+    // Attributes used to bound the memory held by incomplete frames
+    private long memory;
+    private long timeout;
+    private long bytes;
+    private long discarded;
+
+    /**
+    * Creates an empty reassembly buffer
+    *
+    * @param  memory    the most bytes held by incomplete frames
+    * @param  timeout   how long an incomplete frame is held, in nanoseconds
+    */
+    Fragments(long memory, long timeout){
+        this.memory = memory;
+        this.timeout = timeout;
+        assemblies = new LinkedHashMap<Long, Assembly>();
+        pool = new BufferPool(4, BufferPool.FRAME_SIZE, false);
+    }
+
+    /**
+    * Returns the number of fragments a frame is split into
+    *
+    * @param  length    the length of the encoded frame
+    * @return the number of fragments
+    */
+    public static int count(int length){
+        return (length + PIECE_SIZE - 1) / PIECE_SIZE;
+    }
+
+    /**
+    * Works out the id of a frame, the same every time the frame is sent
+    *
+    * @param  frame     the flipped buffer holding the whole frame, left as it is
+    * @return the checksum of the frame, never negative so that it fits the seq
+    */
+    public static int id(ByteBuffer frame){
+        int position = frame.position();
+        CRC32C checksum = new CRC32C();
+        checksum.update(frame);
+        frame.position(position);
+
+        return (int) checksum.getValue() & 0x7FFFFFFF;
+    }
+
+    /**
+    * Reads the client number of a frame, which its fragments carry as well
+    *
+    * @param  frame     the flipped buffer holding the whole frame, left as it is
+    * @return the session of the frame, or 0 if it cannot be read
+    */
+    public static int session(ByteBuffer frame){
+        int value = 0;
+        int index = frame.position() + 2;
+
+        for (int shift = 0; shift < 32 && index < frame.limit(); shift += 7){
+            int b = frame.get(index++);
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return Math.max(value, 0);
+        }
+
+        return 0;
+    }
+
+    /**
+    * Encodes one fragment of a frame, leaving the frame as it is
+    *
+    * @param  out       the buffer the fragment is written to, at least a datagram long
+    * @param  frame     the flipped buffer holding the whole frame
+    * @param  session   the client number the fragment belongs to
+    * @param  id        the id shared by every fragment of the frame, from id
+    * @param  index     the fragment's index
+    * @param  count     the number of fragments, from count
+    */
+    public static void encode(ByteBuffer out, ByteBuffer frame, int session, int id, int index, int count){
+        int offset = index * PIECE_SIZE;
+        int length = Math.min(PIECE_SIZE, frame.remaining() - offset);
+        int start = frame.position() + offset;
+
+        int gap = Codec.begin(out, Frame.FRAGMENT, session);
+        Codec.put_varint(out, index);
+        Codec.put_varint(out, count);
+        Codec.put_varint(out, offset);
+        for (int i = 0; i < length; i++)
+            out.put(frame.get(start + i));
+        Codec.finish(out, gap, id);
+    }
+
+    /**
+    * Adds a fragment, handing back the whole frame once its last fragment arrives
+    *
+    * @param  sender    a number that tells the senders apart
+    * @param  id        the frame's id, the seq of the fragment
+    * @param  in        the fragment's payload
+    * @param  now       the time in nanoseconds
+    * @return the flipped buffer holding the frame, handed back through release, or null while fragments are missing
+    */
+    public ByteBuffer add(int sender, int id, ByteBuffer in, long now){
+        expire(now);
+        long key = ((long) sender << 32) | id;
+
+        int index = Codec.read_varint(in);
+        int count = Codec.read_varint(in);
+        int offset = Codec.read_varint(in);
+        int length = in.remaining();
+
+        // Drops fragments that do not fit the frame they claim to be part of
+        if (count < 2 || count > MAX_COUNT || index < 0 || index >= count
+            || offset < 0 || offset + length > BufferPool.FRAME_SIZE){
+            discarded++;
+            return null;
+        }
+
+        // Starts the frame on its first fragment to arrive, unless the memory limit is reached
+        Assembly assembly = assemblies.get(key);
+        if (assembly == null){
+            if (bytes + BufferPool.FRAME_SIZE > memory){
+                discarded++;
+                return null;
+            }
+
+            assembly = new Assembly();
+            assembly.buffer = pool.acquire();
+            assembly.received = new long[(count + 63) / 64];
+            assembly.count = count;
+            assembly.started = now;
+            assemblies.put(key, assembly);
+            bytes += BufferPool.FRAME_SIZE;
+        } else if (assembly.count != count){
+            discarded++;
+            return null;
+        }
+
+        // Ignores fragments that arrived twice
+        long bit = 1L << (index & 63);
+        if ((assembly.received[index >> 6] & bit) != 0)
+            return null;
+
+        assembly.received[index >> 6] |= bit;
+        assembly.arrived++;
+        assembly.buffer.position(offset);
+        assembly.buffer.put(in);
+        assembly.length = Math.max(assembly.length, offset + length);
+
+        if (assembly.arrived < count)
+            return null;
+
+        // Hands the frame over once every fragment is in and it matches its checksum
+        assemblies.remove(key);
+        bytes -= BufferPool.FRAME_SIZE;
+
+        ByteBuffer frame = assembly.buffer;
+        frame.position(0);
+        frame.limit(assembly.length);
+        if (id(frame) != id){
+            pool.release(frame);
+            discarded++;
+            return null;
+        }
+
+        return frame;
+    }
+
+    /**
+    * Hands a frame returned by add back to the pool once it was handled
+    *
+    * @param  frame     the buffer holding the frame
+    */
+    public void release(ByteBuffer frame){
+        pool.release(frame);
+    }
+
+    /**
+    * Drops the incomplete frames that waited longer than the timeout, oldest first
+    *
+    * @param  now       the time in nanoseconds
+    */
+    public void expire(long now){
+        Iterator<Assembly> oldest = assemblies.values().iterator();
+        while (oldest.hasNext()){
+            Assembly assembly = oldest.next();
+            if (now - assembly.started < timeout)
+                return;
+
+            oldest.remove();
+            pool.release(assembly.buffer);
+            bytes -= BufferPool.FRAME_SIZE;
+            discarded++;
+        }
+    }
+
+    /**
+    * Returns the memory held by incomplete frames
+    *
+    * @return the number of bytes
+    */
+    public long bytes(){
+        return bytes;
+    }
+
+    /**
+    * Returns the number of fragments and incomplete frames dropped
+    *
+    * @return the number dropped since the start
+    */
+    public long discarded(){
+        return discarded;
+    }
+}
@@ -0,0 +1,217 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Decoded view of a binary frame, reused for every packet instead of splitting strings
+public class Frame {
+    // Opcodes sent from a client to the server
+    public static final int CONNECTION_REQUEST = 1;     // seq holds 1 if the client takes compressed frames
+    public static final int NICKNAME = 2;
+    public static final int ONLINE_REQUEST = 3;         // seq holds the cursor of the page, 0 for the first
+    public static final int CLIENT_REQUEST = 4;         // seq holds the requested client's number
+    public static final int CLIENT_ACK_RESPONSE = 5;    // seq holds 1 to accept, 0 to reject
+    public static final int EXIT = 6;
+    public static final int MESSAGE_ACK = 7;            // seq holds the number the sender gave the offered message
+    public static final int MESSAGE_RESPONSE = 8;       // seq holds 1 to accept, 0 to reject
+    public static final int ONLINE_CHANGES = 9;         // seq holds the version of the list the client has
+    public static final int DATA = 10;                  // seq holds the message's number in the chat
+    public static final int DATA_ACK = 11;              // seq holds the next message expected, the payload a bitmap of later ones received
+    public static final int ROOM_JOIN = 12;             // payload holds the name of the room
+    public static final int ROOM_LEAVE = 13;            // seq holds the room's number
+    public static final int ROOM_SEND = 14;             // seq holds the member's post number, the payload the room's number and the message
+    public static final int ROOM_ACK = 15;              // seq holds the next room message expected, the payload the room's number
+    public static final int HEARTBEAT = 41;             // sent on a timer, so that the server keeps the session of a quiet client
+    public static final int MAIL = 44;                  // seq holds the number of the mail, the payload the recipient's nickname and the message
+    public static final int MAIL_ACK = 45;              // seq holds the number of the mail received
+    public static final int HISTORY_REQUEST = 50;       // seq holds the number of the query, the payload the partner's nickname, the kind and its bounds, see HistoryLog
+
+    // Opcodes sent from the server to a client
+    public static final int CONNECTION_GRANTED = 16;    // seq holds 1 if compressed frames were agreed on
+    public static final int CONNECTION_DENIED = 17;
+    public static final int SUCCESS = 18;
+    public static final int ONLINE_LIST = 19;           // seq holds the cursor of the next page, 0 if none
+    public static final int WAITING = 20;
+    public static final int CONNECTION_FAILURE = 21;
+    public static final int CONNECTION_SUCCESS = 22;
+    public static final int CLIENT_ACK = 23;            // seq holds the requesting client's number
+    public static final int PEER_NAME = 24;
+    public static final int ACK_SENT = 25;              // seq holds the most offered messages the server queues for the sender
+    public static final int MESSAGE_REQUEST = 26;       // seq holds 1 if the message is an exit request
+    public static final int MESSAGE = 27;
+    public static final int RESET = 28;
+    public static final int ACK_RECEIVED = 29;          // seq holds the number of the offered message
+    public static final int ACK_DENIED = 30;            // seq holds the number of the offered message
+    public static final int ONLINE_DELTA = 31;          // seq holds the version the changes reach
+    public static final int ONLINE_RESYNC = 32;
+    public static final int PEER_DATA = 33;             // DATA relayed from the chat partner, or sent straight by it
+    public static final int PEER_ACK = 34;              // DATA_ACK relayed from the chat partner, or sent straight by it
+    public static final int PEER_ENDPOINT = 35;         // seq holds the chat partner's number, the payload its address, port and 1 if it takes compressed frames
+    public static final int ROOM_JOINED = 36;           // seq holds the room's number or 0 if denied, the payload the first message number and the name
+    public static final int ROOM_LEFT = 37;             // seq holds the room's number
+    public static final int ROOM_MESSAGE = 38;          // session holds the room's number, seq the message number, the payload the sender and the message
+    public static final int ROOM_SENT = 39;             // seq holds the next post number expected, the payload the room's number and 1 while its history is full
+    public static final int QUEUE_FULL = 40;            // seq holds the number of the offered message turned away
+    public static final int PEER_LEFT = 42;             // seq holds the number of the chat partner dropped for going quiet
+    public static final int MAIL_SENT = 46;             // seq holds the number of the mail, the payload 1 if it was stored and 0 if it was turned away
+    public static final int MAIL_MESSAGE = 47;          // seq holds the number of the mail in the mailbox, the payload the sender's nickname and the message
+    public static final int HISTORY_PAGE = 51;          // seq holds the number of the query, the payload the next message number or 0 if done, the end, and the entries
+    public static final int FAILURE = 56;               // the nickname was turned away
+
+    // Opcodes sent in every direction
+    public static final int FRAGMENT = 43;              // seq holds the id of the frame split up, the payload the fragment, see Fragments
+
+    // Opcodes sent from a client straight to its chat partner
+    public static final int PEER_PROBE = 48;            // seq holds the number of the probe
+    public static final int PEER_PROBE_ACK = 49;        // seq holds the number of the probe answered
+
+    // Opcodes sent between the nodes of a cluster, along with the frames of
+    // the chats between their clients, see Cluster
+    public static final int NODE_PING = 52;             // seq holds the nodes the sender sees as up, one bit per node
+    public static final int NODE_REQUEST = 53;          // session holds the requesting client, seq the requested one, the payload 1 if it takes compressed frames, its address and its nickname
+    public static final int NODE_LEAVE = 54;            // session holds the client that left its node
+    public static final int NODE_ENDED = 55;            // session holds the client whose chat ended, seq its partner
+
+    // Bit set in the opcode of a frame whose text is compressed, see Compression
+    public static final int COMPRESSED = 0x80;
+
+    // Display names of the opcodes, matching the old string commands
+    private static final String[] NAMES = new String[256];
+    static {
+        NAMES[CONNECTION_REQUEST] = "connection_request";
+        NAMES[NICKNAME] = "nickname";
+        NAMES[ONLINE_REQUEST] = "online_request";
+        NAMES[CLIENT_REQUEST] = "client_request";
+        NAMES[CLIENT_ACK_RESPONSE] = "client_ack_response";
+        NAMES[EXIT] = "_exit";
+        NAMES[MESSAGE_ACK] = "message_ack";
+        NAMES[MESSAGE_RESPONSE] = "message_response";
+        NAMES[ONLINE_CHANGES] = "online_changes";
+        NAMES[DATA] = "data";
+        NAMES[DATA_ACK] = "data_ack";
+        NAMES[ROOM_JOIN] = "room_join";
+        NAMES[ROOM_LEAVE] = "room_leave";
+        NAMES[ROOM_SEND] = "room_send";
+        NAMES[ROOM_ACK] = "room_ack";
+        NAMES[CONNECTION_GRANTED] = "connection_granted";
+        NAMES[CONNECTION_DENIED] = "connection_denied";
+        NAMES[SUCCESS] = "success";
+        NAMES[ONLINE_LIST] = "online_list";
+        NAMES[WAITING] = "waiting...";
+        NAMES[CONNECTION_FAILURE] = "connection_failure";
+        NAMES[CONNECTION_SUCCESS] = "connection_success";
+        NAMES[CLIENT_ACK] = "client_ack";
+        NAMES[PEER_NAME] = "peer_name";
+        NAMES[ACK_SENT] = "ack_sent";
+        NAMES[MESSAGE_REQUEST] = "message_request";
+        NAMES[MESSAGE] = "message";
+        NAMES[RESET] = "reset";
+        NAMES[ACK_RECEIVED] = "ack_received";
+        NAMES[ACK_DENIED] = "ack_denied";
+        NAMES[ONLINE_DELTA] = "online_delta";
+        NAMES[ONLINE_RESYNC] = "online_resync";
+        NAMES[PEER_DATA] = "peer_data";
+        NAMES[PEER_ACK] = "peer_ack";
+        NAMES[PEER_ENDPOINT] = "peer_endpoint";
+        NAMES[ROOM_JOINED] = "room_joined";
+        NAMES[ROOM_LEFT] = "room_left";
+        NAMES[ROOM_MESSAGE] = "room_message";
+        NAMES[ROOM_SENT] = "room_sent";
+        NAMES[QUEUE_FULL] = "queue_full";
+        NAMES[HEARTBEAT] = "heartbeat";
+        NAMES[PEER_LEFT] = "peer_left";
+        NAMES[FRAGMENT] = "fragment";
+        NAMES[MAIL] = "mail";
+        NAMES[MAIL_ACK] = "mail_ack";
+        NAMES[MAIL_SENT] = "mail_sent";
+        NAMES[MAIL_MESSAGE] = "mail_message";
+        NAMES[PEER_PROBE] = "peer_probe";
+        NAMES[PEER_PROBE_ACK] = "peer_probe_ack";
+        NAMES[HISTORY_REQUEST] = "history_request";
+        NAMES[HISTORY_PAGE] = "history_page";
+        NAMES[NODE_PING] = "node_ping";
+        NAMES[NODE_REQUEST] = "node_request";
+        NAMES[NODE_LEAVE] = "node_leave";
+        NAMES[NODE_ENDED] = "node_ended";
+        NAMES[FAILURE] = "failure";
+    }
+
+    // Attributes of the decoded frame
+    public int opcode;
+    public int session;
+    public int seq;
+    public boolean compressed;
+
+    // Attributes locating the payload inside the receive buffer
+    public ByteBuffer buffer;
+    public int payloadOffset;
+    public int payloadLength;
+
+    /**
+    * Returns the display name of an opcode
+    *
+    * @param  opcode    the opcode of a frame
+    * @return the name of the opcode
+    */
+    public static String name(int opcode){
+        String name = opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : null;
+        return name == null ? "unknown_" + opcode : name;
+    }
+
+    /**
+    * Compares the payload against an ASCII string without decoding it. The
+    * strings compared are too short to be compressed, so a compressed
+    * payload never matches
+    *
+    * @param  text      the ASCII string to compare with
+    * @return whether the payload holds exactly the given string
+    */
+    public boolean payload_equals(String text){
+        if (compressed || payloadLength != text.length())
+            return false;
+
+        for (int i = 0; i < payloadLength; i++){
+            if (buffer.get(payloadOffset + i) != (byte) text.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+    * Positions the buffer of the frame on its payload, for reading it with
+    * the relative methods of the codec
+    *
+    * @return the buffer, limited to the payload
+    */
+    public ByteBuffer payload(){
+        buffer.limit(payloadOffset + payloadLength);
+        buffer.position(payloadOffset);
+        return buffer;
+    }
+
+    /**
+    * Decodes the payload as a UTF-8 string, only used where the text has to be kept
+    *
+    * @return the payload as a string
+    */
+    public String payload_string(){
+        byte[] bytes = new byte[payloadLength];
+        for (int i = 0; i < payloadLength; i++)
+            bytes[i] = buffer.get(payloadOffset + i);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+    * Describes the frame for the console
+    *
+    * @return the opcode, sequence number and payload of the frame
+    */
+    public String toString(){
+        if (payloadLength == 0)
+            return name(opcode) + " " + seq;
+
+        return name(opcode) + " " + seq + " " + payload_string();
+    }
+}
@@ -0,0 +1,640 @@
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// History of the messages routed between two nicknames, kept in a directory
+// of append-only segment files per conversation, mapped into memory. Every
+// message is numbered from 1 in the order the server routed it, and a record is:
+//   length    int, the size of the record after the checksum, 0 past the last record
+//   checksum  int, CRC32C of the record after the checksum
+//   seq       int, the message's number in the conversation
+//   time      long, when the message was routed in milliseconds
+//   sender    text, see Codec.put_text
+//   message   text
+//
+// A sparse index of every 64th message's number, time and location is kept
+// in memory for the open conversations, rebuilt from the segments when a
+// conversation is opened, so that a query only reads the records of the
+// pages it returns. Segments past the size limit or not written for the
+// retention period are deleted oldest first, and a segment's unused mapped
+// tail is cut off once its conversation is closed
+public class HistoryLog {
+    // Kinds of queries, sent in a HISTORY_REQUEST
+    public static final int LAST = 0;       // the last count messages
+    public static final int SINCE = 1;      // the messages routed since a time in milliseconds
+    public static final int RANGE = 2;      // the messages numbered from the first up to the end, for the following pages
+
+    // Bytes in front of a record's number, its length and checksum
+    private static final int RECORD_HEADER = 8;
+
+    // Bytes of the number and the time
+    private static final int RECORD_FIXED = 12;
+
+    // Messages between two entries of the sparse index
+    private static final int INDEX_EVERY = 64;
+
+    /**
+    * One file of a conversation, named after the number of its first message
+    */
+    private static class Segment {
+        int first;
+        Path path;
+        FileChannel channel;
+        MappedByteBuffer map;
+        int end;
+    }
+
+    /**
+    * The history of one pair of nicknames, open while it is being written or queried
+    */
+    public class Conversation {
+        private Path directory;
+        private ArrayList<Segment> segments = new ArrayList<Segment>();
+        private int next = 1;
+        private long bytes;
+
+        // Attributes used for the sparse index, oldest first
+        private int[] seqs = new int[16];
+        private long[] times = new long[16];
+        private long[] locations = new long[16];
+        private int entries;
+
+        /**
+        * Opens a conversation's segments, reading them back to rebuild the
+        * index and find where the next message goes
+        *
+        * @param  directory the directory of the conversation, created if missing
+        */
+        Conversation(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+            expire_segments(directory, System.currentTimeMillis());
+
+            ArrayList<Path> files = segment_files(directory);
+            for (int i = 0; i < files.size(); i++){
+                Segment segment = open(files.get(i), Integer.parseInt(name_of(files.get(i))), i == files.size() - 1);
+                scan(segment);
+            }
+        }
+
+        /**
+        * Returns the number of the oldest message kept
+        *
+        * @return the message number, next if there is none
+        */
+        public int first(){
+            return segments.isEmpty() ? next : segments.get(0).first;
+        }
+
+        /**
+        * Returns the number the next message gets
+        *
+        * @return the message number
+        */
+        public int next(){
+            return next;
+        }
+
+        /**
+        * Maps a segment and adds it at the end of the conversation
+        *
+        * @param  path      the segment's file
+        * @param  first     the number of the segment's first message
+        * @param  last      whether the segment takes new messages
+        * @return the segment
+        */
+        private Segment open(Path path, int first, boolean last) throws IOException {
+            Segment segment = new Segment();
+            segment.path = path;
+            segment.first = first;
+            segment.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // Maps the last segment whole, so that a segment cut down when it was closed takes new messages again
+            long size = segment.channel.size();
+            segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, last ? Math.max(size, segmentSize) : size);
+            segments.add(segment);
+            return segment;
+        }
+
+        /**
+        * Reads a segment back, indexing its messages and stopping at the
+        * first record that is missing or torn
+        *
+        * @param  segment   the segment
+        */
+        private void scan(Segment segment){
+            ByteBuffer map = segment.map;
+            int position = 0;
+            next = Math.max(next, segment.first);
+
+            while (position + RECORD_HEADER + RECORD_FIXED <= map.capacity()){
+                int length = map.getInt(position);
+                if (length < RECORD_FIXED || length > map.capacity() - position - RECORD_HEADER)
+                    break;
+                if (checksum(map, position + RECORD_HEADER, length) != map.getInt(position + 4))
+                    break;
+
+                int seq = map.getInt(position + RECORD_HEADER);
+                index(segment, position, seq, map.getLong(position + RECORD_HEADER + 4));
+                next = seq + 1;
+                position += RECORD_HEADER + length;
+            }
+
+            segment.end = position;
+            bytes += position;
+        }
+
+        /**
+        * Adds a message to the sparse index if it is due an entry
+        *
+        * @param  segment   the segment the message is in
+        * @param  position  the offset of its record
+        * @param  seq       its number
+        * @param  time      when it was routed
+        */
+        private void index(Segment segment, int position, int seq, long time){
+            if (position != 0 && (seq - segment.first) % INDEX_EVERY != 0)
+                return;
+
+            if (entries == seqs.length){
+                seqs = Arrays.copyOf(seqs, entries * 2);
+                times = Arrays.copyOf(times, entries * 2);
+                locations = Arrays.copyOf(locations, entries * 2);
+            }
+
+            seqs[entries] = seq;
+            times[entries] = time;
+            locations[entries] = (long) segments.indexOf(segment) << 32 | position;
+            entries++;
+        }
+
+        /**
+        * Appends a message, starting a new segment once the last one is full
+        *
+        * @param  sender    the nickname of the client that sent it
+        * @param  message   the message, read to its end
+        */
+        void append(String sender, ByteBuffer message) throws IOException {
+            int length = RECORD_FIXED + Codec.text_size(sender) + Codec.varint_size(message.remaining()) + message.remaining();
+
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.end + RECORD_HEADER + length > segment.map.capacity()){
+                if (segment != null)
+                    compact(segment);
+                segment = open(directory.resolve(String.format("%016d.log", next)), next, true);
+                retain();
+            }
+
+            if (segment.end + RECORD_HEADER + length > segment.map.capacity())
+                return;
+
+            // Writes the record, then its checksum and last its length, which makes it part of the history
+            int position = segment.end;
+            long time = System.currentTimeMillis();
+            ByteBuffer out = segment.map.duplicate();
+            out.position(position + RECORD_HEADER);
+            out.putInt(next);
+            out.putLong(time);
+            Codec.put_text(out, sender);
+            Codec.put_varint(out, message.remaining());
+            out.put(message);
+
+            segment.map.putInt(position + 4, checksum(segment.map, position + RECORD_HEADER, length));
+            segment.map.putInt(position, length);
+            segment.end = position + RECORD_HEADER + length;
+            bytes += RECORD_HEADER + length;
+
+            index(segment, position, next, time);
+            next++;
+        }
+
+        /**
+        * Finds the first message routed at or after a time
+        *
+        * @param  time      the time in milliseconds
+        * @return the message's number, or next if there is none
+        */
+        public int find(long time){
+            // Starts from the last indexed message routed before the time
+            int entry = -1;
+            for (int low = 0, high = entries - 1; low <= high;){
+                int middle = (low + high) >>> 1;
+                if (times[middle] < time){
+                    entry = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            if (entries == 0)
+                return next;
+
+            long location = locations[Math.max(entry, 0)];
+            for (; location != -1; location = step(location)){
+                Segment segment = segments.get((int) (location >>> 32));
+                int position = (int) location;
+                if (segment.map.getLong(position + RECORD_HEADER + 4) >= time)
+                    return segment.map.getInt(position + RECORD_HEADER);
+            }
+
+            return next;
+        }
+
+        /**
+        * Writes the messages from a number onwards as the entries of a page,
+        * as many as fit the budget, each entry being:
+        *   seq       varint
+        *   time      long
+        *   sender    text
+        *   message   text
+        * A page always holds at least one message, going over the budget if
+        * the message is larger, so that paging always moves on. A message too
+        * large for the buffer is only skipped on a page of its own
+        *
+        * @param  from      the number of the first message
+        * @param  to        the number the page stops before
+        * @param  out       the buffer the entries are written to, large enough for any one message
+        * @param  budget    the most bytes the entries take
+        * @return the number of the first message not written
+        */
+        public int page(int from, int to, ByteBuffer out, int budget){
+            from = Math.max(from, first());
+            if (from >= to || entries == 0)
+                return to;
+
+            // Starts from the last indexed message at or before the first one wanted
+            int entry = 0;
+            for (int low = 0, high = entries - 1; low <= high;){
+                int middle = (low + high) >>> 1;
+                if (seqs[middle] <= from){
+                    entry = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            boolean empty = true;
+            for (long location = locations[entry]; location != -1; location = step(location)){
+                Segment segment = segments.get((int) (location >>> 32));
+                int position = (int) location;
+                int seq = segment.map.getInt(position + RECORD_HEADER);
+                if (seq < from)
+                    continue;
+                if (seq >= to)
+                    return to;
+
+                // Copies the sender and the message straight from the record
+                int length = segment.map.getInt(position);
+                int size = Codec.varint_size(seq) + 8 + length - RECORD_FIXED;
+                if (!empty && size > budget)
+                    return seq;
+                if (size > out.remaining())
+                    return empty ? seq + 1 : seq;
+
+                Codec.put_varint(out, seq);
+                out.putLong(segment.map.getLong(position + RECORD_HEADER + 4));
+                ByteBuffer record = segment.map.duplicate();
+                record.limit(position + RECORD_HEADER + length);
+                record.position(position + RECORD_HEADER + RECORD_FIXED);
+                out.put(record);
+                budget -= size;
+                empty = false;
+            }
+
+            return to;
+        }
+
+        /**
+        * Moves from a record to the one after it, into the next segment at the end of one
+        *
+        * @param  location  the segment's place in the conversation and the record's offset
+        * @return the location of the next record, or -1 past the last
+        */
+        private long step(long location){
+            int index = (int) (location >>> 32);
+            Segment segment = segments.get(index);
+            int position = (int) location;
+            position += RECORD_HEADER + segment.map.getInt(position);
+
+            if (position < segment.end)
+                return (long) index << 32 | position;
+
+            // Skips to the first record of the next segment that has any
+            for (index++; index < segments.size(); index++){
+                if (segments.get(index).end > 0)
+                    return (long) index << 32;
+            }
+
+            return -1;
+        }
+
+        /**
+        * Deletes the oldest segments while the conversation is over its size
+        * limit or they were not written for the retention period, keeping the
+        * segment being written, and drops their index entries
+        */
+        private void retain(){
+            long cutoff = System.currentTimeMillis() - retention;
+            int dropped = 0;
+
+            while (segments.size() - dropped > 1){
+                Segment segment = segments.get(dropped);
+                if (bytes <= maxBytes && modified(segment.path) >= cutoff)
+                    break;
+
+                bytes -= segment.end;
+                release(segment);
+                try {
+                    Files.deleteIfExists(segment.path);
+                } catch (IOException e) {}
+                dropped++;
+            }
+
+            if (dropped == 0)
+                return;
+
+            // Renumbers the locations of the index, which hold each segment's place in the conversation
+            segments.subList(0, dropped).clear();
+            int kept = 0;
+            for (int i = 0; i < entries; i++){
+                int index = (int) (locations[i] >>> 32) - dropped;
+                if (index < 0)
+                    continue;
+
+                seqs[kept] = seqs[i];
+                times[kept] = times[i];
+                locations[kept] = (long) index << 32 | (int) locations[i];
+                kept++;
+            }
+            entries = kept;
+        }
+
+        /**
+        * Closes every segment, cutting the last one down to what was written
+        */
+        void close(){
+            if (!segments.isEmpty())
+                compact(segments.get(segments.size() - 1));
+            for (Segment segment : segments)
+                release(segment);
+        }
+    }
+
+    // Attributes used for the conversations, the recently used ones kept open
+    private Path directory;
+    private LinkedHashMap<String, Conversation> open;
+    private int segmentSize;
+    private long maxBytes;
+    private long retention;
+
+    /**
+    * Opens the history, deleting the segments past the retention period
+    *
+    * @param  directory the directory holding a directory per conversation, created if missing
+    * @param  segmentSize   the size of a segment in bytes
+    * @param  maxBytes  the most bytes kept per conversation, the oldest segments going first
+    * @param  retention how long a segment is kept after it was last written, in milliseconds
+    * @param  openLimit the most conversations kept open
+    */
+    HistoryLog(Path directory, int segmentSize, long maxBytes, long retention, int openLimit) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, 2 * BufferPool.FRAME_SIZE);
+        this.maxBytes = maxBytes;
+        this.retention = retention;
+
+        // Closes the least recently used conversation once too many are open
+        open = new LinkedHashMap<String, Conversation>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest){
+                if (size() <= openLimit)
+                    return false;
+
+                eldest.getValue().close();
+                return true;
+            }
+        };
+
+        Files.createDirectories(directory);
+        sweep();
+    }
+
+    /**
+    * Returns the conversation between two nicknames, opening it if it is not open
+    *
+    * @param  name      either nickname
+    * @param  other     the other nickname
+    * @param  create    whether to start the conversation if it has no history yet
+    * @return the conversation, or null if it has no history and is not created
+    */
+    public Conversation conversation(String name, String other, boolean create) throws IOException {
+        String key = name.compareTo(other) <= 0 ? name + '\n' + other : other + '\n' + name;
+        Conversation conversation = open.get(key);
+        if (conversation != null)
+            return conversation;
+
+        Path path = directory.resolve(hash(key));
+        if (!create && !Files.isDirectory(path))
+            return null;
+
+        conversation = new Conversation(path);
+        open.put(key, conversation);
+        return conversation;
+    }
+
+    /**
+    * Records a message routed from one nickname to another
+    *
+    * @param  sender    the nickname of the client that sent it
+    * @param  receiver  the nickname of the client it went to
+    * @param  message   the message, read to its end
+    * @return whether the message was recorded
+    */
+    public boolean append(String sender, String receiver, ByteBuffer message){
+        try {
+            conversation(sender, receiver, true).append(sender, message);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+    * Deletes the segments of every conversation that were not written for
+    * the retention period, and the directories of the conversations left
+    * empty, except for the open conversations which delete theirs as they go
+    */
+    public void sweep() throws IOException {
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> conversations = Files.newDirectoryStream(directory)){
+            for (Path path : conversations){
+                if (!Files.isDirectory(path) || is_open(path))
+                    continue;
+
+                expire_segments(path, now);
+                if (segment_files(path).isEmpty())
+                    Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+    * Returns the number of open conversations
+    *
+    * @return the number of conversations
+    */
+    public int open(){
+        return open.size();
+    }
+
+    /**
+    * Returns whether a conversation directory belongs to an open conversation
+    *
+    * @param  path      the directory
+    * @return whether it is open
+    */
+    private boolean is_open(Path path){
+        for (Conversation conversation : open.values()){
+            if (conversation.directory.equals(path))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+    * Deletes the segments of a closed conversation not written for the
+    * retention period, oldest first, stopping at the first one still kept
+    *
+    * @param  path      the conversation's directory
+    * @param  now       the time in milliseconds
+    */
+    private void expire_segments(Path path, long now) throws IOException {
+        for (Path file : segment_files(path)){
+            if (now - modified(file) < retention)
+                return;
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+    * Lists the segments of a conversation, oldest first
+    *
+    * @param  path      the conversation's directory
+    * @return the segment files
+    */
+    private static ArrayList<Path> segment_files(Path path) throws IOException {
+        ArrayList<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(path, "*.log")){
+            for (Path file : segments){
+                try {
+                    Integer.parseInt(name_of(file));
+                    files.add(file);
+                } catch (NumberFormatException e) {}
+            }
+        }
+
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+    * Returns the name of a segment file without its extension
+    *
+    * @param  path      the segment file
+    * @return the number of its first message, as text
+    */
+    private static String name_of(Path path){
+        String name = path.getFileName().toString();
+        return name.substring(0, name.length() - 4);
+    }
+
+    /**
+    * Returns when a file was last written
+    *
+    * @param  path      the file
+    * @return the time in milliseconds, 0 if it cannot be read
+    */
+    private static long modified(Path path){
+        try {
+            return Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+    * Cuts a segment's file down to what was written, which is mapped again
+    * at full size if the segment takes messages again
+    *
+    * @param  segment   the segment
+    */
+    private static void compact(Segment segment){
+        try {
+            segment.channel.truncate(segment.end);
+        } catch (IOException e) {}
+    }
+
+    /**
+    * Closes a segment's file, its mapping going once it is no longer used
+    *
+    * @param  segment   the segment
+    */
+    private static void release(Segment segment){
+        try {
+            segment.channel.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+    * Names a conversation's directory after a hash of its nicknames, which
+    * may hold characters that files cannot
+    *
+    * @param  key       the nicknames in order
+    * @return the directory's name
+    */
+    private static String hash(String key){
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 12; i++)
+                name.append(String.format("%02x", digest[i]));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+    * Works out the checksum of a record
+    *
+    * @param  map       the segment's buffer
+    * @param  position  the offset of the record after its checksum
+    * @param  length    the size of the record after its checksum
+    * @return the checksum
+    */
+    private static int checksum(ByteBuffer map, int position, int length){
+        ByteBuffer record = map.duplicate();
+        record.limit(position + length);
+        record.position(position);
+
+        CRC32C checksum = new CRC32C();
+        checksum.update(record);
+        return (int) checksum.getValue();
+    }
+}
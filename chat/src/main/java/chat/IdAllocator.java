@@ -0,0 +1,188 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Hands out client numbers from a lock-free free list with O(1) allocate and release
+public class IdAllocator {
+    // Attributes used for the free list
+    private int[] next;
+    private AtomicLong head;
+
+    // Attributes used to track which numbers are in use
+    private AtomicLongArray inUse;
+    private int capacity;
+
+    // Number every client number handed out is offset by, so that the
+    // nodes of a cluster hand out numbers from ranges that do not overlap
+    private int base;
+
+    /**
+    * Creates an allocator for client numbers 1 to capacity
+    *
+    * @param  capacity  the highest client number
+    */
+    IdAllocator(int capacity){
+        this(0, capacity);
+    }
+
+    /**
+    * Creates an allocator for client numbers base + 1 to base + capacity
+    *
+    * @param  base      the number the lowest client number follows
+    * @param  capacity  the number of client numbers
+    */
+    IdAllocator(int base, int capacity){
+        this.base = base;
+        this.capacity = capacity;
+
+        // Links every number to the one after it so the lowest numbers are used first
+        next = new int[capacity + 1];
+        for (int id = 1; id < capacity; id++)
+            next[id] = id + 1;
+
+        // The head packs a change counter above the first free number, which stops
+        // a number that is released and reused mid-swap from corrupting the list
+        head = new AtomicLong(capacity > 0 ? 1 : 0);
+        inUse = new AtomicLongArray((capacity >> 6) + 1);
+    }
+
+    /**
+    * Takes the first free client number
+    *
+    * @return the client number, or 0 if every number is in use
+    */
+    public int allocate(){
+        while (true){
+            long current = head.get();
+            int id = (int) current;
+
+            if (id == 0)
+                return 0;
+
+            long replaced = ((current >>> 32) + 1) << 32 | next[id];
+            if (head.compareAndSet(current, replaced)){
+                mark(id, true);
+                return base + id;
+            }
+        }
+    }
+
+    /**
+    * Takes a particular client number, such as one restored from a snapshot.
+    * Only called before any number is handed out, and followed by relink
+    * once every number is claimed
+    *
+    * @param  id        the client number
+    * @return whether the number was free
+    */
+    public boolean claim(int id){
+        id -= base;
+        if (id <= 0 || id > capacity)
+            return false;
+
+        return mark(id, true);
+    }
+
+    /**
+    * Links every number not in use into the free list again, lowest first,
+    * after numbers were claimed
+    */
+    public void relink(){
+        int first = 0;
+        for (int id = capacity; id >= 1; id--){
+            if (used(id))
+                continue;
+
+            next[id] = first;
+            first = id;
+        }
+
+        head.set(((head.get() >>> 32) + 1) << 32 | first);
+    }
+
+    /**
+    * Returns a client number so that it can be handed out again
+    *
+    * @param  id        the client number that is no longer used
+    * @return whether the number was in use
+    */
+    public boolean release(int id){
+        id -= base;
+
+        // Ignores numbers that are out of range or were already released
+        if (id <= 0 || id > capacity || !mark(id, false))
+            return false;
+
+        while (true){
+            long current = head.get();
+            next[id] = (int) current;
+
+            long replaced = ((current >>> 32) + 1) << 32 | id;
+            if (head.compareAndSet(current, replaced))
+                return true;
+        }
+    }
+
+    /**
+    * Checks whether a client number is currently handed out
+    *
+    * @param  id        the client number
+    * @return whether the number is in use
+    */
+    public boolean in_use(int id){
+        return used(id - base);
+    }
+
+    /**
+    * Returns whether every client number is in use
+    *
+    * @return whether the allocator is exhausted
+    */
+    public boolean empty(){
+        return (int) head.get() == 0;
+    }
+
+    /**
+    * Returns the highest client number
+    *
+    * @return the capacity of the allocator
+    */
+    public int capacity(){
+        return base + capacity;
+    }
+
+    /**
+    * Checks whether a number is in use, counted from 1 rather than the base
+    *
+    * @param  id        the client number less the base
+    * @return whether the number is in use
+    */
+    private boolean used(int id){
+        if (id <= 0 || id > capacity)
+            return false;
+
+        return (inUse.get(id >> 6) & (1L << id)) != 0;
+    }
+
+    /**
+    * Flips the in-use bit of a client number
+    *
+    * @param  id        the client number
+    * @param  used      the new state of the number
+    * @return whether the bit changed
+    */
+    private boolean mark(int id, boolean used){
+        int word = id >> 6;
+        long bit = 1L << id;
+
+        while (true){
+            long current = inUse.get(word);
+            if (((current & bit) != 0) == used)
+                return false;
+
+            if (inUse.compareAndSet(word, current, current ^ bit))
+                return true;
+        }
+    }
+}
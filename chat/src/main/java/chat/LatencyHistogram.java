@@ -0,0 +1,117 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of latencies in nanoseconds, with buckets that double in
+// width every power of two so that percentiles stay within about 2 percent
+public class LatencyHistogram {
+    // Number of buckets per power of two, as a power of two
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Attributes used for the counts, recorded from any thread
+    private AtomicLongArray counts;
+    private AtomicLongArray totals;
+
+    /**
+    * Creates an empty histogram covering latencies up to about 18 minutes
+    */
+    LatencyHistogram(){
+        counts = new AtomicLongArray((40 - SUB_BITS + 1) * SUB_COUNT);
+        totals = new AtomicLongArray(2);
+    }
+
+    /**
+    * Returns the bucket a latency falls into
+    *
+    * @param  nanos     the latency
+    * @return the index of the bucket
+    */
+    private int index(long nanos){
+        if (nanos < SUB_COUNT)
+            return (int) Math.max(nanos, 0);
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return Math.min((exponent - SUB_BITS + 1) * SUB_COUNT + sub, counts.length() - 1);
+    }
+
+    /**
+    * Returns the lowest latency that falls into a bucket
+    *
+    * @param  index     the index of the bucket
+    * @return the latency in nanoseconds
+    */
+    private long value(int index){
+        if (index < SUB_COUNT)
+            return index;
+
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + index % SUB_COUNT) << (exponent - SUB_BITS);
+    }
+
+    /**
+    * Records one latency
+    *
+    * @param  nanos     the latency in nanoseconds
+    */
+    public void record(long nanos){
+        counts.incrementAndGet(index(nanos));
+        totals.incrementAndGet(0);
+
+        // Keeps the highest latency exactly
+        long max;
+        while (nanos > (max = totals.get(1)) && !totals.compareAndSet(1, max, nanos));
+    }
+
+    /**
+    * Returns the number of recorded latencies
+    *
+    * @return the count
+    */
+    public long count(){
+        return totals.get(0);
+    }
+
+    /**
+    * Returns the highest recorded latency
+    *
+    * @return the latency in nanoseconds
+    */
+    public long max(){
+        return totals.get(1);
+    }
+
+    /**
+    * Returns the latency below which a share of the recorded latencies fall
+    *
+    * @param  percentile    the share, from 0 to 100
+    * @return the latency in nanoseconds, or 0 if nothing was recorded
+    */
+    public long percentile(double percentile){
+        long total = count();
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++){
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(value(i + 1), max());
+        }
+
+        return max();
+    }
+
+    /**
+    * Describes the percentiles in milliseconds
+    *
+    * @return the summary line
+    */
+    public String summary(){
+        return String.format("p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms (%d samples)",
+            percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6, count());
+    }
+}
@@ -0,0 +1,327 @@
+package chat;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logger, the packet threads only record events into a lock-free
+// ring buffer and a background thread formats and writes them out
+public class Log extends Thread {
+    // Levels, lower is more important
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    private static final String[] LEVELS = {"ERROR", "WARN", "INFO", "DEBUG"};
+
+    // Categories that can be sampled separately
+    public static final int SERVER = 0;
+    public static final int INCOMING = 1;
+    public static final int OUTGOING = 2;
+    private static final String[] CATEGORIES = {"server", "incoming", "outgoing"};
+
+    // Attributes used for the ring buffer
+    private int mask;
+    private AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private AtomicLongArray published;
+    private AtomicLong dropped = new AtomicLong();
+
+    // Attributes of the events waiting in each slot
+    private int[] levels;
+    private int[] categories;
+    private int[] clients;
+    private int[] opcodes;
+    private int[] seqs;
+    private String[] texts;
+
+    // Attributes used for filtering
+    private volatile int level;
+    private int[] sampleEvery = new int[CATEGORIES.length];
+    private AtomicLong[] sampleCount = new AtomicLong[CATEGORIES.length];
+
+    // Attributes used for the output
+    private String path;
+    private long maxBytes;
+    private int keepFiles;
+    private long written;
+    private Writer out;
+
+    /**
+    * Creates the logger and starts its drain thread
+    *
+    * @param  level     the least important level that is still written
+    * @param  capacity  the number of events the ring buffer holds, rounded up to a power of two
+    * @param  path      the file to write to, or null for standard out
+    * @param  maxBytes  the size at which the file is rotated
+    * @param  keepFiles the number of rotated files that are kept
+    */
+    Log(int level, int capacity, String path, long maxBytes, int keepFiles){
+        this.level = level;
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.keepFiles = keepFiles;
+
+        // Rounds the ring buffer up to a power of two so slots are found with a mask
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            published.set(i, -1);
+
+        levels = new int[size];
+        categories = new int[size];
+        clients = new int[size];
+        opcodes = new int[size];
+        seqs = new int[size];
+        texts = new String[size];
+
+        // Every category is written in full until it is sampled
+        for (int i = 0; i < CATEGORIES.length; i++){
+            sampleEvery[i] = 1;
+            sampleCount[i] = new AtomicLong();
+        }
+
+        open();
+
+        // Starts the drain thread, which never keeps the program alive on its own
+        setName("log-drain");
+        setDaemon(true);
+        start();
+    }
+
+    /**
+    * Creates a logger configured through system properties
+    *
+    *   chat.log.level            ERROR, WARN, INFO or DEBUG, defaults to INFO
+    *   chat.log.file             file to write to, defaults to standard out
+    *   chat.log.file.max         size in bytes at which the file is rotated
+    *   chat.log.file.keep        number of rotated files kept
+    *   chat.log.sample.<name>    write one of every N events of a category
+    *
+    * @return the configured logger
+    */
+    public static Log from_properties(){
+        int level = INFO;
+        String name = System.getProperty("chat.log.level", "INFO");
+
+        for (int i = 0; i < LEVELS.length; i++){
+            if (LEVELS[i].equalsIgnoreCase(name))
+                level = i;
+        }
+
+        Log log = new Log(level, 1 << 16, System.getProperty("chat.log.file"),
+            Long.getLong("chat.log.file.max", 16L << 20), Integer.getInteger("chat.log.file.keep", 4));
+
+        for (int i = 0; i < CATEGORIES.length; i++)
+            log.sample(i, Integer.getInteger("chat.log.sample." + CATEGORIES[i], 1));
+
+        return log;
+    }
+
+    /**
+    * Only writes one of every few events of a category
+    *
+    * @param  category  the category being sampled
+    * @param  every     write one event out of this many
+    */
+    public void sample(int category, int every){
+        sampleEvery[category] = Math.max(every, 1);
+    }
+
+    /**
+    * Changes the least important level that is still written
+    *
+    * @param  level     the new level
+    */
+    public void set_level(int level){
+        this.level = level;
+    }
+
+    /**
+    * Checks whether an event would be written before doing any work for it
+    *
+    * @param  level     the level of the event
+    * @param  category  the category of the event
+    * @return whether the event passes the level and the sampling
+    */
+    public boolean enabled(int level, int category){
+        if (level > this.level)
+            return false;
+
+        int every = sampleEvery[category];
+        return every == 1 || sampleCount[category].getAndIncrement() % every == 0;
+    }
+
+    /**
+    * Records a plain message
+    *
+    * @param  level     the level of the event
+    * @param  category  the category of the event
+    * @param  text      the message
+    */
+    public void message(int level, int category, String text){
+        if (enabled(level, category))
+            record(level, category, 0, -1, 0, text);
+    }
+
+    /**
+    * Records a packet without formatting it on the calling thread
+    *
+    * @param  level     the level of the event
+    * @param  category  INCOMING or OUTGOING
+    * @param  client    the client number, or 0 if unknown
+    * @param  opcode    the opcode of the frame
+    * @param  seq       the sequence number or argument of the frame
+    * @param  text      the text payload, or null if it should not be written
+    */
+    public void packet(int level, int category, int client, int opcode, int seq, String text){
+        if (enabled(level, category))
+            record(level, category, client, opcode, seq, text);
+    }
+
+    /**
+    * Claims a slot in the ring buffer and publishes the event in it, dropping
+    * the event instead of waiting if the drain thread has fallen behind
+    */
+    private void record(int level, int category, int client, int opcode, int seq, String text){
+        long sequence;
+
+        // Claims the next free slot
+        do {
+            sequence = head.get();
+            if (sequence - tail > mask){
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        levels[slot] = level;
+        categories[slot] = category;
+        clients[slot] = client;
+        opcodes[slot] = opcode;
+        seqs[slot] = seq;
+        texts[slot] = text;
+
+        // Publishing the sequence makes the slot's fields visible to the drain thread
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+    * Formats the event in a slot
+    *
+    * @param  slot      the slot holding the event
+    * @return the line to write
+    */
+    private String format(int slot){
+        String client = clients[slot] == 0 ? "null" : "Client_" + clients[slot];
+        String text = texts[slot] == null ? "" : " " + texts[slot];
+
+        switch (categories[slot]){
+            case INCOMING:
+                return "Incoming: " + client + "> " + Frame.name(opcodes[slot]) + " " + seqs[slot] + text;
+            case OUTGOING:
+                return "Outgoing: " + client + "> " + Frame.name(opcodes[slot]) + " " + seqs[slot] + text;
+            default:
+                // Plain information is written as is, anything else is marked with its level
+                if (levels[slot] == INFO)
+                    return texts[slot];
+                return "Server> " + LEVELS[levels[slot]] + text;
+        }
+    }
+
+    /**
+    * Opens the output, standard out unless a file was given
+    */
+    private void open(){
+        try {
+            if (path == null){
+                out = new BufferedWriter(new OutputStreamWriter(System.out));
+            } else {
+                out = new BufferedWriter(new FileWriter(path, true));
+                written = new File(path).length();
+            }
+        } catch (IOException e) {
+            System.out.println("Server> ERROR opening the log, writing to standard out");
+            path = null;
+            out = new BufferedWriter(new OutputStreamWriter(System.out));
+        }
+    }
+
+    /**
+    * Moves the full log file aside and starts a new one
+    */
+    private void rotate() throws IOException {
+        out.close();
+
+        // Shifts server.log.1 to server.log.2 and so on, dropping the oldest
+        for (int i = keepFiles - 1; i > 0; i--){
+            File older = new File(path + "." + i);
+            if (older.exists())
+                older.renameTo(new File(path + "." + (i + 1)));
+        }
+        new File(path).renameTo(new File(path + ".1"));
+
+        out = new BufferedWriter(new FileWriter(path, false));
+        written = 0;
+    }
+
+    /**
+    * Writes out every published event
+    *
+    * @return the number of events written
+    */
+    private int drain() throws IOException {
+        int count = 0;
+        long sequence = tail;
+
+        // Stops at the first slot that has been claimed but not yet published
+        while (published.get((int) sequence & mask) == sequence){
+            int slot = (int) sequence & mask;
+            String line = format(slot);
+            texts[slot] = null;
+
+            out.write(line);
+            out.write('\n');
+            written += line.length() + 1;
+
+            // Frees the slot for the packet threads
+            tail = ++sequence;
+            count++;
+
+            if (path != null && written > maxBytes)
+                rotate();
+        }
+
+        // Reports events that were dropped because the buffer was full
+        long lost = dropped.getAndSet(0);
+        if (lost > 0)
+            out.write("Server> WARN " + lost + " log events dropped\n");
+
+        if (count > 0 || lost > 0)
+            out.flush();
+
+        return count;
+    }
+
+    /**
+    * The main of the drain thread
+    */
+    public void run(){
+        while (true){
+            try {
+                // Backs off briefly whenever there is nothing to write
+                if (drain() == 0)
+                    LockSupport.parkNanos(1000000L);
+            } catch (IOException e) {
+                System.out.println("Server> ERROR writing the log");
+                LockSupport.parkNanos(1000000000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package chat;
+
+// Open addressing hash map from primitive long keys to int values, without boxing
+public class LongIntMap {
+    // Key reserved to mark an empty slot
+    private static final long EMPTY = 0L;
+
+    // Attributes used for the table
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+    * Creates a map sized for the expected number of entries
+    *
+    * @param  expected  the number of entries the map should hold without resizing
+    */
+    LongIntMap(int expected){
+        // Keeps the table at most half full so probe sequences stay short
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+    * Scrambles a key so that neighbouring addresses spread across the table
+    *
+    * @param  key       the key being hashed
+    * @return the first slot to probe for the key
+    */
+    private int slot(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /**
+    * Retrieves the value stored for a key
+    *
+    * @param  key       the non-zero key
+    * @return the value, or -1 if the key is not in the map
+    */
+    public int get(long key){
+        for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask){
+            if (keys[i] == key)
+                return values[i];
+        }
+
+        return -1;
+    }
+
+    /**
+    * Stores a value for a key, replacing any previous value
+    *
+    * @param  key       the non-zero key
+    * @param  value     the value being stored
+    */
+    public void put(long key, int value){
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+
+        if (keys[i] == EMPTY){
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+
+        // Doubles the table once it is more than half full
+        if (size * 2 > keys.length)
+            resize();
+    }
+
+    /**
+    * Removes a key from the map
+    *
+    * @param  key       the non-zero key
+    * @return the value that was stored, or -1 if the key was not in the map
+    */
+    public int remove(long key){
+        int i = slot(key);
+        while (keys[i] != key){
+            if (keys[i] == EMPTY)
+                return -1;
+            i = (i + 1) & mask;
+        }
+
+        int value = values[i];
+        size--;
+
+        // Shifts the following entries back so that no tombstones are needed
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask){
+            int home = slot(keys[j]);
+
+            // Only moves entries whose probe sequence passes over the gap
+            if (((j - home) & mask) >= ((j - gap) & mask)){
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+
+        return value;
+    }
+
+    /**
+    * Returns the number of entries in the map
+    *
+    * @return the number of entries
+    */
+    public int size(){
+        return size;
+    }
+
+    /**
+    * Doubles the table and reinserts every entry
+    */
+    private void resize(){
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++){
+            if (oldKeys[i] != EMPTY)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.CRC32C;
+
+// Store-and-forward log of the mail left for clients by nickname. Every mail
+// is appended to a segment file mapped into memory, and every delivery is
+// appended as an ack of that mail, so that reading the segments back when
+// the server starts finds the mail still waiting. A record is:
+//   length    int, the size of the record after the checksum, 0 past the last record
+//   checksum  int, CRC32C of the record after the checksum
+//   type      byte, MAIL or ACK
+//   seq       int, the number of the mail in its mailbox
+//   time      long, when the record was written in milliseconds
+//   recipient text, see Codec.put_text
+//   sender    text, mail only
+//   message   the rest of the record, mail only
+//
+// Records land in the page cache as they are written, so they outlive the
+// server's process, and the segments are forced to disk in batches at the
+// sync interval instead of once per mail, so a crash of the machine loses at
+// most the last interval. Segments are deleted, oldest first, once every
+// mail in them was delivered
+public class MailLog {
+    // Types of the records
+    private static final byte MAIL = 1;
+    private static final byte ACK = 2;
+
+    // Bytes in front of a record's type, its length and checksum
+    private static final int RECORD_HEADER = 8;
+
+    // Bytes of the type, the number and the time
+    private static final int RECORD_FIXED = 13;
+
+    /**
+    * The mail waiting for one nickname, numbered in the order it was left
+    */
+    public static class Mailbox {
+        private String name;
+        private long[] records = new long[8];
+        private int head;
+        private int size;
+        private int first;
+        private Session reader;
+
+        /**
+        * @param  name      the nickname the mail is for
+        */
+        Mailbox(String name){
+            this.name = name;
+        }
+
+        /**
+        * Returns the number of mail waiting
+        *
+        * @return the number of mail
+        */
+        public int size(){
+            return size;
+        }
+
+        /**
+        * Returns the number of the oldest mail waiting, the rest follow it in order
+        *
+        * @return the mail's number
+        */
+        public int first(){
+            return first;
+        }
+
+        /**
+        * Returns the client taking the mail
+        *
+        * @return the client's session, or null if no client with the nickname is online
+        */
+        public Session reader(){
+            return reader;
+        }
+
+        /**
+        * Adds the location of the newest mail
+        *
+        * @param  location  the segment index and offset of the record
+        */
+        private void add(long location){
+            if (size == records.length){
+                long[] grown = new long[size * 2];
+                for (int i = 0; i < size; i++)
+                    grown[i] = records[(head + i) % size];
+                records = grown;
+                head = 0;
+            }
+
+            records[(head + size++) % records.length] = location;
+        }
+
+        /**
+        * Returns the location of the oldest mail
+        *
+        * @return the segment index and offset of the record
+        */
+        private long peek(){
+            return records[head];
+        }
+
+        /**
+        * Removes the oldest mail
+        *
+        * @return the segment index and offset of its record
+        */
+        private long poll(){
+            long location = records[head];
+            head = (head + 1) % records.length;
+            size--;
+            first++;
+            return location;
+        }
+    }
+
+    /**
+    * One file of the log, mapped whole
+    */
+    private static class Segment {
+        long index;
+        Path path;
+        FileChannel channel;
+        MappedByteBuffer map;
+        int end;
+        int live;
+        boolean dirty;
+    }
+
+    // Attributes used for the segments, oldest first, the last one being written
+    private Path directory;
+    private ArrayList<Segment> segments;
+    private int segmentSize;
+
+    // Attributes used for the mailboxes by nickname
+    private HashMap<String, Mailbox> mailboxes;
+    private int limit;
+    private long waiting;
+
+    // Attributes used to force the segments to disk in batches
+    private long interval;
+    private long syncedAt;
+    private boolean dirty;
+
+    /**
+    * Opens the log, reading back the mail still waiting from the segments
+    * already in the directory
+    *
+    * @param  directory the directory holding the segments, created if missing
+    * @param  segmentSize   the size of a new segment in bytes, at least 1 MiB
+    * @param  interval  how long written records wait to be forced to disk, in nanoseconds
+    * @param  limit     the most mail waiting for one nickname
+    */
+    MailLog(Path directory, int segmentSize, long interval, int limit) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, 1 << 20);
+        this.interval = interval;
+        this.limit = limit;
+        segments = new ArrayList<Segment>();
+        mailboxes = new HashMap<String, Mailbox>();
+        syncedAt = System.nanoTime();
+
+        // Finds the segments, named after their index
+        Files.createDirectories(directory);
+        ArrayList<Long> indexes = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")){
+            for (Path file : files){
+                String name = file.getFileName().toString();
+                try {
+                    indexes.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException e) {}
+            }
+        }
+        Collections.sort(indexes);
+
+        // Replays every segment in order, new mail going at the end of the last one
+        for (long index : indexes)
+            replay(open(index));
+        if (segments.isEmpty())
+            open(0);
+
+        // Forgets the mailboxes that were emptied and the segments that hold no mail
+        mailboxes.values().removeIf(mailbox -> mailbox.size == 0);
+        trim();
+    }
+
+    /**
+    * Opens a segment and adds it at the end of the log
+    *
+    * @param  index     the segment's index
+    * @return the segment
+    */
+    private Segment open(long index) throws IOException {
+        Segment segment = new Segment();
+        segment.index = index;
+        segment.path = directory.resolve(String.format("%016d.log", index));
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Maps a new segment at the configured size and an old one at the size it has
+        long size = segment.channel.size();
+        segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, size > 0 ? size : segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+    * Reads a segment back, stopping at the first record that is missing or
+    * torn, which is where new records are written if the segment is the last
+    *
+    * @param  segment   the segment
+    */
+    private void replay(Segment segment){
+        ByteBuffer map = segment.map;
+        int position = 0;
+
+        while (position + RECORD_HEADER <= map.capacity()){
+            int length = map.getInt(position);
+            if (length < RECORD_FIXED || length > map.capacity() - position - RECORD_HEADER)
+                break;
+
+            ByteBuffer record = map.duplicate();
+            record.limit(position + RECORD_HEADER + length);
+            record.position(position + RECORD_HEADER);
+            if (checksum(record) != map.getInt(position + 4))
+                break;
+
+            // Queues the mail, or drops the mail an ack covers
+            byte type = record.get();
+            int seq = record.getInt();
+            record.getLong();
+            String recipient = Codec.get_text(record);
+            if (recipient != null && type == MAIL){
+                Mailbox mailbox = mailboxes.computeIfAbsent(recipient, Mailbox::new);
+                if (mailbox.size == 0)
+                    mailbox.first = seq;
+                mailbox.add(segment.index << 32 | position);
+                segment.live++;
+                waiting++;
+            } else if (recipient != null && type == ACK){
+                Mailbox mailbox = mailboxes.get(recipient);
+                while (mailbox != null && mailbox.size > 0 && mailbox.first - seq <= 0){
+                    segment(mailbox.poll()).live--;
+                    waiting--;
+                }
+            }
+
+            position += RECORD_HEADER + length;
+        }
+
+        segment.end = position;
+    }
+
+    /**
+    * Appends a mail for a nickname
+    *
+    * @param  recipient the nickname the mail is for
+    * @param  sender    the nickname of the client leaving it
+    * @param  message   the message, read to its end
+    * @return the recipient's mailbox, or null if the mailbox is full or the log cannot be written
+    */
+    public Mailbox append(String recipient, String sender, ByteBuffer message){
+        Mailbox mailbox = mailboxes.get(recipient);
+        if (mailbox != null && mailbox.size >= limit)
+            return null;
+
+        int length = RECORD_FIXED + Codec.text_size(recipient) + Codec.text_size(sender) + message.remaining();
+        Segment segment = reserve(length);
+        if (segment == null)
+            return null;
+
+        if (mailbox == null){
+            mailbox = new Mailbox(recipient);
+            mailboxes.put(recipient, mailbox);
+        }
+
+        // Writes the record behind the last one, the mail being numbered after the mail waiting
+        int position = segment.end;
+        ByteBuffer out = segment.map.duplicate();
+        out.position(position + RECORD_HEADER);
+        out.put(MAIL);
+        out.putInt(mailbox.first + mailbox.size);
+        out.putLong(System.currentTimeMillis());
+        Codec.put_text(out, recipient);
+        Codec.put_text(out, sender);
+        out.put(message);
+        seal(segment, position, length);
+
+        mailbox.add(segment.index << 32 | position);
+        segment.live++;
+        waiting++;
+        return mailbox;
+    }
+
+    /**
+    * Reads the oldest mail of a mailbox, as the payload of a MAIL_MESSAGE
+    *
+    * @param  mailbox   the mailbox, holding at least one mail
+    * @return a buffer positioned on the sender followed by the message, valid until the mail is delivered
+    */
+    public ByteBuffer read(Mailbox mailbox){
+        long location = mailbox.peek();
+        int position = (int) location;
+
+        ByteBuffer record = segment(location).map.duplicate();
+        record.limit(position + RECORD_HEADER + record.getInt(position));
+        record.position(position + RECORD_HEADER + RECORD_FIXED);
+
+        // Skips the recipient, which the client reading the mail already knows
+        int length = Codec.read_varint(record);
+        record.position(record.position() + length);
+        return record;
+    }
+
+    /**
+    * Notes that the oldest mail of a mailbox was delivered, deleting the
+    * oldest segments once every mail in them is delivered
+    *
+    * @param  mailbox   the mailbox, holding at least one mail
+    */
+    public void delivered(Mailbox mailbox){
+        int seq = mailbox.first;
+        segment(mailbox.poll()).live--;
+        waiting--;
+
+        // Writes the ack, without which the mail is only delivered again after a restart
+        int length = RECORD_FIXED + Codec.text_size(mailbox.name);
+        Segment segment = reserve(length);
+        if (segment != null){
+            int position = segment.end;
+            ByteBuffer out = segment.map.duplicate();
+            out.position(position + RECORD_HEADER);
+            out.put(ACK);
+            out.putInt(seq);
+            out.putLong(System.currentTimeMillis());
+            Codec.put_text(out, mailbox.name);
+            seal(segment, position, length);
+        }
+
+        trim();
+    }
+
+    /**
+    * Hands the mailbox of a nickname to the client that just took the
+    * nickname, unless another client already reads it
+    *
+    * @param  name      the nickname
+    * @param  reader    the client's session
+    * @return the mailbox, or null if another client with the nickname reads it
+    */
+    public Mailbox claim(String name, Session reader){
+        Mailbox mailbox = mailboxes.computeIfAbsent(name, Mailbox::new);
+        if (mailbox.reader != null && mailbox.reader != reader)
+            return null;
+
+        mailbox.reader = reader;
+        return mailbox;
+    }
+
+    /**
+    * Takes a mailbox back from the client reading it, such as once it leaves
+    *
+    * @param  mailbox   the mailbox
+    */
+    public void release(Mailbox mailbox){
+        mailbox.reader = null;
+        if (mailbox.size == 0)
+            mailboxes.remove(mailbox.name);
+    }
+
+    /**
+    * Forces the written records to disk once the sync interval has passed
+    * since the last time, called after every pass of the server's loop
+    *
+    * @param  now       the time in nanoseconds
+    * @return how long until the records have to be forced, in nanoseconds, or Long.MAX_VALUE if none wait
+    */
+    public long sync(long now){
+        if (!dirty)
+            return Long.MAX_VALUE;
+
+        if (now - syncedAt < interval)
+            return syncedAt + interval - now;
+
+        for (Segment segment : segments){
+            if (segment.dirty){
+                segment.map.force();
+                segment.dirty = false;
+            }
+        }
+
+        dirty = false;
+        syncedAt = now;
+        return Long.MAX_VALUE;
+    }
+
+    /**
+    * Returns the number of mail waiting for every nickname
+    *
+    * @return the number of mail
+    */
+    public long waiting(){
+        return waiting;
+    }
+
+    /**
+    * Returns the number of segment files
+    *
+    * @return the number of segments
+    */
+    public int segments(){
+        return segments.size();
+    }
+
+    /**
+    * Finds room for a record at the end of the log, starting a new segment
+    * if the last one is full
+    *
+    * @param  length    the size of the record after its checksum
+    * @return the segment the record is written to, or null if no segment could be opened
+    */
+    private Segment reserve(int length){
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.end + RECORD_HEADER + length <= segment.map.capacity())
+            return segment;
+
+        try {
+            segment = open(segment.index + 1);
+        } catch (IOException e) {
+            return null;
+        }
+
+        trim();
+        return segment.end + RECORD_HEADER + length <= segment.map.capacity() ? segment : null;
+    }
+
+    /**
+    * Finishes a written record with its checksum and then its length, which
+    * makes it part of the log
+    *
+    * @param  segment   the segment the record is in
+    * @param  position  the offset of the record
+    * @param  length    the size of the record after its checksum
+    */
+    private void seal(Segment segment, int position, int length){
+        ByteBuffer record = segment.map.duplicate();
+        record.limit(position + RECORD_HEADER + length);
+        record.position(position + RECORD_HEADER);
+
+        segment.map.putInt(position + 4, checksum(record));
+        segment.map.putInt(position, length);
+        segment.end = position + RECORD_HEADER + length;
+        segment.dirty = true;
+        dirty = true;
+    }
+
+    /**
+    * Deletes the oldest segments while no mail in them waits, keeping the
+    * segment being written. Acks only ever cover mail in their own segment
+    * or an older one, so deleting in order never brings delivered mail back
+    */
+    private void trim(){
+        Iterator<Segment> oldest = segments.iterator();
+        while (segments.size() > 1){
+            Segment segment = oldest.next();
+            if (segment.live > 0)
+                return;
+
+            oldest.remove();
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+    * Returns the segment a record is in
+    *
+    * @param  location  the segment index and offset of the record
+    * @return the segment
+    */
+    private Segment segment(long location){
+        long index = location >>> 32;
+        for (int i = segments.size() - 1; i > 0; i--){
+            if (segments.get(i).index == index)
+                return segments.get(i);
+        }
+
+        return segments.get(0);
+    }
+
+    /**
+    * Works out the checksum of a record, leaving the buffer as it is
+    *
+    * @param  record    the buffer positioned on the record after its checksum
+    * @return the checksum
+    */
+    private static int checksum(ByteBuffer record){
+        int position = record.position();
+        CRC32C checksum = new CRC32C();
+        checksum.update(record);
+        record.position(position);
+
+        return (int) checksum.getValue();
+    }
+}
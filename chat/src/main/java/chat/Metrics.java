@@ -0,0 +1,284 @@
+package chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+// Registry of the server's counters, gauges and routing latencies, readable
+// over JMX and from the stats port. Only the server thread records, so the
+// counters are bumped with plain ordered writes instead of atomic adds, and
+// any other thread can read them while the server runs
+public class Metrics implements DynamicMBean {
+    // Counters, which only ever grow except for the open chats
+    public static final int PACKETS_IN = 0;
+    public static final int PACKETS_OUT = 1;
+    public static final int BYTES_IN = 2;
+    public static final int BYTES_OUT = 3;
+    public static final int FRAMES_IN = 4;
+    public static final int MALFORMED = 5;
+    public static final int DROPPED = 6;
+    public static final int DUPLICATES = 7;
+    public static final int RETRANSMITS = 8;
+    public static final int REFUSED = 9;
+    public static final int CHATS = 10;
+    public static final int EVICTED = 11;
+    public static final int ABANDONED = 12;
+    public static final int REASSEMBLED = 13;
+    public static final int COMPRESSED = 14;
+    public static final int EXPANDED = 15;
+    public static final int MAIL_STORED = 16;
+    public static final int MAIL_DELIVERED = 17;
+    public static final int HISTORY_RECORDED = 18;
+    public static final int HISTORY_PAGES = 19;
+    public static final int FORWARDED = 20;
+    private static final String[] NAMES = {"packets_in", "packets_out", "bytes_in", "bytes_out", "frames_in",
+        "malformed", "dropped", "duplicates", "retransmits", "refused", "chats", "evicted", "abandoned", "reassembled",
+        "compressed", "expanded", "mail_stored", "mail_delivered", "history_recorded", "history_pages",
+        "forwarded"};
+
+    // Counters that are reported per second as well, over at least a second
+    private static final int[] RATES = {PACKETS_IN, PACKETS_OUT, BYTES_IN, BYTES_OUT};
+    private static final long RATE_INTERVAL = 1000000000L;
+
+    // Attributes used for the recorded values
+    private AtomicLongArray counters;
+    private AtomicLongArray opcodes;
+    private LatencyHistogram routing;
+
+    // Attributes used for the values read from the server when asked for
+    private ArrayList<String> gaugeNames;
+    private ArrayList<LongSupplier> gauges;
+
+    // Attributes used for the rates, worked out by whichever reader comes after the interval
+    private long sampledAt;
+    private long[] sampled;
+    private double[] rates;
+
+    /**
+    * Creates a registry with every counter at zero
+    */
+    Metrics(){
+        counters = new AtomicLongArray(NAMES.length);
+        opcodes = new AtomicLongArray(256);
+        routing = new LatencyHistogram();
+        gaugeNames = new ArrayList<String>();
+        gauges = new ArrayList<LongSupplier>();
+
+        sampledAt = System.nanoTime();
+        sampled = new long[RATES.length];
+        rates = new double[RATES.length];
+    }
+
+    /**
+    * Adds to a counter, only called on the server thread
+    *
+    * @param  counter   the counter, such as PACKETS_IN
+    * @param  delta     the amount added, negative for the open chats closing
+    */
+    public void add(int counter, long delta){
+        counters.lazySet(counter, counters.get(counter) + delta);
+    }
+
+    /**
+    * Counts one incoming frame, only called on the server thread
+    *
+    * @param  opcode    the opcode of the frame
+    */
+    public void frame(int opcode){
+        int index = opcode & 0xFF;
+        opcodes.lazySet(index, opcodes.get(index) + 1);
+        counters.lazySet(FRAMES_IN, counters.get(FRAMES_IN) + 1);
+    }
+
+    /**
+    * Records how long a datagram took to be handled, from being read off the
+    * socket to every frame in it being routed
+    *
+    * @param  nanos     the latency in nanoseconds
+    */
+    public void routed(long nanos){
+        routing.record(nanos);
+    }
+
+    /**
+    * Adds a value read from the server whenever the metrics are read, only
+    * called before the server starts
+    *
+    * @param  name      the name the value is reported under
+    * @param  gauge     reads the value, from any thread
+    */
+    public void gauge(String name, LongSupplier gauge){
+        gaugeNames.add(name);
+        gauges.add(gauge);
+    }
+
+    /**
+    * Returns a counter
+    *
+    * @param  counter   the counter, such as PACKETS_IN
+    * @return the counter's value
+    */
+    public long get(int counter){
+        return counters.get(counter);
+    }
+
+    /**
+    * Returns the routing latencies
+    *
+    * @return the histogram, in nanoseconds
+    */
+    public LatencyHistogram routing(){
+        return routing;
+    }
+
+    /**
+    * Works the rates out again once the interval has passed since the last time
+    */
+    private synchronized void sample(){
+        long now = System.nanoTime();
+        long elapsed = now - sampledAt;
+        if (elapsed < RATE_INTERVAL)
+            return;
+
+        for (int i = 0; i < RATES.length; i++){
+            long value = counters.get(RATES[i]);
+            rates[i] = (value - sampled[i]) * 1e9 / elapsed;
+            sampled[i] = value;
+        }
+
+        sampledAt = now;
+    }
+
+    /**
+    * Reads every metric, in the order they are reported
+    *
+    * @return the values by name
+    */
+    public Map<String, Long> values(){
+        sample();
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+
+        for (int i = 0; i < NAMES.length; i++)
+            values.put(NAMES[i], counters.get(i));
+
+        synchronized (this){
+            for (int i = 0; i < RATES.length; i++)
+                values.put(NAMES[RATES[i]] + "_per_sec", Math.round(rates[i]));
+        }
+
+        for (int i = 0; i < gauges.size(); i++)
+            values.put(gaugeNames.get(i), gauges.get(i).getAsLong());
+
+        // Reports every opcode that has a name, so that the set of metrics never changes
+        for (int opcode = 0; opcode < opcodes.length(); opcode++){
+            String name = Frame.name(opcode);
+            if (!name.startsWith("unknown_"))
+                values.put("frames_" + name, opcodes.get(opcode));
+        }
+
+        values.put("routing_count", routing.count());
+        values.put("routing_p50_us", routing.percentile(50) / 1000);
+        values.put("routing_p99_us", routing.percentile(99) / 1000);
+        values.put("routing_p999_us", routing.percentile(99.9) / 1000);
+        values.put("routing_max_us", routing.max() / 1000);
+        return values;
+    }
+
+    /**
+    * Formats every metric as plain text, one name and value per line
+    *
+    * @return the report
+    */
+    public String report(){
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> entry : values().entrySet())
+            report.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+
+        return report.toString();
+    }
+
+    /**
+    * Registers the metrics with the platform's JMX agent
+    *
+    * @param  name      the object name, such as "chat:type=Server"
+    * @return whether the metrics were registered
+    */
+    public boolean register(String name){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /**
+    * Returns one metric to the JMX agent
+    *
+    * @param  attribute the name of the metric
+    * @return the value
+    */
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = values().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+
+        return value;
+    }
+
+    /**
+    * Returns several metrics to the JMX agent, read together
+    *
+    * @param  attributes    the names of the metrics
+    * @return the values that exist
+    */
+    public AttributeList getAttributes(String[] attributes){
+        Map<String, Long> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes){
+            if (values.containsKey(attribute))
+                list.add(new Attribute(attribute, values.get(attribute)));
+        }
+
+        return list;
+    }
+
+    /**
+    * Describes the metrics to the JMX agent, all of them read-only numbers
+    *
+    * @return the description
+    */
+    public MBeanInfo getMBeanInfo(){
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : values().keySet())
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+
+        return new MBeanInfo(getClass().getName(), "Chat server metrics",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    /**
+    * Refuses to change a metric, they are all read-only
+    */
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    /**
+    * Refuses to change metrics, they are all read-only
+    */
+    public AttributeList setAttributes(AttributeList attributes){
+        return new AttributeList();
+    }
+
+    /**
+    * Refuses every operation, the metrics have none
+    */
+    public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(action));
+    }
+}
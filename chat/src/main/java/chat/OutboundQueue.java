@@ -0,0 +1,204 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+// Bounded queue of the messages a client offered to its chat partner, held
+// encoded until the partner accepts or rejects each of them in turn. The
+// queue never grows past its depth, so that a sender faster than its partner
+// is told to wait instead of having its messages dropped or held without limit
+public class OutboundQueue {
+    // Attributes used for the queued messages, in the order they were offered
+    private ByteBuffer[] frames;
+    private int[] numbers;
+    private boolean[] exits;
+    private int head;
+    private int count;
+    private int bytes;
+
+    // Attributes used to keep the messages in order once one is turned away
+    private boolean waiting;
+    private int resume;
+
+    /**
+    * Creates an empty queue
+    *
+    * @param  depth     the most messages held at once
+    */
+    OutboundQueue(int depth){
+        frames = new ByteBuffer[depth];
+        numbers = new int[depth];
+        exits = new boolean[depth];
+    }
+
+    /**
+    * Adds an encoded message to the back of the queue. Once a message was
+    * turned away, every later one is as well until the sender offers that
+    * one again, so that the messages are never queued out of order
+    *
+    * @param  frame     the flipped buffer holding the encoded message
+    * @param  number    the number the sender gave the message
+    * @param  exit      whether the message ends the chat
+    * @return whether the message was queued, false if the queue is full
+    */
+    public boolean offer(ByteBuffer frame, int number, boolean exit){
+        if (count == frames.length || (waiting && number != resume))
+            return false;
+
+        waiting = false;
+        int slot = (head + count++) % frames.length;
+        frames[slot] = frame;
+        numbers[slot] = number;
+        exits[slot] = exit;
+        bytes += frame.remaining();
+        return true;
+    }
+
+    /**
+    * Notes that a message was turned away, such as when the server ran out of
+    * memory for it, so that the messages after it are turned away as well
+    *
+    * @param  number    the number the sender gave the message
+    */
+    public void turn_away(int number){
+        if (waiting)
+            return;
+
+        waiting = true;
+        resume = number;
+    }
+
+    /**
+    * Removes the message at the front of the queue
+    *
+    * @return the flipped buffer holding the message, or null if the queue is empty
+    */
+    public ByteBuffer poll(){
+        if (count == 0)
+            return null;
+
+        ByteBuffer frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+        bytes -= frame.remaining();
+        return frame;
+    }
+
+    /**
+    * Returns the number the sender gave the message at the front of the queue
+    *
+    * @return the message number, only meaningful if the queue is not empty
+    */
+    public int number(){
+        return numbers[head];
+    }
+
+    /**
+    * Returns whether the message at the front of the queue ends the chat
+    *
+    * @return whether the message is an exit message
+    */
+    public boolean exit(){
+        return exits[head];
+    }
+
+    /**
+    * Returns the number of queued messages
+    *
+    * @return the number of messages
+    */
+    public int size(){
+        return count;
+    }
+
+    /**
+    * Returns the most messages the queue holds
+    *
+    * @return the depth of the queue
+    */
+    public int depth(){
+        return frames.length;
+    }
+
+    /**
+    * Returns the memory the queued messages take up
+    *
+    * @return the number of encoded bytes queued
+    */
+    public int bytes(){
+        return bytes;
+    }
+
+    /**
+    * Writes the queued messages to a snapshot, leaving the queue as it is
+    *
+    * Layout: the number of messages, whether messages are turned away and
+    * the one that resumes them, then for every message its number, whether
+    * it ends the chat and the encoded frame
+    *
+    * @param  snapshot  the snapshot being encoded
+    */
+    public void save(Snapshot snapshot){
+        ByteBuffer out = snapshot.reserve(11);
+        Codec.put_varint(out, count);
+        out.put((byte) (waiting ? 1 : 0));
+        Codec.put_varint(out, resume);
+
+        for (int i = 0; i < count; i++){
+            ByteBuffer frame = frames[(head + i) % frames.length];
+            out = snapshot.reserve(11 + frame.remaining());
+            Codec.put_varint(out, numbers[(head + i) % frames.length]);
+            out.put((byte) (exits[(head + i) % frames.length] ? 1 : 0));
+            Codec.put_varint(out, frame.remaining());
+            out.put(frame.duplicate());
+        }
+    }
+
+    /**
+    * Reads back the messages written by save into the empty queue, copying
+    * them into buffers from the event loop's pool
+    *
+    * @param  in        the snapshot, positioned at the queue
+    * @param  loop      the event loop the buffers come from
+    * @return whether the queue was read whole
+    */
+    public boolean load(ByteBuffer in, EventLoop loop){
+        int size = Codec.read_varint(in);
+        if (size < 0 || size > frames.length || !in.hasRemaining())
+            return false;
+
+        boolean turned = in.get() == 1;
+        int number = Codec.read_varint(in);
+
+        for (int i = 0; i < size; i++){
+            int message = Codec.read_varint(in);
+            boolean exit = in.hasRemaining() && in.get() == 1;
+            int length = Codec.read_varint(in);
+            if (length < 0 || length > in.remaining() || length > BufferPool.FRAME_SIZE)
+                return false;
+
+            ByteBuffer frame = loop.acquire(length);
+            int end = in.limit();
+            in.limit(in.position() + length);
+            frame.put(in);
+            in.limit(end);
+            frame.flip();
+            offer(frame, message, exit);
+        }
+
+        waiting = turned;
+        resume = number;
+        return true;
+    }
+
+    /**
+    * Drops every queued message, handing the buffers back to the event loop's pool
+    *
+    * @param  loop      the event loop the buffers came from
+    */
+    public void clear(EventLoop loop){
+        while (count > 0)
+            loop.release(poll());
+        waiting = false;
+    }
+}
@@ -0,0 +1,193 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+// Online list that is updated as clients join, rename and leave, served in
+// pages by client number and as versioned changes since a client's last fetch
+public class PresenceIndex {
+    // Kinds of change kept in the history
+    public static final int JOIN = 1;
+    public static final int RENAME = 2;
+    public static final int LEAVE = 3;
+
+    // Attributes used for the online clients
+    private SessionTable sessions;
+    private BitSet online;
+    private int version;
+
+    // Oldest version changes are served from, the ones before it were lost in a restart
+    private int floor;
+
+    // Attributes used for the history of changes, indexed by version
+    private int[] changeIDs;
+    private byte[] changeKinds;
+    private int mask;
+
+    /**
+    * Creates an empty online list
+    *
+    * @param  sessions  the registry the nicknames are read from
+    * @param  history   the number of changes kept for clients catching up, rounded up to a power of two
+    */
+    PresenceIndex(SessionTable sessions, int history){
+        this.sessions = sessions;
+        online = new BitSet();
+
+        int size = 1;
+        while (size < history)
+            size <<= 1;
+
+        changeIDs = new int[size];
+        changeKinds = new byte[size];
+        mask = size - 1;
+    }
+
+    /**
+    * Returns the version of the list, which goes up by one for every change
+    *
+    * @return the current version
+    */
+    public int version(){
+        return version;
+    }
+
+    /**
+    * Starts the list over from a version well past one saved before a
+    * restart, so that clients holding any version from before the restart,
+    * including the ones reached after the save, fetch every page again
+    *
+    * @param  saved     the version the list had when it was saved
+    */
+    public void restart(int saved){
+        version = saved + (1 << 20);
+        floor = version;
+    }
+
+    /**
+    * Records a change and moves the list to the next version
+    *
+    * @param  id        the client number that changed
+    * @param  kind      JOIN, RENAME or LEAVE
+    */
+    private void record(int id, int kind){
+        version++;
+        changeIDs[version & mask] = id;
+        changeKinds[version & mask] = (byte) kind;
+    }
+
+    /**
+    * Adds a client to the online list
+    *
+    * @param  id        the client number
+    */
+    public void join(int id){
+        online.set(id);
+        record(id, JOIN);
+    }
+
+    /**
+    * Notes that a client changed its nickname
+    *
+    * @param  id        the client number
+    */
+    public void rename(int id){
+        if (online.get(id))
+            record(id, RENAME);
+    }
+
+    /**
+    * Removes a client from the online list
+    *
+    * @param  id        the client number
+    */
+    public void leave(int id){
+        if (!online.get(id))
+            return;
+
+        online.clear(id);
+        record(id, LEAVE);
+    }
+
+    /**
+    * Returns the number of clients online
+    *
+    * @return the number of online clients
+    */
+    public int size(){
+        return online.cardinality();
+    }
+
+    /**
+    * Writes one page of the online list, as many clients after the cursor as fit
+    *
+    * Payload: version, then for every client its number and nickname
+    *
+    * @param  out       the buffer the page is written to
+    * @param  cursor    the last client number of the previous page, or 0 for the first page
+    * @return the cursor of the next page, or 0 if this was the last page
+    */
+    public int write_page(ByteBuffer out, int cursor){
+        Codec.put_varint(out, version);
+        boolean empty = true;
+
+        for (int id = online.nextSetBit(cursor + 1); id > 0; id = online.nextSetBit(id + 1)){
+            String name = sessions.get(id).name;
+
+            // Ends the page at the last client that fits completely, and skips
+            // a client that does not fit in a page of its own, so that every
+            // page moves the cursor on
+            if (out.remaining() < Codec.varint_size(id) + Codec.text_size(name)){
+                if (!empty)
+                    return cursor;
+
+                cursor = id;
+                continue;
+            }
+
+            Codec.put_varint(out, id);
+            Codec.put_text(out, name);
+            cursor = id;
+            empty = false;
+        }
+
+        return 0;
+    }
+
+    /**
+    * Writes the changes made after a version, as many as fit
+    *
+    * Payload: the current version, then for every change the client number,
+    * the kind of change and, unless the client left, its nickname
+    *
+    * @param  out       the buffer the changes are written to
+    * @param  since     the version the client already has
+    * @return the version the written changes reach, or -1 if the history no
+    *         longer goes back that far and the client has to fetch every page
+    */
+    public int write_changes(ByteBuffer out, int since){
+        if (since < floor || since > version || version - since > mask)
+            return -1;
+
+        Codec.put_varint(out, version);
+
+        for (int v = since + 1; v <= version; v++){
+            int id = changeIDs[v & mask];
+            int kind = changeKinds[v & mask];
+            Session session = sessions.get(id);
+            String name = kind == LEAVE || session == null ? null : session.name;
+
+            // Ends the batch at the last change that fits completely
+            int size = Codec.varint_size(id) + 1 + (name == null ? 0 : Codec.text_size(name));
+            if (out.remaining() < size)
+                return v - 1;
+
+            Codec.put_varint(out, id);
+            out.put((byte) (name == null ? LEAVE : kind));
+            if (name != null)
+                Codec.put_text(out, name);
+        }
+
+        return version;
+    }
+}
@@ -0,0 +1,116 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+// Receiving half of selective-repeat delivery. Messages that arrive out of
+// order are held until the gap before them is filled, so that they are handed
+// on in order, and repeats of delivered messages are discarded
+public class ReceiveWindow<T> {
+    // Attributes used for the messages held, indexed by sequence number
+    private int mask;
+    private int expected;
+    private int highest;
+    private Object[] texts;
+
+    /**
+    * Creates an empty window
+    *
+    * @param  size      the number of messages held at once, rounded up to a power of two
+    */
+    ReceiveWindow(int size){
+        int capacity = 1;
+        while (capacity < size)
+            capacity <<= 1;
+
+        mask = capacity - 1;
+        texts = new Object[capacity];
+    }
+
+    /**
+    * Holds a message that arrived
+    *
+    * @param  seq       the sequence number of the message
+    * @param  text      the message
+    * @return whether the message was new and fits in the window
+    */
+    public boolean receive(int seq, T text){
+        if (seq - expected < 0 || seq - expected > mask || texts[seq & mask] != null)
+            return false;
+
+        texts[seq & mask] = text;
+        if (seq - highest >= 0)
+            highest = seq + 1;
+
+        return true;
+    }
+
+    /**
+    * Takes the next message in order if it has arrived
+    *
+    * @return the message, or null if it is still missing
+    */
+    @SuppressWarnings("unchecked")
+    public T poll(){
+        int slot = expected & mask;
+        T text = (T) texts[slot];
+        if (text == null)
+            return null;
+
+        texts[slot] = null;
+        expected++;
+        return text;
+    }
+
+    /**
+    * Returns the sequence number of the next message in order, the cumulative ack
+    *
+    * @return the sequence number
+    */
+    public int expected(){
+        return expected;
+    }
+
+    /**
+    * Writes the bitmap of messages held past the gap, bit 0 of the first byte
+    * being the message after the expected one
+    *
+    * @param  out       the buffer the bitmap is written to
+    */
+    public void write_sack(ByteBuffer out){
+        int bits = 0;
+        int count = 0;
+
+        for (int seq = expected + 1; seq - highest < 0 && out.hasRemaining(); seq++){
+            if (texts[seq & mask] != null)
+                bits |= 1 << count;
+
+            if (++count == 8){
+                out.put((byte) bits);
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        if (count > 0 && out.hasRemaining())
+            out.put((byte) bits);
+    }
+
+    /**
+    * Drops every message held, once the chat ends
+    */
+    public void clear(){
+        clear(0);
+    }
+
+    /**
+    * Drops every message held and starts over from a sequence number
+    *
+    * @param  first     the sequence number of the next message expected
+    */
+    public void clear(int first){
+        for (int i = 0; i < texts.length; i++)
+            texts[i] = null;
+
+        expected = highest = first;
+    }
+}
@@ -0,0 +1,531 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Chat room with any number of members. Every message is encoded once into
+// the room's history and copied from there to each member. The acks of every
+// member are tracked on their own, so that a member that lost messages is
+// sent them again without holding up the others, and the history keeps a
+// message until every member has acked it
+public class Room {
+    // Most messages sent to a member ahead of its acks
+    private static final int WINDOW = 64;
+
+    // Longest a member waits before messages it has not acked are sent again,
+    // as a shift of the timeout, a member still silent after that is dropped
+    private static final int MAX_BACKOFF = 6;
+
+    // Attributes used to identify the room
+    public int id;
+    public String name;
+
+    // Attributes used for the members, indexed by slot
+    private int[] members;
+    private int[] acked;
+    private int[] sent;
+    private int[] posts;
+    private long[] sentAt;
+    private int[] backoff;
+    private boolean[] blocked;
+    private int count;
+    private LongIntMap slots;
+
+    // Attributes used for the history of encoded messages, indexed by message number
+    private ByteBuffer[] history;
+    private int mask;
+    private int base;
+    private int next;
+
+    // Attributes used for the inflated copies of compressed messages, made
+    // once for the members that did not agree to compressed frames
+    private ByteBuffer[] plain;
+    private Frame frame;
+
+    // Number of members whose posts were turned away while the history was full
+    private int waiting;
+
+    // Attributes used by the room table for the rooms with messages to send,
+    // and for the rooms only waiting on acks until their next retransmission
+    boolean active;
+    private int cursor;
+    TimingWheel.Timer timer;
+    long due;
+
+    /**
+    * Creates an empty room
+    *
+    * @param  id        the room's number
+    * @param  name      the room's name
+    * @param  capacity  the number of messages kept until every member acks them, rounded up to a power of two
+    */
+    Room(int id, String name, int capacity){
+        this.id = id;
+        this.name = name;
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        history = new ByteBuffer[size];
+        mask = size - 1;
+
+        members = new int[4];
+        acked = new int[4];
+        sent = new int[4];
+        posts = new int[4];
+        sentAt = new long[4];
+        backoff = new int[4];
+        blocked = new boolean[4];
+        slots = new LongIntMap(4);
+    }
+
+    /**
+    * Adds a member, who is sent the messages posted from now on
+    *
+    * @param  client    the member's client number
+    * @return the number of the first message the member is sent
+    */
+    public int add(int client){
+        int slot = slots.get(client);
+        if (slot != -1)
+            return acked[slot];
+
+        // Doubles the member arrays once they are full
+        if (count == members.length){
+            int size = count * 2;
+            members = Arrays.copyOf(members, size);
+            acked = Arrays.copyOf(acked, size);
+            sent = Arrays.copyOf(sent, size);
+            posts = Arrays.copyOf(posts, size);
+            sentAt = Arrays.copyOf(sentAt, size);
+            backoff = Arrays.copyOf(backoff, size);
+            blocked = Arrays.copyOf(blocked, size);
+        }
+
+        slot = count++;
+        members[slot] = client;
+        acked[slot] = next;
+        sent[slot] = next;
+        posts[slot] = 0;
+        backoff[slot] = 0;
+        blocked[slot] = false;
+        slots.put(client, slot);
+
+        return next;
+    }
+
+    /**
+    * Removes a member, moving the last member into its slot
+    *
+    * @param  client    the member's client number
+    * @return whether the client was a member
+    */
+    public boolean remove(int client){
+        int slot = slots.remove(client);
+        if (slot == -1)
+            return false;
+
+        if (blocked[slot])
+            waiting--;
+
+        int last = --count;
+        if (slot != last){
+            members[slot] = members[last];
+            acked[slot] = acked[last];
+            sent[slot] = sent[last];
+            posts[slot] = posts[last];
+            sentAt[slot] = sentAt[last];
+            backoff[slot] = backoff[last];
+            blocked[slot] = blocked[last];
+            slots.put(members[slot], slot);
+        }
+
+        trim();
+        return true;
+    }
+
+    /**
+    * Returns whether a client is a member
+    *
+    * @param  client    the client number
+    * @return whether the client is in the room
+    */
+    public boolean member(int client){
+        return slots.get(client) != -1;
+    }
+
+    /**
+    * Returns the number of members
+    *
+    * @return the number of members
+    */
+    public int size(){
+        return count;
+    }
+
+    /**
+    * Returns the post number expected next from a member, which makes
+    * repeated posts easy to spot
+    *
+    * @param  client    the member's client number
+    * @return the post number, or -1 if the client is not a member
+    */
+    public int expected(int client){
+        int slot = slots.get(client);
+        return slot == -1 ? -1 : posts[slot];
+    }
+
+    /**
+    * Returns whether a member's posts are turned away until the history has room
+    *
+    * @param  client    the member's client number
+    * @return whether the member waits for the go-ahead
+    */
+    public boolean blocked(int client){
+        int slot = slots.get(client);
+        return slot != -1 && blocked[slot];
+    }
+
+    /**
+    * Starts the next message of the room, which the caller encodes into the
+    * returned buffer and flips. The post is counted against the member, who
+    * is given the go-ahead by a pump once the history has room if it is full
+    *
+    * @param  client    the posting member's client number
+    * @param  size      the most bytes the encoded message takes
+    * @return the buffer the message is encoded into, or null if the history is full
+    */
+    public ByteBuffer post(int client, int size){
+        int slot = slots.get(client);
+        if (slot == -1)
+            return null;
+
+        // Frees the messages every member has acked before giving up
+        if (next - base > mask){
+            trim();
+            if (next - base > mask){
+                if (!blocked[slot]){
+                    blocked[slot] = true;
+                    waiting++;
+                }
+                return null;
+            }
+        }
+
+        // Keeps a regular buffer in every slot, a larger message gets one of its
+        // own size that the next regular message in that slot swaps back
+        int index = next & mask;
+        int capacity = Math.min(Math.max(size, BufferPool.BUFFER_SIZE), BufferPool.FRAME_SIZE);
+        if (history[index] == null || history[index].capacity() != capacity)
+            history[index] = ByteBuffer.allocate(capacity);
+        if (plain != null && plain[index] != null)
+            plain[index].limit(0);
+
+        posts[slot]++;
+        next++;
+
+        ByteBuffer out = history[index];
+        out.clear();
+        return out;
+    }
+
+    /**
+    * Returns the number the next message will have
+    *
+    * @return the message number
+    */
+    public int next(){
+        return next;
+    }
+
+    /**
+    * Applies a member's cumulative ack
+    *
+    * @param  client    the member's client number
+    * @param  cumulative    the next message the member expects
+    */
+    public void ack(int client, int cumulative){
+        int slot = slots.get(client);
+
+        // Ignores acks that go backwards or beyond what was posted
+        if (slot == -1 || cumulative - acked[slot] <= 0 || cumulative - next > 0)
+            return;
+
+        acked[slot] = cumulative;
+        backoff[slot] = 0;
+        if (sent[slot] - cumulative < 0)
+            sent[slot] = cumulative;
+    }
+
+    /**
+    * Moves the start of the history up to the oldest message a member has not acked
+    */
+    private void trim(){
+        int oldest = next;
+        for (int i = 0; i < count; i++){
+            if (acked[i] - oldest < 0)
+                oldest = acked[i];
+        }
+
+        base = oldest;
+    }
+
+    /**
+    * Sends every member the messages it is due, up to a budget of datagrams,
+    * starting from the member the last pump stopped at so that a large room
+    * shares the budget fairly. A member whose acks stop coming is sent
+    * everything it has not acked again once its timeout runs out, with
+    * backoff, and is dropped from the room once the backoff runs out so that
+    * it cannot hold up the history for everyone else. Once every member was
+    * sent all it can be, the earliest retransmission deadline is left in due
+    *
+    * @param  loop      the event loop the messages are queued on
+    * @param  sessions  the registry the members' addresses are read from
+    * @param  budget    the most messages to queue
+    * @param  now       the time in nanoseconds
+    * @param  timeout   how long a member waits for a message before it is sent again, in nanoseconds
+    * @return the budget left
+    */
+    public int pump(EventLoop loop, SessionTable sessions, int budget, long now, long timeout){
+        boolean pending = false;
+        long earliest = Long.MAX_VALUE;
+
+        int n = 0;
+        for (; n < count && budget > 0; n++){
+            int slot = (cursor + n) % count;
+
+            // Goes back to the first message not acked once the timer runs out
+            if (sent[slot] != acked[slot] && now - sentAt[slot] >= timeout << backoff[slot]){
+                loop.metrics().add(Metrics.RETRANSMITS, sent[slot] - acked[slot]);
+                sent[slot] = acked[slot];
+                backoff[slot]++;
+            }
+
+            Session member = sessions.get(members[slot]);
+            if (member == null || backoff[slot] > MAX_BACKOFF)
+                continue;
+
+            // Copies the encoded messages to the member, at most a window ahead of its acks
+            while (budget > 0 && sent[slot] != next && sent[slot] - acked[slot] < WINDOW){
+                ByteBuffer message = history[sent[slot] & mask];
+                if (!member.compress && (message.get(message.position() + 1) & Frame.COMPRESSED) != 0)
+                    message = plain(loop, sent[slot]);
+
+                loop.send_copy(message, member.endpoint);
+                sent[slot]++;
+                sentAt[slot] = now;
+                budget--;
+            }
+
+            // Notes what the member still waits on, more messages or only its timer
+            if (sent[slot] != next && sent[slot] - acked[slot] < WINDOW)
+                pending = true;
+            if (sent[slot] != acked[slot])
+                earliest = Math.min(earliest, sentAt[slot] + (timeout << backoff[slot]));
+        }
+
+        // Only a room whose every member was served can wait for its timer
+        due = pending || n < count ? 0 : earliest;
+
+        // Gives the members whose posts were turned away the go-ahead once the history has room
+        if (waiting > 0){
+            trim();
+            if (next - base <= mask)
+                release(loop, sessions);
+        }
+
+        // Drops the members that never answered, telling them in case they are still there
+        for (int slot = count - 1; slot >= 0; slot--){
+            if (backoff[slot] <= MAX_BACKOFF && sessions.get(members[slot]) != null)
+                continue;
+
+            int client = members[slot];
+            remove(client);
+
+            Session member = sessions.get(client);
+            if (member != null){
+                member.leave_room(id);
+                ByteBuffer out = loop.acquire();
+                Codec.encode(out, Frame.ROOM_LEFT, client, id, (String) null);
+                out.flip();
+                loop.send(out, member.endpoint);
+            }
+        }
+
+        // Starts the next pump from the member the budget ran out on, or the
+        // one after the last starting point if everyone was served
+        if (count > 0)
+            cursor = (cursor + (n < count ? Math.max(n - 1, 0) : 1)) % count;
+
+        return budget;
+    }
+
+    /**
+    * Returns the inflated copy of a compressed message, made the first time
+    * a member needs it and kept until the message's slot is reused
+    *
+    * @param  loop      the event loop whose metrics count the copies
+    * @param  number    the message number
+    * @return the flipped buffer holding the plain message
+    */
+    private ByteBuffer plain(EventLoop loop, int number){
+        int index = number & mask;
+        if (plain == null){
+            plain = new ByteBuffer[history.length];
+            frame = new Frame();
+        }
+
+        ByteBuffer out = plain[index];
+        if (out != null && out.limit() != 0)
+            return out;
+
+        // Inflates the text, a text that does not inflate reaches the member
+        // empty so that it still acks the message
+        Codec.decode(history[index].duplicate(), frame);
+        if (Compression.expand(frame)){
+            loop.metrics().add(Metrics.EXPANDED, 1);
+        } else {
+            ByteBuffer in = frame.payload();
+            Codec.read_varint(in);
+            frame.payloadLength = in.position() - frame.payloadOffset;
+            frame.compressed = false;
+            loop.metrics().add(Metrics.MALFORMED, 1);
+        }
+
+        int size = Codec.HEADER_SIZE + frame.payloadLength;
+        if (out == null || out.capacity() < size)
+            plain[index] = out = ByteBuffer.allocate(Math.max(size, BufferPool.BUFFER_SIZE));
+
+        out.clear();
+        Codec.encode(out, Frame.ROOM_MESSAGE, frame.session, frame.seq, frame);
+        out.flip();
+        return out;
+    }
+
+    /**
+    * Tells every member whose posts were turned away which post the room
+    * expects next, so that it sends its posts again without waiting for its timers
+    *
+    * @param  loop      the event loop the answers are queued on
+    * @param  sessions  the registry the members' addresses are read from
+    */
+    private void release(EventLoop loop, SessionTable sessions){
+        for (int slot = 0; slot < count; slot++){
+            if (!blocked[slot])
+                continue;
+
+            blocked[slot] = false;
+            Session member = sessions.get(members[slot]);
+            if (member == null)
+                continue;
+
+            ByteBuffer out = loop.acquire();
+            int gap = Codec.begin(out, Frame.ROOM_SENT, members[slot]);
+            Codec.put_varint(out, id);
+            Codec.put_varint(out, 0);
+            Codec.finish(out, gap, posts[slot]);
+            out.flip();
+            loop.send(out, member.endpoint);
+        }
+
+        waiting = 0;
+    }
+
+    /**
+    * Writes the room to a snapshot: the messages not every member has acked
+    * and, for every member, the next message it expects and the next post
+    * expected from it. Messages in flight go again once the room is read
+    * back, so only the acks are kept
+    *
+    * Layout: the name, the oldest message kept, the next message number,
+    * the encoded messages in order, the number of members, then for every
+    * member its client number, the message it expects and the post expected
+    *
+    * @param  snapshot  the snapshot being encoded
+    */
+    public void save(Snapshot snapshot){
+        trim();
+        ByteBuffer out = snapshot.reserve(Codec.text_size(name) + 10);
+        Codec.put_text(out, name);
+        Codec.put_varint(out, base);
+        Codec.put_varint(out, next);
+
+        for (int number = base; number != next; number++){
+            ByteBuffer message = history[number & mask];
+            out = snapshot.reserve(5 + message.remaining());
+            Codec.put_varint(out, message.remaining());
+            out.put(message.duplicate());
+        }
+
+        out = snapshot.reserve(5 + count * 15);
+        Codec.put_varint(out, count);
+        for (int slot = 0; slot < count; slot++){
+            Codec.put_varint(out, members[slot]);
+            Codec.put_varint(out, acked[slot]);
+            Codec.put_varint(out, posts[slot]);
+        }
+    }
+
+    /**
+    * Reads back what save wrote into the new room, after its name
+    *
+    * @param  in        the snapshot, positioned after the room's name
+    * @return whether the room was read whole
+    */
+    public boolean load(ByteBuffer in){
+        int first = Codec.read_varint(in);
+        int last = Codec.read_varint(in);
+        if (first < 0 || last - first < 0 || last - first > mask + 1)
+            return false;
+
+        base = first;
+        next = last;
+        for (int number = first; number != last; number++){
+            int length = Codec.read_varint(in);
+            if (length < 0 || length > in.remaining() || length > BufferPool.FRAME_SIZE)
+                return false;
+
+            ByteBuffer message = ByteBuffer.allocate(Math.max(length, BufferPool.BUFFER_SIZE));
+            int end = in.limit();
+            in.limit(in.position() + length);
+            message.put(in);
+            in.limit(end);
+            message.flip();
+            history[number & mask] = message;
+        }
+
+        // Adds the members back, every message they did not ack going to them again
+        int members = Codec.read_varint(in);
+        for (int i = 0; i < members; i++){
+            int client = Codec.read_varint(in);
+            int expects = Codec.read_varint(in);
+            int post = Codec.read_varint(in);
+            if (client <= 0 || post < 0 || expects - first < 0 || expects - last > 0)
+                return false;
+
+            add(client);
+            int slot = slots.get(client);
+            acked[slot] = expects;
+            sent[slot] = expects;
+            posts[slot] = post;
+        }
+
+        return true;
+    }
+
+    /**
+    * Returns whether every member has acked every message, so that the room
+    * needs no more pumping until the next post
+    *
+    * @return whether nothing is waiting to be sent or acked
+    */
+    public boolean idle(){
+        for (int i = 0; i < count; i++){
+            if (acked[i] != next)
+                return false;
+        }
+
+        return true;
+    }
+}
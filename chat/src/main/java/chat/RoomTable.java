@@ -0,0 +1,210 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+// Registry of the chat rooms by number and by name, and the queue of rooms
+// whose members still have messages to be sent. Rooms that only wait on acks
+// leave the queue and sleep on the timing wheel until a retransmission is due
+public class RoomTable {
+    // Attributes used for the rooms
+    private Room[] rooms;
+    private HashMap<String, Room> names;
+    private IdAllocator roomIDs;
+    private int history;
+
+    // Rooms with messages still to be sent, pumped in turn
+    private ArrayDeque<Room> active;
+
+    // Wheel the rooms waiting on acks are scheduled on
+    private TimingWheel wheel;
+
+    /**
+    * Wakes a room up once its earliest retransmission is due
+    */
+    private class RetransmitTimer extends TimingWheel.Timer {
+        private Room room;
+
+        /**
+        * @param  room      the room woken up
+        */
+        RetransmitTimer(Room room){
+            this.room = room;
+        }
+
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            activate(room);
+        }
+    }
+
+    /**
+    * Creates an empty registry
+    *
+    * @param  capacity  the highest room number
+    * @param  history   the number of messages each room keeps until every member acks them
+    * @param  wheel     the wheel the retransmissions are scheduled on
+    */
+    RoomTable(int capacity, int history, TimingWheel wheel){
+        rooms = new Room[capacity + 1];
+        names = new HashMap<String, Room>();
+        roomIDs = new IdAllocator(capacity);
+        active = new ArrayDeque<Room>();
+        this.history = history;
+        this.wheel = wheel;
+    }
+
+    /**
+    * Retrieves a room by its number
+    *
+    * @param  id        the room's number
+    * @return the room, or null if there is none with that number
+    */
+    public Room get(int id){
+        if (id <= 0 || id >= rooms.length)
+            return null;
+
+        return rooms[id];
+    }
+
+    /**
+    * Retrieves a room by its name, creating it if it does not exist yet
+    *
+    * @param  name      the room's name
+    * @return the room, or null if every room number is in use
+    */
+    public Room open(String name){
+        Room room = names.get(name);
+        if (room != null)
+            return room;
+
+        int id = roomIDs.allocate();
+        if (id == 0)
+            return null;
+
+        room = new Room(id, name, history);
+        room.timer = new RetransmitTimer(room);
+        rooms[id] = room;
+        names.put(name, room);
+        return room;
+    }
+
+    /**
+    * Creates a room under the number it had before a restart, read back from
+    * a snapshot, the rooms are all restored before finish_restore is called
+    *
+    * @param  id        the room's number
+    * @param  name      the room's name
+    * @return the empty room, or null if the number or the name is taken
+    */
+    public Room restore(int id, String name){
+        if (id <= 0 || id >= rooms.length || names.containsKey(name) || !roomIDs.claim(id))
+            return null;
+
+        Room room = new Room(id, name, history);
+        room.timer = new RetransmitTimer(room);
+        rooms[id] = room;
+        names.put(name, room);
+        return room;
+    }
+
+    /**
+    * Hands out the room numbers that were not restored again
+    */
+    public void finish_restore(){
+        roomIDs.relink();
+    }
+
+    /**
+    * Returns the highest room number
+    *
+    * @return the capacity of the registry
+    */
+    public int capacity(){
+        return rooms.length - 1;
+    }
+
+    /**
+    * Removes a room once its last member has left
+    *
+    * @param  room      the empty room
+    */
+    public void close(Room room){
+        rooms[room.id] = null;
+        names.remove(room.name);
+        roomIDs.release(room.id);
+        room.active = false;
+        wheel.cancel(room.timer);
+    }
+
+    /**
+    * Queues a room to be pumped until every member has acked every message,
+    * the pump works out when its next retransmission is due again
+    *
+    * @param  room      the room with messages to send
+    */
+    public void activate(Room room){
+        if (room.active)
+            return;
+
+        wheel.cancel(room.timer);
+        room.active = true;
+        active.add(room);
+    }
+
+    /**
+    * Pumps the active rooms in turn until the budget runs out, dropping the
+    * rooms whose members have acked everything from the queue and scheduling
+    * the rooms that only wait on acks for their next retransmission
+    *
+    * @param  loop      the event loop the messages are queued on
+    * @param  sessions  the registry the members' addresses are read from
+    * @param  budget    the most messages to queue
+    * @param  now       the time in nanoseconds
+    * @param  timeout   how long a member waits for a message before it is sent again, in nanoseconds
+    * @return the budget left
+    */
+    public int pump(EventLoop loop, SessionTable sessions, int budget, long now, long timeout){
+        for (int n = active.size(); n > 0 && budget > 0; n--){
+            Room room = active.poll();
+            if (!room.active)
+                continue;
+
+            budget = room.pump(loop, sessions, budget, now, timeout);
+
+            // Keeps the room queued, behind the others, while it has messages to
+            // send, and closes it if pumping dropped its last member
+            if (room.size() == 0)
+                close(room);
+            else if (room.idle())
+                room.active = false;
+            else if (room.due != 0){
+                room.active = false;
+                wheel.schedule(room.timer, room.due);
+            } else
+                active.add(room);
+        }
+
+        return budget;
+    }
+
+    /**
+    * Returns the number of open rooms
+    *
+    * @return the number of rooms
+    */
+    public int size(){
+        return names.size();
+    }
+
+    /**
+    * Returns whether any room still has messages to send
+    *
+    * @return whether pumping has anything to do
+    */
+    public boolean busy(){
+        return !active.isEmpty();
+    }
+}
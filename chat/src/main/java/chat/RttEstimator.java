@@ -0,0 +1,108 @@
+package chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Retransmission timeout for one path, worked out from the round trip times
+// measured on it. Keeps a smoothed round trip time and its variance the way
+// TCP does, so that recovery from a lost datagram takes about as long as the
+// path is slow, and backs off exponentially with jitter when retries go unanswered
+public class RttEstimator {
+    // Gains of the smoothed round trip time and of its variance
+    private static final int ALPHA_SHIFT = 3;
+    private static final int BETA_SHIFT = 2;
+
+    // Bounds of the timeout, in nanoseconds
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.client.rto.min", 5));
+    private static final long MAX_RTO = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.client.rto.max", 5*1000));
+
+    // Timeout before the first measurement, in nanoseconds
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.client.rto", 200));
+
+    // Attributes used for the estimate, in nanoseconds
+    private long srtt;
+    private long rttvar;
+    private long rto;
+    private boolean measured;
+
+    /**
+    * Creates an estimator that has not measured anything yet
+    */
+    RttEstimator(){
+        reset();
+    }
+
+    /**
+    * Forgets every measurement, once the path leads somewhere else
+    */
+    public void reset(){
+        srtt = 0;
+        rttvar = 0;
+        rto = INITIAL_RTO;
+        measured = false;
+    }
+
+    /**
+    * Adds a round trip time, only measured on datagrams that were sent once
+    * so that an answer is never matched to the wrong copy
+    *
+    * @param  rtt       the round trip time in nanoseconds
+    */
+    public void sample(long rtt){
+        rtt = Math.max(rtt, 1);
+
+        // The first measurement stands for the whole estimate
+        if (!measured){
+            srtt = rtt;
+            rttvar = rtt / 2;
+            measured = true;
+        } else {
+            long error = Math.abs(srtt - rtt);
+            rttvar += (error - rttvar) >> BETA_SHIFT;
+            srtt += (rtt - srtt) >> ALPHA_SHIFT;
+        }
+
+        rto = Math.min(Math.max(srtt + 4 * rttvar, MIN_RTO), MAX_RTO);
+    }
+
+    /**
+    * Returns how long to wait for an answer to a datagram
+    *
+    * @param  attempts  how many times the datagram was already sent again
+    * @return the timeout in nanoseconds, doubled for every retry
+    */
+    public long timeout(int attempts){
+        return Math.min(rto << Math.min(attempts, 20), MAX_RTO);
+    }
+
+    /**
+    * Returns how long to wait before sending a datagram again, with up to a
+    * quarter added at random so that clients that lost datagrams together do
+    * not all retry together
+    *
+    * @param  attempts  how many times the datagram was already sent again
+    * @return the delay in nanoseconds
+    */
+    public long backoff(int attempts){
+        long timeout = timeout(attempts);
+        return timeout + ThreadLocalRandom.current().nextLong(timeout / 4 + 1);
+    }
+
+    /**
+    * Returns the smoothed round trip time
+    *
+    * @return the time in nanoseconds, or 0 before the first measurement
+    */
+    public long srtt(){
+        return srtt;
+    }
+
+    /**
+    * Returns the variance of the round trip time
+    *
+    * @return the time in nanoseconds
+    */
+    public long rttvar(){
+        return rttvar;
+    }
+}
@@ -0,0 +1,256 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+// Sending half of selective-repeat delivery. Up to a window of messages are
+// in flight at once, each is sent again on its own once its timer runs out,
+// and messages beyond the window wait in a backlog until acks make room. The
+// timers come from the round trip times the acks measure
+public class SendWindow {
+    // Attributes used for the messages in flight, indexed by sequence number
+    private int mask;
+    private int base;
+    private int next;
+    private String[] texts;
+    private long[] sentAt;
+    private long[] deadlines;
+    private int[] retries;
+    private boolean[] acked;
+
+    // Attributes used for the round trip the ack being applied measures
+    private long newest;
+    private boolean sampled;
+    private CompletableFuture<Void>[] futures;
+
+    // Attributes used for the messages waiting for room in the window
+    private ArrayDeque<String> backlog = new ArrayDeque<String>();
+    private ArrayDeque<CompletableFuture<Void>> backlogFutures = new ArrayDeque<CompletableFuture<Void>>();
+
+    /**
+    * Creates an empty window
+    *
+    * @param  size      the number of messages in flight at once, rounded up to a power of two
+    */
+    @SuppressWarnings("unchecked")
+    SendWindow(int size){
+        int capacity = 1;
+        while (capacity < size)
+            capacity <<= 1;
+
+        mask = capacity - 1;
+        texts = new String[capacity];
+        sentAt = new long[capacity];
+        deadlines = new long[capacity];
+        retries = new int[capacity];
+        acked = new boolean[capacity];
+        futures = (CompletableFuture<Void>[]) new CompletableFuture<?>[capacity];
+    }
+
+    /**
+    * Adds a message, into the window if there is room and otherwise to the backlog
+    *
+    * @param  text      the message
+    * @param  future    completed once the message is acked
+    * @return the sequence number to send the message with now, or -1 if it waits
+    */
+    public int add(String text, CompletableFuture<Void> future){
+        if (next - base > mask || !backlog.isEmpty()){
+            backlog.add(text);
+            backlogFutures.add(future);
+            return -1;
+        }
+
+        return place(text, future);
+    }
+
+    /**
+    * Moves a message into the next free slot of the window
+    *
+    * @param  text      the message
+    * @param  future    completed once the message is acked
+    * @return the sequence number of the message
+    */
+    private int place(String text, CompletableFuture<Void> future){
+        int seq = next++;
+        int slot = seq & mask;
+        texts[slot] = text;
+        retries[slot] = -1;
+        acked[slot] = false;
+        futures[slot] = future;
+        return seq;
+    }
+
+    /**
+    * Moves a message from the backlog into the window if there is room
+    *
+    * @return the sequence number of the message to send, or -1 if none moved
+    */
+    public int admit(){
+        if (backlog.isEmpty() || next - base > mask)
+            return -1;
+
+        return place(backlog.poll(), backlogFutures.poll());
+    }
+
+    /**
+    * Notes that a message was just sent and starts its timer, which backs off
+    * every time the message is sent again
+    *
+    * @param  seq       the sequence number of the message
+    * @param  now       the time in nanoseconds
+    * @param  rtt       the estimate of the path to the partner
+    */
+    public void sent(int seq, long now, RttEstimator rtt){
+        int slot = seq & mask;
+        int attempts = ++retries[slot];
+        sentAt[slot] = now;
+        deadlines[slot] = now + (attempts == 0 ? rtt.timeout(0) : rtt.backoff(attempts));
+    }
+
+    /**
+    * Returns the message with a sequence number in the window
+    *
+    * @param  seq       the sequence number
+    * @return the message
+    */
+    public String text(int seq){
+        return texts[seq & mask];
+    }
+
+    /**
+    * Applies an ack, completing every message it covers and sliding the window
+    *
+    * @param  cumulative    the next sequence number the receiver expects
+    * @param  sack          the bitmap of messages after it that were received, bit 0 of the first byte being cumulative + 1
+    * @param  now           the time in nanoseconds
+    * @param  rtt           the estimate of the path to the partner, given the round trip the ack measures
+    */
+    public void ack(int cumulative, ByteBuffer sack, long now, RttEstimator rtt){
+        // Ignores acks for messages that were never sent
+        if (cumulative - next > 0)
+            return;
+
+        // Everything before the cumulative ack was received
+        sampled = false;
+        for (int seq = base; seq - cumulative < 0; seq++)
+            complete(seq);
+
+        // Marks the messages received past the gap
+        for (int i = 0; sack.hasRemaining(); i += 8){
+            int bits = sack.get() & 0xFF;
+            for (int bit = 0; bits != 0; bit++, bits >>>= 1){
+                int seq = cumulative + 1 + i + bit;
+                if ((bits & 1) != 0 && seq - base >= 0 && seq - next < 0)
+                    complete(seq);
+            }
+        }
+
+        // Measures the round trip of the latest message the ack newly covers
+        if (sampled)
+            rtt.sample(now - newest);
+
+        // Slides the window past every acked message
+        while (base != next && acked[base & mask])
+            base++;
+    }
+
+    /**
+    * Marks a message as acked and completes its future
+    *
+    * @param  seq       the sequence number of the message
+    */
+    private void complete(int seq){
+        int slot = seq & mask;
+        if (acked[slot])
+            return;
+
+        acked[slot] = true;
+        texts[slot] = null;
+        CompletableFuture<Void> future = futures[slot];
+        futures[slot] = null;
+        if (future != null)
+            future.complete(null);
+
+        // A message that was sent again cannot tell which copy the ack answers
+        if (retries[slot] == 0 && (!sampled || sentAt[slot] - newest > 0)){
+            newest = sentAt[slot];
+            sampled = true;
+        }
+    }
+
+    /**
+    * Returns whether a message is in the window and not acked yet
+    *
+    * @param  seq       the sequence number
+    * @return whether the message is still in flight
+    */
+    public boolean outstanding(int seq){
+        return seq - base >= 0 && seq - next < 0 && !acked[seq & mask];
+    }
+
+    /**
+    * Returns the first message whose timer has run out
+    *
+    * @param  from      the sequence number to search from
+    * @param  now       the time in nanoseconds
+    * @return the sequence number of the message, or -1 if none is due
+    */
+    public int due(int from, long now){
+        for (int seq = from - base > 0 ? from : base; seq - next < 0; seq++){
+            int slot = seq & mask;
+            if (!acked[slot] && now - deadlines[slot] >= 0)
+                return seq;
+        }
+
+        return -1;
+    }
+
+    /**
+    * Returns when the next timer runs out
+    *
+    * @return the time in nanoseconds, or Long.MAX_VALUE if nothing is in flight
+    */
+    public long next_due(){
+        long earliest = Long.MAX_VALUE;
+        for (int seq = base; seq - next < 0; seq++){
+            int slot = seq & mask;
+            if (!acked[slot])
+                earliest = Math.min(earliest, deadlines[slot]);
+        }
+
+        return earliest;
+    }
+
+    /**
+    * Returns whether any message is in flight or waiting
+    *
+    * @return whether the window or the backlog holds a message
+    */
+    public boolean busy(){
+        return base != next || !backlog.isEmpty();
+    }
+
+    /**
+    * Fails every message that was not acked, once the chat ends
+    *
+    * @param  cause     the reason the messages were not delivered
+    */
+    public void clear(Throwable cause){
+        for (int seq = base; seq - next < 0; seq++){
+            CompletableFuture<Void> future = futures[seq & mask];
+            futures[seq & mask] = null;
+            texts[seq & mask] = null;
+            if (future != null)
+                future.completeExceptionally(cause);
+        }
+
+        for (CompletableFuture<Void> future : backlogFutures)
+            future.completeExceptionally(cause);
+
+        backlog.clear();
+        backlogFutures.clear();
+        base = next = 0;
+    }
+}
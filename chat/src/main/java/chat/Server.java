@@ -0,0 +1,2137 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// UDP Server thread that interacts with the client
+public class Server extends Thread{
+    // Attributes used for socket connection
+    private EventLoop loop;
+    private Log log;
+    private int serverPort = Integer.getInteger("chat.server.port", 7070);
+    private int maxClients = Integer.getInteger("chat.max.clients", 1 << 16);
+
+    // Whether the clients of a chat are told each other's address, so that
+    // their messages go straight between them instead of through the server.
+    // Turned off while the history is kept, which only sees relayed messages
+    private boolean direct = Boolean.parseBoolean(System.getProperty("chat.server.direct", "true"));
+
+    // Whether clients that ask for it are sent compressed frames, the server
+    // passes compressed text through as it is and only inflates it for the
+    // clients that did not agree to it
+    private boolean compress = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+
+    // Attributes used for the rooms, whose messages are fanned out while
+    // fewer datagrams than the limit wait for the socket
+    private RoomTable rooms;
+    private int roomQueue = Integer.getInteger("chat.room.queue", 512);
+    private long roomTimeout = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.room.rto", 200));
+
+    // Attributes used for the messages offered to chat partners, held in a
+    // bounded queue per client and counted server-wide against a memory limit
+    private int queueDepth = Integer.getInteger("chat.session.queue", 32);
+    private long queueLimit = Long.getLong("chat.queue.memory", 64L << 20);
+    private long queuedBytes;
+    private long queuedMessages;
+
+    // Flags of a session in a snapshot
+    private static final int SNAPSHOT_COMPRESS = 1;
+    private static final int SNAPSHOT_MAIL_STORED = 2;
+    private static final int SNAPSHOT_QUEUE = 4;
+
+    // Attributes used for the timers, kept on a hashed timing wheel advanced
+    // after every pass of the event loop: clients not heard from for the
+    // session timeout are dropped, chat requests left unanswered for the
+    // request timeout are given up on, and rooms waiting on acks are woken up
+    // for their retransmissions. A timeout of 0 turns its timer off
+    private TimingWheel wheel;
+    private long wheelTick = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.wheel.tick", 10));
+    private int wheelSlots = Integer.getInteger("chat.wheel.slots", 4096);
+    private long sessionTimeout = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.session.timeout", 30000));
+    private long requestTimeout = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.request.timeout", 30000));
+
+    // Attributes used for the mail left for clients by nickname, kept in a
+    // log on disk until a client with that nickname is online to take it and
+    // sent to it one at a time until acked. Mail is off unless a directory is set
+    private MailLog mail;
+    private String mailDirectory = System.getProperty("chat.mail.dir", "");
+    private long mailTimeout = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.mail.rto", 500));
+
+    // Attributes used for the history of the messages routed between two
+    // nicknames, kept on disk per conversation for the clients to page
+    // through, and swept for expired segments on a timer. The history is off
+    // unless a directory is set
+    private HistoryLog history;
+    private String historyDirectory = System.getProperty("chat.history.dir", "");
+    private long historySweep = TimeUnit.SECONDS.toNanos(Integer.getInteger("chat.history.sweep", 3600));
+    private Frame recordFrame = new Frame();
+    private ByteBuffer historyPage = ByteBuffer.allocate(BufferPool.FRAME_SIZE - Codec.HEADER_SIZE - 10);
+
+    // Attributes used for the snapshots of the sessions, chats and rooms,
+    // taken on a timer and read back when the server starts, so that a
+    // restart keeps every client connected. Snapshots are off unless a file is set
+    private Snapshot snapshot;
+    private String snapshotFile = System.getProperty("chat.snapshot.file", "");
+    private long snapshotInterval = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.snapshot.interval", 1000));
+    private long snapshotNanos;
+
+    // Attributes used for the cluster, when the server is one node of several
+    // that share out the client numbers. A chat between the clients of two
+    // nodes is kept by the node of the client that was asked, and the frames
+    // of the other client go through its own node, so that every client only
+    // ever talks to the node it connected to. The nodes ping each other on a
+    // timer for the membership view. No list of nodes runs the server alone
+    private Cluster cluster;
+    private long clusterHeartbeat = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.cluster.heartbeat", 500));
+    private int remoteSessions;
+
+    // Attributes used for client information
+    private IdAllocator clientIDs;
+    private SessionTable sessions;
+    private PresenceIndex presence;
+
+    // Attributes used to decode incoming frames, and to put back together the
+    // frames too large for a datagram, held up to a memory limit and a timeout
+    private Frame frame = new Frame();
+    private Fragments fragments = new Fragments(Long.getLong("chat.fragment.memory", 8L << 20),
+        TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.fragment.timeout", 5000)));
+
+    // Attributes used for the metrics, readable over JMX and from the stats port
+    private Metrics metrics;
+    private StatsPort stats;
+
+    /**
+    * Drops a client once it has not been heard from for the session timeout,
+    * checking when it was last heard from only once the timer runs out so
+    * that a frame costs no more than noting the time
+    */
+    private class IdleTimer extends TimingWheel.Timer {
+        private Session session;
+
+        /**
+        * @param  session   the client's session
+        */
+        IdleTimer(Session session){
+            this.session = session;
+        }
+
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            if (now - session.seen < sessionTimeout)
+                wheel.schedule(this, session.seen + sessionTimeout);
+            else
+                evict(session);
+        }
+    }
+
+    /**
+    * Gives up on a chat request the requested client never answered
+    */
+    private class RequestTimer extends TimingWheel.Timer {
+        private Session session;
+
+        /**
+        * @param  session   the requested client's session
+        */
+        RequestTimer(Session session){
+            this.session = session;
+        }
+
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            abandon_request(session);
+        }
+    }
+
+    /**
+    * Sends a client the oldest mail in its mailbox again until it acks it
+    */
+    private class MailTimer extends TimingWheel.Timer {
+        private Session session;
+
+        /**
+        * @param  session   the reading client's session
+        */
+        MailTimer(Session session){
+            this.session = session;
+        }
+
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            send_mail(session, now);
+        }
+    }
+
+    /**
+    * Deletes the history segments past the retention period, then waits for the next sweep
+    */
+    private class HistoryTimer extends TimingWheel.Timer {
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            try {
+                history.sweep();
+            } catch (IOException e) {
+                log.message(Log.WARN, Log.SERVER, "sweeping the history in " + historyDirectory);
+            }
+            wheel.schedule(this, now + historySweep);
+        }
+    }
+
+    /**
+    * Takes a snapshot of the server's state, then waits for the next one
+    */
+    private class SnapshotTimer extends TimingWheel.Timer {
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            save_snapshot();
+            wheel.schedule(this, now + snapshotInterval);
+        }
+    }
+
+    /**
+    * Pings the other nodes of the cluster with the view of this node, and
+    * takes down the nodes that stopped answering, then waits for the next ping
+    */
+    private class ClusterTimer extends TimingWheel.Timer {
+        /**
+        * @param  now       the time in nanoseconds
+        */
+        protected void expire(long now){
+            ping_nodes(now);
+            wheel.schedule(this, now + clusterHeartbeat);
+        }
+    }
+
+    /**
+    * Handles all sever side communication with the clients
+    */ 
+    Server(){
+        // Starts the logger so that nothing on the packet path writes to the console
+        log = Log.from_properties();
+
+        // Joins the cluster if nodes are listed, listening on this node's port
+        try {
+            cluster = Cluster.from_properties(maxClients);
+            if (cluster != null)
+                serverPort = cluster.address(cluster.self()).getPort();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error joining the cluster: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // Starts the non-blocking socket connection
+        try {
+            loop = new EventLoop(serverPort, log);
+        } catch (IOException e) {
+            System.out.println("Error starting the server");
+            System.exit(1);
+        }
+
+        setup();
+
+        // Publishes the metrics over JMX and, unless its port is 0, on the stats port
+        metrics.register("chat:type=Server");
+        int statsPort = Integer.getInteger("chat.stats.port", serverPort + 1);
+        if (statsPort != 0){
+            try {
+                stats = new StatsPort(statsPort, metrics, log);
+            } catch (IOException e) {
+                log.message(Log.ERROR, Log.SERVER, "opening the stats port");
+            }
+        }
+
+        // Starts the client thread
+        start();
+    }
+
+    /**
+    * Creates a server on an event loop that is already open, without starting
+    * its thread so that the packet handlers can be driven directly
+    *
+    * @param  loop      the event loop the frames are sent through
+    * @param  log       the logger events are recorded to
+    */ 
+    Server(EventLoop loop, Log log){
+        this.loop = loop;
+        this.log = log;
+        setup();
+    }
+
+    /**
+    * Instantiates the registries shared by both constructors
+    */ 
+    private void setup(){
+        // Instantiating the session registry used in the program, with room
+        // for the clients of every node of the cluster
+        sessions = new SessionTable(cluster == null ? maxClients : cluster.size() * maxClients);
+        presence = new PresenceIndex(sessions, 4096);
+
+        // Instantiating the client number allocator, over this node's share of the numbers
+        clientIDs = new IdAllocator(cluster == null ? 0 : cluster.base(cluster.self()), maxClients);
+
+        // Instantiating the timers and the rooms, both run after every pass of the event loop
+        wheel = new TimingWheel(wheelTick, wheelSlots, System.nanoTime());
+        rooms = new RoomTable(Integer.getInteger("chat.max.rooms", 4096), Integer.getInteger("chat.room.history", 256), wheel);
+        loop.on_pass(this::run_pass);
+
+        // Opens the mail log, reading back the mail left before a restart
+        if (!mailDirectory.isEmpty()){
+            try {
+                mail = new MailLog(Paths.get(mailDirectory), Integer.getInteger("chat.mail.segment", 16 << 20),
+                    TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.mail.sync", 100)),
+                    Integer.getInteger("chat.mail.limit", 1024));
+            } catch (IOException e) {
+                log.message(Log.ERROR, Log.SERVER, "opening the mail log in " + mailDirectory);
+            }
+        }
+
+        // Opens the history, deleting what is past the retention period now and on every sweep
+        if (!historyDirectory.isEmpty()){
+            try {
+                history = new HistoryLog(Paths.get(historyDirectory), Integer.getInteger("chat.history.segment", 4 << 20),
+                    Long.getLong("chat.history.bytes", 64L << 20),
+                    TimeUnit.HOURS.toMillis(Integer.getInteger("chat.history.retention", 720)),
+                    Integer.getInteger("chat.history.open", 64));
+                if (historySweep > 0)
+                    wheel.schedule(new HistoryTimer(), System.nanoTime() + historySweep);
+
+                // Keeps the chats on the relay, so that their messages are recorded
+                if (direct){
+                    direct = false;
+                    log.message(Log.INFO, Log.SERVER, "keeping the history in " + historyDirectory + ", chats are relayed instead of direct");
+                }
+            } catch (IOException e) {
+                log.message(Log.ERROR, Log.SERVER, "opening the history in " + historyDirectory);
+            }
+        }
+
+        // Reports what the registries hold along with the loop's counters
+        metrics = loop.metrics();
+        metrics.gauge("sessions", sessions::size);
+        metrics.gauge("rooms", rooms::size);
+        metrics.gauge("queued_bytes", this::queued_bytes);
+        metrics.gauge("queued_messages", this::queued_messages);
+        metrics.gauge("write_queue", loop::queued);
+        metrics.gauge("timers", wheel::size);
+        metrics.gauge("fragment_bytes", fragments::bytes);
+        metrics.gauge("fragments_discarded", fragments::discarded);
+        metrics.gauge("mail_waiting", () -> mail == null ? 0 : mail.waiting());
+        metrics.gauge("mail_segments", () -> mail == null ? 0 : mail.segments());
+        metrics.gauge("history_open", () -> history == null ? 0 : history.open());
+        metrics.gauge("snapshot_bytes", () -> snapshot == null ? 0 : snapshot.bytes());
+        metrics.gauge("snapshot_age_ms", () -> snapshot == null ? -1 : snapshot.age());
+        metrics.gauge("snapshot_encode_us", () -> snapshotNanos / 1000);
+        metrics.gauge("snapshots_failed", () -> snapshot == null ? 0 : snapshot.failed());
+        metrics.gauge("cluster_nodes", () -> cluster == null ? 1 : cluster.size());
+        metrics.gauge("cluster_nodes_up", () -> cluster == null ? 1 : Integer.bitCount(cluster.view()));
+        metrics.gauge("cluster_view", () -> cluster == null ? 1 : cluster.view());
+        metrics.gauge("cluster_view_agreed", () -> cluster == null || cluster.agreed() ? 1 : 0);
+        metrics.gauge("cluster_remote_sessions", () -> remoteSessions);
+
+        // Starts pinging the other nodes, which count as down until they answer
+        if (cluster != null && clusterHeartbeat > 0){
+            log.message(Log.INFO, Log.SERVER, "node " + cluster.self() + " of " + cluster.size() + ", client numbers "
+                + (cluster.base(cluster.self()) + 1) + " to " + (cluster.base(cluster.self()) + maxClients));
+            wheel.schedule(new ClusterTimer(), System.nanoTime());
+        }
+
+        // Picks up the sessions of the last server, then saves them on every interval
+        if (!snapshotFile.isEmpty()){
+            restore_snapshot();
+            snapshot = new Snapshot(Paths.get(snapshotFile));
+            if (snapshotInterval > 0)
+                wheel.schedule(new SnapshotTimer(), System.nanoTime() + snapshotInterval);
+        }
+    }
+
+    /**
+    * Queues a frame to be sent to a client
+    *
+    * @param  opcode    the opcode of the frame
+    * @param  session   the client number the frame belongs to
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the frame, or null for none
+    * @param  target    the resolved address of the destination client
+    */ 
+    public void send_packet(int opcode, int session, int seq, String payload, SocketAddress target){
+        log.packet(Log.INFO, Log.OUTGOING, session, opcode, seq, payload);
+
+        // Encodes the frame into a pooled buffer instead of allocating a new byte array
+        ByteBuffer out = loop.acquire();
+        Codec.encode(out, opcode, session, seq, payload);
+        out.flip();
+
+        // Queues the packet on the event loop, which writes it once the socket is writable
+        loop.send(out, target);
+    }
+
+    /**
+    * Process incoming datagram packets from clients
+    *
+    * @param  input     the receive buffer holding the packet from a client
+    * @param  source    the address the packet came from
+    */ 
+    public void process_input(ByteBuffer input, SocketAddress source){
+        // Gets the address and port of where the packet came from
+        InetSocketAddress sourceAddress = (InetSocketAddress) source;
+        int end = input.limit();
+
+        // Tells the datagrams of the other nodes of the cluster apart from the clients'
+        int node = cluster == null ? -1 : cluster.node(sourceAddress);
+        if (node >= 0 && cluster.heard(node, loop.received()))
+            log.message(Log.INFO, Log.SERVER, "node " + node + " is up");
+
+        // Handles every frame the datagram carries, in the order they were coalesced
+        do {
+            // Decodes the frame straight from the receive buffer
+            if (!Codec.decode(input, frame)){
+                log.message(Log.WARN, Log.INCOMING, "malformed packet");
+                metrics.add(Metrics.MALFORMED, 1);
+                return;
+            }
+
+            int next = input.position();
+            if (node >= 0)
+                node_frame(frame, sourceAddress, node);
+            else
+                process_frame(frame, sourceAddress);
+
+            input.limit(end);
+            input.position(next);
+        } while (input.hasRemaining());
+    }
+
+    /**
+    * Processes one frame from a client
+    *
+    * @param  frame         the decoded frame from the client
+    * @param  sourceAddress the address and port the frame came from
+    */ 
+    public void process_frame(Frame frame, InetSocketAddress sourceAddress){
+        // Attempts to retrieve which established client the packet is from
+        int clientID = get_ID(sourceAddress);
+        metrics.frame(frame.opcode);
+
+        // Notes that the client is still there, for its idle timer to check
+        if (clientID != 0)
+            sessions.get(clientID).seen = loop.received();
+
+        client_frame(frame, sourceAddress, clientID);
+    }
+
+    /**
+    * Processes one frame of a client, either one of this node's or one
+    * passed on by the node of a client whose chat is kept here
+    *
+    * @param  frame         the decoded frame from the client
+    * @param  sourceAddress the address and port the frame came from
+    * @param  clientID      the client number for the received data
+    */ 
+    private void client_frame(Frame frame, InetSocketAddress sourceAddress, int clientID){
+        // Gets the client's potential established connection
+        int destID = get_peer(clientID);
+
+        // Drops compressed frames of opcodes that never carry compressed text
+        if (frame.compressed){
+            if (Compression.prefix(frame.opcode) < 0){
+                metrics.add(Metrics.MALFORMED, 1);
+                return;
+            }
+            metrics.add(Metrics.COMPRESSED, 1);
+        }
+
+        // Handles a frame split into fragments once the last of them arrives
+        if (frame.opcode == Frame.FRAGMENT){
+            reassemble(frame, sourceAddress, clientID);
+            return;
+        }
+
+        log.packet(Log.INFO, Log.INCOMING, clientID, frame.opcode, frame.seq, null);
+
+        // Passes the frames of a chat kept by another node of the cluster on to that node
+        if (cluster != null && clientID != 0 && forward(frame, sessions.get(clientID)))
+            return;
+
+        // Checks to see if an established connection as not been setup
+        if (destID == 0 || get_peer(destID) == 0){
+            // Exits the program if the exit message is sent
+            if (frame.opcode == Frame.EXIT){
+                exit_request(sourceAddress);
+            } else {
+                // Sets up connections between clients
+                setup_input(frame, sourceAddress, clientID);
+            }
+        } else {
+            // Terminates the connection if an exit message is received
+            if (frame.opcode == Frame.EXIT)
+                exit_chat(clientID);
+            else if (frame.opcode == Frame.MESSAGE_ACK || frame.opcode == Frame.MESSAGE_RESPONSE){
+                // Routes chat messages to the connected client
+                route_message(frame, clientID);
+            } else if (frame.opcode == Frame.DATA || frame.opcode == Frame.DATA_ACK){
+                // Passes windowed messages and their acks straight through
+                relay_message(frame, destID);
+            } else {
+                // Anything else, such as fetching the online list, works as outside a chat
+                setup_input(frame, sourceAddress, clientID);
+            }
+        }
+    }
+
+    /**
+    * Processes one frame from another node of the cluster: its pings, its
+    * requests and notices about its clients, the frames its clients send in
+    * a chat kept here, and the frames it sends to the clients of this node
+    * in a chat it keeps, which are passed on to them
+    *
+    * @param  frame     the decoded frame from the node
+    * @param  source    the address and port of the node
+    * @param  node      the index of the node
+    */ 
+    private void node_frame(Frame frame, InetSocketAddress source, int node){
+        metrics.frame(frame.opcode);
+
+        switch (frame.opcode){
+            // Notes the view of the node, hearing from it was enough to keep it up
+            case Frame.NODE_PING:
+                cluster.reported(node, frame.seq);
+                return;
+
+            // Asks a client of this node to chat with a client of the node
+            case Frame.NODE_REQUEST:
+                remote_request(frame, source, node);
+                return;
+
+            // Ends the chat and requests of a client that left the node
+            case Frame.NODE_LEAVE:
+                Session left = sessions.get(frame.session);
+                if (left != null && left.remote && cluster.owner(left.id) == node)
+                    remove_client(left);
+                return;
+
+            // Frees a client of this node whose chat, kept by the node, is over
+            case Frame.NODE_ENDED:
+                Session ended = sessions.get(frame.session);
+                if (ended != null && !ended.remote && ended.peer == frame.seq)
+                    ended.peer = 0;
+                return;
+        }
+
+        // Passes the frames for the clients of this node on to them
+        if (cluster.owns(frame.session)){
+            pass_on(frame);
+            return;
+        }
+
+        // Handles the frames of the node's clients in the chats kept here
+        Session session = sessions.get(frame.session);
+        if (session == null || !session.remote || cluster.owner(session.id) != node){
+            metrics.add(Metrics.DROPPED, 1);
+            return;
+        }
+
+        session.seen = loop.received();
+        if (frame.opcode != Frame.HEARTBEAT)
+            client_frame(frame, source, session.id);
+    }
+
+    /**
+    * Passes a frame another node sent for a client of this node on to the
+    * client, noting what it says about a chat the other node keeps
+    *
+    * @param  frame     the decoded frame, whose session is the client
+    */ 
+    private void pass_on(Frame frame){
+        Session session = sessions.get(frame.session);
+        if (session == null){
+            metrics.add(Metrics.DROPPED, 1);
+            return;
+        }
+
+        // The client the request went to accepted it, or the request failed
+        if (frame.opcode == Frame.PEER_NAME && remote(session, session.requested)){
+            session.peer = session.requested;
+            session.requested = 0;
+        } else if (frame.opcode == Frame.CONNECTION_FAILURE && remote(session, session.requested)){
+            session.requested = 0;
+        }
+
+        ByteBuffer out = loop.acquire(Codec.HEADER_SIZE + frame.payloadLength);
+        Codec.encode(out, frame.opcode, frame.session, frame.seq, frame);
+        out.flip();
+
+        metrics.add(Metrics.FORWARDED, 1);
+        loop.send(out, session.endpoint);
+    }
+
+    /**
+    * Passes a frame of a client in a chat, or waiting on a request, kept by
+    * another node of the cluster on to that node
+    *
+    * @param  frame     the decoded frame from the client
+    * @param  session   the client's session
+    * @return whether the frame was passed on, false if it is handled here
+    */ 
+    private boolean forward(Frame frame, Session session){
+        int partner = session.peer != 0 ? session.peer : session.requested;
+        if (!remote(session, partner))
+            return false;
+
+        // Only the frames of a chat go to the other node, and the heartbeats
+        // that keep the client's session there while it waits for an answer
+        switch (frame.opcode){
+            case Frame.HEARTBEAT:
+                break;
+
+            case Frame.EXIT:
+                if (session.peer == 0)
+                    return false;
+                session.peer = 0;
+                break;
+
+            case Frame.MESSAGE_ACK:
+            case Frame.MESSAGE_RESPONSE:
+            case Frame.DATA:
+            case Frame.DATA_ACK:
+                if (session.peer == 0)
+                    return false;
+                break;
+
+            default:
+                return false;
+        }
+
+        ByteBuffer out = loop.acquire(Codec.HEADER_SIZE + frame.payloadLength);
+        Codec.encode(out, frame.opcode, session.id, frame.seq, frame);
+        out.flip();
+
+        metrics.add(Metrics.FORWARDED, 1);
+        loop.send(out, cluster.address(cluster.owner(partner)));
+        return true;
+    }
+
+    /**
+    * Checks whether the chat or request between a client of this node and a
+    * client of another node of the cluster is kept by the other node, which
+    * it is unless the partner's remote session here is linked to the client
+    *
+    * @param  session   the session of the client of this node
+    * @param  partner   the number of its partner, or 0 for none
+    * @return whether the other node keeps the chat or request
+    */ 
+    private boolean remote(Session session, int partner){
+        if (cluster == null || partner == 0 || cluster.owns(partner) || cluster.owner(partner) < 0)
+            return false;
+
+        Session other = sessions.get(partner);
+        return other == null || (other.peer != session.id && other.requested != session.id);
+    }
+
+    /**
+    * Adds a fragment from a client, processing the frame it belongs to once complete
+    *
+    * @param  frame         the decoded fragment
+    * @param  source        the address and port the fragment came from
+    * @param  clientID      the client number for the received data
+    */ 
+    public void reassemble(Frame frame, InetSocketAddress source, int clientID){
+        // Only takes fragments from known clients, so that no one else can hold the memory
+        if (clientID == 0){
+            metrics.add(Metrics.DROPPED, 1);
+            return;
+        }
+
+        ByteBuffer whole = fragments.add(clientID, frame.seq, frame.payload(), loop.received());
+        if (whole == null)
+            return;
+
+        metrics.add(Metrics.REASSEMBLED, 1);
+        process_input(whole, source);
+        fragments.release(whole);
+    }
+
+    /**
+    * Protocols for a client before a connection has been established
+    *
+    * @param  frame         the decoded frame from the client
+    * @param  source        the address and port the frame came from
+    * @param  clientID      the client number for the received data
+    */ 
+    public void setup_input(Frame frame, InetSocketAddress source, int clientID){
+        // Only a connection request is accepted from an unknown client
+        if (clientID == 0 && frame.opcode != Frame.CONNECTION_REQUEST){
+            metrics.add(Metrics.DROPPED, 1);
+            return;
+        }
+
+        // Different protocol depending on which opcode is sent
+        switch (frame.opcode) {
+            // Server saves the information for a client who wants to establish a connection
+            case Frame.CONNECTION_REQUEST:
+                // Grants the same number again if the client repeats its request
+                if (clientID != 0){
+                    metrics.add(Metrics.DUPLICATES, 1);
+                    send_packet(Frame.CONNECTION_GRANTED, clientID, sessions.get(clientID).compress ? 1 : 0, null, source);
+                    return;
+                }
+
+                // Denies the connection if there are too many established client connections
+                if (clientIDs.empty()){
+                    send_packet(Frame.CONNECTION_DENIED, 0, 0, null, source);
+                    return;
+                }
+
+                // Adds clients to established clients and hands them their client
+                // number, agreeing to compressed frames if the client asked for them
+                Session added = sessions.get(add_client(source));
+                added.compress = compress && frame.seq == 1;
+                send_packet(Frame.CONNECTION_GRANTED, added.id, added.compress ? 1 : 0, null, source);
+                break;
+
+            // Sends a page of the list of all active connections on the server
+            case Frame.ONLINE_REQUEST:
+                send_online_page(frame.seq, clientID);
+                break;
+
+            // Sends the changes to the list since the version the client has
+            case Frame.ONLINE_CHANGES:
+                send_online_changes(frame.seq, clientID);
+                break;
+
+            // Attempts to establish a connection from the source client to a desired client
+            case Frame.CLIENT_REQUEST:
+                // Passes a request for a client of another node on to that node, which answers the client
+                if (cluster != null && !cluster.owns(frame.seq)){
+                    if (!forward_request(frame.seq, clientID))
+                        send_packet(Frame.CONNECTION_FAILURE, clientID, 0, null, source);
+                    break;
+                }
+
+                // Notifies the client if the connection can be made
+                if (connection_request(frame.seq, clientID)){
+                    send_packet(Frame.WAITING, clientID, 0, null, source);
+                } else {
+                    send_packet(Frame.CONNECTION_FAILURE, clientID, 0, null, source);
+                }
+                break;
+
+            // Notifies a client that a connection is being attempted
+            case Frame.CLIENT_ACK_RESPONSE:
+                // Confirms the chat again if the client repeats an answer that opened it
+                Session answering = sessions.get(clientID);
+                Session partner = sessions.get(answering.peer);
+                if (partner != null && partner.peer == clientID){
+                    metrics.add(Metrics.DUPLICATES, 1);
+                    send_packet(Frame.CONNECTION_SUCCESS, clientID, 0, null, source);
+                    break;
+                }
+
+                // Notifies the client whether the connection setup was successful
+                if (connection_setup(frame.seq == 1, clientID)){
+                    send_packet(Frame.CONNECTION_SUCCESS, clientID, 0, null, source);
+                    if (direct)
+                        send_endpoints(clientID);
+                } else {
+                    send_packet(Frame.CONNECTION_FAILURE, clientID, 0, null, source);
+                }
+                break;
+
+            // Adds the client to a room, which is created if it is new
+            case Frame.ROOM_JOIN:
+                join_room(frame.payload_string(), clientID);
+                break;
+
+            // Removes the client from a room, repeats are answered the same
+            case Frame.ROOM_LEAVE:
+                leave_room(frame.seq, clientID);
+                send_packet(Frame.ROOM_LEFT, clientID, frame.seq, null, source);
+                break;
+
+            // Posts a message to every member of a room
+            case Frame.ROOM_SEND:
+                post_message(frame, clientID);
+                break;
+
+            case Frame.ROOM_ACK:
+                ack_room(frame, clientID);
+                break;
+
+            // Sets a nickname for a client, or turns it away
+            case Frame.NICKNAME:
+                if (set_nickname(frame.payload_string(), clientID))
+                    send_packet(Frame.SUCCESS, clientID, 0, null, source);
+                else
+                    send_packet(Frame.FAILURE, clientID, 0, null, source);
+                break;
+
+            // Keeps a quiet client's session, receiving the frame was enough
+            case Frame.HEARTBEAT:
+                break;
+
+            // Stores mail for a nickname until a client with it takes the mail
+            case Frame.MAIL:
+                leave_mail(frame, clientID);
+                break;
+
+            // Moves on to the next mail once the client has the oldest one
+            case Frame.MAIL_ACK:
+                ack_mail(frame.seq, clientID);
+                break;
+
+            // Pages through the messages the client exchanged with a nickname
+            case Frame.HISTORY_REQUEST:
+                send_history(frame, clientID);
+                break;
+        }
+    }
+
+
+    /**
+    * Retrieves the client number given an address and port
+    *
+    * @param  source        the address and port of the client
+    * @return the number of the client with the given address and port, or 0 if unknown
+    */ 
+    public int get_ID(InetSocketAddress source){
+        return sessions.find(source);
+    }
+
+
+    /**
+    * Retrieves the client a client is paired with
+    *
+    * @param  clientID      the client number
+    * @return the number of the paired client, or 0 if there is none
+    */ 
+    public int get_peer(int clientID){
+        Session session = sessions.get(clientID);
+        return session == null ? 0 : session.peer;
+    }
+
+
+    /**
+    * Adds the client sever storage
+    *
+    * @param  source        the address and port of the client
+    * @return the client number handed to the client
+    */ 
+    public int add_client(InetSocketAddress source){
+        // Gets the client number through the most available
+        int clientID = clientIDs.allocate();
+
+        // Saves client information in the session registry, keeping the
+        // resolved address so that sends never have to rebuild it
+        Session session = sessions.add(clientID, source);
+        presence.join(clientID);
+
+        // Drops the client if it goes quiet for longer than the session timeout
+        session.seen = loop.received();
+        if (sessionTimeout > 0){
+            session.idle = new IdleTimer(session);
+            wheel.schedule(session.idle, session.seen + sessionTimeout);
+        }
+
+        return clientID;
+    }
+
+
+    /**
+    * Closes the client connection with the server
+    *
+    * @param  source        the address and port of the client
+    */ 
+    public void exit_request(InetSocketAddress source){
+        // Gets client information
+        int sourceID = get_ID(source);
+
+        // Ignores repeated exit messages from a client that already left
+        if (sourceID == 0)
+            return;
+
+        remove_client(sessions.get(sourceID));
+    }
+
+
+    /**
+    * Drops a client that has not been heard from for the session timeout,
+    * such as one that crashed without sending its exit message
+    *
+    * @param  session   the client's session
+    */ 
+    public void evict(Session session){
+        // Ignores a timer left over from a client that already left
+        if (sessions.get(session.id) != session)
+            return;
+
+        // Only counts the clients of this node, another node's go once its node stops passing their frames on
+        if (!session.remote){
+            log.message(Log.INFO, Log.SERVER, session.name + " timed out");
+            metrics.add(Metrics.EVICTED, 1);
+        }
+        remove_client(session);
+    }
+
+
+    /**
+    * Removes a client from the server, ending its chat or chat request so
+    * that no other client is left waiting on it
+    *
+    * @param  session   the client's session
+    */ 
+    private void remove_client(Session session){
+        int sourceID = session.id;
+        Session connected = sessions.get(session.peer);
+
+        // Tells the chat partner the chat is over, or the client waiting on
+        // an answer from this one that the request failed
+        if (connected != null && connected.peer == sourceID){
+            exit_chat(sourceID);
+            send_message(Frame.PEER_LEFT, sourceID, null, connected.id);
+        } else if (connected != null && connected.requested == sourceID){
+            connected.requested = 0;
+            send_message(Frame.CONNECTION_FAILURE, 0, null, connected.id);
+        }
+
+        // Frees the client this one asked to chat with, if it has not answered yet
+        Session requested = sessions.get(session.requested);
+        if (requested != null && requested.peer == sourceID && session.peer == 0){
+            requested.peer = 0;
+            wheel.cancel(requested.request);
+        }
+
+        // Tells the node keeping a chat or request with one of its clients that this client left
+        if (cluster != null && !session.remote)
+            leave_nodes(session);
+
+        // Drops a client of another node, which was never on this node's online list or numbers
+        if (session.remote){
+            clear_queue(sessions.remove(sourceID));
+            wheel.cancel(session.idle);
+            wheel.cancel(session.request);
+            remoteSessions--;
+            return;
+        }
+
+        // Removes the client from every room it is in
+        for (int room : session.rooms)
+            leave_room(room, sourceID);
+
+        // Removes the connection information from the server, leaving its
+        // mail waiting for the next client with its nickname
+        presence.leave(sourceID);
+        clear_queue(sessions.remove(sourceID));
+        release_mailbox(session);
+        wheel.cancel(session.idle);
+        wheel.cancel(session.request);
+
+        // Puts the current client number back in the free list
+        clientIDs.release(sourceID);
+    }
+
+
+    /**
+    * Closes the client connection with the server
+    *
+    * @param  sourceID   the client's number
+    */ 
+    public void exit_chat(int sourceID){
+        Session source = sessions.get(sourceID);
+
+        // Gets the session of the user the client is connected to
+        Session connected = sessions.get(source.peer);
+
+        // Removes the associated ID's and drops the messages still offered
+        source.peer = 0;
+        metrics.add(Metrics.CHATS, -1);
+        clear_queue(source);
+
+        if (connected != null){
+            connected.peer = 0;
+            clear_queue(connected);
+
+            // Frees a partner of another node on its own node as well
+            if (connected.remote)
+                send_packet(Frame.NODE_ENDED, connected.id, sourceID, null, connected.endpoint);
+        }
+    }
+
+
+    /**
+    * Drops the messages a client offered that its partner has not answered
+    *
+    * @param  session   the client's session
+    */ 
+    private void clear_queue(Session session){
+        if (session.outbound == null)
+            return;
+
+        queuedBytes -= session.outbound.bytes();
+        queuedMessages -= session.outbound.size();
+        session.outbound.clear(loop);
+    }
+
+
+    /**
+    * Returns the memory taken up by every message offered and not answered yet
+    *
+    * @return the number of encoded bytes queued across every client
+    */ 
+    public long queued_bytes(){
+        return queuedBytes;
+    }
+
+
+    /**
+    * Returns the number of messages offered and not answered yet
+    *
+    * @return the number of messages queued across every client
+    */ 
+    public long queued_messages(){
+        return queuedMessages;
+    }
+
+
+    /**
+    * Sends one page of the list of all of the currently online clients
+    *
+    * @param  cursor     the last client number of the previous page, or 0 for the first page
+    * @param  sourceID   the client's number
+    * @return the cursor of the next page, or 0 if this was the last page
+    */ 
+    public int send_online_page(int cursor, int sourceID){
+        // Writes the page straight into a pooled buffer from the presence index
+        ByteBuffer out = loop.acquire();
+        int gap = Codec.begin(out, Frame.ONLINE_LIST, sourceID);
+        int next = presence.write_page(out, cursor);
+        Codec.finish(out, gap, next);
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.ONLINE_LIST, next, null);
+        loop.send(out, sessions.get(sourceID).endpoint);
+        return next;
+    }
+
+
+    /**
+    * Sends the changes to the online list since a version the client has
+    *
+    * @param  since      the version of the list the client has
+    * @param  sourceID   the client's number
+    */ 
+    public void send_online_changes(int since, int sourceID){
+        ByteBuffer out = loop.acquire();
+        int gap = Codec.begin(out, Frame.ONLINE_DELTA, sourceID);
+        int reached = presence.write_changes(out, since);
+
+        // Tells the client to fetch every page again if the history is too short
+        if (reached < 0){
+            loop.release(out);
+            send_message(Frame.ONLINE_RESYNC, presence.version(), null, sourceID);
+            return;
+        }
+
+        Codec.finish(out, gap, reached);
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.ONLINE_DELTA, reached, null);
+        loop.send(out, sessions.get(sourceID).endpoint);
+    }
+
+
+    /**
+    * Attempts a connection request from the source client to the request client
+    *
+    * @param  requestID the request client's number
+    * @param  sourceID  the source client's number
+    * @return a boolean of whether the connection request was successful
+    */ 
+    public boolean connection_request(int requestID, int sourceID){
+        Session request = sessions.get(requestID);
+        Session source = sessions.get(sourceID);
+
+        // Denies request if the requested client doesn't exist
+        if (request == null || source == null)
+            return false;
+
+        // Takes a repeat of the pending request as a resend, asking the requested
+        // client again in case it missed it without starting the request over
+        if (source.requested == requestID && request.peer == sourceID && source.peer == 0){
+            metrics.add(Metrics.DUPLICATES, 1);
+            send_message(Frame.CLIENT_ACK, sourceID, source.name, requestID);
+            return true;
+        }
+
+        // Hands the nickname over again if the request was already accepted
+        if (source.peer == requestID && request.peer == sourceID){
+            metrics.add(Metrics.DUPLICATES, 1);
+            send_message(Frame.PEER_NAME, 0, request.name, sourceID);
+            return true;
+        }
+
+        // Denies request if the requested client is already connected to another client
+        // Or if the source client connected to another client
+        if (request.peer != 0 || source.peer != 0){
+            if (request.peer != sourceID)
+                return false;
+        }
+
+        // Associates the requested client with the source client
+        request.peer = sourceID;
+        source.requested = requestID;
+
+        // Gives up on the request if the requested client never answers
+        if (requestTimeout > 0){
+            if (request.request == null)
+                request.request = new RequestTimer(request);
+            wheel.schedule(request.request, loop.received() + requestTimeout);
+        }
+
+        // Sends a client acknowledgement message to the requested client
+        send_message(Frame.CLIENT_ACK, sourceID, source.name, requestID);
+
+        return true;
+    }
+
+
+    /**
+    * Passes a chat request for a client of another node of the cluster on
+    * to that node, along with what it needs to know about the client making
+    * it. The other node keeps the chat, and answers the client through this one
+    *
+    * @param  requestID the request client's number
+    * @param  sourceID  the source client's number
+    * @return whether the request was passed on, false if the other node is down
+    */ 
+    public boolean forward_request(int requestID, int sourceID){
+        Session source = sessions.get(sourceID);
+        int node = cluster.owner(requestID);
+
+        // Denies the request if nobody can have the number, its node is down, or
+        // the client is in a chat other than the one a repeat of the request opened
+        if (node < 0 || !cluster.up(node) || (source.peer != 0 && source.peer != requestID))
+            return false;
+
+        ByteBuffer out = loop.acquire();
+        int gap = Codec.begin(out, Frame.NODE_REQUEST, sourceID);
+        Codec.put_varint(out, source.compress ? 1 : 0);
+        Codec.put_endpoint(out, source.endpoint);
+        Codec.put_text(out, source.name);
+        Codec.finish(out, gap, requestID);
+        out.flip();
+
+        // The other node answers a repeat the same way as the request, which it keeps
+        if (source.peer == 0)
+            source.requested = requestID;
+        metrics.add(Metrics.FORWARDED, 1);
+        log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.NODE_REQUEST, requestID, null);
+        loop.send(out, cluster.address(node));
+        return true;
+    }
+
+
+    /**
+    * Asks a client of this node to chat with a client of another node of the
+    * cluster, taking the client making the request on as a remote session
+    * for as long as its node passes its frames on
+    *
+    * @param  frame     the decoded NODE_REQUEST frame
+    * @param  source    the address and port of the other node
+    * @param  node      the index of the other node
+    */ 
+    private void remote_request(Frame frame, InetSocketAddress source, int node){
+        ByteBuffer in = frame.payload();
+        boolean compressed = Codec.read_varint(in) == 1;
+        InetSocketAddress address = Codec.get_endpoint(in);
+        String name = Codec.get_text(in);
+
+        // Drops requests that are broken or made for a client the node does not own
+        Session session = sessions.get(frame.session);
+        if (address == null || name == null || cluster.owner(frame.session) != node || (session != null && !session.remote)){
+            metrics.add(Metrics.MALFORMED, 1);
+            return;
+        }
+
+        // Adds the client, dropping it once its node stops passing its frames on
+        if (session == null){
+            session = sessions.add_remote(frame.session, source, address);
+            remoteSessions++;
+            if (sessionTimeout > 0){
+                session.idle = new IdleTimer(session);
+                wheel.schedule(session.idle, loop.received() + sessionTimeout);
+            }
+        }
+
+        session.seen = loop.received();
+        session.name = name;
+        session.compress = compressed;
+        session.address = address;
+
+        // Notifies the client through its node if the connection can be made
+        if (connection_request(frame.seq, session.id)){
+            send_packet(Frame.WAITING, session.id, 0, null, source);
+            return;
+        }
+
+        send_packet(Frame.CONNECTION_FAILURE, session.id, 0, null, source);
+
+        // Drops the client again if nothing here is left linked to it
+        if (session.peer == 0 && session.requested == 0)
+            remove_client(session);
+    }
+
+
+    /**
+    * Tells the node keeping a chat or request of a client that the client
+    * left this node, so that its partner hears about it
+    *
+    * @param  session   the client's session
+    */ 
+    private void leave_nodes(Session session){
+        int partner = session.peer != 0 ? session.peer : session.requested;
+        if (remote(session, partner))
+            send_packet(Frame.NODE_LEAVE, session.id, 0, null, cluster.address(cluster.owner(partner)));
+    }
+
+
+    /**
+    * Pings the other nodes of the cluster with the nodes this one sees as up,
+    * after taking down the nodes not heard from for the timeout
+    *
+    * @param  now       the time in nanoseconds
+    */ 
+    private void ping_nodes(long now){
+        int down = cluster.expire(now);
+        for (int node = 0; node < cluster.size(); node++){
+            if ((down & 1 << node) != 0)
+                node_down(node);
+        }
+
+        for (int node = 0; node < cluster.size(); node++){
+            if (node != cluster.self())
+                send_packet(Frame.NODE_PING, 0, cluster.view(), null, cluster.address(node));
+        }
+    }
+
+
+    /**
+    * Ends everything between this node's clients and the clients of a node
+    * that went down: its clients' chats kept here are over for their
+    * partners, and this node's clients in a chat or request it kept are told
+    * their partner left or their request failed
+    *
+    * @param  node      the index of the node that went down
+    */ 
+    private void node_down(int node){
+        log.message(Log.WARN, Log.SERVER, "node " + node + " is down");
+
+        // Drops the node's clients, telling their partners here
+        int base = cluster.base(node);
+        for (int id = base + 1; id <= base + cluster.span(); id++){
+            Session session = sessions.get(id);
+            if (session != null && session.remote)
+                remove_client(session);
+        }
+
+        // Frees this node's clients from the chats and requests the node kept
+        base = cluster.base(cluster.self());
+        for (int id = base + 1; id <= base + cluster.span(); id++){
+            Session session = sessions.get(id);
+            if (session == null)
+                continue;
+
+            if (remote(session, session.peer) && cluster.owner(session.peer) == node){
+                send_message(Frame.PEER_LEFT, session.peer, null, id);
+                session.peer = 0;
+            } else if (remote(session, session.requested) && cluster.owner(session.requested) == node){
+                session.requested = 0;
+                send_message(Frame.CONNECTION_FAILURE, 0, null, id);
+            }
+        }
+    }
+
+
+    /**
+    * Gives up on a chat request the requested client has not answered in
+    * time, telling the client that made it and freeing the requested client
+    * for other requests
+    *
+    * @param  request   the requested client's session
+    */ 
+    public void abandon_request(Session request){
+        Session source = sessions.get(request.peer);
+
+        // Ignores a request that was answered or whose client already left
+        if (source == null || source.peer == request.id || source.requested != request.id)
+            return;
+
+        request.peer = 0;
+        source.requested = 0;
+        metrics.add(Metrics.ABANDONED, 1);
+        send_message(Frame.CONNECTION_FAILURE, 0, null, source.id);
+    }
+
+
+    /**
+    * Attempts to setup the connection between two clients
+    *
+    * @param  accepted   the requested client's response to the connection
+    * @param  requestID  the request client's number
+    * @return a boolean of whether the connection was successful
+    */ 
+    public boolean connection_setup(boolean accepted, int requestID){
+        Session request = sessions.get(requestID);
+
+        // Gets the session of the client who made the request, ignoring a
+        // response to a request that was already answered or given up on
+        Session source = sessions.get(request.peer);
+        if (source == null || source.requested != requestID || source.peer != 0)
+            return false;
+
+        // Stops the request's timer, it was answered either way
+        wheel.cancel(request.request);
+        source.requested = 0;
+
+        // Removes the connection if the request client denies the connection
+        if (!accepted){
+            // Sends a failure message to the source client's ID
+            send_message(Frame.CONNECTION_FAILURE, 0, null, source.id);
+            request.peer = 0;
+            return false;
+        }
+
+        // Sets up the connection if the request client accepts the connection
+        source.peer = requestID;
+        metrics.add(Metrics.CHATS, 1);
+
+        // Starts recording the windowed messages of the new chat, numbered from scratch
+        source.recordedBase = request.recordedBase = 0;
+        source.recorded = request.recorded = 0;
+
+        // Sends the nickname of the requested client
+        send_message(Frame.PEER_NAME, 0, request.name, source.id);
+
+        return true;
+    }
+
+
+    /**
+    * Hands both clients of a new chat each other's address and port, so that
+    * they can exchange their messages directly. The relay through the server
+    * stays open for chats whose direct path does not work
+    *
+    * @param  sourceID  the number of either client of the chat
+    */ 
+    public void send_endpoints(int sourceID){
+        Session source = sessions.get(sourceID);
+        Session connected = sessions.get(source.peer);
+        if (connected == null)
+            return;
+
+        send_endpoint(source, connected);
+        send_endpoint(connected, source);
+    }
+
+
+    /**
+    * Sends a client the address and port of its chat partner, and whether
+    * the partner takes compressed frames
+    *
+    * @param  dest      the session of the client being told
+    * @param  partner   the session of its chat partner
+    */ 
+    private void send_endpoint(Session dest, Session partner){
+        ByteBuffer out = loop.acquire();
+        int gap = Codec.begin(out, Frame.PEER_ENDPOINT, dest.id);
+        Codec.put_endpoint(out, partner.address);
+        Codec.put_varint(out, partner.compress ? 1 : 0);
+        Codec.finish(out, gap, partner.id);
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, dest.id, Frame.PEER_ENDPOINT, partner.id, null);
+        loop.send(out, dest.endpoint);
+    }
+
+
+    /**
+    * Attempts to setup the connection between two clients
+    *
+    * @param  name      the requested name for the client
+    * @param  sourceID  the source client's number
+    * @return whether the nickname was set, a name too long for a page of the
+    *         online list or held by another online client is denied
+    */ 
+    public boolean set_nickname(String name, int sourceID){
+        Session source = sessions.get(sourceID);
+
+        // If the user sets a nickname, it is associated with their ID
+        if (name.isEmpty() || name.equals("_null"))
+            name = source.label();
+
+        // Denies names that do not fit in a frame, the same as room names, and
+        // names another client holds, whose mail and history go with the name
+        int holder = sessions.named(name);
+        if (name.length() > 64 || (holder != 0 && holder != sourceID))
+            return false;
+
+        sessions.rename(source, name);
+        presence.rename(sourceID);
+
+        // Hands the client the mail left for its new nickname
+        release_mailbox(source);
+        if (mail != null){
+            source.mailbox = mail.claim(source.name, source);
+            send_mail(source, loop.received());
+        }
+
+        return true;
+    }
+
+
+    /**
+    * Routes the message from the source client to the connected ID
+    *
+    * @param  frame     the decoded frame being routed
+    * @param  sourceID  the source client's number
+    */ 
+    public void route_message(Frame frame, int sourceID){
+        // Gets the ID of the source client's connected client
+        int destID = get_peer(sourceID);
+
+        // Buffers the message if acknowledgement has not been sent
+        ack_message(frame, sourceID, destID);
+    }
+
+
+    /**
+    * Relays a windowed message or ack to the connected client. The clients
+    * keep the send and receive windows, so the server holds nothing
+    *
+    * @param  frame     the decoded DATA or DATA_ACK frame
+    * @param  destID    the desired client's number
+    */ 
+    public void relay_message(Frame frame, int destID){
+        int opcode = frame.opcode == Frame.DATA ? Frame.PEER_DATA : Frame.PEER_ACK;
+
+        // Records a message the first time it is relayed, before it is inflated for the partner
+        Session source = sessions.get(sessions.get(destID).peer);
+        if (opcode == Frame.PEER_DATA && history != null && source.record(frame.seq))
+            record(frame, source, sessions.get(destID));
+
+        if (!expand_for(frame, destID))
+            return;
+
+        // Copies the frame for the connected client, payload included
+        ByteBuffer out = loop.acquire(Codec.HEADER_SIZE + frame.payloadLength);
+        Codec.encode(out, opcode, destID, frame.seq, frame);
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, destID, opcode, frame.seq, null);
+        loop.send(out, sessions.get(destID).endpoint);
+    }
+
+
+    /**
+    * Inflates a compressed frame before it is passed on to a client that did
+    * not agree to compressed frames, every other client gets it as it is
+    *
+    * @param  frame     the decoded frame being passed on
+    * @param  destID    the number of the client it is passed on to
+    * @return whether the frame can be passed on, false if its text is broken
+    */ 
+    private boolean expand_for(Frame frame, int destID){
+        if (!frame.compressed || sessions.get(destID).compress)
+            return true;
+
+        if (!Compression.expand(frame)){
+            metrics.add(Metrics.MALFORMED, 1);
+            return false;
+        }
+
+        metrics.add(Metrics.EXPANDED, 1);
+        return true;
+    }
+
+
+    /**
+    * Adds a message routed between two clients to their conversation's history
+    *
+    * @param  frame     the decoded frame holding the message, left as it is
+    * @param  sender    the session of the client that sent it
+    * @param  receiver  the session of the client it went to
+    */ 
+    private void record(Frame frame, Session sender, Session receiver){
+        // Inflates a copy of the frame, so that the history always holds plain text
+        recordFrame.opcode = frame.opcode;
+        recordFrame.seq = frame.seq;
+        recordFrame.compressed = frame.compressed;
+        recordFrame.buffer = frame.buffer;
+        recordFrame.payloadOffset = frame.payloadOffset;
+        recordFrame.payloadLength = frame.payloadLength;
+        if (!Compression.expand(recordFrame))
+            return;
+
+        if (history.append(sender.name, receiver.name, recordFrame.payload()))
+            metrics.add(Metrics.HISTORY_RECORDED, 1);
+        else
+            log.message(Log.WARN, Log.SERVER, "recording the history of " + sender.name);
+    }
+
+
+    /**
+    * Sends the message to the desired Client
+    *
+    * @param  opcode    the opcode of the frame being sent
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the frame, or null for none
+    * @param  destID    the desired client's number
+    */ 
+    public void send_message(int opcode, int seq, String payload, int destID){
+        // Sends the message to the address stored when the client connected
+        send_packet(opcode, destID, seq, payload, sessions.get(destID).endpoint);
+    }
+
+
+    /**
+    * Queues an offered message until the partner answers it, and delivers or
+    * drops the message at the front of the queue once the partner does
+    *
+    * @param  frame     the decoded frame being routed
+    * @param  sourceID  the source client's number
+    * @param  destID    the desired client's number
+    */ 
+    public void ack_message(Frame frame, int sourceID, int destID){
+        Session source = sessions.get(sourceID);
+        Session dest = sessions.get(destID);
+
+        // Checks what type of message is being sent
+        if (frame.opcode == Frame.MESSAGE_ACK){
+            if (!expand_for(frame, destID))
+                return;
+            if (source.outbound == null)
+                source.outbound = new OutboundQueue(queueDepth);
+
+            // Encodes the message as a ready to send frame
+            ByteBuffer pending = loop.acquire(Codec.HEADER_SIZE + frame.payloadLength);
+            Codec.encode(pending, Frame.MESSAGE, destID, frame.seq, frame);
+            pending.flip();
+
+            // Turns the message away while the sender's queue or the server's memory is full
+            OutboundQueue queue = source.outbound;
+            int size = pending.remaining();
+            if (queuedBytes + size > queueLimit || !queue.offer(pending, frame.seq, frame.payload_equals("_exit"))){
+                queue.turn_away(frame.seq);
+                metrics.add(Metrics.REFUSED, 1);
+                loop.release(pending);
+                send_message(Frame.QUEUE_FULL, frame.seq, null, sourceID);
+                return;
+            }
+
+            queuedBytes += size;
+            queuedMessages++;
+
+            // Sends confirmation message to the client that sent the message, with the depth of its queue
+            send_message(Frame.ACK_SENT, queue.depth(), null, sourceID);
+
+            // Asks the partner about the message if nothing before it is waiting for an answer
+            if (queue.size() == 1)
+                send_message(Frame.MESSAGE_REQUEST, queue.exit() ? 1 : 0, null, destID);
+        } else if (frame.opcode == Frame.MESSAGE_RESPONSE){
+            // The partner answers the message at the front of the sender's queue
+            OutboundQueue queue = dest.outbound;
+            if (queue == null || queue.size() == 0){
+                send_message(Frame.RESET, 0, null, sourceID);
+                return;
+            }
+
+            int number = queue.number();
+            ByteBuffer pending = queue.poll();
+            queuedBytes -= pending.remaining();
+            queuedMessages--;
+
+            // Sends the buffered message if the message is accept, else it is denied
+            if (frame.seq == 1){
+                if (history != null && Codec.decode(pending.duplicate(), recordFrame) && !recordFrame.payload_equals("_exit"))
+                    record(recordFrame, dest, source);
+
+                log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.MESSAGE, number, null);
+                loop.send(pending, source.endpoint);
+                send_message(Frame.ACK_RECEIVED, number, null, destID);
+            } else {
+                loop.release(pending);
+                send_message(Frame.RESET, 0, null, sourceID);
+                send_message(Frame.ACK_DENIED, number, null, destID);
+            }
+
+            // Asks about the next queued message, unless the chat just ended
+            if (queue.size() > 0 && source.peer == destID)
+                send_message(Frame.MESSAGE_REQUEST, queue.exit() ? 1 : 0, null, sourceID);
+        }
+    }
+
+
+    /**
+    * Adds a client to a room, creating the room if nobody is in it yet, and
+    * hands the client the room's number
+    *
+    * @param  name      the room's name
+    * @param  sourceID  the source client's number
+    */ 
+    public void join_room(String name, int sourceID){
+        Session source = sessions.get(sourceID);
+
+        // Denies names that do not fit in a frame and rooms beyond the limit
+        Room room = name.isEmpty() || name.length() > 64 ? null : rooms.open(name);
+        if (room == null){
+            send_message(Frame.ROOM_JOINED, 0, null, sourceID);
+            return;
+        }
+
+        int first = room.add(sourceID);
+        source.join_room(room.id);
+
+        // Tells the client which message it is sent first along with the name
+        ByteBuffer out = loop.acquire();
+        int gap = Codec.begin(out, Frame.ROOM_JOINED, sourceID);
+        Codec.put_varint(out, first);
+        Codec.put_text(out, room.name);
+        Codec.finish(out, gap, room.id);
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.ROOM_JOINED, room.id, room.name);
+        loop.send(out, source.endpoint);
+    }
+
+
+    /**
+    * Removes a client from a room, closing the room once it is empty
+    *
+    * @param  roomID    the room's number
+    * @param  sourceID  the source client's number
+    */ 
+    public void leave_room(int roomID, int sourceID){
+        Room room = rooms.get(roomID);
+        if (room == null || !room.remove(sourceID))
+            return;
+
+        sessions.get(sourceID).leave_room(roomID);
+        if (room.size() == 0)
+            rooms.close(room);
+    }
+
+
+    /**
+    * Adds a message from a member to its room, encoded once for every member,
+    * and acks every post up to the next one expected from the member
+    *
+    * @param  frame     the decoded ROOM_SEND frame
+    * @param  sourceID  the source client's number
+    */ 
+    public void post_message(Frame frame, int sourceID){
+        ByteBuffer in = frame.payload();
+        Room room = rooms.get(Codec.read_varint(in));
+        if (room == null || !room.member(sourceID))
+            return;
+
+        // Only takes the post expected next, repeats and posts past a gap are only acked
+        int expected = room.expected(sourceID);
+        if (frame.seq == expected){
+            // Holds the post back while the history is full, the member sends it again
+            ByteBuffer out = room.post(sourceID, Codec.HEADER_SIZE + Codec.varint_size(sourceID) + in.remaining());
+            if (out != null){
+                // Keeps compressed text compressed, the room inflates it for the members that need it
+                int gap = Codec.begin(out, frame.compressed ? Frame.ROOM_MESSAGE | Frame.COMPRESSED : Frame.ROOM_MESSAGE, room.id);
+                Codec.put_varint(out, sourceID);
+
+                // Copies as much of the message as fits in the room's buffer
+                in.limit(in.position() + Math.min(in.remaining(), out.remaining()));
+                out.put(in);
+                Codec.finish(out, gap, room.next() - 1);
+                out.flip();
+
+                log.packet(Log.INFO, Log.OUTGOING, room.id, Frame.ROOM_MESSAGE, room.next() - 1, null);
+                rooms.activate(room);
+            } else {
+                metrics.add(Metrics.REFUSED, 1);
+            }
+        } else {
+            metrics.add(frame.seq - expected < 0 ? Metrics.DUPLICATES : Metrics.DROPPED, 1);
+        }
+
+        // Tells the member to hold its posts while the history is full
+        ByteBuffer ack = loop.acquire();
+        int gap = Codec.begin(ack, Frame.ROOM_SENT, sourceID);
+        Codec.put_varint(ack, room.id);
+        Codec.put_varint(ack, room.blocked(sourceID) ? 1 : 0);
+        Codec.finish(ack, gap, room.expected(sourceID));
+        ack.flip();
+        loop.send(ack, sessions.get(sourceID).endpoint);
+    }
+
+
+    /**
+    * Applies a member's ack of the room's messages
+    *
+    * @param  frame     the decoded ROOM_ACK frame
+    * @param  sourceID  the source client's number
+    */ 
+    public void ack_room(Frame frame, int sourceID){
+        Room room = rooms.get(Codec.read_varint(frame.payload()));
+        if (room == null)
+            return;
+
+        // Pumps the room again, the ack may have made room in the member's window
+        room.ack(sourceID, frame.seq);
+        rooms.activate(room);
+    }
+
+
+    /**
+    * Stores a mail for a nickname and tells the client that left it whether
+    * it was stored, handing it to the client with the nickname if it is online
+    *
+    * @param  frame     the decoded MAIL frame
+    * @param  sourceID  the source client's number
+    */ 
+    public void leave_mail(Frame frame, int sourceID){
+        Session source = sessions.get(sourceID);
+
+        // Answers a repeat of the last mail the same way, without storing it again.
+        // The client leaves one mail at a time, so anything newer is the next one
+        if (frame.seq - source.mailNext >= 0){
+            ByteBuffer in = frame.payload();
+            String recipient = Codec.get_text(in);
+            MailLog.Mailbox mailbox = recipient == null || mail == null ? null : mail.append(recipient, source.name, in);
+
+            source.mailNext = frame.seq + 1;
+            source.mailStored = mailbox != null;
+            metrics.add(mailbox != null ? Metrics.MAIL_STORED : Metrics.REFUSED, 1);
+
+            // Sends the mail straight away if its reader is waiting on nothing else
+            if (mailbox != null && mailbox.reader() != null && mailbox.size() == 1)
+                send_mail(mailbox.reader(), loop.received());
+        } else {
+            metrics.add(Metrics.DUPLICATES, 1);
+        }
+
+        ByteBuffer out = loop.acquire();
+        int gap = Codec.begin(out, Frame.MAIL_SENT, sourceID);
+        Codec.put_varint(out, source.mailStored ? 1 : 0);
+        Codec.finish(out, gap, frame.seq);
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.MAIL_SENT, frame.seq, null);
+        loop.send(out, source.endpoint);
+    }
+
+
+    /**
+    * Sends a client the oldest mail in its mailbox, and sends it again on a
+    * timer until the client acks it
+    *
+    * @param  session   the reading client's session
+    * @param  now       the time in nanoseconds
+    */ 
+    private void send_mail(Session session, long now){
+        MailLog.Mailbox mailbox = session.mailbox;
+        if (mailbox == null || mailbox.size() == 0 || sessions.get(session.id) != session)
+            return;
+
+        // Copies the sender and the message straight from the log
+        ByteBuffer record = mail.read(mailbox);
+        ByteBuffer out = loop.acquire(Codec.HEADER_SIZE + record.remaining());
+        int gap = Codec.begin(out, Frame.MAIL_MESSAGE, session.id);
+        out.put(record);
+        Codec.finish(out, gap, mailbox.first());
+        out.flip();
+
+        log.packet(Log.INFO, Log.OUTGOING, session.id, Frame.MAIL_MESSAGE, mailbox.first(), null);
+        loop.send(out, session.endpoint);
+
+        if (session.mail == null)
+            session.mail = new MailTimer(session);
+        wheel.schedule(session.mail, now + mailTimeout);
+    }
+
+
+    /**
+    * Notes that a client has the oldest mail in its mailbox and sends it the next one
+    *
+    * @param  seq       the number of the mail the client received
+    * @param  sourceID  the source client's number
+    */ 
+    public void ack_mail(int seq, int sourceID){
+        Session source = sessions.get(sourceID);
+        MailLog.Mailbox mailbox = source.mailbox;
+
+        // Ignores acks of mail that was already delivered
+        if (mailbox == null || mailbox.size() == 0 || seq != mailbox.first())
+            return;
+
+        mail.delivered(mailbox);
+        metrics.add(Metrics.MAIL_DELIVERED, 1);
+        wheel.cancel(source.mail);
+        send_mail(source, loop.received());
+    }
+
+
+    /**
+    * Answers a query of the history between a client and a nickname with one
+    * page of its messages, as many as fit a datagram unless a single message
+    * takes more, which goes in fragments. The page holds the
+    * number of the message the next page starts at, 0 once the query is
+    * done, and the number the query ends before, so that the client asks
+    * for the rest as a RANGE query
+    *
+    * @param  frame     the decoded HISTORY_REQUEST frame
+    * @param  sourceID  the source client's number
+    */ 
+    public void send_history(Frame frame, int sourceID){
+        Session source = sessions.get(sourceID);
+        ByteBuffer in = frame.payload();
+        String partner = Codec.get_text(in);
+        int kind = Codec.read_varint(in);
+        if (partner == null || kind < HistoryLog.LAST || kind > HistoryLog.RANGE){
+            metrics.add(Metrics.MALFORMED, 1);
+            return;
+        }
+
+        // Serves the history of a nickname only to the one online client holding it
+        HistoryLog.Conversation conversation = null;
+        try {
+            if (history != null && sessions.named(source.name) == sourceID)
+                conversation = history.conversation(source.name, partner, false);
+        } catch (IOException e) {
+            log.message(Log.WARN, Log.SERVER, "opening the history of " + source.name);
+        }
+
+        // Works out the numbers of the messages the query covers
+        int from = 0;
+        int to = 0;
+        if (conversation != null){
+            to = conversation.next();
+            if (kind == HistoryLog.LAST){
+                from = to - Math.max(Codec.read_varint(in), 0);
+            } else if (kind == HistoryLog.SINCE){
+                from = in.remaining() < 8 ? to : conversation.find(in.getLong());
+            } else {
+                from = Codec.read_varint(in);
+                to = Math.min(Codec.read_varint(in), to);
+            }
+            from = Math.max(from, conversation.first());
+        }
+
+        // Fills the page, then sends it with where the next one starts
+        historyPage.clear();
+        int next = from < to ? conversation.page(from, to, historyPage, BufferPool.DATAGRAM_SIZE - Codec.HEADER_SIZE - 10) : to;
+        historyPage.flip();
+
+        ByteBuffer out = loop.acquire(Codec.HEADER_SIZE + 10 + historyPage.remaining());
+        int gap = Codec.begin(out, Frame.HISTORY_PAGE, sourceID);
+        Codec.put_varint(out, next < to ? next : 0);
+        Codec.put_varint(out, Math.max(to, 0));
+        out.put(historyPage);
+        Codec.finish(out, gap, frame.seq);
+        out.flip();
+
+        metrics.add(Metrics.HISTORY_PAGES, 1);
+        log.packet(Log.INFO, Log.OUTGOING, sourceID, Frame.HISTORY_PAGE, frame.seq, null);
+        loop.send(out, source.endpoint);
+    }
+
+
+    /**
+    * Gives up the mailbox a client reads, such as once it leaves or takes another nickname
+    *
+    * @param  session   the client's session
+    */ 
+    private void release_mailbox(Session session){
+        if (session.mailbox == null)
+            return;
+
+        mail.release(session.mailbox);
+        session.mailbox = null;
+        wheel.cancel(session.mail);
+    }
+
+
+    /**
+    * Encodes the sessions, chats and rooms into a snapshot for its thread to
+    * write out, skipping the interval if the last one is still being written.
+    * Timers, mailboxes and the online list are rebuilt from the sessions
+    * when the snapshot is read back. The state is:
+    *   version   varint, of the online list
+    *   sessions  varint, then for every session:
+    *     id        varint
+    *     endpoint  see Codec.put_endpoint
+    *     name      text
+    *     peer      varint, the chat partner or the client asking to chat
+    *     requested varint, the client asked to chat
+    *     flags     byte, SNAPSHOT_COMPRESS, SNAPSHOT_MAIL_STORED and SNAPSHOT_QUEUE
+    *     mailNext  varint
+    *     recorded  varint and long, see Session.record
+    *     rooms     varint, then the number of every room the client is in
+    *     queue     see OutboundQueue.save, if the flags say there is one
+    *   rooms     varint, then for every room its number and see Room.save
+    */ 
+    public void save_snapshot(){
+        if (snapshot == null || !snapshot.begin())
+            return;
+
+        long started = System.nanoTime();
+        ByteBuffer out = snapshot.reserve(10);
+        Codec.put_varint(out, presence.version());
+        Codec.put_varint(out, sessions.size() - remoteSessions);
+
+        // Leaves out the clients of other nodes, which their own nodes keep
+        for (int id = 1; id <= sessions.capacity(); id++){
+            Session session = sessions.get(id);
+            if (session == null || session.remote)
+                continue;
+
+            out = snapshot.reserve(64 + Codec.text_size(session.name) + 5 * session.rooms.length);
+            Codec.put_varint(out, id);
+            Codec.put_endpoint(out, session.endpoint);
+            Codec.put_text(out, session.name);
+            Codec.put_varint(out, session.peer);
+            Codec.put_varint(out, session.requested);
+            out.put((byte) ((session.compress ? SNAPSHOT_COMPRESS : 0) | (session.mailStored ? SNAPSHOT_MAIL_STORED : 0)
+                | (session.outbound != null ? SNAPSHOT_QUEUE : 0)));
+            Codec.put_varint(out, session.mailNext);
+            Codec.put_varint(out, session.recordedBase);
+            out.putLong(session.recorded);
+            Codec.put_varint(out, session.rooms.length);
+            for (int room : session.rooms)
+                Codec.put_varint(out, room);
+
+            if (session.outbound != null)
+                session.outbound.save(snapshot);
+        }
+
+        Codec.put_varint(snapshot.reserve(5), rooms.size());
+        for (int id = 1; id <= rooms.capacity(); id++){
+            Room room = rooms.get(id);
+            if (room == null)
+                continue;
+
+            Codec.put_varint(snapshot.reserve(5), id);
+            room.save(snapshot);
+        }
+
+        snapshot.commit();
+        snapshotNanos = System.nanoTime() - started;
+    }
+
+
+    /**
+    * Reads back the last snapshot before the server starts, registering its
+    * clients under their old numbers and addresses so that their frames are
+    * routed as if the server never stopped. Every client is given its full
+    * session timeout again, and the offered messages waiting on an answer
+    * are asked about again since the answers may have been lost
+    */ 
+    private void restore_snapshot(){
+        ByteBuffer in;
+        try {
+            in = Snapshot.read(Paths.get(snapshotFile));
+        } catch (IOException e) {
+            log.message(Log.WARN, Log.SERVER, "reading the snapshot " + snapshotFile);
+            return;
+        }
+
+        if (in == null)
+            return;
+
+        long started = System.nanoTime();
+        long saved = Snapshot.saved(in);
+        presence.restart(Codec.read_varint(in));
+
+        // Registers the clients, skipping any whose number or address is taken
+        int count = Codec.read_varint(in);
+        for (int i = 0; i < count && in.hasRemaining(); i++){
+            int id = Codec.read_varint(in);
+            InetSocketAddress endpoint = Codec.get_endpoint(in);
+            String name = Codec.get_text(in);
+            int peer = Codec.read_varint(in);
+            int requested = Codec.read_varint(in);
+            int flags = in.hasRemaining() ? in.get() : 0;
+            int mailNext = Codec.read_varint(in);
+            int recordedBase = Codec.read_varint(in);
+            long recorded = in.remaining() >= 8 ? in.getLong() : 0;
+            int[] joined = new int[Math.max(Codec.read_varint(in), 0)];
+            for (int r = 0; r < joined.length; r++)
+                joined[r] = Codec.read_varint(in);
+
+            OutboundQueue queue = null;
+            if ((flags & SNAPSHOT_QUEUE) != 0){
+                queue = new OutboundQueue(queueDepth);
+                if (!queue.load(in, loop)){
+                    queue.clear(loop);
+                    break;
+                }
+            }
+
+            if (endpoint == null || name == null || sessions.get(id) != null || sessions.find(endpoint) != 0 || !clientIDs.claim(id)){
+                if (queue != null)
+                    queue.clear(loop);
+                continue;
+            }
+
+            Session session = sessions.add(id, endpoint);
+            sessions.rename(session, name);
+            session.peer = peer;
+            session.requested = requested;
+            session.compress = (flags & SNAPSHOT_COMPRESS) != 0;
+            session.mailStored = (flags & SNAPSHOT_MAIL_STORED) != 0;
+            session.mailNext = mailNext;
+            session.recordedBase = recordedBase;
+            session.recorded = recorded;
+            session.rooms = joined;
+            session.outbound = queue;
+            if (queue != null){
+                queuedBytes += queue.bytes();
+                queuedMessages += queue.size();
+            }
+        }
+
+        // Opens the rooms under their old numbers, with the messages their members did not ack
+        count = Math.max(Codec.read_varint(in), 0);
+        for (int i = 0; i < count && in.hasRemaining(); i++){
+            int id = Codec.read_varint(in);
+            String name = Codec.get_text(in);
+            Room room = name == null ? null : rooms.restore(id, name);
+            if (room == null || !room.load(in)){
+                log.message(Log.WARN, Log.SERVER, "restoring room " + id + " from the snapshot");
+                if (room != null)
+                    rooms.close(room);
+                break;
+            }
+            rooms.activate(room);
+        }
+        clientIDs.relink();
+        rooms.finish_restore();
+
+        // Rebuilds what the sessions imply: the online list, the timers, the chats and the mailboxes
+        long now = System.nanoTime();
+        int restored = 0;
+        for (int id = 1; id <= sessions.capacity(); id++){
+            Session session = sessions.get(id);
+            if (session == null)
+                continue;
+
+            restored++;
+            presence.join(id);
+            session.seen = now;
+            if (sessionTimeout > 0){
+                session.idle = new IdleTimer(session);
+                wheel.schedule(session.idle, now + sessionTimeout);
+            }
+
+            // Keeps only the rooms that came back with the client still in them
+            int kept = 0;
+            for (int room : session.rooms){
+                Room joined = rooms.get(room);
+                if (joined != null && joined.member(id))
+                    session.rooms[kept++] = room;
+            }
+            session.rooms = Arrays.copyOf(session.rooms, kept);
+
+            // Drops the links to clients that did not come back, keeping the
+            // chats and requests kept by other nodes of the cluster
+            Session peer = sessions.get(session.peer);
+            if (peer == null && !remote(session, session.peer))
+                session.peer = 0;
+            if (sessions.get(session.requested) == null && !remote(session, session.requested))
+                session.requested = 0;
+
+            if (peer != null && peer.peer == id){
+                // Counts every chat once, and asks again about the offered messages in it
+                if (id < peer.id)
+                    metrics.add(Metrics.CHATS, 1);
+                if (session.outbound != null && session.outbound.size() > 0)
+                    send_message(Frame.MESSAGE_REQUEST, session.outbound.exit() ? 1 : 0, null, peer.id);
+            } else if (peer != null && peer.requested == id && requestTimeout > 0){
+                // Gives the client asked to chat its full time to answer again
+                session.request = new RequestTimer(session);
+                wheel.schedule(session.request, now + requestTimeout);
+            }
+
+            if (mail != null){
+                session.mailbox = mail.claim(session.name, session);
+                send_mail(session, now);
+            }
+        }
+
+        log.message(Log.INFO, Log.SERVER, "restored " + restored + " sessions and " + rooms.size() + " rooms from a snapshot taken "
+            + (System.currentTimeMillis() - saved) + " ms ago, in " + (System.nanoTime() - started) / 1000 + " us");
+    }
+
+
+    /**
+    * Does the work due after a pass of the event loop: runs the timers, drops
+    * stale fragments, syncs the mail log and fans the rooms' messages out,
+    * holding back while too many datagrams wait for the socket so that a
+    * large room never floods the socket's send buffer
+    *
+    * @param  now       the time in nanoseconds
+    * @return how long until the next pass is due, in nanoseconds
+    */
+    public long run_pass(long now){
+        // Expires the timers first, which may wake rooms up for their retransmissions,
+        // drops the frames whose fragments stopped coming and forces the mail
+        // log to disk once the sync interval has passed
+        wheel.advance(now);
+        fragments.expire(now);
+        long sync = mail == null ? Long.MAX_VALUE : mail.sync(now);
+
+        int budget = 0;
+        if (rooms.busy()){
+            budget = roomQueue - loop.queued();
+            if (budget > 0)
+                budget = rooms.pump(loop, sessions, budget, now, roomTimeout);
+        }
+
+        // Carries on straight after the flush if the budget ran out, and
+        // otherwise comes back for the next tick of the wheel, or soon after
+        // the flush if the rooms are held back by the socket, and in time to
+        // force the mail written since the last sync to disk
+        long wait = Math.min(wheel.until_tick(now), sync);
+        if (!rooms.busy())
+            return wait;
+
+        return budget == 0 ? 0 : Math.min(wait, roomTimeout / 4);
+    }
+
+
+    /**
+    * The main of the thread
+    */ 
+    public void run(){
+        log.message(Log.INFO, Log.SERVER, "Starting the server...");
+
+        // Continuously drains and processes every readable packet
+        loop.run(this::process_input);
+    }
+
+
+    /**
+    * Server main function
+    */ 
+    public static void main(String[] args) {
+        new Server();
+    }
+
+}
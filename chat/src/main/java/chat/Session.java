@@ -0,0 +1,135 @@
+package chat;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+// Everything the server keeps about one connected client
+public class Session {
+    // Attributes used to identify the client
+    public int id;
+    public long key;
+    public InetSocketAddress endpoint;
+
+    // Attributes used for a client of another node of the cluster, whose chat
+    // is kept here: its frames come and go through its own node, which is
+    // the endpoint, while the address is the client's own for its partner
+    public boolean remote;
+    public InetSocketAddress address;
+
+    // Attributes used for the client's state
+    public String name;
+    public int peer;
+
+    // Whether the client agreed to compressed frames when it connected
+    public boolean compress;
+
+    // Messages offered to the chat partner and not answered yet, created on the first offer
+    public OutboundQueue outbound;
+
+    // Numbers of the rooms the client is in
+    public int[] rooms = new int[0];
+
+    // Attributes used for the client's timers: when it was last heard from,
+    // and the client it asked to chat with until that client answers
+    public long seen;
+    public int requested;
+    public TimingWheel.Timer idle;
+    public TimingWheel.Timer request;
+
+    // Attributes used for the mail: the mailbox the client reads under its
+    // nickname with the timer of the mail it was sent, and the number and
+    // outcome of the last mail it left, for answering repeats of it
+    public MailLog.Mailbox mailbox;
+    public TimingWheel.Timer mail;
+    public int mailNext;
+    public boolean mailStored;
+
+    // Attributes used for the history: the windowed messages of the current
+    // chat already recorded, as the lowest number that can still arrive and a
+    // bitmap of the 64 numbers from it, so that a message relayed again is
+    // recorded once. Clients keep no more messages than that in flight
+    public static final int RECORDED = 64;
+    public int recordedBase;
+    public long recorded;
+
+    /**
+    * Creates the record for a newly connected client
+    *
+    * @param  id        the client number
+    * @param  key       the packed address and port of the client
+    * @param  endpoint  the resolved address the client's packets are sent to
+    */
+    Session(int id, long key, InetSocketAddress endpoint){
+        this.id = id;
+        this.key = key;
+        this.endpoint = endpoint;
+        this.address = endpoint;
+        this.name = label();
+    }
+
+    /**
+    * Notes that the client joined a room
+    *
+    * @param  room      the room's number
+    */
+    public void join_room(int room){
+        for (int id : rooms){
+            if (id == room)
+                return;
+        }
+
+        rooms = Arrays.copyOf(rooms, rooms.length + 1);
+        rooms[rooms.length - 1] = room;
+    }
+
+    /**
+    * Notes that the client left a room
+    *
+    * @param  room      the room's number
+    */
+    public void leave_room(int room){
+        for (int i = 0; i < rooms.length; i++){
+            if (rooms[i] == room){
+                rooms[i] = rooms[rooms.length - 1];
+                rooms = Arrays.copyOf(rooms, rooms.length - 1);
+                return;
+            }
+        }
+    }
+
+    /**
+    * Notes that a windowed message of the current chat is being recorded
+    *
+    * @param  seq       the message's number in the chat
+    * @return whether the message was not recorded before
+    */
+    public boolean record(int seq){
+        int offset = seq - recordedBase;
+        if (offset < 0)
+            return false;
+
+        // Slides the bitmap up to the newest number, the ones it passes cannot arrive again
+        if (offset >= RECORDED){
+            int shift = offset - RECORDED + 1;
+            recorded = shift >= RECORDED ? 0 : recorded >>> shift;
+            recordedBase += shift;
+            offset = RECORDED - 1;
+        }
+
+        long bit = 1L << offset;
+        if ((recorded & bit) != 0)
+            return false;
+
+        recorded |= bit;
+        return true;
+    }
+
+    /**
+    * Returns the identification string shown to the users
+    *
+    * @return the client's identification string
+    */
+    public String label(){
+        return "Client_" + id;
+    }
+}
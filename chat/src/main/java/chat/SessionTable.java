@@ -0,0 +1,189 @@
+package chat;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+
+// Registry of connected clients, indexed by client number, by packed address
+// and by nickname
+public class SessionTable {
+    // Attributes used for the registry
+    private Session[] sessions;
+    private LongIntMap index;
+    private HashMap<InetSocketAddress, Integer> otherIndex;
+    private int size;
+
+    // Nicknames held by the clients of this node, which no two of them share
+    private HashMap<String, Integer> names;
+
+    /**
+    * Creates a registry for client numbers 1 to capacity
+    *
+    * @param  capacity  the highest client number
+    */
+    SessionTable(int capacity){
+        sessions = new Session[capacity + 1];
+        index = new LongIntMap(Math.min(capacity, 1024));
+        otherIndex = new HashMap<InetSocketAddress, Integer>();
+        names = new HashMap<String, Integer>();
+    }
+
+    /**
+    * Packs an IPv4 address and port into a single non-zero key
+    *
+    * @param  address   the address of the client
+    * @param  port      the port of the client
+    * @return the packed key, or 0 for addresses that are not IPv4
+    */
+    public static long pack(InetAddress address, int port){
+        if (!(address instanceof Inet4Address))
+            return 0L;
+
+        // An IPv4 address hashes to its own 32 bits, which avoids copying out a byte array
+        long bits = address.hashCode() & 0xFFFFFFFFL;
+
+        // The marker bit keeps the key clear of the map's empty slot value
+        return (1L << 48) | (bits << 16) | (port & 0xFFFF);
+    }
+
+    /**
+    * Finds the client number registered for an address and port
+    *
+    * @param  source    the address and port of the client
+    * @return the client number, or 0 if the client is not registered
+    */
+    public int find(InetSocketAddress source){
+        long key = pack(source.getAddress(), source.getPort());
+
+        if (key != 0L)
+            return Math.max(index.get(key), 0);
+
+        // IPv6 clients are rare enough to fall back on a boxed map
+        Integer id = otherIndex.get(source);
+        return id == null ? 0 : id;
+    }
+
+    /**
+    * Finds the client of this node holding a nickname
+    *
+    * @param  name      the nickname
+    * @return the client number, or 0 if no client holds the nickname
+    */
+    public int named(String name){
+        Integer id = names.get(name);
+        return id == null ? 0 : id;
+    }
+
+    /**
+    * Retrieves the session of a client number
+    *
+    * @param  id        the client number
+    * @return the session, or null if nobody has that number
+    */
+    public Session get(int id){
+        if (id <= 0 || id >= sessions.length)
+            return null;
+
+        return sessions[id];
+    }
+
+    /**
+    * Registers a client under a client number
+    *
+    * @param  id        the client number
+    * @param  endpoint  the address and port of the client, kept for every send
+    * @return the new session
+    */
+    public Session add(int id, InetSocketAddress endpoint){
+        long key = pack(endpoint.getAddress(), endpoint.getPort());
+        Session session = new Session(id, key, endpoint);
+
+        if (key != 0L)
+            index.put(key, id);
+        else
+            otherIndex.put(endpoint, id);
+
+        sessions[id] = session;
+        names.put(session.name, id);
+        size++;
+
+        return session;
+    }
+
+    /**
+    * Changes the nickname of a client of this node, the caller making sure
+    * no other client holds it
+    *
+    * @param  session   the client's session
+    * @param  name      the new nickname
+    */
+    public void rename(Session session, String name){
+        names.remove(session.name, session.id);
+        session.name = name;
+        names.put(name, session.id);
+    }
+
+    /**
+    * Registers a client of another node of the cluster, which is reached
+    * through that node and so is left out of the index by address
+    *
+    * @param  id        the client number
+    * @param  node      the address and port of the client's node, kept for every send
+    * @param  address   the address and port of the client itself
+    * @return the new session
+    */
+    public Session add_remote(int id, InetSocketAddress node, InetSocketAddress address){
+        Session session = new Session(id, 0L, node);
+        session.remote = true;
+        session.address = address;
+
+        sessions[id] = session;
+        size++;
+
+        return session;
+    }
+
+    /**
+    * Removes the client registered under a client number
+    *
+    * @param  id        the client number
+    * @return the removed session, or null if nobody had that number
+    */
+    public Session remove(int id){
+        Session session = get(id);
+        if (session == null)
+            return null;
+
+        if (session.key != 0L)
+            index.remove(session.key);
+        else if (!session.remote)
+            otherIndex.remove(session.endpoint);
+
+        if (!session.remote)
+            names.remove(session.name, id);
+
+        sessions[id] = null;
+        size--;
+
+        return session;
+    }
+
+    /**
+    * Returns the highest client number the registry can hold
+    *
+    * @return the capacity of the registry
+    */
+    public int capacity(){
+        return sessions.length - 1;
+    }
+
+    /**
+    * Returns the number of registered clients
+    *
+    * @return the number of sessions
+    */
+    public int size(){
+        return size;
+    }
+}
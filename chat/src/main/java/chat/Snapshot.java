@@ -0,0 +1,219 @@
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Snapshot of the server's sessions, chats and rooms, saved to a file so that
+// a restarted server picks up where the last one left off and its clients
+// never have to connect again. The server thread encodes its state into a
+// buffer between two passes of the event loop, and a background thread writes
+// that copy out while the server goes on routing, to a temporary file that
+// replaces the last snapshot only once it is safely on disk. The file is:
+//   magic     int, "CHSN"
+//   format    byte, the version of the layout
+//   saved     long, when the snapshot was taken in milliseconds
+//   state     what the server encoded, see Server.save_snapshot
+//   checksum  int, CRC32C of everything before it
+public class Snapshot extends Thread {
+    // Marks a snapshot file and the layout of its contents
+    private static final int MAGIC = 0x4348534E;
+    private static final int FORMAT = 1;
+
+    // Bytes of the magic, the format and the time
+    private static final int HEADER = 13;
+
+    // Attributes used for the file and the copy being written to it
+    private Path path;
+    private Path temporary;
+    private ByteBuffer buffer;
+    private volatile boolean writing;
+
+    // Attributes used to report on the snapshots, read from any thread
+    private volatile long bytes;
+    private volatile long written;
+    private volatile long failed;
+    private volatile long savedAt;
+
+    /**
+    * Starts the thread that writes the snapshots to a file
+    *
+    * @param  path      the file, replaced by every snapshot
+    */
+    Snapshot(Path path){
+        this.path = path;
+        temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        buffer = ByteBuffer.allocate(64 << 10);
+
+        // Starts the writer thread, which never keeps the program alive on its own
+        setName("snapshot-writer");
+        setDaemon(true);
+        start();
+    }
+
+    /**
+    * Reads back the last snapshot saved
+    *
+    * @param  path      the file
+    * @return the buffer positioned at the server's state and limited before
+    *         the checksum, or null if there is no snapshot or it is broken
+    */
+    public static ByteBuffer read(Path path) throws IOException {
+        if (!Files.exists(path))
+            return null;
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (in.remaining() < HEADER + 4 || in.getInt(0) != MAGIC || in.get(4) != FORMAT)
+            return null;
+
+        // Checks the whole file against its checksum before anything is restored
+        int end = in.limit() - 4;
+        int expected = in.getInt(end);
+        in.limit(end);
+        CRC32C checksum = new CRC32C();
+        checksum.update(in.duplicate());
+        if ((int) checksum.getValue() != expected)
+            return null;
+
+        in.position(HEADER);
+        return in;
+    }
+
+    /**
+    * Returns when a snapshot read back was taken
+    *
+    * @param  in        the buffer returned by read
+    * @return the time in milliseconds
+    */
+    public static long saved(ByteBuffer in){
+        return in.getLong(5);
+    }
+
+    /**
+    * Starts a snapshot, unless the last one is still being written
+    *
+    * @return whether the server can encode its state
+    */
+    public boolean begin(){
+        if (writing)
+            return false;
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.put((byte) FORMAT);
+        buffer.putLong(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+    * Returns the buffer the state is encoded into, grown first if it has less
+    * room than asked for. The buffer can change between calls, so it is
+    * asked for again before every part of the state
+    *
+    * @param  size      the most bytes about to be written
+    * @return the buffer
+    */
+    public ByteBuffer reserve(int size){
+        if (buffer.remaining() < size){
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        return buffer;
+    }
+
+    /**
+    * Hands the encoded state to the writer thread, which owns the buffer until it is written
+    */
+    public void commit(){
+        CRC32C checksum = new CRC32C();
+        ByteBuffer state = buffer.duplicate();
+        state.flip();
+        checksum.update(state);
+
+        reserve(4).putInt((int) checksum.getValue());
+        buffer.flip();
+        writing = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+    * Writes a snapshot to the temporary file and moves it over the last one
+    */
+    private void write() throws IOException {
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+    * Returns the size of the last snapshot written
+    *
+    * @return the number of bytes
+    */
+    public long bytes(){
+        return bytes;
+    }
+
+    /**
+    * Returns the number of snapshots written
+    *
+    * @return the number written since the start
+    */
+    public long written(){
+        return written;
+    }
+
+    /**
+    * Returns the number of snapshots that could not be written
+    *
+    * @return the number failed since the start
+    */
+    public long failed(){
+        return failed;
+    }
+
+    /**
+    * Returns how long ago the last snapshot was written
+    *
+    * @return the age in milliseconds, or -1 if none was written yet
+    */
+    public long age(){
+        long saved = savedAt;
+        return saved == 0 ? -1 : System.currentTimeMillis() - saved;
+    }
+
+    /**
+    * Writes every snapshot committed, waiting for the next one in between
+    */
+    public void run(){
+        while (true){
+            if (!writing){
+                LockSupport.park(this);
+                continue;
+            }
+
+            long size = buffer.remaining();
+            try {
+                write();
+                bytes = size;
+                savedAt = System.currentTimeMillis();
+                written++;
+            } catch (IOException e) {
+                failed++;
+            }
+
+            writing = false;
+        }
+    }
+}
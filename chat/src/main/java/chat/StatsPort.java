@@ -0,0 +1,63 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+// Plain-text stats endpoint on the loopback interface. Any datagram sent to
+// its port is answered with the server's metrics, one name and value per line,
+// so that a monitoring agent can poll the server with nothing but a UDP socket:
+//   echo | nc -u -w1 localhost 7071
+public class StatsPort extends Thread {
+    // Attributes used for the endpoint
+    private DatagramSocket socket;
+    private Metrics metrics;
+    private Log log;
+
+    /**
+    * Binds the endpoint to the loopback interface and starts its thread
+    *
+    * @param  port      the port the endpoint listens on
+    * @param  metrics   the metrics reported
+    * @param  log       the logger errors are reported to
+    */
+    StatsPort(int port, Metrics metrics, Log log) throws IOException {
+        this.metrics = metrics;
+        this.log = log;
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        // Starts the thread, which never keeps the program alive on its own
+        setName("stats-port");
+        setDaemon(true);
+        start();
+    }
+
+    /**
+    * Stops answering and closes the socket
+    */
+    public void close(){
+        socket.close();
+    }
+
+    /**
+    * The main of the thread
+    */
+    public void run(){
+        byte[] request = new byte[64];
+
+        while (!socket.isClosed()){
+            try {
+                // Whatever the request holds, the answer is the whole report
+                DatagramPacket packet = new DatagramPacket(request, request.length);
+                socket.receive(packet);
+
+                byte[] report = metrics.report().getBytes(StandardCharsets.UTF_8);
+                int length = Math.min(report.length, BufferPool.RECEIVE_SIZE);
+                socket.send(new DatagramPacket(report, length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    log.message(Log.ERROR, Log.SERVER, "answering a stats request");
+            }
+        }
+    }
+}
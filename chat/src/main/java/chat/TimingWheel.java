@@ -0,0 +1,207 @@
+package chat;
+
+// Hashed timing wheel driving every timer of the server on its own thread.
+// Timers are linked into the bucket of the tick they are due in, so that
+// scheduling and cancelling take constant time however many timers there
+// are, and each tick only looks at its own bucket. A timer due further out
+// than one turn of the wheel stays in its bucket until the turn it is due in
+public class TimingWheel {
+    // Attributes used for the buckets, indexed by tick
+    private Timer[] buckets;
+    private int mask;
+    private long tick;
+    private long origin;
+
+    // Attributes used for the ticks already run and the timers still scheduled
+    private long current;
+    private int count;
+
+    // Timers of the bucket being expired that were not looked at yet, kept
+    // here so that a timer expiring can cancel or move any of them
+    private Timer expiring;
+
+    /**
+    * A timer that can be linked into the wheel, extended by whatever has to
+    * run once it is due. The links live in the timer itself, so scheduling
+    * never allocates
+    */
+    public abstract static class Timer {
+        private long deadline;
+        private int slot;
+        private Timer prev;
+        private Timer next;
+        private TimingWheel wheel;
+
+        /**
+        * Runs once the timer is due, on the thread that advances the wheel
+        *
+        * @param  now       the time in nanoseconds
+        */
+        protected abstract void expire(long now);
+
+        /**
+        * Returns whether the timer is waiting in a wheel
+        *
+        * @return whether the timer is scheduled
+        */
+        public boolean scheduled(){
+            return wheel != null;
+        }
+    }
+
+    /**
+    * Creates an empty wheel
+    *
+    * @param  tick      the length of a tick in nanoseconds, the most a timer runs late
+    * @param  slots     the number of buckets, rounded up to a power of two
+    * @param  now       the time in nanoseconds the first tick starts at
+    */
+    TimingWheel(long tick, int slots, long now){
+        int size = 1;
+        while (size < slots)
+            size <<= 1;
+
+        buckets = new Timer[size];
+        mask = size - 1;
+        this.tick = Math.max(tick, 1);
+        origin = now;
+    }
+
+    /**
+    * Schedules a timer, moving it if it was already scheduled
+    *
+    * @param  timer     the timer
+    * @param  deadline  the time in nanoseconds it is due at
+    */
+    public void schedule(Timer timer, long deadline){
+        if (timer.wheel != null)
+            cancel(timer);
+
+        // A deadline in a tick that already ran goes in the next one to run
+        timer.deadline = deadline;
+        link(timer, Math.max((deadline - origin) / tick, current));
+        timer.wheel = this;
+        count++;
+    }
+
+    /**
+    * Takes a timer out of the wheel before it is due
+    *
+    * @param  timer     the timer, ignored if it is null or not scheduled
+    */
+    public void cancel(Timer timer){
+        if (timer == null || timer.wheel != this)
+            return;
+
+        unlink(timer);
+        timer.wheel = null;
+        count--;
+    }
+
+    /**
+    * Links a timer at the head of a tick's bucket
+    *
+    * @param  timer     the timer
+    * @param  index     the tick
+    */
+    private void link(Timer timer, long index){
+        int slot = (int) (index & mask);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = buckets[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        buckets[slot] = timer;
+    }
+
+    /**
+    * Unlinks a timer from its bucket
+    *
+    * @param  timer     the timer
+    */
+    private void unlink(Timer timer){
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else if (buckets[timer.slot] == timer)
+            buckets[timer.slot] = timer.next;
+        else
+            expiring = timer.next;
+
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    /**
+    * Runs every tick that has fully passed, expiring the timers due in them
+    *
+    * @param  now       the time in nanoseconds
+    * @return the number of timers that expired
+    */
+    public int advance(long now){
+        long last = (now - origin) / tick;
+        int expired = 0;
+
+        // Skips straight to the present when nothing is waiting
+        if (count == 0){
+            current = Math.max(current, last);
+            return 0;
+        }
+
+        while (current < last && count > 0){
+            // Moves on before expiring anything, so that a timer scheduled while
+            // expiring lands in a tick still to run instead of a turn later
+            long index = current++;
+            int slot = (int) (index & mask);
+            long end = origin + (index + 1) * tick;
+
+            // Detaches the bucket, so that timers scheduled while expiring never join this pass
+            expiring = buckets[slot];
+            buckets[slot] = null;
+
+            while (expiring != null){
+                Timer timer = expiring;
+                expiring = timer.next;
+                if (expiring != null)
+                    expiring.prev = null;
+                timer.next = null;
+
+                // Timers due in a later turn of the wheel go back in the bucket
+                if (timer.deadline - end < 0){
+                    timer.wheel = null;
+                    count--;
+                    expired++;
+                    timer.expire(now);
+                } else {
+                    link(timer, index);
+                }
+            }
+        }
+
+        current = Math.max(current, last);
+        return expired;
+    }
+
+    /**
+    * Returns how long until the next tick ends, when the wheel has to be advanced again
+    *
+    * @param  now       the time in nanoseconds
+    * @return the wait in nanoseconds, or Long.MAX_VALUE if no timer is scheduled
+    */
+    public long until_tick(long now){
+        if (count == 0)
+            return Long.MAX_VALUE;
+
+        return Math.max(origin + (current + 1) * tick - now, 0);
+    }
+
+    /**
+    * Returns the number of scheduled timers
+    *
+    * @return the number of timers
+    */
+    public int size(){
+        return count;
+    }
+}
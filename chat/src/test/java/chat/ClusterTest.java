@@ -0,0 +1,146 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// Tests of the membership of a cluster: the node that owns a client number,
+// the nodes taken down once they go unheard, the agreement on the view, and
+// the lists of nodes turned away
+class ClusterTest {
+    private static final long TIMEOUT = 1000;
+
+    @AfterEach
+    void clear(){
+        System.clearProperty("chat.cluster.nodes");
+        System.clearProperty("chat.cluster.node");
+    }
+
+    /**
+    * Creates a cluster of nodes on the loopback address
+    *
+    * @param  size      the number of nodes
+    * @param  self      the index of this node
+    * @param  span      the number of client numbers every node owns
+    * @return the membership
+    */
+    private static Cluster cluster(int size, int self, int span){
+        InetSocketAddress[] nodes = new InetSocketAddress[size];
+        for (int i = 0; i < size; i++)
+            nodes[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7070 + i);
+
+        return new Cluster(nodes, self, span, TIMEOUT);
+    }
+
+    @Test
+    void every_number_has_one_owner(){
+        Cluster cluster = cluster(3, 1, 100);
+        assertEquals(100, cluster.base(1));
+
+        // The edges of every node's range
+        assertEquals(0, cluster.owner(1));
+        assertEquals(0, cluster.owner(100));
+        assertEquals(1, cluster.owner(101));
+        assertEquals(1, cluster.owner(200));
+        assertEquals(2, cluster.owner(201));
+        assertEquals(2, cluster.owner(300));
+
+        // Numbers nobody hands out
+        assertEquals(-1, cluster.owner(0));
+        assertEquals(-1, cluster.owner(301));
+        assertEquals(-1, cluster.owner(-5));
+
+        // This node owns exactly its own range
+        assertFalse(cluster.owns(100));
+        assertTrue(cluster.owns(101));
+        assertTrue(cluster.owns(200));
+        assertFalse(cluster.owns(201));
+    }
+
+    @Test
+    void datagrams_from_other_nodes_are_told_apart_from_clients(){
+        Cluster cluster = cluster(3, 1, 100);
+        assertEquals(2, cluster.node(new InetSocketAddress(InetAddress.getLoopbackAddress(), 7072)));
+        assertEquals(-1, cluster.node(new InetSocketAddress(InetAddress.getLoopbackAddress(), 7071)));
+        assertEquals(-1, cluster.node(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9000)));
+    }
+
+    @Test
+    void nodes_go_down_once_unheard_for_the_timeout(){
+        Cluster cluster = cluster(3, 0, 100);
+        assertEquals(1, cluster.view());
+        assertFalse(cluster.up(1));
+
+        assertTrue(cluster.heard(1, 0));
+        assertFalse(cluster.heard(1, 500));
+        assertTrue(cluster.heard(2, 0));
+        assertEquals(7, cluster.view());
+
+        // Node 2 was last heard at 0 and node 1 at 500, this node never goes down
+        assertEquals(0, cluster.expire(TIMEOUT - 1));
+        assertEquals(1 << 2, cluster.expire(TIMEOUT));
+        assertTrue(cluster.up(1));
+        assertFalse(cluster.up(2));
+        assertEquals(0, cluster.expire(TIMEOUT + 1));
+        assertEquals(1 << 1, cluster.expire(500 + TIMEOUT));
+        assertEquals(1, cluster.view());
+        assertTrue(cluster.up(0));
+
+        // A node heard from again is back up
+        assertTrue(cluster.heard(2, 5000));
+        assertEquals(5, cluster.view());
+    }
+
+    @Test
+    void the_view_is_agreed_once_every_node_up_reports_it(){
+        Cluster cluster = cluster(3, 0, 100);
+        assertTrue(cluster.agreed());
+
+        cluster.heard(1, 0);
+        assertFalse(cluster.agreed());
+        cluster.reported(1, 3);
+        assertTrue(cluster.agreed());
+
+        // Node 2 comes up, and node 1 has to see it too
+        cluster.heard(2, 0);
+        cluster.reported(2, 7);
+        assertFalse(cluster.agreed());
+        cluster.reported(1, 7);
+        assertTrue(cluster.agreed());
+
+        // The view of a node that is down does not count
+        cluster.heard(1, TIMEOUT);
+        cluster.expire(TIMEOUT);
+        assertFalse(cluster.agreed());
+        cluster.reported(1, 3);
+        assertTrue(cluster.agreed());
+    }
+
+    @Test
+    void lists_of_nodes_that_do_not_work_are_turned_away(){
+        assertNull(Cluster.from_properties(100));
+
+        System.setProperty("chat.cluster.nodes", "localhost:7070, localhost:7071");
+        System.setProperty("chat.cluster.node", "1");
+        Cluster cluster = Cluster.from_properties(100);
+        assertEquals(2, cluster.size());
+        assertEquals(1, cluster.self());
+        assertEquals(7071, cluster.address(1).getPort());
+
+        // A node without a port, an index past the list, and more numbers than fit
+        System.setProperty("chat.cluster.nodes", "localhost");
+        assertThrows(IllegalArgumentException.class, () -> Cluster.from_properties(100));
+        System.setProperty("chat.cluster.nodes", "localhost:7070");
+        assertThrows(IllegalArgumentException.class, () -> Cluster.from_properties(100));
+        assertThrows(IllegalArgumentException.class, () -> cluster(3, 0, Integer.MAX_VALUE / 2));
+        assertThrows(IllegalArgumentException.class, () -> cluster(Cluster.MAX_NODES + 1, 0, 1));
+    }
+}
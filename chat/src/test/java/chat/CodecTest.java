@@ -0,0 +1,208 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the binary frame codec, the varints and strings inside payloads
+// and the frames coalesced into one datagram
+class CodecTest {
+    /**
+    * Wraps bytes given as integers in a buffer ready to be read
+    *
+    * @param  bytes     the bytes, each in the low eight bits
+    * @return the flipped buffer
+    */
+    private static ByteBuffer bytes(int... bytes){
+        ByteBuffer in = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes)
+            in.put((byte) b);
+
+        in.flip();
+        return in;
+    }
+
+    @Test
+    void varints_round_trip_at_every_width(){
+        int[] values = {0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000, 0xFFFFFFF, 0x10000000, Integer.MAX_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5};
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        for (int i = 0; i < values.length; i++){
+            buffer.clear();
+            Codec.put_varint(buffer, values[i]);
+            assertEquals(sizes[i], buffer.position(), "size of " + values[i]);
+            assertEquals(sizes[i], Codec.varint_size(values[i]));
+
+            buffer.flip();
+            assertEquals(values[i], Codec.read_varint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void padded_varints_read_back_as_their_value(){
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        Codec.put_varint_padded(buffer, 0, 300, 5);
+        buffer.limit(5);
+
+        assertEquals(300, Codec.read_varint(buffer));
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    void truncated_varints_are_rejected(){
+        assertEquals(-1, Codec.read_varint(bytes()));
+        assertEquals(-1, Codec.read_varint(bytes(0x80)));
+        assertEquals(-1, Codec.read_varint(bytes(0xFF, 0xFF, 0xFF, 0xFF)));
+    }
+
+    @Test
+    void varints_past_31_bits_are_rejected(){
+        // The sign bit, and bits beyond the integer, in the fifth byte
+        assertEquals(-1, Codec.read_varint(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0x0F)));
+        assertEquals(-1, Codec.read_varint(bytes(0x80, 0x80, 0x80, 0x80, 0x10)));
+
+        // A sixth byte
+        assertEquals(-1, Codec.read_varint(bytes(0x80, 0x80, 0x80, 0x80, 0x80, 0x00)));
+
+        // The largest value that fits still reads
+        assertEquals(Integer.MAX_VALUE, Codec.read_varint(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0x07)));
+    }
+
+    @Test
+    void text_round_trips_including_multibyte_characters(){
+        String text = "héllo 世界 😀";
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        Codec.put_text(buffer, text);
+        assertEquals(Codec.text_size(text), buffer.position());
+
+        buffer.flip();
+        assertEquals(text, Codec.get_text(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void text_that_does_not_fit_is_not_written(){
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        assertThrows(BufferOverflowException.class, () -> Codec.put_text(buffer, "too long"));
+        assertEquals(0, buffer.position());
+
+        Codec.put_text(buffer, "fits");
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    void text_shorter_than_its_length_is_rejected(){
+        assertNull(Codec.get_text(bytes(5, 'a', 'b')));
+        assertNull(Codec.get_text(bytes()));
+        assertNull(Codec.get_text(bytes(0x80)));
+        assertEquals("", Codec.get_text(bytes(0)));
+    }
+
+    @Test
+    void frames_round_trip(){
+        ByteBuffer buffer = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        Codec.encode(buffer, Frame.MESSAGE, 17, 300, "hello");
+        buffer.flip();
+
+        Frame frame = new Frame();
+        assertTrue(Codec.decode(buffer, frame));
+        assertEquals(Frame.MESSAGE, frame.opcode);
+        assertEquals(17, frame.session);
+        assertEquals(300, frame.seq);
+        assertFalse(frame.compressed);
+        assertEquals("hello", frame.payload_string());
+        assertTrue(frame.payload_equals("hello"));
+    }
+
+    @Test
+    void frames_written_in_place_round_trip(){
+        ByteBuffer buffer = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        int gap = Codec.begin(buffer, Frame.ONLINE_LIST, 9);
+        Codec.put_varint(buffer, 1000);
+        Codec.put_text(buffer, "team");
+        Codec.finish(buffer, gap, 4);
+        buffer.flip();
+
+        Frame frame = new Frame();
+        assertTrue(Codec.decode(buffer, frame));
+        assertEquals(Frame.ONLINE_LIST, frame.opcode);
+        assertEquals(9, frame.session);
+        assertEquals(4, frame.seq);
+
+        ByteBuffer payload = frame.buffer.duplicate();
+        payload.limit(frame.payloadOffset + frame.payloadLength).position(frame.payloadOffset);
+        assertEquals(1000, Codec.read_varint(payload));
+        assertEquals("team", Codec.get_text(payload));
+        assertFalse(payload.hasRemaining());
+    }
+
+    @Test
+    void coalesced_frames_decode_in_order(){
+        ByteBuffer buffer = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        Codec.encode(buffer, Frame.MESSAGE, 1, 1, "first");
+        Codec.encode(buffer, Frame.WAITING, 1, 0, (String) null);
+        Codec.encode(buffer, Frame.MESSAGE, 1, 2, "second");
+        buffer.flip();
+
+        Frame frame = new Frame();
+        assertTrue(Codec.decode(buffer, frame));
+        assertEquals("first", frame.payload_string());
+
+        assertTrue(Codec.decode(buffer, frame));
+        assertEquals(Frame.WAITING, frame.opcode);
+        assertEquals(0, frame.payloadLength);
+
+        assertTrue(Codec.decode(buffer, frame));
+        assertEquals(2, frame.seq);
+        assertEquals("second", frame.payload_string());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void payloads_are_truncated_to_the_buffer(){
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        Codec.encode(buffer, Frame.MESSAGE, 1, 1, "a payload longer than the buffer");
+        buffer.flip();
+
+        Frame frame = new Frame();
+        assertTrue(Codec.decode(buffer, frame));
+        assertEquals("a paylo", frame.payload_string());
+    }
+
+    @Test
+    void malformed_frames_are_rejected(){
+        Frame frame = new Frame();
+
+        // Too short, another version, broken varints and a payload past the datagram
+        assertFalse(Codec.decode(bytes(Codec.VERSION), frame));
+        assertFalse(Codec.decode(bytes(Codec.VERSION + 1, Frame.MESSAGE, 1, 1, 0), frame));
+        assertFalse(Codec.decode(bytes(Codec.VERSION, Frame.MESSAGE, 0x80), frame));
+        assertFalse(Codec.decode(bytes(Codec.VERSION, Frame.MESSAGE, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F, 1, 0), frame));
+        assertFalse(Codec.decode(bytes(Codec.VERSION, Frame.MESSAGE, 1, 1, 4, 'a', 'b'), frame));
+
+        // A well formed frame followed by a truncated one
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        Codec.encode(buffer, Frame.MESSAGE, 1, 1, "ok");
+        buffer.put((byte) Codec.VERSION).put((byte) Frame.MESSAGE).put((byte) 1);
+        buffer.flip();
+        assertTrue(Codec.decode(buffer, frame));
+        assertFalse(Codec.decode(buffer, frame));
+    }
+
+    @Test
+    void compressed_bit_is_split_from_the_opcode(){
+        Frame frame = new Frame();
+        assertTrue(Codec.decode(bytes(Codec.VERSION, Frame.MESSAGE | Frame.COMPRESSED, 1, 1, 0), frame));
+        assertEquals(Frame.MESSAGE, frame.opcode);
+        assertTrue(frame.compressed);
+    }
+}
@@ -0,0 +1,184 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the compressed text of chat frames: the round trip through the
+// dictionary, with and without numbers in front of the text, the frames left
+// as they are, and the broken or oversized text refused when inflating
+class CompressionTest {
+    // Short chat text made mostly of the dictionary's words
+    private static final String CHAT = "thanks, see you later tonight! let me know what you think";
+
+    /**
+    * Encodes a frame with a text payload
+    *
+    * @param  opcode    the opcode of the frame
+    * @param  text      the payload
+    * @return the flipped buffer holding the frame
+    */
+    private static ByteBuffer frame(int opcode, String text){
+        ByteBuffer frame = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        Codec.encode(frame, opcode, 4, 9, text);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+    * Encodes a compressed frame whose text is the given bytes, deflated without the dictionary
+    *
+    * @param  opcode    the opcode of the frame, without Frame.COMPRESSED
+    * @param  text      the bytes deflated into the frame's text
+    * @param  cut       how many bytes to leave off the end of the deflated text
+    * @return the decoded frame
+    */
+    private static Frame packed(int opcode, byte[] text, int cut){
+        Deflater deflater = new Deflater(9, true);
+        deflater.setInput(text);
+        deflater.finish();
+        byte[] packed = new byte[BufferPool.DATAGRAM_SIZE];
+        int length = deflater.deflate(packed);
+        assertTrue(deflater.finished());
+
+        ByteBuffer out = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        int gap = Codec.begin(out, opcode | Frame.COMPRESSED, 4);
+        out.put(packed, 0, length - cut);
+        Codec.finish(out, gap, 9);
+        out.flip();
+        return decode(out);
+    }
+
+    /**
+    * Decodes a frame
+    *
+    * @param  in        the flipped buffer holding the frame
+    * @return the decoded frame
+    */
+    private static Frame decode(ByteBuffer in){
+        Frame frame = new Frame();
+        assertTrue(Codec.decode(in, frame));
+        return frame;
+    }
+
+    @Test
+    void chat_text_round_trips_through_the_dictionary(){
+        ByteBuffer frame = frame(Frame.MESSAGE, CHAT);
+        int plain = frame.remaining();
+        assertTrue(Compression.compress(frame));
+        assertTrue(frame.remaining() < plain);
+
+        Frame decoded = decode(frame);
+        assertTrue(decoded.compressed);
+        assertEquals(Frame.MESSAGE, decoded.opcode);
+        assertEquals(4, decoded.session);
+        assertEquals(9, decoded.seq);
+
+        assertTrue(Compression.expand(decoded));
+        assertFalse(decoded.compressed);
+        assertEquals(CHAT, decoded.payload_string());
+    }
+
+    @Test
+    void the_dictionary_shrinks_short_text_further(){
+        byte[] text = CHAT.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(6, true);
+        deflater.setInput(text);
+        deflater.finish();
+        int bare = deflater.deflate(new byte[256]);
+
+        ByteBuffer frame = frame(Frame.MESSAGE, CHAT);
+        int header = frame.remaining() - text.length;
+        assertTrue(Compression.compress(frame));
+        assertTrue(frame.remaining() - header < bare);
+    }
+
+    @Test
+    void numbers_in_front_of_the_text_stay_as_they_are(){
+        ByteBuffer frame = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        int gap = Codec.begin(frame, Frame.ROOM_MESSAGE, 4);
+        Codec.put_varint(frame, 300);
+        BufferPool.put_string(CHAT, frame);
+        Codec.finish(frame, gap, 9);
+        frame.flip();
+        assertTrue(Compression.compress(frame));
+
+        // The room's number reads without inflating anything
+        Frame decoded = decode(frame);
+        assertEquals(300, Codec.read_varint(decoded.payload()));
+
+        assertTrue(Compression.expand(decoded));
+        ByteBuffer in = decoded.payload();
+        assertEquals(300, Codec.read_varint(in));
+        byte[] text = new byte[in.remaining()];
+        in.get(text);
+        assertEquals(CHAT, new String(text, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void frames_that_would_not_shrink_are_left_as_they_are(){
+        // Text too short, an opcode without text, and text that does not shrink
+        byte[] noise = new byte[600];
+        new Random(5).nextBytes(noise);
+        ByteBuffer random = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        int gap = Codec.begin(random, Frame.MESSAGE, 4);
+        random.put(noise);
+        Codec.finish(random, gap, 9);
+        random.flip();
+
+        ByteBuffer[] frames = {frame(Frame.MESSAGE, "ok"), frame(Frame.NICKNAME, CHAT), random};
+        for (ByteBuffer frame : frames){
+            ByteBuffer before = ByteBuffer.allocate(frame.remaining()).put(frame.duplicate()).flip();
+            assertFalse(Compression.compress(frame));
+            assertEquals(before, frame);
+            assertFalse(decode(frame).compressed);
+        }
+
+        // A frame that was never compressed expands to itself
+        Frame decoded = decode(frame(Frame.MESSAGE, "ok"));
+        assertTrue(Compression.expand(decoded));
+        assertEquals("ok", decoded.payload_string());
+    }
+
+    @Test
+    void text_inflating_past_a_frame_is_refused(){
+        // A megabyte of zeros deflates to about a kilobyte
+        assertFalse(Compression.expand(packed(Frame.MESSAGE, new byte[1 << 20], 0)));
+
+        // Just under the most a frame takes still inflates
+        int most = BufferPool.FRAME_SIZE - Codec.HEADER_SIZE;
+        Frame fits = packed(Frame.MESSAGE, new byte[most], 0);
+        assertTrue(Compression.expand(fits));
+        assertEquals(most, fits.payloadLength);
+    }
+
+    @Test
+    void broken_text_is_refused(){
+        // Bytes that are not deflate at all
+        ByteBuffer out = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+        int gap = Codec.begin(out, Frame.MESSAGE | Frame.COMPRESSED, 4);
+        out.put(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x00, 0x11});
+        Codec.finish(out, gap, 9);
+        out.flip();
+        assertFalse(Compression.expand(decode(out)));
+
+        // Deflated text cut short
+        assertFalse(Compression.expand(packed(Frame.MESSAGE, CHAT.getBytes(StandardCharsets.UTF_8), 4)));
+
+        // An opcode that never carries compressed text, and a room number that cannot be read
+        assertFalse(Compression.expand(packed(Frame.NICKNAME, CHAT.getBytes(StandardCharsets.UTF_8), 0)));
+        out.clear();
+        gap = Codec.begin(out, Frame.ROOM_MESSAGE | Frame.COMPRESSED, 4);
+        out.put((byte) 0x80);
+        Codec.finish(out, gap, 9);
+        out.flip();
+        assertFalse(Compression.expand(decode(out)));
+    }
+}
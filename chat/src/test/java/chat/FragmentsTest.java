@@ -0,0 +1,215 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the fragments of frames too large for one datagram: the split,
+// the frame put back together in any order, and the fragments turned away
+// for an index, count or offset that does not fit, the memory limit or the
+// timeout
+class FragmentsTest {
+    private static final long TIMEOUT = 1000;
+
+    /**
+    * Encodes a message frame with a payload of a given length
+    *
+    * @param  length    the number of characters of the payload
+    * @return the flipped buffer holding the frame
+    */
+    private static ByteBuffer whole(int length){
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            text.append((char) ('a' + i % 26));
+
+        ByteBuffer frame = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        Codec.encode(frame, Frame.MESSAGE, 7, 3, text.toString());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+    * Encodes one fragment of a frame and decodes it again, as the receiver reads it
+    *
+    * @param  frame     the flipped buffer holding the whole frame
+    * @param  index     the fragment's index
+    * @return the decoded FRAGMENT frame
+    */
+    private static Frame fragment(ByteBuffer frame, int index){
+        ByteBuffer out = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+        Fragments.encode(out, frame, Fragments.session(frame), Fragments.id(frame), index, Fragments.count(frame.remaining()));
+        out.flip();
+
+        Frame fragment = new Frame();
+        assertTrue(Codec.decode(out, fragment));
+        return fragment;
+    }
+
+    /**
+    * Builds the payload of a fragment by hand
+    *
+    * @param  index     the fragment's index
+    * @param  count     the number of fragments
+    * @param  offset    the fragment's offset in the frame
+    * @param  length    the number of bytes it carries
+    * @return the flipped buffer
+    */
+    private static ByteBuffer payload(int index, int count, int offset, int length){
+        ByteBuffer in = ByteBuffer.allocate(15 + length);
+        Codec.put_varint(in, index);
+        Codec.put_varint(in, count);
+        Codec.put_varint(in, offset);
+        in.position(in.position() + length);
+        in.flip();
+        return in;
+    }
+
+    /**
+    * Adds a fragment of a frame
+    *
+    * @param  fragments the reassembly buffer
+    * @param  frame     the flipped buffer holding the whole frame
+    * @param  index     the fragment's index
+    * @param  now       the time in nanoseconds
+    * @return what add hands back
+    */
+    private static ByteBuffer add(Fragments fragments, ByteBuffer frame, int index, long now){
+        Frame fragment = fragment(frame, index);
+        return fragments.add(1, fragment.seq, fragment.payload(), now);
+    }
+
+    @Test
+    void frames_are_split_to_fit_a_datagram(){
+        ByteBuffer frame = whole(3 * Fragments.PIECE_SIZE);
+        int count = Fragments.count(frame.remaining());
+        assertEquals(4, count);
+        assertEquals(7, Fragments.session(frame));
+        assertEquals(0, frame.position());
+
+        // Every fragment fits a datagram, the last one carrying what is left
+        int carried = 0;
+        for (int i = 0; i < count; i++){
+            ByteBuffer out = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+            Fragments.encode(out, frame, 7, Fragments.id(frame), i, count);
+            assertTrue(out.position() <= BufferPool.DATAGRAM_SIZE);
+
+            Frame fragment = fragment(frame, i);
+            ByteBuffer in = fragment.payload();
+            assertEquals(i, Codec.read_varint(in));
+            assertEquals(count, Codec.read_varint(in));
+            assertEquals(i * Fragments.PIECE_SIZE, Codec.read_varint(in));
+            carried += in.remaining();
+        }
+
+        assertEquals(frame.remaining(), carried);
+    }
+
+    @Test
+    void fragments_put_the_frame_back_in_any_order(){
+        ByteBuffer frame = whole(3 * Fragments.PIECE_SIZE);
+        Fragments fragments = new Fragments(BufferPool.FRAME_SIZE, TIMEOUT);
+
+        // Repeats are ignored, and the frame is held until the last fragment is in
+        assertNull(add(fragments, frame, 3, 0));
+        assertNull(add(fragments, frame, 1, 0));
+        assertNull(add(fragments, frame, 1, 0));
+        assertNull(add(fragments, frame, 0, 0));
+        assertEquals(BufferPool.FRAME_SIZE, fragments.bytes());
+
+        ByteBuffer joined = add(fragments, frame, 2, 0);
+        assertNotNull(joined);
+        assertEquals(frame, joined);
+        assertEquals(0, fragments.bytes());
+        assertEquals(0, fragments.discarded());
+
+        Frame message = new Frame();
+        assertTrue(Codec.decode(joined, message));
+        assertEquals(Frame.MESSAGE, message.opcode);
+        assertEquals(3 * Fragments.PIECE_SIZE, message.payload_string().length());
+        fragments.release(joined);
+    }
+
+    @Test
+    void fragments_that_do_not_fit_their_frame_are_dropped(){
+        Fragments fragments = new Fragments(BufferPool.FRAME_SIZE, TIMEOUT);
+        int most = (BufferPool.FRAME_SIZE + Fragments.PIECE_SIZE - 1) / Fragments.PIECE_SIZE;
+
+        // A frame of one fragment, or of more than the largest frame takes
+        assertNull(fragments.add(1, 5, payload(0, 1, 0, 10), 0));
+        assertNull(fragments.add(1, 5, payload(0, most + 1, 0, 10), 0));
+
+        // An index past the count, or one that cannot be read
+        assertNull(fragments.add(1, 5, payload(2, 2, 0, 10), 0));
+        assertNull(fragments.add(1, 5, ByteBuffer.allocate(0), 0));
+
+        // Bytes past the end of the largest frame
+        assertNull(fragments.add(1, 5, payload(1, 2, BufferPool.FRAME_SIZE - 5, 10), 0));
+        assertEquals(5, fragments.discarded());
+        assertEquals(0, fragments.bytes());
+
+        // A fragment whose count differs from the frame's first one
+        assertNull(fragments.add(1, 5, payload(0, 2, 0, 10), 0));
+        assertNull(fragments.add(1, 5, payload(1, 3, 10, 10), 0));
+        assertEquals(6, fragments.discarded());
+    }
+
+    @Test
+    void frames_that_do_not_match_their_checksum_are_dropped(){
+        ByteBuffer frame = whole(2 * Fragments.PIECE_SIZE);
+        Fragments fragments = new Fragments(BufferPool.FRAME_SIZE, TIMEOUT);
+
+        // Every fragment claims an id the joined bytes do not add up to
+        for (int i = 0; i < 3; i++){
+            Frame fragment = fragment(frame, i);
+            assertNull(fragments.add(1, fragment.seq ^ 1, fragment.payload(), 0));
+        }
+
+        assertEquals(1, fragments.discarded());
+        assertEquals(0, fragments.bytes());
+    }
+
+    @Test
+    void frames_past_the_memory_limit_are_dropped(){
+        ByteBuffer first = whole(2 * Fragments.PIECE_SIZE);
+        ByteBuffer second = whole(2 * Fragments.PIECE_SIZE + 1);
+        Fragments fragments = new Fragments(BufferPool.FRAME_SIZE, TIMEOUT);
+
+        // The first frame takes the whole limit, so the second cannot start
+        assertNull(add(fragments, first, 0, 0));
+        assertNull(add(fragments, second, 0, 0));
+        assertEquals(1, fragments.discarded());
+        assertEquals(BufferPool.FRAME_SIZE, fragments.bytes());
+
+        // It can once the first is whole
+        assertNull(add(fragments, first, 1, 0));
+        fragments.release(add(fragments, first, 2, 0));
+        assertNull(add(fragments, second, 0, 0));
+        assertEquals(BufferPool.FRAME_SIZE, fragments.bytes());
+        assertEquals(1, fragments.discarded());
+    }
+
+    @Test
+    void incomplete_frames_expire(){
+        ByteBuffer frame = whole(2 * Fragments.PIECE_SIZE);
+        Fragments fragments = new Fragments(BufferPool.FRAME_SIZE, TIMEOUT);
+
+        // A frame just short of the timeout is kept
+        assertNull(add(fragments, frame, 0, 0));
+        fragments.expire(TIMEOUT - 1);
+        assertEquals(BufferPool.FRAME_SIZE, fragments.bytes());
+
+        fragments.expire(TIMEOUT);
+        assertEquals(0, fragments.bytes());
+        assertEquals(1, fragments.discarded());
+
+        // The fragments after it start over, the frame needing every one again
+        assertNull(add(fragments, frame, 1, TIMEOUT));
+        assertNull(add(fragments, frame, 2, TIMEOUT));
+        assertNotNull(add(fragments, frame, 0, TIMEOUT));
+    }
+}
@@ -0,0 +1,219 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Tests of the history of conversations: the last messages and the messages
+// since a time, read across the segments of a conversation before and after
+// it is opened again, paging, and the segments given up to the size limit
+// and the retention period
+class HistoryLogTest {
+    // The smallest segment the history opens, which takes 64 of the messages below
+    private static final int SEGMENT = 2 * BufferPool.FRAME_SIZE;
+    private static final int PER_SEGMENT = 64;
+
+    // A message padded so that segments fill after a few dozen
+    private static final String PADDING = "x".repeat(2000);
+
+    @TempDir
+    Path directory;
+
+    /**
+    * Opens the history over the test's directory
+    *
+    * @param  maxBytes  the most bytes kept per conversation
+    * @param  openLimit the most conversations kept open
+    * @return the history
+    */
+    private HistoryLog open(long maxBytes, int openLimit) throws IOException {
+        return new HistoryLog(directory, SEGMENT, maxBytes, TimeUnit.HOURS.toMillis(1), openLimit);
+    }
+
+    /**
+    * Records messages from alice to bob, each starting with its own number
+    *
+    * @param  history   the history
+    * @param  from      the number of the first message
+    * @param  to        the number the messages stop before
+    */
+    private static void send(HistoryLog history, int from, int to){
+        for (int seq = from; seq < to; seq++){
+            String text = String.format("%04d", seq) + PADDING;
+            assertTrue(history.append("alice", "bob", ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+
+    /**
+    * Reads messages through pages of a budget, checking each message holds its own number
+    *
+    * @param  conversation  the conversation
+    * @param  from      the number of the first message
+    * @param  to        the number the messages stop before
+    * @param  budget    the most bytes of a page
+    * @return the numbers of the messages read, in order
+    */
+    private static List<Integer> read(HistoryLog.Conversation conversation, int from, int to, int budget){
+        List<Integer> seqs = new ArrayList<Integer>();
+        ByteBuffer page = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        while (from < to){
+            page.clear();
+            int next = conversation.page(from, to, page, budget);
+            page.flip();
+            assertTrue(next > from);
+
+            while (page.hasRemaining()){
+                int seq = Codec.read_varint(page);
+                page.getLong();
+                assertEquals("alice", Codec.get_text(page));
+                assertEquals(String.format("%04d", seq) + PADDING, Codec.get_text(page));
+                seqs.add(seq);
+            }
+            from = next;
+        }
+
+        return seqs;
+    }
+
+    /**
+    * Lists the numbers in a range
+    *
+    * @param  from      the first number
+    * @param  to        the number the range stops before
+    * @return the numbers
+    */
+    private static List<Integer> range(int from, int to){
+        List<Integer> seqs = new ArrayList<Integer>();
+        for (int seq = from; seq < to; seq++)
+            seqs.add(seq);
+
+        return seqs;
+    }
+
+    /**
+    * Lists the segment files of every conversation
+    *
+    * @return the segment files, oldest first within a conversation
+    */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)){
+            return files.filter(path -> path.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void reads_the_last_messages_across_segments() throws IOException {
+        HistoryLog history = open(Long.MAX_VALUE, 8);
+        send(history, 1, 201);
+        assertEquals(4, segments().size());
+
+        // The last hundred start in the second segment and end in the fourth
+        HistoryLog.Conversation conversation = history.conversation("bob", "alice", false);
+        assertEquals(1, conversation.first());
+        assertEquals(201, conversation.next());
+        assertEquals(range(101, 201), read(conversation, 201 - 100, 201, Integer.MAX_VALUE));
+
+        // The same holds once the index was rebuilt from the files
+        conversation.close();
+        conversation = open(Long.MAX_VALUE, 8).conversation("alice", "bob", false);
+        assertEquals(201, conversation.next());
+        assertEquals(range(101, 201), read(conversation, 101, 201, Integer.MAX_VALUE));
+        assertEquals(range(PER_SEGMENT - 2, PER_SEGMENT + 3), read(conversation, PER_SEGMENT - 2, PER_SEGMENT + 3, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void reads_the_messages_since_a_time_across_segments() throws IOException, InterruptedException {
+        HistoryLog history = open(Long.MAX_VALUE, 8);
+        long start = System.currentTimeMillis();
+        send(history, 1, 101);
+        Thread.sleep(20);
+        long since = System.currentTimeMillis();
+        send(history, 101, 201);
+
+        // Message 101 sits in the middle of the second segment, past its index entry
+        HistoryLog.Conversation conversation = history.conversation("alice", "bob", false);
+        assertEquals(101, conversation.find(since));
+        assertEquals(1, conversation.find(start));
+        assertEquals(201, conversation.find(System.currentTimeMillis() + 1000));
+        assertEquals(range(101, 201), read(conversation, conversation.find(since), conversation.next(), Integer.MAX_VALUE));
+
+        conversation.close();
+        conversation = open(Long.MAX_VALUE, 8).conversation("alice", "bob", false);
+        assertEquals(101, conversation.find(since));
+    }
+
+    @Test
+    void pages_move_on_within_their_budget() throws IOException {
+        HistoryLog history = open(Long.MAX_VALUE, 8);
+        send(history, 1, 151);
+        HistoryLog.Conversation conversation = history.conversation("alice", "bob", false);
+
+        // About three messages fit the budget, but no page is left empty
+        assertEquals(range(1, 151), read(conversation, 1, 151, 7000));
+        assertEquals(range(1, 151), read(conversation, 1, 151, 10));
+
+        ByteBuffer page = ByteBuffer.allocate(BufferPool.FRAME_SIZE);
+        assertEquals(4, conversation.page(1, 151, page, 7000));
+        assertEquals(151, conversation.page(151, 151, page, 7000));
+    }
+
+    @Test
+    void gives_up_the_oldest_segments_past_the_size_limit() throws IOException {
+        // Past one and a half segments the oldest go as a new one starts
+        HistoryLog history = open(SEGMENT + SEGMENT / 2, 8);
+        send(history, 1, 201);
+
+        HistoryLog.Conversation conversation = history.conversation("alice", "bob", false);
+        assertEquals(2 * PER_SEGMENT + 1, conversation.first());
+        assertEquals(2, segments().size());
+
+        // Queries reaching back further only get what is left
+        assertEquals(range(2 * PER_SEGMENT + 1, 201), read(conversation, 1, 201, Integer.MAX_VALUE));
+        assertEquals(2 * PER_SEGMENT + 1, conversation.find(0));
+    }
+
+    @Test
+    void sweeps_segments_past_the_retention_period() throws IOException {
+        HistoryLog history = open(Long.MAX_VALUE, 1);
+        send(history, 1, 101);
+        assertTrue(history.append("carol", "dave", ByteBuffer.wrap(new byte[]{1})));
+        assertEquals(1, history.open());
+
+        // Ages the first segment of alice and bob, closed once carol's conversation opened
+        List<Path> files = segments();
+        assertEquals(3, files.size());
+        Path second = files.stream().filter(path -> path.getFileName().toString().equals(String.format("%016d.log", PER_SEGMENT + 1))).findFirst().get();
+        Path first = second.resolveSibling(String.format("%016d.log", 1));
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+        Files.setLastModifiedTime(first, old);
+
+        history.sweep();
+        assertFalse(Files.exists(first));
+        assertTrue(Files.exists(second));
+        assertEquals(PER_SEGMENT + 1, history.conversation("alice", "bob", false).first());
+
+        // Once every segment aged the conversation goes altogether
+        history.conversation("carol", "dave", false);
+        Files.setLastModifiedTime(second, old);
+        history.sweep();
+        assertFalse(Files.exists(second.getParent()));
+        assertNull(history.conversation("alice", "bob", false));
+        assertEquals(1, segments().size());
+    }
+}
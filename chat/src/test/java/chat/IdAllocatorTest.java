@@ -0,0 +1,140 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the client number allocator: numbers handed out lowest first
+// until none is left, released numbers handed out again, repeated or out of
+// range releases ignored, numbers claimed back from a snapshot, and the
+// range of a node of a cluster
+class IdAllocatorTest {
+    @Test
+    void numbers_are_handed_out_lowest_first_until_none_is_left(){
+        IdAllocator ids = new IdAllocator(100);
+        for (int id = 1; id <= 100; id++){
+            assertFalse(ids.empty());
+            assertEquals(id, ids.allocate());
+            assertTrue(ids.in_use(id));
+        }
+
+        assertTrue(ids.empty());
+        assertEquals(0, ids.allocate());
+        assertEquals(100, ids.capacity());
+    }
+
+    @Test
+    void released_numbers_are_handed_out_again(){
+        IdAllocator ids = new IdAllocator(3);
+        for (int i = 0; i < 3; i++)
+            ids.allocate();
+
+        // The last number released is the next one handed out
+        assertTrue(ids.release(2));
+        assertTrue(ids.release(3));
+        assertFalse(ids.in_use(2));
+        assertFalse(ids.empty());
+        assertEquals(3, ids.allocate());
+        assertEquals(2, ids.allocate());
+        assertEquals(0, ids.allocate());
+    }
+
+    @Test
+    void repeated_or_out_of_range_releases_are_ignored(){
+        IdAllocator ids = new IdAllocator(64);
+        assertEquals(1, ids.allocate());
+
+        assertFalse(ids.release(0));
+        assertFalse(ids.release(65));
+        assertFalse(ids.release(-1));
+        assertFalse(ids.release(2));
+        assertTrue(ids.release(1));
+        assertFalse(ids.release(1));
+
+        // The number is in the free list once, not twice
+        assertEquals(1, ids.allocate());
+        assertEquals(2, ids.allocate());
+        assertFalse(ids.in_use(0));
+        assertFalse(ids.in_use(65));
+    }
+
+    @Test
+    void threads_never_get_the_same_number() throws InterruptedException {
+        IdAllocator ids = new IdAllocator(4004);
+        Set<Integer> taken = ConcurrentHashMap.newKeySet();
+        AtomicInteger clashes = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        // Each thread takes numbers, handing every other one back
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++){
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int n = 0; n < 2000; n++){
+                    int id = ids.allocate();
+                    if (id == 0 || (n % 2 == 0 ? !ids.release(id) : !taken.add(id)))
+                        clashes.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, clashes.get());
+        assertEquals(4000, taken.size());
+        for (int id : taken)
+            assertTrue(ids.in_use(id));
+    }
+
+    @Test
+    void claimed_numbers_are_left_out_once_relinked(){
+        IdAllocator ids = new IdAllocator(5);
+        assertTrue(ids.claim(2));
+        assertTrue(ids.claim(4));
+        assertFalse(ids.claim(4));
+        assertFalse(ids.claim(0));
+        assertFalse(ids.claim(6));
+        ids.relink();
+
+        // The numbers left are handed out lowest first
+        assertEquals(1, ids.allocate());
+        assertEquals(3, ids.allocate());
+        assertEquals(5, ids.allocate());
+        assertEquals(0, ids.allocate());
+
+        assertTrue(ids.release(4));
+        assertEquals(4, ids.allocate());
+    }
+
+    @Test
+    void numbers_follow_the_base(){
+        IdAllocator ids = new IdAllocator(1000, 2);
+        assertEquals(1002, ids.capacity());
+        assertEquals(1001, ids.allocate());
+        assertTrue(ids.in_use(1001));
+        assertFalse(ids.in_use(1));
+
+        // Numbers of another node's range are neither released nor claimed
+        assertFalse(ids.release(1));
+        assertFalse(ids.claim(2));
+        assertFalse(ids.claim(1003));
+        assertTrue(ids.claim(1002));
+        ids.relink();
+        assertEquals(0, ids.allocate());
+    }
+}
@@ -0,0 +1,151 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the open addressing map behind the session index, above all the
+// backward-shift deletion that keeps probe sequences whole without tombstones
+class LongIntMapTest {
+    // A map created for 8 entries has 16 slots and stays at that size up to 8 entries
+    private static final int SLOTS = 16;
+
+    /**
+    * Works out the first slot a key is probed at, the same way the map does
+    *
+    * @param  key       the key
+    * @param  mask      the number of slots less one
+    * @return the key's home slot
+    */
+    private static int home(long key, int mask){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /**
+    * Finds keys that all have the same home slot
+    *
+    * @param  slot      the home slot
+    * @param  count     the number of keys
+    * @param  from      the key the search starts at
+    * @return the keys, in increasing order
+    */
+    private static List<Long> keys_at(int slot, int count, long from){
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = from; keys.size() < count; key++){
+            if (home(key, SLOTS - 1) == slot)
+                keys.add(key);
+        }
+
+        return keys;
+    }
+
+    @Test
+    void stores_replaces_and_removes(){
+        LongIntMap map = new LongIntMap(8);
+        map.put(1L, 10);
+        map.put(2L, 20);
+        map.put(1L, 11);
+
+        assertEquals(2, map.size());
+        assertEquals(11, map.get(1L));
+        assertEquals(20, map.get(2L));
+        assertEquals(-1, map.get(3L));
+
+        assertEquals(11, map.remove(1L));
+        assertEquals(-1, map.remove(1L));
+        assertEquals(-1, map.get(1L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    void removes_inside_a_cluster_that_wraps_around(){
+        // Four keys homed on the last slot fill it and wrap to slots 0 to 2,
+        // and two keys homed on slot 0 are pushed behind them
+        List<Long> last = keys_at(SLOTS - 1, 4, 1);
+        List<Long> first = keys_at(0, 2, 1);
+
+        for (int victim = 0; victim < last.size() + first.size(); victim++){
+            LongIntMap map = new LongIntMap(8);
+            List<Long> keys = new ArrayList<Long>(last);
+            keys.addAll(first);
+            for (int i = 0; i < keys.size(); i++)
+                map.put(keys.get(i), i);
+
+            // Removing any one of them leaves every other one reachable
+            assertEquals(victim, map.remove(keys.get(victim)));
+            for (int i = 0; i < keys.size(); i++)
+                assertEquals(i == victim ? -1 : i, map.get(keys.get(i)), "key " + i + " after removing " + victim);
+
+            assertEquals(keys.size() - 1, map.size());
+        }
+    }
+
+    @Test
+    void reinserts_after_remove(){
+        List<Long> keys = keys_at(SLOTS - 2, 5, 1);
+        LongIntMap map = new LongIntMap(8);
+        for (int i = 0; i < keys.size(); i++)
+            map.put(keys.get(i), i);
+
+        // Takes the keys out from the front of the cluster and puts them back
+        for (int round = 0; round < 3; round++){
+            for (int i = 0; i < keys.size(); i++){
+                assertEquals(i + round * 10, map.remove(keys.get(i)));
+                map.put(keys.get(i), i + (round + 1) * 10);
+            }
+        }
+
+        assertEquals(keys.size(), map.size());
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(i + 30, map.get(keys.get(i)));
+    }
+
+    @Test
+    void grows_and_keeps_every_entry(){
+        LongIntMap map = new LongIntMap(1);
+        for (int i = 1; i <= 10000; i++)
+            map.put(i * 7919L, i);
+
+        assertEquals(10000, map.size());
+        for (int i = 1; i <= 10000; i++)
+            assertEquals(i, map.get(i * 7919L));
+
+        // Removes every other entry after growing, the rest still found
+        for (int i = 1; i <= 10000; i += 2)
+            assertEquals(i, map.remove(i * 7919L));
+        for (int i = 1; i <= 10000; i++)
+            assertEquals(i % 2 == 0 ? i : -1, map.get(i * 7919L));
+    }
+
+    @Test
+    void matches_a_hash_map_under_random_changes(){
+        Random random = new Random(42);
+        LongIntMap map = new LongIntMap(8);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+
+        // Draws the keys from a small range so that clusters form and wrap
+        for (int step = 0; step < 100000; step++){
+            long key = 1 + random.nextInt(64);
+            if (random.nextBoolean()){
+                map.put(key, step);
+                expected.put(key, step);
+            } else {
+                Integer value = expected.remove(key);
+                assertEquals(value == null ? -1 : value, map.remove(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (long key = 1; key <= 64; key++)
+            assertEquals(expected.getOrDefault(key, -1).intValue(), map.get(key));
+    }
+}
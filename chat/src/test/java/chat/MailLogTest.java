@@ -0,0 +1,231 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Tests of the store-and-forward mail log: reading the mail back after a
+// restart, recovering from a record torn by a crash, deleting the segments
+// whose mail was all delivered, and the ring of mail of one mailbox
+class MailLogTest {
+    // The smallest segment the log opens
+    private static final int SEGMENT = 1 << 20;
+
+    @TempDir
+    Path directory;
+
+    /**
+    * Opens the log over the test's directory
+    *
+    * @return the log
+    */
+    private MailLog open() throws IOException {
+        return new MailLog(directory, SEGMENT, 0, 1024);
+    }
+
+    /**
+    * Leaves a mail
+    *
+    * @param  log       the log
+    * @param  recipient the nickname the mail is for
+    * @param  text      the message
+    * @return the recipient's mailbox
+    */
+    private static MailLog.Mailbox mail(MailLog log, String recipient, String text){
+        return log.append(recipient, "sender", ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+    * Takes every mail waiting in a mailbox, oldest first
+    *
+    * @param  log       the log
+    * @param  mailbox   the mailbox
+    * @return the messages
+    */
+    private static List<String> take(MailLog log, MailLog.Mailbox mailbox){
+        List<String> messages = new ArrayList<String>();
+        while (mailbox.size() > 0){
+            ByteBuffer record = log.read(mailbox);
+            assertEquals("sender", Codec.get_text(record));
+            byte[] message = new byte[record.remaining()];
+            record.get(message);
+            messages.add(new String(message, StandardCharsets.UTF_8));
+            log.delivered(mailbox);
+        }
+
+        return messages;
+    }
+
+    /**
+    * Lists the segment files in the directory
+    *
+    * @return the number of files
+    */
+    private long files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)){
+            return files.count();
+        }
+    }
+
+    /**
+    * Returns the size of a mail record, its length and checksum included
+    *
+    * @param  recipient the nickname the mail is for
+    * @param  text      the ASCII message
+    * @return the size in bytes
+    */
+    private static int record_size(String recipient, String text){
+        return 8 + 13 + Codec.text_size(recipient) + Codec.text_size("sender") + text.length();
+    }
+
+    @Test
+    void reads_the_mail_back_after_a_restart() throws IOException {
+        MailLog log = open();
+        mail(log, "alice", "one");
+        mail(log, "alice", "two");
+        mail(log, "bob", "three");
+        mail(log, "alice", "four");
+        assertEquals(4, log.waiting());
+
+        // Delivers alice's first mail before the restart
+        MailLog.Mailbox alice = log.claim("alice", null);
+        log.delivered(alice);
+
+        MailLog reopened = open();
+        assertEquals(3, reopened.waiting());
+
+        alice = reopened.claim("alice", null);
+        assertEquals(1, alice.first());
+        assertEquals(List.of("two", "four"), take(reopened, alice));
+        assertEquals(List.of("three"), take(reopened, reopened.claim("bob", null)));
+        assertEquals(0, reopened.waiting());
+
+        // Mail left after the restart is numbered after the mail delivered
+        assertEquals(3, mail(reopened, "alice", "five").first());
+        assertEquals(1, open().waiting());
+    }
+
+    @Test
+    void drops_a_record_torn_at_the_end_of_the_file() throws IOException {
+        MailLog log = open();
+        mail(log, "alice", "kept");
+        mail(log, "alice", "torn");
+
+        // Cuts the file in the middle of the second record
+        int end = record_size("alice", "kept") + record_size("alice", "torn");
+        try (FileChannel file = FileChannel.open(directory.resolve(String.format("%016d.log", 0)), StandardOpenOption.WRITE)){
+            file.truncate(end - 3);
+        }
+
+        MailLog reopened = open();
+        assertEquals(1, reopened.waiting());
+
+        // New mail goes past the torn record, into a segment of its own
+        assertNotNull(mail(reopened, "alice", "after"));
+        assertEquals(2, reopened.segments());
+        assertEquals(List.of("kept", "after"), take(reopened, reopened.claim("alice", null)));
+    }
+
+    @Test
+    void drops_a_record_whose_checksum_does_not_match() throws IOException {
+        MailLog log = open();
+        mail(log, "alice", "kept");
+        mail(log, "alice", "flipped");
+
+        // Changes a byte of the second message, as a write cut short would
+        int end = record_size("alice", "kept") + record_size("alice", "flipped");
+        try (FileChannel file = FileChannel.open(directory.resolve(String.format("%016d.log", 0)), StandardOpenOption.WRITE)){
+            file.write(ByteBuffer.wrap(new byte[]{'X'}), end - 1);
+        }
+
+        // The record is written over by the next mail
+        MailLog reopened = open();
+        assertEquals(1, reopened.waiting());
+        mail(reopened, "alice", "next");
+        assertEquals(1, reopened.segments());
+        MailLog again = open();
+        assertEquals(List.of("kept", "next"), take(again, again.claim("alice", null)));
+    }
+
+    @Test
+    void deletes_segments_once_their_mail_was_delivered() throws IOException {
+        MailLog log = open();
+        String big = "x".repeat(100 * 1024);
+
+        // About ten of these fill a segment
+        for (int i = 0; i < 35; i++)
+            mail(log, i % 2 == 0 ? "alice" : "bob", big);
+        assertEquals(4, log.segments());
+        assertEquals(4, files());
+
+        // Delivering alice's mail frees no segment, bob's mail sits in each
+        assertEquals(18, take(log, log.claim("alice", null)).size());
+        assertEquals(4, log.segments());
+
+        // Delivering bob's too leaves only the segment being written
+        assertEquals(17, take(log, log.claim("bob", null)).size());
+        assertEquals(1, log.segments());
+        assertEquals(1, files());
+
+        // Nothing comes back after a restart
+        assertEquals(0, open().waiting());
+    }
+
+    @Test
+    void mailbox_ring_grows_and_keeps_the_order() throws IOException {
+        MailLog log = open();
+        MailLog.Mailbox mailbox = null;
+        for (int i = 0; i < 6; i++)
+            mailbox = mail(log, "alice", "m" + i);
+
+        // Moves the head of the ring along before it grows past eight
+        for (int i = 0; i < 4; i++)
+            log.delivered(mailbox);
+        for (int i = 6; i < 40; i++)
+            mail(log, "alice", "m" + i);
+
+        assertEquals(36, mailbox.size());
+        assertEquals(4, mailbox.first());
+        List<String> messages = take(log, mailbox);
+        for (int i = 0; i < 36; i++)
+            assertEquals("m" + (i + 4), messages.get(i));
+    }
+
+    @Test
+    void refuses_mail_past_the_limit() throws IOException {
+        MailLog log = new MailLog(directory, SEGMENT, 0, 2);
+        assertNotNull(mail(log, "alice", "one"));
+        assertNotNull(mail(log, "alice", "two"));
+        assertNull(mail(log, "alice", "three"));
+        assertNotNull(mail(log, "bob", "one"));
+    }
+
+    @Test
+    void one_client_reads_a_mailbox_at_a_time() throws IOException {
+        MailLog log = open();
+        Session first = new Session(1, 0L, null);
+        Session second = new Session(2, 0L, null);
+
+        MailLog.Mailbox mailbox = log.claim("alice", first);
+        assertNull(log.claim("alice", second));
+        assertTrue(mailbox == log.claim("alice", first));
+
+        log.release(mailbox);
+        assertNotNull(log.claim("alice", second));
+    }
+}
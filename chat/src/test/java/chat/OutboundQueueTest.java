@@ -0,0 +1,138 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Tests of the queue of messages offered to a chat partner: the order they
+// are answered in, the depth that tells a fast sender to wait, the messages
+// turned away until the first of them is offered again, and the queue saved
+// and loaded again
+class OutboundQueueTest {
+    @TempDir
+    Path directory;
+
+    /**
+    * Encodes an offered message
+    *
+    * @param  number    the number the sender gave it
+    * @param  text      the message
+    * @return the flipped buffer holding the frame
+    */
+    private static ByteBuffer message(int number, String text){
+        ByteBuffer frame = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        Codec.encode(frame, Frame.MESSAGE, 1, number, text);
+        frame.flip();
+        return frame;
+    }
+
+    @Test
+    void messages_come_out_in_the_order_they_were_offered(){
+        OutboundQueue queue = new OutboundQueue(4);
+        assertNull(queue.poll());
+
+        ByteBuffer first = message(1, "hello");
+        assertTrue(queue.offer(first, 1, false));
+        assertTrue(queue.offer(message(2, "_exit"), 2, true));
+        assertEquals(2, queue.size());
+        assertEquals(first.remaining() * 2, queue.bytes());
+
+        assertEquals(1, queue.number());
+        assertFalse(queue.exit());
+        assertSame(first, queue.poll());
+        assertEquals(2, queue.number());
+        assertTrue(queue.exit());
+        queue.poll();
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.bytes());
+    }
+
+    @Test
+    void a_full_queue_turns_messages_away_until_one_is_answered(){
+        OutboundQueue queue = new OutboundQueue(3);
+        assertEquals(3, queue.depth());
+
+        // Wraps around the ring while it fills
+        for (int number = 1; number <= 5; number++){
+            assertTrue(queue.offer(message(number, "m"), number, false));
+            if (number == 3 || number == 4)
+                queue.poll();
+        }
+
+        assertFalse(queue.offer(message(6, "m"), 6, false));
+        queue.poll();
+        assertTrue(queue.offer(message(6, "m"), 6, false));
+        assertEquals(4, queue.number());
+    }
+
+    @Test
+    void messages_after_one_turned_away_wait_for_it(){
+        OutboundQueue queue = new OutboundQueue(8);
+        assertTrue(queue.offer(message(1, "m"), 1, false));
+
+        // Message 2 did not fit the server's memory, so 3 cannot go ahead of it
+        queue.turn_away(2);
+        assertFalse(queue.offer(message(3, "m"), 3, false));
+        queue.turn_away(3);
+        assertFalse(queue.offer(message(3, "m"), 3, false));
+
+        // Offering 2 again lets the rest through in order
+        assertTrue(queue.offer(message(2, "m"), 2, false));
+        assertTrue(queue.offer(message(3, "m"), 3, false));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    void queues_pick_up_where_they_were_saved() throws IOException {
+        RecordingLoop loop = new RecordingLoop(new Log(Log.ERROR, 1024, null, 0, 0));
+        OutboundQueue queue = new OutboundQueue(4);
+        for (int number = 1; number <= 3; number++)
+            assertTrue(queue.offer(message(number, "message " + number), number, number == 3));
+        queue.poll();
+        queue.turn_away(4);
+
+        // Encodes the queue the way the server does, without writing the snapshot out
+        Snapshot snapshot = new Snapshot(directory.resolve("queue.snapshot"));
+        assertTrue(snapshot.begin());
+        queue.save(snapshot);
+        assertEquals(2, queue.size());
+        ByteBuffer in = snapshot.reserve(0).duplicate().flip();
+        in.position(13);
+
+        OutboundQueue loaded = new OutboundQueue(4);
+        assertTrue(loaded.load(in, loop));
+        assertFalse(in.hasRemaining());
+        assertEquals(2, loaded.size());
+        assertEquals(queue.bytes(), loaded.bytes());
+
+        // The messages read back whole and in order, still waiting on message 4
+        assertFalse(loaded.offer(message(5, "m"), 5, false));
+        Frame frame = new Frame();
+        assertEquals(2, loaded.number());
+        assertTrue(Codec.decode(loaded.poll(), frame));
+        assertEquals("message 2", frame.payload_string());
+        assertTrue(loaded.exit());
+        assertTrue(Codec.decode(loaded.poll(), frame));
+        assertEquals("message 3", frame.payload_string());
+        assertTrue(loaded.offer(message(4, "m"), 4, false));
+
+        // A queue deeper than the one it is read into is turned away
+        OutboundQueue deeper = new OutboundQueue(8);
+        for (int number = 1; number <= 6; number++)
+            deeper.offer(message(number, "m"), number, false);
+        assertTrue(snapshot.begin());
+        deeper.save(snapshot);
+        in = snapshot.reserve(0).duplicate().flip();
+        in.position(13);
+        assertFalse(new OutboundQueue(4).load(in, loop));
+    }
+}
@@ -0,0 +1,194 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the online list: the pages that walk it by client number, a
+// nickname too long for any page, and the changes since a version, cut
+// short by the buffer and refused once the history wrapped past them or a
+// restart lost them
+class PresenceIndexTest {
+    private SessionTable sessions = new SessionTable(64);
+
+    /**
+    * Connects a client, names it and puts it on the online list
+    *
+    * @param  presence  the online list
+    * @param  id        the client number
+    * @param  name      the nickname
+    */
+    private void join(PresenceIndex presence, int id, String name){
+        Session session = sessions.add(id, new InetSocketAddress(InetAddress.getLoopbackAddress(), 1000 + id));
+        sessions.rename(session, name);
+        presence.join(id);
+    }
+
+    /**
+    * Reads the clients of a page
+    *
+    * @param  page      the flipped page
+    * @param  version   the version the page has to carry
+    * @return every client as its number and nickname
+    */
+    private static List<String> clients(ByteBuffer page, int version){
+        assertEquals(version, Codec.read_varint(page));
+        List<String> clients = new ArrayList<String>();
+        while (page.hasRemaining())
+            clients.add(Codec.read_varint(page) + " " + Codec.get_text(page));
+
+        return clients;
+    }
+
+    /**
+    * Reads the changes of a batch
+    *
+    * @param  changes   the flipped batch
+    * @param  version   the version the batch has to carry
+    * @return every change as its client number, kind and nickname if any
+    */
+    private static List<String> changes(ByteBuffer changes, int version){
+        assertEquals(version, Codec.read_varint(changes));
+        List<String> read = new ArrayList<String>();
+        while (changes.hasRemaining()){
+            int id = Codec.read_varint(changes);
+            int kind = changes.get();
+            read.add(id + " " + kind + (kind == PresenceIndex.LEAVE ? "" : " " + Codec.get_text(changes)));
+        }
+
+        return read;
+    }
+
+    @Test
+    void pages_walk_the_list_by_client_number(){
+        PresenceIndex presence = new PresenceIndex(sessions, 16);
+        join(presence, 9, "carol");
+        join(presence, 2, "alice");
+        join(presence, 5, "bob");
+        assertEquals(3, presence.size());
+
+        // Two clients fit a page, each page picking up after the last
+        ByteBuffer page = ByteBuffer.allocate(1 + 2 * 7);
+        assertEquals(5, presence.write_page(page, 0));
+        assertEquals(List.of("2 alice", "5 bob"), clients(page.flip(), 3));
+
+        page.clear();
+        assertEquals(0, presence.write_page(page, 5));
+        assertEquals(List.of("9 carol"), clients(page.flip(), 3));
+
+        // Clients that left are gone from the pages
+        presence.leave(5);
+        presence.leave(5);
+        assertEquals(2, presence.size());
+        page = ByteBuffer.allocate(64);
+        assertEquals(0, presence.write_page(page, 0));
+        assertEquals(List.of("2 alice", "9 carol"), clients(page.flip(), 4));
+    }
+
+    @Test
+    void a_nickname_too_long_for_any_page_is_skipped(){
+        PresenceIndex presence = new PresenceIndex(sessions, 16);
+        join(presence, 1, "alice");
+        join(presence, 2, "x".repeat(40));
+        join(presence, 3, "bob");
+
+        // The page ends before the long name, and the next page skips it
+        ByteBuffer page = ByteBuffer.allocate(16);
+        assertEquals(1, presence.write_page(page, 0));
+        assertEquals(List.of("1 alice"), clients(page.flip(), 3));
+
+        page.clear();
+        assertEquals(0, presence.write_page(page, 1));
+        assertEquals(List.of("3 bob"), clients(page.flip(), 3));
+
+        // A page of nothing but the long name still moves the cursor on
+        presence.leave(3);
+        page.clear();
+        assertEquals(0, presence.write_page(page, 1));
+        assertEquals(List.of(), clients(page.flip(), 4));
+    }
+
+    @Test
+    void changes_since_a_version_are_written_in_order(){
+        PresenceIndex presence = new PresenceIndex(sessions, 16);
+        join(presence, 1, "alice");
+        int since = presence.version();
+
+        join(presence, 2, "bob");
+        sessions.rename(sessions.get(1), "alicia");
+        presence.rename(1);
+        presence.rename(7);
+        presence.leave(2);
+
+        ByteBuffer out = ByteBuffer.allocate(64);
+        assertEquals(4, presence.write_changes(out, since));
+        assertEquals(List.of("2 1 bob", "1 2 alicia", "2 3"), changes(out.flip(), 4));
+
+        // Nothing is new to a client that is up to date
+        out.clear();
+        assertEquals(4, presence.write_changes(out, 4));
+        assertEquals(List.of(), changes(out.flip(), 4));
+
+        // A version from the future is refused
+        assertEquals(-1, presence.write_changes(out, 5));
+    }
+
+    @Test
+    void changes_that_do_not_fit_end_the_batch(){
+        PresenceIndex presence = new PresenceIndex(sessions, 16);
+        join(presence, 1, "alice");
+        join(presence, 2, "bob");
+        join(presence, 3, "carol");
+
+        // The version, then alice's join, leaving no room for bob's
+        ByteBuffer out = ByteBuffer.allocate(1 + 8 + 4);
+        assertEquals(1, presence.write_changes(out, 0));
+        assertEquals(List.of("1 1 alice"), changes(out.flip(), 3));
+
+        out = ByteBuffer.allocate(64);
+        assertEquals(3, presence.write_changes(out, 1));
+        assertEquals(List.of("2 1 bob", "3 1 carol"), changes(out.flip(), 3));
+    }
+
+    @Test
+    void changes_past_the_history_are_refused(){
+        // Four changes are kept
+        PresenceIndex presence = new PresenceIndex(sessions, 3);
+        for (int id = 1; id <= 6; id++)
+            join(presence, id, "client" + id);
+
+        ByteBuffer out = ByteBuffer.allocate(64);
+        assertEquals(-1, presence.write_changes(out, 0));
+        assertEquals(-1, presence.write_changes(out, 1));
+        assertEquals(0, out.position());
+
+        // The last three still read, from slots the first changes were written to
+        assertEquals(6, presence.write_changes(out, 3));
+        assertEquals(List.of("4 1 client4", "5 1 client5", "6 1 client6"), changes(out.flip(), 6));
+    }
+
+    @Test
+    void changes_from_before_a_restart_are_refused(){
+        PresenceIndex presence = new PresenceIndex(sessions, 16);
+        presence.restart(40);
+        int floor = presence.version();
+        assertTrue(floor > 40);
+
+        // Every version a client could hold from before is refused, even one past the save
+        ByteBuffer out = ByteBuffer.allocate(64);
+        assertEquals(-1, presence.write_changes(out, 40));
+        assertEquals(-1, presence.write_changes(out, 45));
+        assertEquals(-1, presence.write_changes(out, floor - 1));
+
+        join(presence, 1, "alice");
+        assertEquals(floor + 1, presence.write_changes(out, floor));
+        assertEquals(List.of("1 1 alice"), changes(out.flip(), floor + 1));
+    }
+}
@@ -0,0 +1,139 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the receiving half of selective repeat: holding messages that
+// arrive out of order, dropping repeats and describing the gaps in a SACK
+class ReceiveWindowTest {
+    /**
+    * Writes the SACK bitmap of a window
+    *
+    * @param  window    the window
+    * @param  room      the most bytes the bitmap may take
+    * @return the bytes of the bitmap
+    */
+    private static byte[] sack(ReceiveWindow<String> window, int room){
+        ByteBuffer out = ByteBuffer.allocate(room);
+        window.write_sack(out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    @Test
+    void holds_out_of_order_messages_until_the_gap_fills(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(8);
+        assertTrue(window.receive(2, "c"));
+        assertTrue(window.receive(1, "b"));
+        assertNull(window.poll());
+        assertEquals(0, window.expected());
+
+        assertTrue(window.receive(0, "a"));
+        assertEquals("a", window.poll());
+        assertEquals("b", window.poll());
+        assertEquals("c", window.poll());
+        assertNull(window.poll());
+        assertEquals(3, window.expected());
+    }
+
+    @Test
+    void drops_repeats_held_and_delivered(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(8);
+        assertTrue(window.receive(1, "b"));
+        assertFalse(window.receive(1, "b again"));
+
+        assertTrue(window.receive(0, "a"));
+        assertEquals("a", window.poll());
+        assertFalse(window.receive(0, "a again"));
+
+        assertEquals("b", window.poll());
+        assertFalse(window.receive(1, "b late"));
+        assertNull(window.poll());
+    }
+
+    @Test
+    void drops_messages_past_the_window(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(4);
+        assertFalse(window.receive(4, "too far"));
+        assertTrue(window.receive(3, "last slot"));
+
+        // The slot it would share with message 0 is still free for it
+        assertTrue(window.receive(0, "a"));
+        assertEquals("a", window.poll());
+        assertTrue(window.receive(4, "fits now"));
+    }
+
+    @Test
+    void sack_marks_the_messages_held_past_the_gap(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(32);
+        assertArrayEquals(new byte[0], sack(window, 8));
+
+        // Expecting 0 and holding 2, 3 and 10: bits 1, 2 and 9 after the expected one
+        window.receive(2, "c");
+        window.receive(3, "d");
+        window.receive(10, "k");
+        assertArrayEquals(new byte[]{0b110, 0b10}, sack(window, 8));
+
+        // Filling the gap moves the bitmap along
+        window.receive(0, "a");
+        window.receive(1, "b");
+        while (window.poll() != null);
+        assertEquals(4, window.expected());
+        assertArrayEquals(new byte[]{0b100000}, sack(window, 8));
+    }
+
+    @Test
+    void sack_stops_at_the_room_given(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(64);
+        window.receive(30, "far");
+        assertArrayEquals(new byte[]{0, 0}, sack(window, 2));
+        assertEquals(4, sack(window, 8).length);
+    }
+
+    @Test
+    void wraps_around_the_slots(){
+        ReceiveWindow<Integer> window = new ReceiveWindow<Integer>(4);
+        for (int seq = 0; seq < 100; seq += 2){
+            assertTrue(window.receive(seq + 1, seq + 1));
+            assertTrue(window.receive(seq, seq));
+            assertEquals(seq, window.poll().intValue());
+            assertEquals(seq + 1, window.poll().intValue());
+        }
+
+        assertEquals(100, window.expected());
+    }
+
+    @Test
+    void starts_over_from_a_number(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(8);
+        window.receive(1, "held");
+        window.clear(50);
+
+        assertEquals(50, window.expected());
+        assertNull(window.poll());
+        assertFalse(window.receive(49, "old"));
+        assertTrue(window.receive(50, "new"));
+        assertEquals("new", window.poll());
+    }
+
+    @Test
+    void clear_drops_what_is_held_and_starts_over(){
+        ReceiveWindow<String> window = new ReceiveWindow<String>(8);
+        window.receive(0, "a");
+        window.receive(2, "held");
+        window.clear();
+
+        assertEquals(0, window.expected());
+        assertNull(window.poll());
+        assertTrue(window.receive(0, "new"));
+        assertEquals("new", window.poll());
+        assertNull(window.poll());
+    }
+}
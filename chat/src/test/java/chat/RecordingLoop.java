@@ -0,0 +1,98 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Event loop stand-in for the tests, which decodes and keeps every frame the
+// code under test sends instead of writing it to its socket
+class RecordingLoop extends EventLoop {
+    /**
+    * A frame that was sent, and the port of the client it went to
+    */
+    static class Sent {
+        int opcode;
+        boolean compressed;
+        int port;
+        int session;
+        int seq;
+        String payload;
+
+        public String toString(){
+            return Frame.name(opcode) + " " + port + " " + seq + " " + payload;
+        }
+    }
+
+    // Frames sent, oldest first
+    final List<Sent> sent = new ArrayList<Sent>();
+
+    RecordingLoop(Log log) throws IOException {
+        super(0, log);
+    }
+
+    public void send(ByteBuffer data, SocketAddress target){
+        note(data.duplicate(), target);
+        release(data);
+    }
+
+    public void send_copy(ByteBuffer data, SocketAddress target){
+        note(data.duplicate(), target);
+    }
+
+    /**
+    * Keeps every frame of a datagram
+    *
+    * @param  data      the flipped buffer, consumed
+    * @param  target    the address of the destination client
+    */
+    private void note(ByteBuffer data, SocketAddress target){
+        Frame frame = new Frame();
+        while (Codec.decode(data, frame)){
+            Sent sent = new Sent();
+            sent.opcode = frame.opcode;
+            sent.compressed = frame.compressed;
+            sent.port = ((InetSocketAddress) target).getPort();
+            sent.session = frame.session;
+            sent.seq = frame.seq;
+            sent.payload = frame.payload_string();
+            this.sent.add(sent);
+        }
+    }
+
+    /**
+    * Returns whether a frame was sent to a client with a payload ending in a text
+    *
+    * @param  opcode    the opcode of the frame
+    * @param  client    the client's address
+    * @param  text      the end of the payload
+    * @return whether such a frame was sent
+    */
+    boolean sent(int opcode, InetSocketAddress client, String text){
+        for (Sent frame : sent){
+            if (frame.opcode == opcode && frame.port == client.getPort() && frame.payload.endsWith(text))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+    * Lists the seqs of the frames of an opcode sent to a client
+    *
+    * @param  opcode    the opcode of the frames
+    * @param  client    the client's address
+    * @return the seqs, in the order the frames were sent
+    */
+    List<Integer> seqs(int opcode, InetSocketAddress client){
+        List<Integer> seqs = new ArrayList<Integer>();
+        for (Sent frame : sent){
+            if (frame.opcode == opcode && frame.port == client.getPort())
+                seqs.add(frame.seq);
+        }
+
+        return seqs;
+    }
+}
@@ -0,0 +1,271 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Tests of a chat room: the fan-out of every message to each member within
+// the pump's budget and window, the acks that free the history and wake the
+// members held back while it was full, the retransmissions with backoff up
+// to dropping a silent member, the plain copies for members without
+// compression, and the room saved and loaded again
+class RoomTest {
+    // How long a member waits before a message is sent again
+    private static final long TIMEOUT = 1000;
+
+    private static final InetSocketAddress[] CLIENTS = {
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 2001),
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 2002),
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 2003)
+    };
+
+    @TempDir
+    Path directory;
+
+    private Log log = new Log(Log.ERROR, 1024, null, 0, 0);
+    private SessionTable sessions;
+    private RecordingLoop loop;
+
+    @BeforeEach
+    void connect() throws IOException {
+        sessions = new SessionTable(16);
+        for (int i = 0; i < CLIENTS.length; i++)
+            sessions.add(i + 1, CLIENTS[i]);
+
+        loop = new RecordingLoop(log);
+    }
+
+    /**
+    * Creates a room with every client as a member
+    *
+    * @param  capacity  the number of messages kept until every member acks them
+    * @return the room
+    */
+    private static Room room(int capacity){
+        Room room = new Room(7, "team", capacity);
+        for (int i = 1; i <= CLIENTS.length; i++)
+            assertEquals(0, room.add(i));
+
+        return room;
+    }
+
+    /**
+    * Posts a message to a room the way the server does
+    *
+    * @param  room      the room
+    * @param  client    the posting member
+    * @param  text      the message
+    * @return whether the history had room for the message
+    */
+    private static boolean post(Room room, int client, String text){
+        ByteBuffer out = room.post(client, Codec.HEADER_SIZE + 5 + text.length());
+        if (out == null)
+            return false;
+
+        int gap = Codec.begin(out, Frame.ROOM_MESSAGE, room.id);
+        Codec.put_varint(out, client);
+        BufferPool.put_string(text, out);
+        Codec.finish(out, gap, room.next() - 1);
+        out.flip();
+        return true;
+    }
+
+    /**
+    * Lists the messages sent to a client
+    *
+    * @param  client    the client number
+    * @return the message numbers, in the order they were sent
+    */
+    private List<Integer> messages(int client){
+        return loop.seqs(Frame.ROOM_MESSAGE, CLIENTS[client - 1]);
+    }
+
+    @Test
+    void messages_go_to_every_member_within_the_budget(){
+        Room room = room(16);
+        assertTrue(post(room, 1, "hello"));
+        assertTrue(post(room, 2, "hi"));
+        assertEquals(1, room.expected(1));
+
+        // The budget runs out part way, and the room has to be pumped again straight away
+        assertEquals(0, room.pump(loop, sessions, 4, 0, TIMEOUT));
+        assertEquals(0, room.due);
+        assertEquals(4, loop.sent.size());
+
+        // The next pump serves what is left, then the room waits for its timer
+        assertEquals(8, room.pump(loop, sessions, 10, 0, TIMEOUT));
+        for (int client = 1; client <= 3; client++)
+            assertEquals(List.of(0, 1), messages(client));
+        assertEquals(TIMEOUT, room.due);
+        assertTrue(loop.sent(Frame.ROOM_MESSAGE, CLIENTS[2], "hello"));
+    }
+
+    @Test
+    void a_member_is_sent_at_most_a_window_ahead_of_its_acks(){
+        Room room = room(128);
+        for (int i = 0; i < 100; i++)
+            assertTrue(post(room, 1, "message " + i));
+
+        room.pump(loop, sessions, 1000, 0, TIMEOUT);
+        assertEquals(64, messages(1).size());
+
+        // An ack moves the window on by as many messages
+        loop.sent.clear();
+        room.ack(1, 10);
+        room.pump(loop, sessions, 1000, 0, TIMEOUT);
+        assertEquals(List.of(64, 65, 66, 67, 68, 69, 70, 71, 72, 73), messages(1));
+        assertTrue(messages(2).isEmpty());
+    }
+
+    @Test
+    void acks_free_the_history_and_wake_the_members_held_back(){
+        Room room = room(4);
+        for (int i = 0; i < 4; i++)
+            assertTrue(post(room, 1, "message " + i));
+
+        // The history is full until every member acks
+        assertFalse(post(room, 1, "one too many"));
+        assertTrue(room.blocked(1));
+        assertEquals(4, room.expected(1));
+        room.pump(loop, sessions, 100, 0, TIMEOUT);
+
+        room.ack(1, 4);
+        room.ack(2, 4);
+        room.ack(3, 5);
+        room.ack(3, 0);
+        assertFalse(room.idle());
+        loop.sent.clear();
+        room.pump(loop, sessions, 100, 0, TIMEOUT);
+        assertTrue(loop.seqs(Frame.ROOM_SENT, CLIENTS[0]).isEmpty());
+
+        // The last ack lets the held back member post again, told which post is expected
+        room.ack(3, 4);
+        assertTrue(room.idle());
+        room.pump(loop, sessions, 100, 0, TIMEOUT);
+        assertEquals(List.of(4), loop.seqs(Frame.ROOM_SENT, CLIENTS[0]));
+        assertFalse(room.blocked(1));
+        assertTrue(post(room, 1, "one too many"));
+
+        // A member that leaves no longer holds the history
+        for (int i = 0; i < 3; i++)
+            assertTrue(post(room, 2, "more " + i));
+        room.ack(1, 8);
+        room.ack(2, 8);
+        assertFalse(post(room, 2, "full"));
+        assertTrue(room.remove(3));
+        assertFalse(room.remove(3));
+        assertTrue(post(room, 2, "full"));
+    }
+
+    @Test
+    void silent_members_are_sent_messages_again_then_dropped(){
+        Room room = room(16);
+        sessions.get(2).join_room(room.id);
+        assertTrue(post(room, 1, "anyone?"));
+        room.pump(loop, sessions, 100, 0, TIMEOUT);
+        room.ack(1, 1);
+        room.ack(3, 1);
+
+        // Nothing goes again before the timeout
+        loop.sent.clear();
+        room.pump(loop, sessions, 100, TIMEOUT - 1, TIMEOUT);
+        assertTrue(loop.sent.isEmpty());
+        assertEquals(TIMEOUT, room.due);
+
+        // Every retransmission waits twice as long as the last
+        long now = TIMEOUT;
+        for (int backoff = 1; backoff <= 6; backoff++){
+            room.pump(loop, sessions, 100, now, TIMEOUT);
+            assertEquals(backoff, messages(2).size());
+            assertEquals(now + (TIMEOUT << backoff), room.due);
+            now = room.due;
+        }
+
+        assertEquals(6, loop.metrics().get(Metrics.RETRANSMITS));
+        assertTrue(messages(1).isEmpty());
+
+        // Past the longest backoff the member is dropped and told so
+        room.pump(loop, sessions, 100, now, TIMEOUT);
+        assertFalse(room.member(2));
+        assertEquals(2, room.size());
+        assertEquals(List.of(room.id), loop.seqs(Frame.ROOM_LEFT, CLIENTS[1]));
+        assertTrue(room.idle());
+    }
+
+    @Test
+    void compressed_messages_are_inflated_for_members_without_compression(){
+        Room room = room(16);
+        sessions.get(1).compress = true;
+
+        String text = "thanks, see you later tonight! let me know what you think";
+        ByteBuffer out = room.post(1, BufferPool.BUFFER_SIZE);
+        int gap = Codec.begin(out, Frame.ROOM_MESSAGE, room.id);
+        Codec.put_varint(out, 1);
+        BufferPool.put_string(text, out);
+        Codec.finish(out, gap, 0);
+        out.flip();
+        assertTrue(Compression.compress(out));
+
+        // The copies made for the members without compression carry the plain text
+        room.pump(loop, sessions, 100, 0, TIMEOUT);
+        assertEquals(3, loop.sent.size());
+        for (RecordingLoop.Sent sent : loop.sent){
+            assertEquals(sent.port == CLIENTS[0].getPort(), sent.compressed);
+            assertEquals(0, sent.seq);
+            if (!sent.compressed)
+                assertTrue(sent.payload.endsWith(text));
+        }
+
+        assertEquals(1, loop.metrics().get(Metrics.EXPANDED));
+    }
+
+    @Test
+    void rooms_pick_up_where_they_were_saved(){
+        Room room = room(16);
+        for (int i = 0; i < 3; i++)
+            assertTrue(post(room, 1, "message " + i));
+        room.pump(loop, sessions, 100, 0, TIMEOUT);
+        room.ack(1, 3);
+        room.ack(2, 1);
+
+        // Encodes the room the way the server does, without writing the snapshot out
+        Snapshot snapshot = new Snapshot(directory.resolve("rooms.snapshot"));
+        assertTrue(snapshot.begin());
+        room.save(snapshot);
+        ByteBuffer in = snapshot.reserve(0).duplicate().flip();
+        in.position(13);
+        assertEquals("team", Codec.get_text(in));
+
+        Room loaded = new Room(7, "team", 16);
+        assertTrue(loaded.load(in));
+        assertFalse(in.hasRemaining());
+        assertEquals(3, loaded.next());
+        assertEquals(3, loaded.expected(1));
+        assertEquals(0, loaded.expected(3));
+
+        // Every member is sent what it had not acked, the messages read back whole
+        loop.sent.clear();
+        loaded.pump(loop, sessions, 100, 0, TIMEOUT);
+        assertTrue(messages(1).isEmpty());
+        assertEquals(List.of(1, 2), messages(2));
+        assertEquals(List.of(0, 1, 2), messages(3));
+        assertTrue(loop.sent(Frame.ROOM_MESSAGE, CLIENTS[2], "message 2"));
+
+        // A room claiming more messages than it keeps is turned away
+        ByteBuffer broken = ByteBuffer.allocate(16);
+        Codec.put_varint(broken, 0);
+        Codec.put_varint(broken, 17);
+        assertFalse(new Room(7, "team", 16).load(broken.flip()));
+    }
+}
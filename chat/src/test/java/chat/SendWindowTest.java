@@ -0,0 +1,244 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the sending half of selective repeat: acks that come late, twice
+// or with gaps, the backlog that holds messages while the window is full,
+// and a whole exchange with a receiving window over a lossy path
+class SendWindowTest {
+    private final RttEstimator rtt = new RttEstimator();
+
+    /**
+    * Builds a SACK bitmap from the bytes given as integers
+    *
+    * @param  bytes     the bytes of the bitmap
+    * @return the buffer ready to be read
+    */
+    private static ByteBuffer sack(int... bytes){
+        ByteBuffer sack = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes)
+            sack.put((byte) b);
+
+        sack.flip();
+        return sack;
+    }
+
+    /**
+    * Adds messages and sends every one that enters the window
+    *
+    * @param  window    the window
+    * @param  count     the number of messages
+    * @return the futures of the messages, in order
+    */
+    private List<CompletableFuture<Void>> send(SendWindow window, int count){
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < count; i++){
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            futures.add(future);
+            int seq = window.add("m" + i, future);
+            if (seq >= 0)
+                window.sent(seq, 0, rtt);
+        }
+
+        return futures;
+    }
+
+    @Test
+    void cumulative_ack_completes_every_message_before_it(){
+        SendWindow window = new SendWindow(8);
+        List<CompletableFuture<Void>> futures = send(window, 4);
+
+        window.ack(2, sack(), 1000, rtt);
+        assertTrue(futures.get(0).isDone());
+        assertTrue(futures.get(1).isDone());
+        assertFalse(futures.get(2).isDone());
+        assertFalse(window.outstanding(1));
+        assertTrue(window.outstanding(2));
+        assertTrue(window.busy());
+
+        window.ack(4, sack(), 1000, rtt);
+        assertTrue(futures.get(3).isDone());
+        assertFalse(window.busy());
+    }
+
+    @Test
+    void sack_completes_messages_past_the_gap(){
+        SendWindow window = new SendWindow(8);
+        List<CompletableFuture<Void>> futures = send(window, 6);
+
+        // Message 1 is missing, 2, 3 and 5 arrived
+        window.ack(1, sack(0b1011), 1000, rtt);
+        assertTrue(futures.get(0).isDone());
+        assertFalse(futures.get(1).isDone());
+        assertTrue(futures.get(2).isDone());
+        assertTrue(futures.get(3).isDone());
+        assertFalse(futures.get(4).isDone());
+        assertTrue(futures.get(5).isDone());
+
+        // Only the gaps are left to send again
+        assertEquals(1, window.due(0, Long.MAX_VALUE / 2));
+        assertEquals(4, window.due(2, Long.MAX_VALUE / 2));
+        assertEquals(-1, window.due(5, Long.MAX_VALUE / 2));
+
+        // Filling the first gap slides the window up to the second
+        window.ack(2, sack(0b1), 2000, rtt);
+        assertTrue(futures.get(1).isDone());
+        assertTrue(window.outstanding(4));
+        assertFalse(window.outstanding(3));
+    }
+
+    @Test
+    void duplicate_and_stale_acks_change_nothing(){
+        SendWindow window = new SendWindow(8);
+        List<CompletableFuture<Void>> futures = send(window, 4);
+
+        window.ack(2, sack(), 1000, rtt);
+        window.ack(2, sack(), 1000, rtt);
+        window.ack(1, sack(), 1000, rtt);
+        window.ack(0, sack(0b1), 1000, rtt);
+        assertFalse(futures.get(2).isDone());
+        assertTrue(window.outstanding(2));
+        assertTrue(window.outstanding(3));
+
+        // An ack for messages never sent is ignored altogether
+        window.ack(9, sack(), 1000, rtt);
+        assertFalse(futures.get(2).isDone());
+        assertTrue(window.outstanding(3));
+    }
+
+    @Test
+    void full_window_holds_messages_in_the_backlog(){
+        SendWindow window = new SendWindow(4);
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 6; i++){
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            futures.add(future);
+            int seq = window.add("m" + i, future);
+            assertEquals(i < 4 ? i : -1, seq);
+        }
+
+        // Nothing enters until an ack makes room, and then in order
+        assertEquals(-1, window.admit());
+        window.ack(1, sack(), 1000, rtt);
+        assertEquals(4, window.admit());
+        assertEquals("m4", window.text(4));
+        assertEquals(-1, window.admit());
+
+        // A message added while the backlog is not empty waits behind it
+        CompletableFuture<Void> late = new CompletableFuture<Void>();
+        assertEquals(-1, window.add("late", late));
+        window.ack(3, sack(), 1000, rtt);
+        assertEquals(5, window.admit());
+        assertEquals(6, window.admit());
+        assertEquals("late", window.text(6));
+    }
+
+    @Test
+    void timers_back_off_for_every_retry(){
+        SendWindow window = new SendWindow(4);
+        send(window, 1);
+        long first = window.next_due();
+        assertEquals(-1, window.due(0, first - 1));
+        assertEquals(0, window.due(0, first));
+
+        // The first retry waits at least twice the first timeout
+        window.sent(0, first, rtt);
+        assertTrue(window.next_due() - first >= 2 * first);
+    }
+
+    @Test
+    void only_messages_sent_once_are_measured(){
+        SendWindow window = new SendWindow(4);
+        send(window, 2);
+
+        // Message 0 was sent again, so its ack tells nothing about the path
+        window.sent(0, 500, rtt);
+        window.ack(1, sack(), 1000, rtt);
+        assertEquals(0, rtt.srtt());
+
+        window.ack(2, sack(), 3000, rtt);
+        assertEquals(3000, rtt.srtt());
+    }
+
+    @Test
+    void clear_fails_everything_in_flight_and_waiting(){
+        SendWindow window = new SendWindow(2);
+        List<CompletableFuture<Void>> futures = send(window, 3);
+        window.clear(new IOException("chat ended"));
+
+        for (CompletableFuture<Void> future : futures)
+            assertTrue(future.isCompletedExceptionally());
+        assertFalse(window.busy());
+    }
+
+    @Test
+    void delivers_everything_in_order_over_a_lossy_reordering_path(){
+        Random random = new Random(7);
+        SendWindow sender = new SendWindow(16);
+        ReceiveWindow<String> receiver = new ReceiveWindow<String>(16);
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        List<Integer> wire = new ArrayList<Integer>();
+        List<String> delivered = new ArrayList<String>();
+
+        for (int i = 0; i < 200; i++){
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            futures.add(future);
+            int seq = sender.add("m" + i, future);
+            if (seq >= 0)
+                wire.add(seq);
+        }
+
+        ByteBuffer ack = ByteBuffer.allocate(8);
+        for (long now = 0; sender.busy() && now < 1000000; now++){
+            // Sends what is queued, a third of it lost and the rest shuffled
+            for (int seq : wire)
+                sender.sent(seq, now, rtt);
+            Collections.shuffle(wire, random);
+            for (int seq : wire){
+                if (random.nextInt(3) != 0)
+                    receiver.receive(seq, sender.text(seq));
+            }
+            wire.clear();
+
+            for (String text = receiver.poll(); text != null; text = receiver.poll())
+                delivered.add(text);
+
+            // Acks back, a quarter of the acks lost
+            ack.clear();
+            receiver.write_sack(ack);
+            ack.flip();
+            if (random.nextInt(4) != 0)
+                sender.ack(receiver.expected(), ack, now, rtt);
+
+            // Sends again everything not acked, as if its timer ran out, then
+            // admits from the backlog
+            long later = now + TimeUnit.SECONDS.toNanos(10);
+            for (int seq = sender.due(0, later); seq >= 0; seq = sender.due(seq + 1, later))
+                wire.add(seq);
+            for (int seq = sender.admit(); seq >= 0; seq = sender.admit())
+                wire.add(seq);
+        }
+
+        assertFalse(sender.busy());
+        assertEquals(200, delivered.size());
+        for (int i = 0; i < 200; i++){
+            assertEquals("m" + i, delivered.get(i));
+            assertTrue(futures.get(i).isDone());
+        }
+        assertNull(receiver.poll());
+    }
+}
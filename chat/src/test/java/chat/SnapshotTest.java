@@ -0,0 +1,207 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Tests of the snapshots of the server: the sessions, chats and rooms saved
+// by one server and picked up by the next, and the files turned away for a
+// checksum that does not match or a layout of another format
+class SnapshotTest {
+    // Clients 1 and 2 chat with each other, all three are in one room
+    private static final InetSocketAddress[] CLIENTS = {
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 1024),
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 1025),
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 1026)
+    };
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private Log log = new Log(Log.ERROR, 1024, null, 0, 0);
+
+    @BeforeEach
+    void configure(){
+        file = directory.resolve("server.snapshot");
+        System.setProperty("chat.snapshot.file", file.toString());
+        System.setProperty("chat.snapshot.interval", "0");
+        System.setProperty("chat.session.timeout", "0");
+    }
+
+    @AfterEach
+    void clear(){
+        System.clearProperty("chat.snapshot.file");
+        System.clearProperty("chat.snapshot.interval");
+        System.clearProperty("chat.session.timeout");
+    }
+
+    /**
+    * Encodes a frame into its own buffer, ready to be handed to the server
+    *
+    * @param  opcode    the opcode of the frame
+    * @param  session   the client number the frame belongs to
+    * @param  seq       the sequence number or argument of the opcode
+    * @param  payload   the payload of the frame, or null for none
+    * @return the flipped buffer
+    */
+    private static ByteBuffer frame(int opcode, int session, int seq, String payload){
+        ByteBuffer out = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        Codec.encode(out, opcode, session, seq, payload);
+        out.flip();
+        return out;
+    }
+
+    /**
+    * Connects the clients, names them, opens the chat and the room, and
+    * leaves a post in the room that no member acked
+    *
+    * @param  server    the server
+    */
+    private static void populate(Server server){
+        String[] names = {"alice", "bob", "carol"};
+        for (int i = 0; i < CLIENTS.length; i++){
+            server.process_input(frame(Frame.CONNECTION_REQUEST, 0, 0, null), CLIENTS[i]);
+            server.process_input(frame(Frame.NICKNAME, i + 1, 0, names[i]), CLIENTS[i]);
+            server.process_input(frame(Frame.ROOM_JOIN, i + 1, 0, "team"), CLIENTS[i]);
+        }
+
+        server.process_input(frame(Frame.CLIENT_REQUEST, 1, 2, null), CLIENTS[0]);
+        server.process_input(frame(Frame.CLIENT_ACK_RESPONSE, 2, 1, null), CLIENTS[1]);
+
+        ByteBuffer post = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        int gap = Codec.begin(post, Frame.ROOM_SEND, 3);
+        Codec.put_varint(post, 1);
+        BufferPool.put_string("hello team", post);
+        Codec.finish(post, gap, 0);
+        post.flip();
+        server.process_input(post, CLIENTS[2]);
+        server.run_pass(System.nanoTime());
+    }
+
+    /**
+    * Saves a snapshot and waits for its thread to write it out
+    *
+    * @param  server    the server
+    */
+    private void save(Server server) throws IOException, InterruptedException {
+        server.save_snapshot();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Snapshot.read(file) == null && System.nanoTime() < deadline)
+            Thread.sleep(5);
+
+        assertNotNull(Snapshot.read(file));
+    }
+
+    /**
+    * Rewrites a byte of the snapshot file
+    *
+    * @param  offset    the offset of the byte
+    * @param  value     the byte written over it
+    * @param  sign      whether to work out the checksum again, so that only the byte is wrong
+    */
+    private void rewrite(int offset, int value, boolean sign) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        bytes.put(offset, (byte) value);
+        if (sign){
+            CRC32C checksum = new CRC32C();
+            checksum.update(bytes.array(), 0, bytes.capacity() - 4);
+            bytes.putInt(bytes.capacity() - 4, (int) checksum.getValue());
+        }
+
+        Files.write(file, bytes.array());
+    }
+
+    @Test
+    void sessions_chats_and_rooms_survive_a_restart() throws IOException, InterruptedException {
+        Server first = new Server(new RecordingLoop(log), log);
+        populate(first);
+        assertEquals(2, first.get_peer(1));
+        save(first);
+
+        RecordingLoop loop = new RecordingLoop(log);
+        Server second = new Server(loop, log);
+
+        // Every client keeps its number and address, and its nickname
+        for (int i = 0; i < CLIENTS.length; i++)
+            assertEquals(i + 1, second.get_ID(CLIENTS[i]));
+        assertFalse(second.set_nickname("alice", 3));
+        assertTrue(second.set_nickname("alice", 1));
+
+        // The chat goes on, a message offered by client 1 reaching client 2
+        assertEquals(2, second.get_peer(1));
+        assertEquals(1, second.get_peer(2));
+        assertEquals(0, second.get_peer(3));
+        second.process_input(frame(Frame.MESSAGE_ACK, 1, 1, "still there?"), CLIENTS[0]);
+        assertTrue(loop.sent(Frame.MESSAGE_REQUEST, CLIENTS[1], ""));
+        second.process_input(frame(Frame.MESSAGE_RESPONSE, 2, 1, null), CLIENTS[1]);
+        assertTrue(loop.sent(Frame.MESSAGE, CLIENTS[1], "still there?"));
+
+        // The room's post nobody acked goes out to its members again
+        second.run_pass(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        assertTrue(loop.sent(Frame.ROOM_MESSAGE, CLIENTS[0], "hello team"));
+        assertTrue(loop.sent(Frame.ROOM_MESSAGE, CLIENTS[1], "hello team"));
+    }
+
+    @Test
+    void a_snapshot_with_a_broken_checksum_is_turned_away() throws IOException, InterruptedException {
+        Server first = new Server(new RecordingLoop(log), log);
+        populate(first);
+        save(first);
+
+        // Changes a byte of the state without signing it again
+        rewrite(20, Files.readAllBytes(file)[20] ^ 1, false);
+        assertNull(Snapshot.read(file));
+
+        Server second = new Server(new RecordingLoop(log), log);
+        assertEquals(0, second.get_ID(CLIENTS[0]));
+        assertEquals(0, second.get_peer(1));
+    }
+
+    @Test
+    void a_snapshot_of_another_format_is_turned_away() throws IOException, InterruptedException {
+        Server first = new Server(new RecordingLoop(log), log);
+        populate(first);
+        save(first);
+
+        // The layout's version follows the magic, signed again so that only it is wrong
+        rewrite(4, 0, true);
+        assertNull(Snapshot.read(file));
+
+        rewrite(0, 'X', true);
+        assertNull(Snapshot.read(file));
+
+        Server second = new Server(new RecordingLoop(log), log);
+        assertEquals(0, second.get_ID(CLIENTS[0]));
+    }
+
+    @Test
+    void a_truncated_or_missing_snapshot_is_turned_away() throws IOException, InterruptedException {
+        assertNull(Snapshot.read(file));
+
+        Server first = new Server(new RecordingLoop(log), log);
+        populate(first);
+        save(first);
+
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+        assertNull(Snapshot.read(file));
+    }
+}
@@ -0,0 +1,199 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import org.junit.jupiter.api.Test;
+
+// Tests of the hashed timing wheel: when timers run, timers due a turn or
+// more out, and timers scheduled, moved or cancelled while others expire
+class TimingWheelTest {
+    // A wheel of 8 ticks of 10 nanoseconds, one turn being 80 nanoseconds
+    private static final long TICK = 10;
+    private static final int SLOTS = 8;
+
+    private final TimingWheel wheel = new TimingWheel(TICK, SLOTS, 0);
+    private final List<String> fired = new ArrayList<String>();
+
+    /**
+    * A timer that notes its name and the time it ran, then runs an action
+    */
+    private class Probe extends TimingWheel.Timer {
+        private final String name;
+        private LongConsumer action = now -> {};
+
+        Probe(String name){
+            this.name = name;
+        }
+
+        protected void expire(long now){
+            fired.add(name + "@" + now);
+            action.accept(now);
+        }
+    }
+
+    @Test
+    void runs_a_timer_once_its_tick_has_passed(){
+        Probe probe = new Probe("a");
+        wheel.schedule(probe, 25);
+        assertTrue(probe.scheduled());
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, wheel.advance(29));
+        assertEquals(1, wheel.advance(30));
+        assertEquals(List.of("a@30"), fired);
+        assertFalse(probe.scheduled());
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.until_tick(30));
+    }
+
+    @Test
+    void runs_a_timer_due_in_the_past_on_the_next_tick(){
+        wheel.advance(50);
+        wheel.schedule(new Probe("late"), 5);
+
+        assertEquals(5, wheel.until_tick(55));
+        assertEquals(1, wheel.advance(60));
+        assertEquals(List.of("late@60"), fired);
+    }
+
+    @Test
+    void keeps_timers_due_a_turn_or_more_out_until_their_turn(){
+        // All three share the bucket of tick 1, one, two and three turns apart
+        wheel.schedule(new Probe("first"), 15);
+        wheel.schedule(new Probe("second"), 15 + SLOTS * TICK);
+        wheel.schedule(new Probe("third"), 15 + 2 * SLOTS * TICK);
+
+        assertEquals(1, wheel.advance(20));
+        assertEquals(List.of("first@20"), fired);
+
+        // A whole turn later the second one is due, the third one still is not
+        assertEquals(0, wheel.advance(20 + SLOTS * TICK - 1));
+        assertEquals(1, wheel.advance(20 + SLOTS * TICK));
+        assertEquals(1, wheel.size());
+
+        assertEquals(1, wheel.advance(20 + 2 * SLOTS * TICK));
+        assertEquals(List.of("first@20", "second@100", "third@180"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void catches_up_on_every_tick_after_a_long_gap(){
+        for (int i = 0; i < 40; i++)
+            wheel.schedule(new Probe("t" + i), i * 7);
+
+        assertEquals(40, wheel.advance(1000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void timers_scheduled_while_expiring_run_on_a_later_tick(){
+        Probe follow = new Probe("follow");
+        Probe same = new Probe("same");
+        Probe first = new Probe("first");
+        first.action = now -> {
+            // One due straight away waits for the next tick, not a turn
+            wheel.schedule(same, now - 5);
+            wheel.schedule(follow, now + 2 * TICK);
+        };
+        wheel.schedule(first, 5);
+
+        assertEquals(1, wheel.advance(10));
+        assertEquals(2, wheel.size());
+        assertEquals(1, wheel.advance(20));
+        assertEquals(1, wheel.advance(40));
+        assertEquals(List.of("first@10", "same@20", "follow@40"), fired);
+    }
+
+    @Test
+    void a_timer_rescheduling_itself_runs_every_period(){
+        // Due three ticks after it runs, it runs once the fourth tick has passed
+        Probe repeat = new Probe("r");
+        repeat.action = now -> {
+            if (fired.size() < 5)
+                wheel.schedule(repeat, now + 3 * TICK);
+        };
+        wheel.schedule(repeat, 0);
+
+        for (long now = 0; now <= 200; now += TICK)
+            wheel.advance(now);
+
+        assertEquals(List.of("r@10", "r@50", "r@90", "r@130", "r@170"), fired);
+        assertFalse(repeat.scheduled());
+    }
+
+    @Test
+    void cancelling_the_next_timer_of_the_bucket_while_expiring(){
+        // Timers are linked at the head, so the bucket runs c, b, a
+        Probe a = new Probe("a");
+        Probe b = new Probe("b");
+        Probe c = new Probe("c");
+        wheel.schedule(a, 5);
+        wheel.schedule(b, 5);
+        wheel.schedule(c, 5);
+        c.action = now -> wheel.cancel(b);
+
+        assertEquals(2, wheel.advance(10));
+        assertEquals(List.of("c@10", "a@10"), fired);
+        assertFalse(b.scheduled());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cancelling_any_timer_of_the_bucket_while_expiring(){
+        List<Probe> probes = new ArrayList<Probe>();
+        for (int i = 0; i < 5; i++){
+            probes.add(new Probe("p" + i));
+            wheel.schedule(probes.get(i), 5);
+        }
+
+        // p4 runs first and cancels p3 and p1, leaving p2 and p0
+        probes.get(4).action = now -> {
+            wheel.cancel(probes.get(3));
+            wheel.cancel(probes.get(1));
+        };
+
+        assertEquals(3, wheel.advance(10));
+        assertEquals(List.of("p4@10", "p2@10", "p0@10"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void moving_the_next_timer_of_the_bucket_while_expiring(){
+        Probe a = new Probe("a");
+        Probe b = new Probe("b");
+        Probe c = new Probe("c");
+        wheel.schedule(a, 5);
+        wheel.schedule(b, 5);
+        wheel.schedule(c, 5);
+        c.action = now -> wheel.schedule(b, 35);
+
+        assertEquals(2, wheel.advance(10));
+        assertEquals(List.of("c@10", "a@10"), fired);
+        assertTrue(b.scheduled());
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, wheel.advance(30));
+        assertEquals(1, wheel.advance(40));
+        assertEquals(List.of("c@10", "a@10", "b@40"), fired);
+    }
+
+    @Test
+    void cancelling_a_timer_that_already_ran_changes_nothing(){
+        Probe a = new Probe("a");
+        Probe b = new Probe("b");
+        wheel.schedule(a, 5);
+        wheel.schedule(b, 50);
+        wheel.advance(10);
+
+        wheel.cancel(a);
+        wheel.cancel(null);
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.advance(60));
+    }
+}